@@ -0,0 +1,40 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The artifact key, computed for each request of the artifactory route.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ArtifactKeyBenchmark {
+
+	private final File root = new File("./artifactory");
+
+	private final ArtifactKey artifactKey = new ArtifactKey("com.livy.artifactory", "livy-server", "1.2.3-rc1", "livy-server-1.2.3-rc1.jar");
+
+	@Benchmark
+	public String buildDirectoryPath() {
+		return artifactKey.buildDirectoryPath(root);
+	}
+
+	@Benchmark
+	public int keyHashCode() {
+		return artifactKey.hashCode();
+	}
+
+	@Benchmark
+	public ArtifactKey fromJson() {
+		return ArtifactKey.fromJson(artifactKey.toJson());
+	}
+
+}
\ No newline at end of file
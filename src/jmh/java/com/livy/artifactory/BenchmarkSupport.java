@@ -0,0 +1,212 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.netty.buffer.Unpooled;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
+
+/**
+ * Helpers of the benchmarks : waiting for the asynchronous operations, and
+ * temporary repositories.
+ */
+public class BenchmarkSupport {
+
+	public static <T> T await(Promise<T> promise) {
+		return await(promise.future());
+	}
+
+	public static <T> T await(Future<T> future) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		future.onComplete(res -> {
+			if (res.succeeded())
+				result.complete(res.result());
+			else
+				result.completeExceptionally(res.cause());
+		});
+		try {
+			return result.get(60, TimeUnit.SECONDS);
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static File createTempDirectory() {
+		try {
+			return Files.createTempDirectory("livy-jmh").toFile();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * A stream of in memory chunks, sent synchronously while it is not paused.
+	 */
+	public static class ChunkReadStream implements ReadStream<Buffer> {
+
+		private final Buffer[] chunks;
+
+		private int next;
+
+		private boolean paused;
+
+		private Handler<Buffer> handler;
+
+		private Handler<Void> endHandler;
+
+		public ChunkReadStream(byte[] content, int chunkSize) {
+			this(content, chunkSize, false);
+		}
+
+		/**
+		 * @param direct chunks in direct buffers, as read from a socket
+		 */
+		public ChunkReadStream(byte[] content, int chunkSize, boolean direct) {
+			chunks = new Buffer[(content.length + chunkSize - 1) / chunkSize];
+			for (int i = 0; i < chunks.length; i++) {
+				int start = i * chunkSize;
+				int length = Math.min(chunkSize, content.length - start);
+				chunks[i] = direct
+						? Buffer.buffer(Unpooled.directBuffer(length).writeBytes(content, start, length))
+						: Buffer.buffer(chunkSize).appendBytes(content, start, length);
+			}
+		}
+
+		public ChunkReadStream reset() {
+			next = 0;
+			paused = false;
+			return this;
+		}
+
+		@Override
+		public ChunkReadStream exceptionHandler(Handler<Throwable> handler) {
+			return this;
+		}
+
+		@Override
+		public ChunkReadStream handler(Handler<Buffer> handler) {
+			this.handler = handler;
+			send();
+			return this;
+		}
+
+		@Override
+		public ChunkReadStream pause() {
+			paused = true;
+			return this;
+		}
+
+		@Override
+		public ChunkReadStream resume() {
+			paused = false;
+			send();
+			return this;
+		}
+
+		@Override
+		public ChunkReadStream fetch(long amount) {
+			return resume();
+		}
+
+		@Override
+		public ChunkReadStream endHandler(Handler<Void> endHandler) {
+			this.endHandler = endHandler;
+			return this;
+		}
+
+		private void send() {
+			while (handler != null && !paused && next < chunks.length) {
+				handler.handle(chunks[next++]);
+			}
+			if (handler != null && next == chunks.length && endHandler != null) {
+				next++;
+				endHandler.handle(null);
+			}
+		}
+	}
+
+	/**
+	 * A stream discarding what is written, never full.
+	 */
+	public static class NullWriteStream implements WriteStream<Buffer> {
+
+		private long written;
+
+		public long getWritten() {
+			return written;
+		}
+
+		@Override
+		public NullWriteStream exceptionHandler(Handler<Throwable> handler) {
+			return this;
+		}
+
+		@Override
+		public NullWriteStream write(Buffer data) {
+			written += data.length();
+			return this;
+		}
+
+		@Override
+		public NullWriteStream write(Buffer data, Handler<AsyncResult<Void>> handler) {
+			write(data);
+			if (handler != null)
+				handler.handle(Future.succeededFuture());
+			return this;
+		}
+
+		@Override
+		public void end() {
+		}
+
+		@Override
+		public void end(Handler<AsyncResult<Void>> handler) {
+			if (handler != null)
+				handler.handle(Future.succeededFuture());
+		}
+
+		@Override
+		public NullWriteStream setWriteQueueMaxSize(int maxSize) {
+			return this;
+		}
+
+		@Override
+		public boolean writeQueueFull() {
+			return false;
+		}
+
+		@Override
+		public NullWriteStream drainHandler(Handler<Void> handler) {
+			return this;
+		}
+	}
+
+}
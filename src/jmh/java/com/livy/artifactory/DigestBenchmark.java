@@ -0,0 +1,70 @@
+package com.livy.artifactory;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Hashing of the streamed files : the sha1 pump of the static route and the
+ * digests of the published artifacts, in 8 KB chunks as read from a file or a
+ * socket, in heap or direct buffers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DigestBenchmark {
+
+	@Param({ "65536", "16777216" })
+	int size;
+
+	private BenchmarkSupport.ChunkReadStream stream;
+
+	private BenchmarkSupport.ChunkReadStream directStream;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		stream = new BenchmarkSupport.ChunkReadStream(BenchmarkSupport.randomBytes(size), 8192);
+		directStream = new BenchmarkSupport.ChunkReadStream(BenchmarkSupport.randomBytes(size), 8192, true);
+	}
+
+	@Benchmark
+	public String sha1Pump() {
+		DigestPump pump = new DigestPump(stream.reset(), new BenchmarkSupport.NullWriteStream(), DigestReadStream.SHA1);
+		pump.start();
+		return pump.getHexDigest(DigestReadStream.SHA1);
+	}
+
+	@Benchmark
+	public String directBufferDigests() {
+		DigestReadStream digestStream = new DigestReadStream(directStream.reset(), ChecksumStore.ALGORITHMS);
+		digestStream.handler(buffer -> {
+		});
+		return digestStream.getHexDigest(DigestReadStream.SHA1);
+	}
+
+	@Benchmark
+	public String sha1Digest() {
+		return digest(DigestReadStream.SHA1);
+	}
+
+	@Benchmark
+	public String publishedDigests() {
+		return digest(ChecksumStore.ALGORITHMS);
+	}
+
+	private String digest(String... algorithms) {
+		DigestReadStream digestStream = new DigestReadStream(stream.reset(), algorithms);
+		digestStream.handler(buffer -> {
+		});
+		return digestStream.getHexDigest(algorithms[0]);
+	}
+
+}
\ No newline at end of file
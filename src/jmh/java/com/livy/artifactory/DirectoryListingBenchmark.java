@@ -0,0 +1,73 @@
+package com.livy.artifactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+
+/**
+ * Rendering of the listing of a big directory, as a group with thousands of
+ * versions, before it is cached : sort, page rendering and compression.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DirectoryListingBenchmark {
+
+	@Param({ "100", "10000", "100000" })
+	int entries;
+
+	private DirectoryListing.Template template;
+
+	private List<String> names;
+
+	private Buffer page;
+
+	@Setup
+	public void setUp() {
+		template = DirectoryListing.Template.load("baseIndex.html");
+		names = new ArrayList<>();
+		for (int i = 0; i < entries; i++) {
+			names.add((i % 7) + "." + (i % 100) + "." + i + (i % 10 == 0 ? "-rc1" : ""));
+		}
+		Collections.sort(names);
+		page = render();
+	}
+
+	@Benchmark
+	public Buffer render() {
+		Map<String, String> arguments = new LinkedHashMap<>();
+		arguments.put("dirList", new JsonArray(names).encode());
+		arguments.put("currentDir", Json.encode("/com.livy/livy-server/"));
+		arguments.put("paging", "{\"page\":1,\"pages\":1}");
+		return template.render(arguments);
+	}
+
+	@Benchmark
+	public List<String> sortByVersion() {
+		List<String> byVersion = new ArrayList<>(names);
+		byVersion.sort(VersionComparator.INSTANCE);
+		return byVersion;
+	}
+
+	@Benchmark
+	public Buffer gzip() {
+		return GzipVariants.gzip(page);
+	}
+
+}
\ No newline at end of file
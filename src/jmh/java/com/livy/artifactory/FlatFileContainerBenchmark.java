@@ -0,0 +1,85 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+/**
+ * Reads and writes of the flat file container, by file size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FlatFileContainerBenchmark {
+
+	@Param({ "1024", "65536", "1048576", "16777216" })
+	int size;
+
+	private Vertx vertx;
+
+	private File root;
+
+	private FlatFileContainer container;
+
+	private ArtifactKey readKey;
+
+	private ArtifactKey writeKey;
+
+	private byte[] content;
+
+	private BenchmarkSupport.ChunkReadStream stream;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		vertx = Vertx.vertx();
+		root = BenchmarkSupport.createTempDirectory();
+		container = new FlatFileContainer(vertx, root);
+		content = BenchmarkSupport.randomBytes(size);
+		stream = new BenchmarkSupport.ChunkReadStream(content, 8192);
+		readKey = new ArtifactKey("com.livy", "bench", "1.0", "read-" + size + ".jar");
+		writeKey = new ArtifactKey("com.livy", "bench", "1.0", "write-" + size + ".jar");
+		BenchmarkSupport.await(container.put(readKey, new FileContent(readKey, content, "application/java-archive")));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Promise<Void> closed = Promise.promise();
+		vertx.close(closed);
+		BenchmarkSupport.await(closed);
+		BenchmarkSupport.delete(root);
+	}
+
+	@Benchmark
+	public FileContent get() {
+		return BenchmarkSupport.await(container.get(readKey));
+	}
+
+	@Benchmark
+	public FileRegion getRegion() {
+		return BenchmarkSupport.await(container.getRegion(readKey));
+	}
+
+	@Benchmark
+	public void put() {
+		BenchmarkSupport.await(container.put(writeKey, new FileContent(writeKey, content, "application/java-archive")));
+	}
+
+	@Benchmark
+	public void putStream() {
+		BenchmarkSupport.await(container.put(writeKey, stream.reset()));
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,172 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.net.SocketAddress;
+
+/**
+ * End to end requests through the router of a Livy server, over keep alive
+ * connections of a local client : the artifactory route, the static route,
+ * the directory listings and the catalog API.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RouterBenchmark {
+
+	@Param({ "1024", "1048576" })
+	int size;
+
+	private File root;
+
+	private LivyServer server;
+
+	private Vertx clientVertx;
+
+	private HttpClient client;
+
+	private int port;
+
+	private Buffer content;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		root = BenchmarkSupport.createTempDirectory();
+		port = freePort();
+
+		Properties properties = new Properties();
+		properties.setProperty("livy.port", Integer.toString(port));
+		properties.setProperty("livy.rootArtifactDirectory", new File(root, "artifactory").getAbsolutePath());
+		properties.setProperty("livy.instances", "1");
+		properties.setProperty("livy.admin.port", "0");
+		File configFile = new File(root, "livy.config.properties.xml");
+		try (OutputStream os = new FileOutputStream(configFile)) {
+			properties.storeToXML(os, "Livy benchmark");
+		}
+
+		server = new LivyServer(new LivyServer.Config(configFile.getAbsolutePath()));
+		BenchmarkSupport.await(server.start());
+
+		clientVertx = Vertx.vertx();
+		client = clientVertx.createHttpClient(new HttpClientOptions()
+				.setDefaultHost("localhost")
+				.setDefaultPort(port)
+				.setKeepAlive(true)
+				.setMaxPoolSize(64));
+
+		content = Buffer.buffer(BenchmarkSupport.randomBytes(size));
+		for (int i = 0; i < 100; i++) {
+			expect(200, send(HttpMethod.PUT, "/artifactory/com.livy/bench/1." + i + "/bench.jar", content));
+		}
+		expect(200, send(HttpMethod.PUT, "/artifactory/com.livy/bench/1.0/ivy.xml", Buffer.buffer(ivyXml())));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.close();
+		Promise<Void> closed = Promise.promise();
+		clientVertx.close(closed);
+		BenchmarkSupport.await(closed);
+		BenchmarkSupport.await(server.stop());
+		BenchmarkSupport.delete(root);
+	}
+
+	@Benchmark
+	public int getArtifact() {
+		return expect(200, send(HttpMethod.GET, "/artifactory/com.livy/bench/1.0/bench.jar", null));
+	}
+
+	@Benchmark
+	public int headArtifact() {
+		return expect(200, send(HttpMethod.HEAD, "/artifactory/com.livy/bench/1.0/bench.jar", null));
+	}
+
+	@Benchmark
+	public int getStaticFile() {
+		return expect(200, send(HttpMethod.GET, "/com.livy/bench/1.0/bench.jar", null));
+	}
+
+	@Benchmark
+	public int getListing() {
+		return expect(200, send(HttpMethod.GET, "/com.livy/bench/", null));
+	}
+
+	@Benchmark
+	public int getLatest() {
+		return expect(200, send(HttpMethod.GET, "/api/latest/com.livy/bench?revision=1.%2B", null));
+	}
+
+	@Benchmark
+	public int putArtifact() {
+		return expect(200, send(HttpMethod.PUT, "/artifactory/com.livy/bench/2.0/bench.jar", content));
+	}
+
+	/**
+	 * Send a request and read its response.
+	 *
+	 * @return the status of the response
+	 */
+	private Promise<Integer> send(HttpMethod method, String uri, Buffer body) {
+		Promise<Integer> p = Promise.promise();
+		RequestOptions options = new RequestOptions()
+				.setHost("localhost")
+				.setPort(port)
+				.setURI(uri);
+		HttpClientRequest request = client.request(method, SocketAddress.inetSocketAddress(port, options.getHost()), options, response -> response
+				.exceptionHandler(p::tryFail)
+				.bodyHandler(responseBody -> p.tryComplete(response.statusCode())));
+		request.exceptionHandler(p::tryFail);
+		if (body != null)
+			request.end(body);
+		else
+			request.end();
+		return p;
+	}
+
+	private static int expect(int status, Promise<Integer> response) {
+		int actual = BenchmarkSupport.await(response);
+		if (actual != status)
+			throw new IllegalStateException("Unexpected status " + actual);
+		return actual;
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static String ivyXml() {
+		StringBuilder sb = new StringBuilder("<ivy-module version=\"2.0\">\n\t<info organisation=\"com.livy\" module=\"bench\" revision=\"1.0\"/>\n\t<dependencies>\n");
+		for (int i = 0; i < 50; i++) {
+			sb.append("\t\t<dependency org=\"com.livy\" name=\"dependency-").append(i).append("\" rev=\"1.").append(i).append("\"/>\n");
+		}
+		return sb.append("\t</dependencies>\n</ivy-module>\n").toString();
+	}
+
+}
\ No newline at end of file
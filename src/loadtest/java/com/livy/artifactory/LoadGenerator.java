@@ -0,0 +1,497 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.SocketAddress;
+
+/**
+ * Load generator replaying the traffic of ivy resolutions against a Livy
+ * server, to know how many build agents a node sustains.
+ *
+ * A synthetic repository is first published through the artifactory route,
+ * then concurrent clients, each sending its next request when the previous
+ * one is answered, replay a mix of :
+ * <ul>
+ * <li>ivy : the ivy.xml of a version</li>
+ * <li>notFound : the probes of the other patterns of a resolver chain (poms,
+ * ivy-[revision].xml), answered with a 404</li>
+ * <li>checksum : the sha1 or md5 of an ivy file or a jar</li>
+ * <li>jar : a jar of a few KB</li>
+ * <li>largeJar : a jar of several MB</li>
+ * <li>listing : the versions of a module, for a dynamic revision</li>
+ * </ul>
+ * The traffic is reproducible : it only depends on the seed. The report gives
+ * by kind of request the throughput, the latency percentiles and the errors,
+ * any unexpected status being an error.
+ *
+ * The settings are system properties (loadtest.*, see Settings). Without
+ * loadtest.port, a server is started in this JVM on a temporary repository.
+ */
+public class LoadGenerator {
+
+	public static void main(String[] args) throws Exception {
+		Settings settings = new Settings(System.getProperties());
+		LoadGenerator generator = new LoadGenerator(settings);
+		try {
+			generator.run();
+		} finally {
+			generator.close();
+		}
+		System.exit(generator.errors() > 0 && settings.failOnError ? 1 : 0);
+	}
+
+	private final Settings settings;
+
+	private final Vertx vertx;
+
+	private final HttpClient client;
+
+	private final LivyServer server;
+
+	private final File root;
+
+	private final int port;
+
+	private final Map<String, Kind> kinds = new LinkedHashMap<>();
+
+	private volatile boolean running;
+
+	public LoadGenerator(Settings settings) throws IOException {
+		this.settings = settings;
+		if (settings.port > 0) {
+			server = null;
+			root = null;
+			port = settings.port;
+		} else {
+			root = Files.createTempDirectory("livy-loadtest").toFile();
+			port = freePort();
+			server = startServer(root, port);
+		}
+
+		vertx = Vertx.vertx();
+		client = vertx.createHttpClient(new HttpClientOptions()
+				.setDefaultHost(settings.host)
+				.setDefaultPort(port)
+				.setKeepAlive(true)
+				.setMaxPoolSize(settings.concurrency)
+				.setPipelining(false));
+
+		kinds.put("ivy", new Kind(settings.mix.get("ivy"), 200));
+		kinds.put("notFound", new Kind(settings.mix.get("notFound"), 404));
+		kinds.put("checksum", new Kind(settings.mix.get("checksum"), 200));
+		kinds.put("jar", new Kind(settings.mix.get("jar"), 200));
+		kinds.put("largeJar", new Kind(settings.mix.get("largeJar"), 200));
+		kinds.put("listing", new Kind(settings.mix.get("listing"), 200));
+	}
+
+	private static LivyServer startServer(File root, int port) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("livy.port", Integer.toString(port));
+		properties.setProperty("livy.rootArtifactDirectory", new File(root, "artifactory").getAbsolutePath());
+		properties.setProperty("livy.admin.port", "0");
+		File configFile = new File(root, "livy.config.properties.xml");
+		try (OutputStream os = new FileOutputStream(configFile)) {
+			properties.storeToXML(os, "Livy load test");
+		}
+		LivyServer server = new LivyServer(new LivyServer.Config(configFile.getAbsolutePath()));
+		await(server.start());
+		return server;
+	}
+
+	public void run() throws InterruptedException {
+		System.out.println("Livy load test on " + settings.host + ":" + port + " : " + settings.modules + " modules x " + settings.versions
+				+ " versions, " + settings.concurrency + " clients, " + settings.duration + " s (seed " + settings.seed + ")");
+
+		long start = System.nanoTime();
+		seed();
+		System.out.println("Repository seeded in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+		if (settings.warmup > 0) {
+			replay(settings.warmup);
+			kinds.values().forEach(Kind::reset);
+		}
+		long elapsed = replay(settings.duration);
+		report(elapsed);
+	}
+
+	/**
+	 * Publish the repository : for each version of each module its ivy.xml and
+	 * its jar, and a large jar for one module out of ten.
+	 */
+	private void seed() throws InterruptedException {
+		List<Object[]> uploads = new ArrayList<>();
+		Random random = new Random(settings.seed);
+		for (int m = 0; m < settings.modules; m++) {
+			for (int v = 0; v < settings.versions; v++) {
+				String base = "/artifactory/" + group(m) + "/" + module(m) + "/" + version(v) + "/";
+				uploads.add(new Object[] { base + "ivy.xml", Buffer.buffer(ivyXml(m, v, random)) });
+				uploads.add(new Object[] { base + module(m) + ".jar", randomBuffer(random, settings.jarSize / 2 + random.nextInt(settings.jarSize)) });
+				if (m % 10 == 0 && v == settings.versions - 1)
+					uploads.add(new Object[] { base + module(m) + "-all.jar", randomBuffer(random, settings.largeJarSize) });
+			}
+		}
+
+		Iterator<Object[]> iterator = uploads.iterator();
+		CountDownLatch done = new CountDownLatch(Math.min(16, uploads.size()));
+		AtomicLong failures = new AtomicLong();
+		for (int i = 0; i < Math.min(16, uploads.size()); i++) {
+			upload(iterator, done, failures);
+		}
+		done.await();
+		if (failures.get() > 0)
+			throw new IllegalStateException(failures.get() + " uploads failed");
+	}
+
+	private void upload(Iterator<Object[]> iterator, CountDownLatch done, AtomicLong failures) {
+		Object[] upload;
+		synchronized (iterator) {
+			upload = iterator.hasNext() ? iterator.next() : null;
+		}
+		if (upload == null) {
+			done.countDown();
+			return;
+		}
+		send(HttpMethod.PUT, (String) upload[0], (Buffer) upload[1]).future().onComplete(res -> {
+			if (res.failed() || res.result() != 200)
+				failures.incrementAndGet();
+			upload(iterator, done, failures);
+		});
+	}
+
+	/**
+	 * Replay the traffic during a number of seconds.
+	 *
+	 * @return the duration in ns
+	 */
+	private long replay(int seconds) throws InterruptedException {
+		running = true;
+		CountDownLatch done = new CountDownLatch(settings.concurrency);
+		long start = System.nanoTime();
+		for (int c = 0; c < settings.concurrency; c++) {
+			Random random = new Random(settings.seed * 31 + c);
+			next(random, done);
+		}
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		running = false;
+		done.await();
+		return System.nanoTime() - start;
+	}
+
+	private void next(Random random, CountDownLatch done) {
+		if (!running) {
+			done.countDown();
+			return;
+		}
+		String kindName = pick(random);
+		Kind kind = kinds.get(kindName);
+		String uri = uri(kindName, random);
+		long start = System.nanoTime();
+		send(HttpMethod.GET, uri, null).future().onComplete(res -> {
+			kind.latency.recordNanos(System.nanoTime() - start);
+			if (res.failed() || res.result() != kind.expectedStatus)
+				kind.errors.increment();
+			next(random, done);
+		});
+	}
+
+	private String pick(Random random) {
+		int total = kinds.values().stream().mapToInt(k -> k.weight).sum();
+		int r = random.nextInt(total);
+		for (Map.Entry<String, Kind> kind : kinds.entrySet()) {
+			r -= kind.getValue().weight;
+			if (r < 0)
+				return kind.getKey();
+		}
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * The requested modules follow a skewed distribution : a few modules are
+	 * the dependencies of every build.
+	 */
+	private String uri(String kind, Random random) {
+		int m = (int) (settings.modules * Math.pow(random.nextDouble(), 3));
+		int v = settings.versions - 1 - (int) (settings.versions * Math.pow(random.nextDouble(), 2));
+		String base = "/" + group(m) + "/" + module(m) + "/";
+		String versionBase = base + version(v) + "/";
+		switch (kind) {
+		case "ivy":
+			return versionBase + "ivy.xml";
+		case "notFound":
+			return random.nextBoolean() ? versionBase + module(m) + "-" + version(v) + ".pom" : versionBase + "ivy-" + version(v) + ".xml";
+		case "checksum":
+			return versionBase + (random.nextBoolean() ? "ivy.xml" : module(m) + ".jar") + (random.nextInt(4) == 0 ? ".md5" : ".sha1");
+		case "jar":
+			return versionBase + module(m) + ".jar";
+		case "largeJar":
+			int large = m - m % 10;
+			return "/" + group(large) + "/" + module(large) + "/" + version(settings.versions - 1) + "/" + module(large) + "-all.jar";
+		default:
+			return base;
+		}
+	}
+
+	/**
+	 * Send a request and read its response.
+	 *
+	 * @return the status of the response
+	 */
+	private Promise<Integer> send(HttpMethod method, String uri, Buffer body) {
+		Promise<Integer> p = Promise.promise();
+		RequestOptions options = new RequestOptions()
+				.setHost(settings.host)
+				.setPort(port)
+				.setURI(uri);
+		HttpClientRequest request = client.request(method, SocketAddress.inetSocketAddress(port, options.getHost()), options, response -> response
+				.handler(buffer -> {
+				})
+				.exceptionHandler(p::tryFail)
+				.endHandler(v -> p.tryComplete(response.statusCode())));
+		request.exceptionHandler(p::tryFail);
+		request.setTimeout(TimeUnit.SECONDS.toMillis(60));
+		if (body != null)
+			request.end(body);
+		else
+			request.end();
+		return p;
+	}
+
+	private void report(long elapsed) {
+		double seconds = elapsed / 1e9;
+		JsonObject json = new JsonObject()
+				.put("concurrency", settings.concurrency)
+				.put("durationSeconds", seconds)
+				.put("seed", settings.seed);
+		JsonObject kindsJson = new JsonObject();
+
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s %10s %8s %8s", "request", "count", "req/s", "p50 ms", "p90 ms", "p99 ms",
+				"p99.9 ms", "errors", "error %"));
+		long totalCount = 0;
+		long totalErrors = 0;
+		for (Map.Entry<String, Kind> entry : kinds.entrySet()) {
+			Kind kind = entry.getValue();
+			long count = kind.latency.getCount();
+			long errors = kind.errors.sum();
+			double[] q = kind.latency.getQuantileSeconds(0.5, 0.9, 0.99, 0.999);
+			totalCount += count;
+			totalErrors += errors;
+			System.out.println(String.format(Locale.ROOT, "%-10s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %8d %8.2f", entry.getKey(), count, count / seconds,
+					q[0] * 1e3, q[1] * 1e3, q[2] * 1e3, q[3] * 1e3, errors, count == 0 ? 0.0 : 100.0 * errors / count));
+			kindsJson.put(entry.getKey(), new JsonObject()
+					.put("count", count)
+					.put("throughput", count / seconds)
+					.put("p50", q[0])
+					.put("p90", q[1])
+					.put("p99", q[2])
+					.put("p999", q[3])
+					.put("errors", errors));
+		}
+		System.out.println(String.format(Locale.ROOT, "%-10s %10d %10.1f %54d %8.2f", "total", totalCount, totalCount / seconds, totalErrors,
+				totalCount == 0 ? 0.0 : 100.0 * totalErrors / totalCount));
+
+		json.put("requests", kindsJson).put("throughput", totalCount / seconds).put("errors", totalErrors);
+		if (settings.report != null) {
+			try {
+				Files.write(new File(settings.report).toPath(), json.encodePrettily().getBytes("UTF-8"));
+				System.out.println("Report written to " + settings.report);
+			} catch (IOException e) {
+				System.err.println("Unable to write the report " + settings.report + " : " + e);
+			}
+		}
+	}
+
+	long errors() {
+		return kinds.values().stream().mapToLong(k -> k.errors.sum()).sum();
+	}
+
+	public void close() {
+		client.close();
+		Promise<Void> closed = Promise.promise();
+		vertx.close(closed);
+		await(closed);
+		if (server != null)
+			await(server.stop());
+		if (root != null)
+			delete(root);
+	}
+
+	private static String group(int m) {
+		return "org.loadtest.group" + (m % 20);
+	}
+
+	private static String module(int m) {
+		return "module-" + m;
+	}
+
+	private static String version(int v) {
+		return "1." + (v / 10) + "." + (v % 10);
+	}
+
+	private String ivyXml(int m, int v, Random random) {
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<ivy-module version=\"2.0\">\n");
+		sb.append("\t<info organisation=\"").append(group(m)).append("\" module=\"").append(module(m)).append("\" revision=\"").append(version(v))
+				.append("\" status=\"integration\"/>\n\t<dependencies>\n");
+		int dependencies = random.nextInt(20);
+		for (int d = 0; d < dependencies; d++) {
+			int dm = random.nextInt(settings.modules);
+			sb.append("\t\t<dependency org=\"").append(group(dm)).append("\" name=\"").append(module(dm)).append("\" rev=\"latest.integration\"/>\n");
+		}
+		return sb.append("\t</dependencies>\n</ivy-module>\n").toString();
+	}
+
+	private static Buffer randomBuffer(Random random, int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return Buffer.buffer(bytes);
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static <T> T await(Promise<T> promise) {
+		CountDownLatch latch = new CountDownLatch(1);
+		promise.future().onComplete(res -> latch.countDown());
+		try {
+			if (!latch.await(60, TimeUnit.SECONDS))
+				throw new IllegalStateException("Timeout");
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+		if (promise.future().failed())
+			throw new IllegalStateException(promise.future().cause());
+		return promise.future().result();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static class Kind {
+
+		final int weight;
+
+		final int expectedStatus;
+
+		volatile LatencyHistogram latency = new LatencyHistogram();
+
+		final LongAdder errors = new LongAdder();
+
+		Kind(int weight, int expectedStatus) {
+			this.weight = weight;
+			this.expectedStatus = expectedStatus;
+		}
+
+		void reset() {
+			latency = new LatencyHistogram();
+			errors.reset();
+		}
+	}
+
+	/**
+	 * The settings, from the loadtest.* system properties.
+	 */
+	static class Settings {
+
+		String host;
+
+		/**
+		 * Port of the server to load, 0 to start one in this JVM.
+		 */
+		int port;
+
+		int modules;
+		int versions;
+		int jarSize;
+		int largeJarSize;
+
+		int concurrency;
+
+		/**
+		 * Durations in seconds of the warmup, not reported, and of the test.
+		 */
+		int warmup;
+		int duration;
+
+		long seed;
+
+		/**
+		 * Weights of the kinds of request, as "ivy:30,notFound:25,...".
+		 */
+		Map<String, Integer> mix = new LinkedHashMap<>();
+
+		/**
+		 * Path of the JSON report, none by default.
+		 */
+		String report;
+
+		boolean failOnError;
+
+		Settings(Properties properties) {
+			host = properties.getProperty("loadtest.host", "localhost");
+			port = Integer.parseInt(properties.getProperty("loadtest.port", "0"));
+			modules = Integer.parseInt(properties.getProperty("loadtest.modules", "200"));
+			versions = Integer.parseInt(properties.getProperty("loadtest.versions", "10"));
+			jarSize = Integer.parseInt(properties.getProperty("loadtest.jarSize", "16384"));
+			largeJarSize = Integer.parseInt(properties.getProperty("loadtest.largeJarSize", "8388608"));
+			concurrency = Integer.parseInt(properties.getProperty("loadtest.concurrency", "64"));
+			warmup = Integer.parseInt(properties.getProperty("loadtest.warmup", "10"));
+			duration = Integer.parseInt(properties.getProperty("loadtest.duration", "60"));
+			seed = Long.parseLong(properties.getProperty("loadtest.seed", "42"));
+			report = properties.getProperty("loadtest.report");
+			failOnError = Boolean.parseBoolean(properties.getProperty("loadtest.failOnError", "false"));
+
+			mix.put("ivy", 30);
+			mix.put("notFound", 25);
+			mix.put("checksum", 20);
+			mix.put("jar", 15);
+			mix.put("largeJar", 3);
+			mix.put("listing", 7);
+			String mixProperty = properties.getProperty("loadtest.mix");
+			if (mixProperty != null) {
+				for (String weight : mixProperty.split(",")) {
+					String[] parts = weight.trim().split(":");
+					if (!mix.containsKey(parts[0]))
+						throw new IllegalArgumentException("Unknown request kind " + parts[0]);
+					mix.put(parts[0], Integer.parseInt(parts[1]));
+				}
+			}
+		}
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,276 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * The access log of the HTTP requests, kept off the event loops : a request
+ * is recorded in a slot of a ring buffer, without lock nor formatting, and a
+ * background thread writes the slots by batches to a file rotated by size.
+ *
+ * A full buffer drops the requests rather than wait for the writer, they are
+ * counted. The 404, most of them being the probes of the ivy resolvers, are
+ * sampled.
+ *
+ * A line is : time remote method path status bytesSent durationMicros, tab
+ * separated.
+ */
+public class AccessLog {
+
+	private final static Logger log = LogManager.getLogger(AccessLog.class);
+
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+	private final File file;
+
+	private final long maxBytes;
+
+	private final int maxFiles;
+
+	private final int notFoundSampleRate;
+
+	private final int mask;
+
+	/**
+	 * The sequence of each slot : the slot of the sequence s is free for its
+	 * writer when it holds s, readable when it holds s + 1.
+	 */
+	private final AtomicLongArray sequences;
+
+	private final long[] times;
+
+	private final long[] durations;
+
+	private final long[] bytesSent;
+
+	private final int[] statuses;
+
+	private final String[] remotes;
+
+	private final String[] methods;
+
+	private final String[] paths;
+
+	private final AtomicLong head = new AtomicLong();
+
+	private long tail;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong sampledOut = new AtomicLong();
+
+	private final AtomicLong written = new AtomicLong();
+
+	private final Thread writer;
+
+	private volatile boolean running = true;
+
+	private FileChannel channel;
+
+	private long fileSize;
+
+	/**
+	 * @param bufferSize the slots of the ring buffer, rounded up to a power of two
+	 * @param maxBytes the size of the file before it is rotated
+	 * @param maxFiles the rotated files kept, as file.1 to file.maxFiles
+	 * @param notFoundSampleRate one 404 out of this rate is logged, 1 to log them all
+	 */
+	public AccessLog(File file, int bufferSize, long maxBytes, int maxFiles, int notFoundSampleRate) {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.maxFiles = maxFiles;
+		this.notFoundSampleRate = Math.max(1, notFoundSampleRate);
+		int capacity = Integer.highestOneBit(Math.max(2, bufferSize) * 2 - 1);
+		this.mask = capacity - 1;
+		sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+		}
+		times = new long[capacity];
+		durations = new long[capacity];
+		bytesSent = new long[capacity];
+		statuses = new int[capacity];
+		remotes = new String[capacity];
+		methods = new String[capacity];
+		paths = new String[capacity];
+
+		writer = new Thread(this::drain, "livy-access-log");
+		writer.setDaemon(true);
+	}
+
+	public AccessLog start() {
+		try {
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (parent != null)
+				Files.createDirectories(parent.toPath());
+			openFile();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to open the access log " + file, e);
+		}
+		writer.start();
+		log.info("Access log written to " + file.getAbsolutePath());
+		return this;
+	}
+
+	/**
+	 * Write the requests still in the buffer and close the file.
+	 */
+	public void stop() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Record a request, from any thread : never blocks.
+	 */
+	public void record(String remote, String method, String path, int status, long sent, long durationNanos) {
+		if (status == 404 && notFoundSampleRate > 1 && ThreadLocalRandom.current().nextInt(notFoundSampleRate) != 0) {
+			sampledOut.incrementAndGet();
+			return;
+		}
+		long sequence;
+		int slot;
+		while (true) {
+			sequence = head.get();
+			slot = (int) sequence & mask;
+			long available = sequences.get(slot);
+			if (available < sequence) {
+				// the writer is a whole buffer behind
+				dropped.incrementAndGet();
+				return;
+			}
+			if (available == sequence && head.compareAndSet(sequence, sequence + 1))
+				break;
+		}
+		times[slot] = System.currentTimeMillis();
+		remotes[slot] = remote;
+		methods[slot] = method;
+		paths[slot] = path;
+		statuses[slot] = status;
+		bytesSent[slot] = sent;
+		durations[slot] = durationNanos;
+		sequences.lazySet(slot, sequence + 1);
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getSampledOutCount() {
+		return sampledOut.get();
+	}
+
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	private void drain() {
+		StringBuilder lines = new StringBuilder(WRITE_BUFFER_SIZE);
+		while (true) {
+			boolean stopping = !running;
+			int count = 0;
+			while (lines.length() < WRITE_BUFFER_SIZE) {
+				int slot = (int) tail & mask;
+				if (sequences.get(slot) != tail + 1)
+					break;
+				appendLine(lines, slot);
+				remotes[slot] = null;
+				methods[slot] = null;
+				paths[slot] = null;
+				// the slot is free for the next turn of the buffer
+				sequences.lazySet(slot, tail + mask + 1);
+				tail++;
+				count++;
+			}
+			if (count > 0) {
+				write(lines);
+				written.addAndGet(count);
+				lines.setLength(0);
+			} else if (stopping) {
+				break;
+			} else {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warn("Unable to close the access log", e);
+		}
+	}
+
+	private void appendLine(StringBuilder lines, int slot) {
+		DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(times[slot]), lines);
+		lines.append('\t').append(remotes[slot])
+				.append('\t').append(methods[slot])
+				.append('\t').append(paths[slot])
+				.append('\t').append(statuses[slot])
+				.append('\t').append(bytesSent[slot])
+				.append('\t').append(TimeUnit.NANOSECONDS.toMicros(durations[slot]))
+				.append('\n');
+	}
+
+	private void write(StringBuilder lines) {
+		try {
+			ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(lines));
+			fileSize += bytes.remaining();
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			if (fileSize >= maxBytes)
+				rotate();
+		} catch (IOException e) {
+			log.warn("Unable to write the access log", e);
+		}
+	}
+
+	/**
+	 * file.n-1 becomes file.n, down to the file itself becoming file.1.
+	 */
+	private void rotate() throws IOException {
+		channel.close();
+		try {
+			for (int i = maxFiles - 1; i >= 1; i--) {
+				File rotated = new File(file.getPath() + "." + i);
+				if (rotated.exists())
+					Files.move(rotated.toPath(), new File(file.getPath() + "." + (i + 1)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (maxFiles > 0)
+				Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+			else
+				Files.delete(file.toPath());
+		} finally {
+			openFile();
+		}
+	}
+
+	private void openFile() throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		fileSize = channel.size();
+	}
+
+}
@@ -0,0 +1,30 @@
+package com.livy.artifactory;
+
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Handler of the router recording each request in the access log when its
+ * response is sent.
+ */
+public class AccessLogHandler implements Handler<RoutingContext> {
+
+	private final AccessLog accessLog;
+
+	public AccessLogHandler(AccessLog accessLog) {
+		this.accessLog = accessLog;
+	}
+
+	@Override
+	public void handle(RoutingContext context) {
+		long start = System.nanoTime();
+		context.addBodyEndHandler(v -> {
+			HttpServerRequest request = context.request();
+			accessLog.record(request.remoteAddress() != null ? request.remoteAddress().host() : "-", request.rawMethod(), request.path(),
+					context.response().getStatusCode(), context.response().bytesWritten(), System.nanoTime() - start);
+		});
+		context.next();
+	}
+
+}
@@ -0,0 +1,504 @@
+package com.livy.artifactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.streams.WriteStream;
+
+/**
+ * A zip or tar archive written to a stream an entry after the other, as the
+ * files are read : the archive is never held in memory.
+ *
+ * The entries of a zip archive are stored, the jars being already compressed,
+ * except the small text files such as the ivy and pom descriptors, deflated in
+ * memory. The sizes and CRC of an entry are known before its header is
+ * written, so the archive is read by the streaming unzip tools as well. The
+ * zip64 records are only written when the archive needs them.
+ *
+ * A stored entry can not have its CRC in a data descriptor after its content :
+ * a streaming reader such as ZipInputStream refuses the descriptor of a stored
+ * entry, having no other way to check where it ends. A stored file is thus
+ * read twice, once for its CRC and once to be sent, the second read mostly
+ * served by the page cache. The CRC of a file is kept for its next archives
+ * as long as it is not modified, so only the first archive of a cold file
+ * costs the second read.
+ */
+public class ArchiveWriter {
+
+	public enum Format {
+
+		ZIP("application/zip", ".zip"), TAR("application/x-tar", ".tar");
+
+		private final String contentType;
+
+		private final String extension;
+
+		Format(String contentType, String extension) {
+			this.contentType = contentType;
+			this.extension = extension;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		/**
+		 * The format of its lower case name, null when unknown.
+		 */
+		public static Format of(String name) {
+			for (Format format : values()) {
+				if (format.name().equalsIgnoreCase(name))
+					return format;
+			}
+			return null;
+		}
+
+	}
+
+	private static final int TAR_BLOCK = 512;
+
+	private static final long MAX_DEFLATED_LENGTH = 1024 * 1024;
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+	private static final int ZIP64_ENTRIES_LIMIT = 0xFFFF;
+
+	private static final int UTF8_FLAG = 0x0800;
+
+	private static final int UNIX_FILE_ATTRIBUTES = 0100644 << 16;
+
+	private static final int MAX_CACHED_CRCS = 100_000;
+
+	/**
+	 * The CRC of the stored files, by path, region and modification time.
+	 */
+	private static final StripedLruMap<String, Long> crcCache = new StripedLruMap<>(MAX_CACHED_CRCS);
+
+	private final Vertx vertx;
+
+	private final Format format;
+
+	private final WriteStream<Buffer> out;
+
+	private final List<Entry> entries = new ArrayList<>();
+
+	private long offset;
+
+	public ArchiveWriter(Vertx vertx, Format format, WriteStream<Buffer> out) {
+		this.vertx = vertx;
+		this.format = format;
+		this.out = out;
+	}
+
+	/**
+	 * The bytes written so far.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Write an entry, completed once its content is written : the next one is
+	 * to be written after.
+	 */
+	public Future<Void> write(String name, FileRegion region) {
+		if (region.isStream())
+			return Future.failedFuture(new IllegalArgumentException("Streamed region of " + region.getKey()));
+		if (format == Format.TAR) {
+			return writeBuffer(tarHeader(name, region.getLength(), region.getLastModifiedTime()))
+					.compose(v -> writeContent(region))
+					.compose(v -> writeBuffer(Buffer.buffer(new byte[(int) ((TAR_BLOCK - region.getLength() % TAR_BLOCK) % TAR_BLOCK)])));
+		}
+		return prepareZipEntry(name, region).compose(entry -> {
+			entry.localHeaderOffset = offset;
+			entries.add(entry);
+			Future<Void> written = writeBuffer(localHeader(entry));
+			return entry.deflated != null
+					? written.compose(v -> writeBuffer(entry.deflated))
+					: written.compose(v -> writeContent(region));
+		});
+	}
+
+	/**
+	 * Write the end of the archive, the stream is not ended.
+	 */
+	public Future<Void> finish() {
+		if (format == Format.TAR)
+			return writeBuffer(Buffer.buffer(new byte[2 * TAR_BLOCK]));
+		return writeBuffer(centralDirectory());
+	}
+
+	private Future<Void> writeBuffer(Buffer buffer) {
+		Promise<Void> p = Promise.promise();
+		try {
+			out.write(buffer);
+		} catch (IllegalStateException e) {
+			// the client is gone
+			p.fail(e);
+			return p.future();
+		}
+		offset += buffer.length();
+		if (out.writeQueueFull()) {
+			out.drainHandler(v -> {
+				out.drainHandler(null);
+				p.tryComplete();
+			});
+		} else {
+			p.complete();
+		}
+		return p.future();
+	}
+
+	private Future<Void> writeContent(FileRegion region) {
+		if (region.isInMemory())
+			return writeBuffer(region.getContent());
+		if (region.getLength() == 0)
+			return Future.succeededFuture();
+		Promise<Void> p = Promise.promise();
+		vertx.fileSystem().open(region.getPath(), new OpenOptions().setRead(true), open -> {
+			if (open.failed()) {
+				p.fail(open.cause());
+				return;
+			}
+			AsyncFile file = open.result();
+			file.setReadPos(region.getOffset()).setReadLength(region.getLength());
+			file.pipe().endOnSuccess(false).endOnFailure(false).to(out, res -> {
+				// a read may still be in flight when the client is gone
+				file.exceptionHandler(error -> {
+				}).close();
+				if (res.succeeded())
+					offset += region.getLength();
+				p.handle(res);
+			});
+		});
+		return p.future();
+	}
+
+	private Future<Entry> prepareZipEntry(String name, FileRegion region) {
+		Entry entry = new Entry(name, region.getLength(), region.getLastModifiedTime());
+		boolean deflate = GzipVariants.isCompressible(region.getKey().getFileName()) && region.getLength() <= MAX_DEFLATED_LENGTH;
+		if (region.isInMemory() && !deflate) {
+			CRC32 crc = new CRC32();
+			crc.update(region.getContent().getBytes());
+			entry.crc = crc.getValue();
+			entry.compressedSize = entry.size;
+			return Future.succeededFuture(entry);
+		}
+		String crcKey = region.isInMemory() ? null : region.getPath() + '@' + region.getOffset() + '+' + region.getLength() + '@' + region.getLastModifiedTime();
+		Long cachedCrc = crcKey != null && !deflate ? crcCache.get(crcKey) : null;
+		if (cachedCrc != null) {
+			entry.crc = cachedCrc;
+			entry.compressedSize = entry.size;
+			return Future.succeededFuture(entry);
+		}
+		// the CRC of the whole file is needed before its header
+		Promise<Entry> p = Promise.promise();
+		vertx.<Entry>executeBlocking(future -> {
+			try (InputStream is = region.isInMemory() ? new ByteArrayInputStream(region.getContent().getBytes()) : new RegionInputStream(region)) {
+				CRC32 crc = new CRC32();
+				byte[] bytes = new byte[READ_BUFFER_SIZE];
+				ByteArrayOutputStream deflated = deflate ? new ByteArrayOutputStream() : null;
+				Deflater deflater = deflate ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+				try (DeflaterOutputStream dos = deflate ? new DeflaterOutputStream(deflated, deflater) : null) {
+					int r;
+					while ((r = is.read(bytes)) > 0) {
+						crc.update(bytes, 0, r);
+						if (dos != null)
+							dos.write(bytes, 0, r);
+					}
+				} finally {
+					if (deflater != null)
+						deflater.end();
+				}
+				entry.crc = crc.getValue();
+				if (deflate && deflated.size() < entry.size) {
+					entry.deflated = Buffer.buffer(deflated.toByteArray());
+					entry.compressedSize = entry.deflated.length();
+				} else {
+					entry.compressedSize = entry.size;
+					if (crcKey != null && !deflate)
+						crcCache.put(crcKey, entry.crc);
+				}
+				future.complete(entry);
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, p);
+		return p.future();
+	}
+
+	private static Buffer localHeader(Entry entry) {
+		boolean zip64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+		Buffer header = Buffer.buffer(30 + entry.name.length + 20);
+		header.appendIntLE(0x04034b50);
+		header.appendShortLE((short) (zip64 ? 45 : 20));
+		header.appendShortLE((short) UTF8_FLAG);
+		header.appendShortLE((short) (entry.isDeflated() ? Deflater.DEFLATED : 0));
+		header.appendIntLE(entry.dosTime);
+		header.appendIntLE((int) entry.crc);
+		header.appendIntLE((int) (zip64 ? ZIP64_LIMIT : entry.compressedSize));
+		header.appendIntLE((int) (zip64 ? ZIP64_LIMIT : entry.size));
+		header.appendShortLE((short) entry.name.length);
+		header.appendShortLE((short) (zip64 ? 20 : 0));
+		header.appendBytes(entry.name);
+		if (zip64) {
+			header.appendShortLE((short) 0x0001);
+			header.appendShortLE((short) 16);
+			header.appendLongLE(entry.size);
+			header.appendLongLE(entry.compressedSize);
+		}
+		return header;
+	}
+
+	private Buffer centralDirectory() {
+		Buffer directory = Buffer.buffer();
+		long directoryOffset = offset;
+		for (Entry entry : entries) {
+			Buffer extra = Buffer.buffer();
+			if (entry.size >= ZIP64_LIMIT)
+				extra.appendLongLE(entry.size);
+			if (entry.compressedSize >= ZIP64_LIMIT)
+				extra.appendLongLE(entry.compressedSize);
+			if (entry.localHeaderOffset >= ZIP64_LIMIT)
+				extra.appendLongLE(entry.localHeaderOffset);
+			boolean zip64 = extra.length() > 0;
+			directory.appendIntLE(0x02014b50);
+			directory.appendShortLE((short) (3 << 8 | 45));
+			directory.appendShortLE((short) (zip64 ? 45 : 20));
+			directory.appendShortLE((short) UTF8_FLAG);
+			directory.appendShortLE((short) (entry.isDeflated() ? Deflater.DEFLATED : 0));
+			directory.appendIntLE(entry.dosTime);
+			directory.appendIntLE((int) entry.crc);
+			directory.appendIntLE((int) Math.min(entry.compressedSize, ZIP64_LIMIT));
+			directory.appendIntLE((int) Math.min(entry.size, ZIP64_LIMIT));
+			directory.appendShortLE((short) entry.name.length);
+			directory.appendShortLE((short) (zip64 ? 4 + extra.length() : 0));
+			directory.appendShortLE((short) 0);
+			directory.appendShortLE((short) 0);
+			directory.appendShortLE((short) 0);
+			directory.appendIntLE(UNIX_FILE_ATTRIBUTES);
+			directory.appendIntLE((int) Math.min(entry.localHeaderOffset, ZIP64_LIMIT));
+			directory.appendBytes(entry.name);
+			if (zip64) {
+				directory.appendShortLE((short) 0x0001);
+				directory.appendShortLE((short) extra.length());
+				directory.appendBuffer(extra);
+			}
+		}
+		long directorySize = directory.length();
+		if (entries.size() >= ZIP64_ENTRIES_LIMIT || directoryOffset >= ZIP64_LIMIT || directorySize >= ZIP64_LIMIT) {
+			long zip64EndOffset = directoryOffset + directorySize;
+			directory.appendIntLE(0x06064b50);
+			directory.appendLongLE(44);
+			directory.appendShortLE((short) 45);
+			directory.appendShortLE((short) 45);
+			directory.appendIntLE(0);
+			directory.appendIntLE(0);
+			directory.appendLongLE(entries.size());
+			directory.appendLongLE(entries.size());
+			directory.appendLongLE(directorySize);
+			directory.appendLongLE(directoryOffset);
+			directory.appendIntLE(0x07064b50);
+			directory.appendIntLE(0);
+			directory.appendLongLE(zip64EndOffset);
+			directory.appendIntLE(1);
+		}
+		directory.appendIntLE(0x06054b50);
+		directory.appendShortLE((short) 0);
+		directory.appendShortLE((short) 0);
+		directory.appendShortLE((short) Math.min(entries.size(), ZIP64_ENTRIES_LIMIT));
+		directory.appendShortLE((short) Math.min(entries.size(), ZIP64_ENTRIES_LIMIT));
+		directory.appendIntLE((int) Math.min(directorySize, ZIP64_LIMIT));
+		directory.appendIntLE((int) Math.min(directoryOffset, ZIP64_LIMIT));
+		directory.appendShortLE((short) 0);
+		return directory;
+	}
+
+	/**
+	 * A ustar header, preceded by a GNU long name entry when the name does not
+	 * fit in the name and prefix fields.
+	 */
+	private static Buffer tarHeader(String name, long size, long lastModifiedTime) {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		Buffer buffer = Buffer.buffer();
+		byte[] header = new byte[TAR_BLOCK];
+		if (nameBytes.length <= 100) {
+			System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		} else {
+			int split = prefixSplit(nameBytes);
+			if (split != -1) {
+				System.arraycopy(nameBytes, 0, header, 345, split);
+				System.arraycopy(nameBytes, split + 1, header, 0, nameBytes.length - split - 1);
+			} else {
+				byte[] longName = new byte[TAR_BLOCK];
+				System.arraycopy("././@LongLink".getBytes(StandardCharsets.US_ASCII), 0, longName, 0, 13);
+				fillHeader(longName, nameBytes.length + 1, 0, 'L');
+				buffer.appendBytes(longName);
+				buffer.appendBytes(nameBytes);
+				buffer.appendBytes(new byte[TAR_BLOCK - nameBytes.length % TAR_BLOCK]);
+				System.arraycopy(nameBytes, 0, header, 0, 100);
+			}
+		}
+		fillHeader(header, size, lastModifiedTime / 1000, '0');
+		return buffer.appendBytes(header);
+	}
+
+	/**
+	 * The index of the slash splitting a name in a prefix of at most 155 bytes
+	 * and a name of at most 100 bytes, -1 when there is none.
+	 */
+	private static int prefixSplit(byte[] name) {
+		for (int i = Math.min(155, name.length - 2); i > 0; i--) {
+			if (name[i] == '/' && name.length - i - 1 <= 100)
+				return i;
+		}
+		return -1;
+	}
+
+	private static void fillHeader(byte[] header, long size, long mtime, char type) {
+		octal(header, 100, 8, 0644);
+		octal(header, 108, 8, 0);
+		octal(header, 116, 8, 0);
+		if (size < 077777777777L) {
+			octal(header, 124, 12, size);
+		} else {
+			// base-256 encoding of the big sizes
+			header[124] = (byte) 0x80;
+			for (int i = 135; i > 124; i--) {
+				header[i] = (byte) size;
+				size >>>= 8;
+			}
+		}
+		octal(header, 136, 12, mtime);
+		header[156] = (byte) type;
+		System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+		header[263] = '0';
+		header[264] = '0';
+		System.arraycopy("livy".getBytes(StandardCharsets.US_ASCII), 0, header, 265, 4);
+		System.arraycopy("livy".getBytes(StandardCharsets.US_ASCII), 0, header, 297, 4);
+		for (int i = 148; i < 156; i++) {
+			header[i] = ' ';
+		}
+		long checksum = 0;
+		for (byte b : header) {
+			checksum += b & 0xff;
+		}
+		octal(header, 148, 7, checksum);
+	}
+
+	/**
+	 * An octal number left padded with zeros and ended by a NUL.
+	 */
+	private static void octal(byte[] header, int offset, int length, long value) {
+		String digits = Long.toOctalString(value);
+		int start = offset + length - 1 - digits.length();
+		for (int i = offset; i < start; i++) {
+			header[i] = '0';
+		}
+		System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, start, digits.length());
+		header[offset + length - 1] = 0;
+	}
+
+	private static int dosTime(long time) {
+		LocalDateTime date = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+		if (date.getYear() < 1980)
+			return (1 << 21) | (1 << 16);
+		return (date.getYear() - 1980) << 25 | date.getMonthValue() << 21 | date.getDayOfMonth() << 16
+				| date.getHour() << 11 | date.getMinute() << 5 | date.getSecond() >> 1;
+	}
+
+	private static class Entry {
+
+		final byte[] name;
+
+		final long size;
+
+		final int dosTime;
+
+		long crc;
+
+		long compressedSize;
+
+		long localHeaderOffset;
+
+		/**
+		 * The content of a deflated entry, null for a stored one.
+		 */
+		Buffer deflated;
+
+		Entry(String name, long size, long lastModifiedTime) {
+			this.name = name.getBytes(StandardCharsets.UTF_8);
+			this.size = size;
+			this.dosTime = dosTime(lastModifiedTime);
+		}
+
+		boolean isDeflated() {
+			return deflated != null;
+		}
+
+	}
+
+	/**
+	 * The content of a region of a file.
+	 */
+	private static class RegionInputStream extends InputStream {
+
+		private final RandomAccessFile file;
+
+		private long remaining;
+
+		RegionInputStream(FileRegion region) throws IOException {
+			file = new RandomAccessFile(region.getPath(), "r");
+			file.seek(region.getOffset());
+			remaining = region.getLength();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0)
+				return -1;
+			int r = file.read(b, off, (int) Math.min(len, remaining));
+			if (r == -1)
+				throw new IOException("Truncated file");
+			remaining -= r;
+			return r;
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+
+	}
+
+}
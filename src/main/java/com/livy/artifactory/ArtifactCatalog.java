@@ -0,0 +1,285 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * In memory catalog of the repository : group -> name -> version -> files.
+ *
+ * It is loaded from the group/name/version layout of the artifact directory
+ * and updated with each publication, so that the versions of a module, or the
+ * latest one matching an ivy revision, are known without any file system
+ * access. The versions are kept sorted with the VersionComparator.
+ *
+ * The catalog is not a source of truth : the files are always read from the
+ * file system. It is persisted by the CatalogStore.
+ */
+public class ArtifactCatalog {
+
+	private final static Logger log = LogManager.getLogger(ArtifactCatalog.class);
+
+	private volatile ConcurrentSkipListMap<String, ConcurrentSkipListMap<String, ConcurrentSkipListMap<String, NavigableSet<String>>>> groups = new ConcurrentSkipListMap<>();
+
+	public void add(ArtifactKey artifactKey) {
+		if (isHidden(artifactKey.getGroup()) || isHidden(artifactKey.getArtifactName()) || isHidden(artifactKey.getVersion())
+				|| isHidden(artifactKey.getFileName()) || isDerived(artifactKey.getFileName()))
+			return;
+		files(artifactKey.getGroup(), artifactKey.getArtifactName(), artifactKey.getVersion()).add(artifactKey.getFileName());
+	}
+
+	/**
+	 * The files of a version, created if needed : used to add the files of a
+	 * version at once.
+	 */
+	NavigableSet<String> files(String group, String name, String version) {
+		return groups.computeIfAbsent(group, g -> new ConcurrentSkipListMap<>())
+				.computeIfAbsent(name, n -> new ConcurrentSkipListMap<>(VersionComparator.INSTANCE))
+				.computeIfAbsent(version, v -> new ConcurrentSkipListSet<>());
+	}
+
+	/**
+	 * Take the content of another catalog, once it is loaded or scanned.
+	 */
+	public void replaceWith(ArtifactCatalog other) {
+		groups = other.groups;
+	}
+
+	static boolean isHidden(String name) {
+		return name.startsWith(".");
+	}
+
+	/**
+	 * The checksums are not cataloged, they exist or are restored for every
+	 * artifact. The gzip variants, under hidden names, are not either.
+	 */
+	static boolean isDerived(String fileName) {
+		return ChecksumStore.isChecksumFile(fileName);
+	}
+
+	/**
+	 * Add all the artifacts found under the artifact directory : blocking. The
+	 * group/name/version tree is walked in parallel in the pool, a task per
+	 * directory, so that the latency of the directory reads overlap.
+	 */
+	public void load(File artifactDirectory, ForkJoinPool pool) {
+		long start = System.currentTimeMillis();
+		int count = pool.invoke(new ScanTask(artifactDirectory, new String[0]));
+		log.info("Catalog loaded : " + count + " files in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private class ScanTask extends RecursiveTask<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File directory;
+
+		/**
+		 * The group, name and version of the directory, as far as they are known.
+		 */
+		private final String[] path;
+
+		ScanTask(File directory, String[] path) {
+			this.directory = directory;
+			this.path = path;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (path.length == 3) {
+				File[] files = directory.listFiles(File::isFile);
+				if (files == null || files.length == 0)
+					return 0;
+				NavigableSet<String> names = files(path[0], path[1], path[2]);
+				int count = 0;
+				for (File file : files) {
+					if (!isHidden(file.getName()) && !isDerived(file.getName())) {
+						names.add(file.getName());
+						count++;
+					}
+				}
+				return count;
+			}
+
+			List<ScanTask> tasks = new ArrayList<>();
+			for (File child : listDirectories(directory)) {
+				String[] childPath = Arrays.copyOf(path, path.length + 1);
+				childPath[path.length] = child.getName();
+				tasks.add(new ScanTask(child, childPath));
+			}
+			int count = 0;
+			for (ScanTask task : invokeAll(tasks)) {
+				count += task.join();
+			}
+			return count;
+		}
+	}
+
+	private static File[] listDirectories(File directory) {
+		File[] directories = directory.listFiles(f -> f.isDirectory() && !isHidden(f.getName()));
+		return directories != null ? directories : new File[0];
+	}
+
+	public List<String> getGroups() {
+		return new ArrayList<>(groups.keySet());
+	}
+
+	public List<String> getNames(String group) {
+		Map<String, ?> names = groups.get(group);
+		return names != null ? new ArrayList<>(names.keySet()) : null;
+	}
+
+	public List<String> getVersions(String group, String name) {
+		NavigableMap<String, NavigableSet<String>> versions = versions(group, name);
+		return versions != null ? new ArrayList<>(versions.keySet()) : null;
+	}
+
+	public List<String> getFiles(String group, String name, String version) {
+		NavigableMap<String, NavigableSet<String>> versions = versions(group, name);
+		NavigableSet<String> files = versions != null ? versions.get(version) : null;
+		return files != null ? new ArrayList<>(files) : null;
+	}
+
+	private NavigableMap<String, NavigableSet<String>> versions(String group, String name) {
+		Map<String, ConcurrentSkipListMap<String, NavigableSet<String>>> names = groups.get(group);
+		return names != null ? names.get(name) : null;
+	}
+
+	/**
+	 * The modules, as "group/name", whose group or name starts with the prefix.
+	 * A prefix containing a '/' is matched against "group/name".
+	 */
+	public List<String> search(String prefix, int limit) {
+		List<String> modules = new ArrayList<>();
+		int slash = prefix.indexOf('/');
+		NavigableMap<String, ConcurrentSkipListMap<String, ConcurrentSkipListMap<String, NavigableSet<String>>>> candidates = slash >= 0
+				? groups.subMap(prefix.substring(0, slash), true, prefix.substring(0, slash), true)
+				: groups;
+		String namePrefix = slash >= 0 ? prefix.substring(slash + 1) : prefix;
+		for (Map.Entry<String, ConcurrentSkipListMap<String, ConcurrentSkipListMap<String, NavigableSet<String>>>> group : candidates.entrySet()) {
+			boolean groupMatches = slash < 0 && group.getKey().startsWith(prefix);
+			for (String name : group.getValue().keySet()) {
+				if (groupMatches || name.startsWith(namePrefix)) {
+					modules.add(group.getKey() + "/" + name);
+					if (modules.size() >= limit)
+						return modules;
+				}
+			}
+		}
+		return modules;
+	}
+
+	/**
+	 * The latest version of a module matching an ivy revision :
+	 * <ul>
+	 * <li>latest.integration, or any latest.[status] : the latest version,
+	 * latest.release and latest.milestone skipping the snapshot and dev ones,
+	 * as the statuses of the ivy files are not known here.</li>
+	 * <li>a sub revision as 1.2.+</li>
+	 * <li>a version range as [1.0,2.0), ]1.0,2.0] or [1.0,)</li>
+	 * <li>a fixed revision, returned when it exists</li>
+	 * </ul>
+	 * Null when no version matches.
+	 */
+	public String getLatest(String group, String name, String revision) {
+		NavigableMap<String, NavigableSet<String>> versions = versions(group, name);
+		if (versions == null)
+			return null;
+
+		RevisionMatcher matcher = RevisionMatcher.parse(revision);
+		for (String version : versions.descendingKeySet()) {
+			if (matcher.matches(version))
+				return version;
+		}
+		return null;
+	}
+
+	/**
+	 * The content of the catalog, to persist it.
+	 */
+	NavigableMap<String, ConcurrentSkipListMap<String, ConcurrentSkipListMap<String, NavigableSet<String>>>> getGroupMap() {
+		return groups;
+	}
+
+	public int getModuleCount() {
+		int count = 0;
+		for (Map<String, ?> names : groups.values()) {
+			count += names.size();
+		}
+		return count;
+	}
+
+	static abstract class RevisionMatcher {
+
+		abstract boolean matches(String version);
+
+		static RevisionMatcher parse(String revision) {
+			if (revision == null || revision.equals("latest.integration") || revision.equals("latest"))
+				return new RevisionMatcher() {
+					@Override
+					boolean matches(String version) {
+						return true;
+					}
+				};
+			if (revision.startsWith("latest."))
+				return new RevisionMatcher() {
+					@Override
+					boolean matches(String version) {
+						String lower = version.toLowerCase();
+						return !lower.contains("snapshot") && !lower.contains("dev");
+					}
+				};
+			if (revision.endsWith("+")) {
+				String prefix = revision.substring(0, revision.length() - 1);
+				return new RevisionMatcher() {
+					@Override
+					boolean matches(String version) {
+						return version.startsWith(prefix);
+					}
+				};
+			}
+			if (revision.length() > 2 && "[]".indexOf(revision.charAt(0)) >= 0 && "[])".indexOf(revision.charAt(revision.length() - 1)) >= 0
+					&& revision.contains(",")) {
+				boolean lowerInclusive = revision.charAt(0) == '[';
+				boolean upperInclusive = revision.charAt(revision.length() - 1) == ']';
+				String[] bounds = revision.substring(1, revision.length() - 1).split(",", -1);
+				String lower = bounds[0].trim();
+				String upper = bounds[1].trim();
+				return new RevisionMatcher() {
+					@Override
+					boolean matches(String version) {
+						if (!lower.isEmpty()) {
+							int c = VersionComparator.INSTANCE.compare(version, lower);
+							if (c < 0 || c == 0 && !lowerInclusive)
+								return false;
+						}
+						if (!upper.isEmpty()) {
+							int c = VersionComparator.INSTANCE.compare(version, upper);
+							if (c > 0 || c == 0 && !upperInclusive)
+								return false;
+						}
+						return true;
+					}
+				};
+			}
+			return new RevisionMatcher() {
+				@Override
+				boolean matches(String version) {
+					return version.equals(revision);
+				}
+			};
+		}
+	}
+
+}
\ No newline at end of file
@@ -1,9 +1,13 @@
 package com.livy.artifactory;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.util.Objects;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import io.vertx.core.json.JsonObject;
+
 public class ArtifactKey {
 
 	private final String group;
@@ -35,8 +39,83 @@ public class ArtifactKey {
 		return fileName;
 	}
 
+	/**
+	 * The key of another file of the same group, name and version.
+	 */
+	public ArtifactKey withFileName(String fileName) {
+		return new ArtifactKey(group, artifactName, version, fileName);
+	}
+
+	public JsonObject toJson() {
+		return new JsonObject()
+				.put("group", group)
+				.put("name", artifactName)
+				.put("version", version)
+				.put("fileName", fileName);
+	}
+
+	public static ArtifactKey fromJson(JsonObject json) {
+		return new ArtifactKey(json.getString("group"), json.getString("name"), json.getString("version"), json.getString("fileName"));
+	}
+
+	/**
+	 * The path of the version directory under the given root directory.
+	 *
+	 * @throws IllegalArgumentException when a part of the key is not a plain
+	 *             name and would lead out of its directory
+	 */
 	public String buildDirectoryPath(File artifactDirectory) {
+		checkUnder(artifactDirectory, group, artifactName, version);
 		return new File(artifactDirectory, Stream.of(group, artifactName, version).collect(Collectors.joining(File.separator))).getAbsolutePath();
 	}
 
+	/**
+	 * The path of the file under the given root directory.
+	 *
+	 * @throws IllegalArgumentException when a part of the key is not a plain
+	 *             name and would lead out of its directory
+	 */
+	public String buildFilePath(File artifactDirectory) {
+		checkUnder(artifactDirectory, group, artifactName, version, fileName);
+		return new File(buildDirectoryPath(artifactDirectory), fileName).getAbsolutePath();
+	}
+
+	/**
+	 * Each part must be one level below the previous one once resolved, as the
+	 * static route checks its paths.
+	 */
+	private void checkUnder(File artifactDirectory, String... parts) {
+		Path root = artifactDirectory.toPath().toAbsolutePath().normalize();
+		Path path = root;
+		for (String part : parts) {
+			if (part == null)
+				throw new IllegalArgumentException("Invalid artifact key " + this);
+			path = path.resolve(part);
+		}
+		path = path.normalize();
+		if (!path.startsWith(root) || path.getNameCount() != root.getNameCount() + parts.length)
+			throw new IllegalArgumentException("Invalid artifact key " + this);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(group, artifactName, version, fileName);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof ArtifactKey))
+			return false;
+		ArtifactKey other = (ArtifactKey) obj;
+		return Objects.equals(group, other.group) && Objects.equals(artifactName, other.artifactName)
+				&& Objects.equals(version, other.version) && Objects.equals(fileName, other.fileName);
+	}
+
+	@Override
+	public String toString() {
+		return group + "/" + artifactName + "/" + version + "/" + fileName;
+	}
+
 }
\ No newline at end of file
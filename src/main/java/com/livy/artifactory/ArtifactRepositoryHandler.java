@@ -1,107 +1,485 @@
 package com.livy.artifactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.zip.ZipException;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.streams.ReadStream;
 import io.vertx.ext.web.RoutingContext;
 
 public class ArtifactRepositoryHandler implements Handler<RoutingContext> {
 
 	private final static Logger log = LogManager.getLogger(ArtifactRepositoryHandler.class);
 
+	/**
+	 * Event bus address where the key of each artifact saved is published, as
+	 * JSON.
+	 */
+	public static final String PUBLISHED_ADDRESS = "livy.artifact.published";
+
+	/**
+	 * Directory of the repository where the versions published at once are
+	 * unpacked.
+	 */
+	public static final String STAGING_DIRECTORY = ".staging";
+
+	/**
+	 * Header of an upload giving the SHA-1 of its content, verified before the
+	 * artifact is stored.
+	 */
+	public static final String CHECKSUM_SHA1_HEADER = "X-Checksum-Sha1";
+
+	/**
+	 * The checksum files uploaded hold a hex digest, possibly followed by the
+	 * name of the file.
+	 */
+	private static final int MAX_CHECKSUM_LENGTH = 4096;
+
 	private final String repositoryName;
 
 	private final FileContainerMapI fileContainerMap;
 
+	private final ChecksumStore checksumStore;
+
+	private final GzipVariants gzipVariants;
+
 	private final Vertx vertx;
 
-	public ArtifactRepositoryHandler(Vertx vertx, String repositoryName, FileContainerMapI FileContainer) {
+	/**
+	 * Where the versions published at once are unpacked, on the file system of
+	 * the repository.
+	 */
+	private final File stagingDirectory;
+
+	/**
+	 * The log of the artifacts sent to the peers, null without replication.
+	 */
+	private final ReplicationLog replicationLog;
+
+	public ArtifactRepositoryHandler(Vertx vertx, String repositoryName, FileContainerMapI FileContainer, File stagingDirectory) {
+		this(vertx, repositoryName, FileContainer, stagingDirectory, null);
+	}
+
+	public ArtifactRepositoryHandler(Vertx vertx, String repositoryName, FileContainerMapI FileContainer, File stagingDirectory,
+			ReplicationLog replicationLog) {
 		this.repositoryName = repositoryName;
+		this.replicationLog = replicationLog;
 		this.vertx = vertx;
+		this.stagingDirectory = stagingDirectory;
 		fileContainerMap = FileContainer;
+		checksumStore = new ChecksumStore(vertx, FileContainer);
+		gzipVariants = new GzipVariants(vertx, FileContainer);
+
+		// the versions left unpacked by an interrupted publication
+		vertx.fileSystem().deleteRecursive(stagingDirectory.getPath(), true, v -> {
+		});
 
 		log.info("Artifactory '" + repositoryName + "' started.");
 	}
 
 	public ArtifactRepositoryHandler(Vertx vertx, String repositoryName, File artifactDirectory) {
-		this(vertx, repositoryName, new FlatFileContainer(vertx, artifactDirectory));
+		this(vertx, repositoryName, new FlatFileContainer(vertx, artifactDirectory), new File(artifactDirectory, STAGING_DIRECTORY));
 
 	}
 
 	@Override
 	public void handle(RoutingContext context) {
+		// the hidden files of a version, as the gzip variants or the uploads in
+		// progress, are not artifacts
+		if (isHidden(getArtifactKey(context))) {
+			context.response().setStatusCode(context.request().method() == HttpMethod.PUT ? 400 : 404).end();
+			return;
+		}
 
-		log.debug("Factory received request : " + context.request().method() + " " + context.request().absoluteURI());
-		/**
-		 * log.info("Headers " + context.request().headers().entries().stream().map(e ->
-		 * e.getKey() + " : " + e.getValue()) .collect(Collectors.joining(" | ")));
-		 **/
 		switch (context.request().method()) {
 		case PUT:
 			saveArtifact(context).future()
 					.onSuccess(res -> context.response().end("ok"))
 					.onFailure(error -> {
+						if (isDigestMismatch(error)) {
+							// the rest of the body may not be read
+							context.response().setStatusCode(400).putHeader("Connection", "close").end("Checksum mismatch");
+							log.warn("Data not saved : " + error.getMessage());
+							return;
+						}
 						context.response().setStatusCode(500).end();
 						log.error("Data not saved : " + error.getMessage(), error);
 					});
 			break;
 		case GET:
-			readArtifact(context).future().onComplete(res -> {
+			readArtifact(context, fileContainerMap::getRegion).future().onComplete(res -> {
 				if (res.succeeded()) {
-					FileContent content = res.result();
-					context.response()
-							.putHeader("Content-Type", content.getContentType())
-							.putHeader("Content-Length", "" + content.getContent().length)
-							.end(Buffer.buffer(content.getContent()));
-
+					FileRegion region = res.result();
+					readEtag(region).future().onComplete(etag -> {
+						if (region.isStream() || !GzipVariants.isCompressible(region.getKey().getFileName())) {
+							sendArtifact(context, region, etag.result());
+							return;
+						}
+						context.response().putHeader("Vary", "Accept-Encoding");
+						if (!GzipVariants.acceptsGzip(context.request())) {
+							sendArtifact(context, region, etag.result());
+							return;
+						}
+						gzipVariants.getVariant(region).future().onComplete(variant -> {
+							if (variant.succeeded()) {
+								GzipVariants.putVariantHeaders(context.response());
+								sendArtifact(context, variant.result(), etag.result() != null ? etag.result() + GzipVariants.GZIP_ETAG_SUFFIX : null);
+							} else {
+								sendArtifact(context, region, etag.result());
+							}
+						});
+					});
 				} else {
 					context.response().setStatusCode(404).end();
-					log.warn("Data not found", res.cause());
 				}
 			});
 			break;
 		case HEAD:
-			readArtifact(context).future().onComplete(res -> {
+			readArtifact(context, fileContainerMap::getHeadRegion).future().onComplete(res -> {
 				if (res.succeeded()) {
-					FileContent content = res.result();
-					context.response()
-							.putHeader("Content-Type", content.getContentType())
-							.putHeader("Content-Length", "" + content.getContent().length)
-							.end();
+					FileRegion region = res.result();
+					if (region.isStream()) {
+						// the artifact is still stored when the client does not read it
+						region.getStream().handler(null).resume();
+					}
+					readEtag(region).future().onComplete(etag -> {
+						ByteRanges.putValidators(context.response(), etag.result(), region.getLastModifiedTime());
+						context.response().putHeader("Content-Type", region.getContentType());
+						if (region.getLength() >= 0)
+							context.response().putHeader("Content-Length", "" + region.getLength());
+						context.response().end();
+					});
 
 				} else {
 					context.response().setStatusCode(404).end();
-					log.warn("Data not found", res.cause());
 				}
 			});
 			break;
 
 		default:
-			log.info("Method not implemented : " + context.request().method());
+			log.debug("Method not implemented : " + context.request().method());
 			context.response().setStatusCode(400).end();
 		}
 
 	}
 
-	private Promise<FileContent> readArtifact(RoutingContext context) {
-		Promise<FileContent> p = Promise.promise();
-		vertx.runOnContext((res) -> {
-			ArtifactKey artifactKey = getArtifactKey(context);
-			fileContainerMap.get(artifactKey).future()
-					.onSuccess(content -> {
-						p.complete(content);
-						log.info("Data found : " + artifactKey);
+	/**
+	 * Publish a whole version at once, from a zip or tar archive or from a
+	 * multipart body : the files are unpacked in a staging directory as they
+	 * are received, with their checksums, and all become visible together. A
+	 * version already published is never replaced.
+	 */
+	public void publishVersion(RoutingContext context) {
+		HttpServerRequest request = context.request();
+		String contentType = request.getHeader("Content-Type") != null ? request.getHeader("Content-Type").toLowerCase() : "";
+		boolean multipart = contentType.startsWith("multipart/form-data");
+		if (!multipart && !VersionArchive.isArchive(contentType)) {
+			context.response().setStatusCode(415).end();
+			return;
+		}
+		String group = context.pathParam("group");
+		String name = context.pathParam("name");
+		String version = context.pathParam("version");
+		if (ArtifactCatalog.isHidden(group) || ArtifactCatalog.isHidden(name) || ArtifactCatalog.isHidden(version)) {
+			context.response().setStatusCode(400).end();
+			return;
+		}
+
+		File staging = new File(stagingDirectory, UUID.randomUUID().toString());
+		VersionArchive archive = new VersionArchive(staging);
+		if (multipart)
+			request.setExpectMultipart(true);
+		request.pause();
+		vertx.fileSystem().mkdirs(staging.getPath(), created -> {
+			Future<List<String>> unpacked;
+			if (created.failed())
+				unpacked = Future.failedFuture(created.cause());
+			else if (multipart)
+				unpacked = unpackMultipart(request, archive, staging);
+			else
+				unpacked = unpackArchive(request, archive, contentType);
+
+			unpacked
+					.compose(fileNames -> {
+						List<ArtifactKey> artifactKeys = new ArrayList<>();
+						for (String fileName : fileNames) {
+							artifactKeys.add(new ArtifactKey(group, name, version, fileName));
+						}
+						return fileContainerMap.putVersion(artifactKeys, staging).future().map(artifactKeys);
+					})
+					.onSuccess(artifactKeys -> {
+						JsonArray files = new JsonArray();
+						for (ArtifactKey artifactKey : artifactKeys) {
+							files.add(artifactKey.getFileName());
+							gzipVariants.create(artifactKey);
+							vertx.eventBus().publish(PUBLISHED_ADDRESS, artifactKey.toJson());
+						}
+						replicateVersion(context, artifactKeys);
+						context.response().putHeader("Content-Type", "application/json").end(files.encode());
+						log.info("Version " + group + "/" + name + "/" + version + " published with " + artifactKeys.size() + " files");
 					})
 					.onFailure(error -> {
-						p.fail("No data found");
-						log.warn("Artifact " + artifactKey + " not found");
+						vertx.fileSystem().deleteRecursive(staging.getPath(), true, v -> {
+						});
+						String versionPath = group + "/" + name + "/" + version;
+						// the rest of the body is not read
+						context.response().putHeader("Connection", "close");
+						if (error instanceof FileAlreadyExistsException) {
+							context.response().setStatusCode(409).end("Version " + versionPath + " already exists");
+						} else if (error instanceof IllegalArgumentException || error instanceof ZipException) {
+							context.response().setStatusCode(400).end(String.valueOf(error.getMessage()));
+						} else {
+							context.response().setStatusCode(500).end();
+						}
+						log.warn("Version " + versionPath + " not published", error);
 					});
+		});
+	}
+
+	/**
+	 * Unpack an archive body from a worker thread, reading the request as the
+	 * archive is parsed.
+	 */
+	private Future<List<String>> unpackArchive(HttpServerRequest request, VersionArchive archive, String contentType) {
+		Promise<List<String>> p = Promise.promise();
+		ReadStreamInputStream is = new ReadStreamInputStream(request, vertx.getOrCreateContext());
+		vertx.<List<String>>executeBlocking(future -> {
+			try (InputStream body = is) {
+				future.complete(archive.unpack(body, contentType));
+			} catch (IOException | RuntimeException e) {
+				future.fail(e);
+			}
+		}, false, p);
+		return p.future();
+	}
+
+	/**
+	 * Unpack the files of a multipart body as they are received, each one
+	 * streamed to its file of the staging directory with its digests.
+	 */
+	private Future<List<String>> unpackMultipart(HttpServerRequest request, VersionArchive archive, File staging) {
+		Promise<List<String>> p = Promise.promise();
+		List<Future<Void>> files = new ArrayList<>();
+		request.uploadHandler(upload -> {
+			upload.pause();
+			String fileName;
+			try {
+				fileName = archive.checkFileName(upload.filename());
+			} catch (IllegalArgumentException e) {
+				p.tryFail(e);
+				upload.handler(null).resume();
+				return;
+			}
+			if (fileName == null) {
+				upload.handler(null).resume();
+				return;
+			}
+			Promise<Void> written = Promise.promise();
+			files.add(written.future());
+			String filePath = new File(staging, fileName).getPath();
+			vertx.fileSystem().open(filePath, new OpenOptions().setWrite(true).setCreateNew(true), opened -> {
+				if (opened.failed()) {
+					written.fail(opened.cause());
+					upload.handler(null).resume();
+					return;
+				}
+				DigestReadStream digests = new DigestReadStream(upload, ChecksumStore.ALGORITHMS);
+				digests.pipeTo(opened.result(), piped -> {
+					if (piped.failed()) {
+						written.fail(piped.cause());
+						return;
+					}
+					String[] hexDigests = new String[ChecksumStore.ALGORITHMS.length];
+					for (int i = 0; i < hexDigests.length; i++) {
+						hexDigests[i] = digests.getHexDigest(ChecksumStore.ALGORITHMS[i]);
+					}
+					vertx.<Void>executeBlocking(future -> {
+						try {
+							archive.writeChecksums(fileName, hexDigests);
+							future.complete();
+						} catch (IOException e) {
+							future.fail(e);
+						}
+					}, false, written);
+				});
+			});
+		});
+		request.exceptionHandler(p::tryFail);
+		request.endHandler(v -> all(files).onComplete(res -> {
+			if (res.failed()) {
+				p.tryFail(res.cause());
+				return;
+			}
+			try {
+				p.tryComplete(archive.getFileNames());
+			} catch (IllegalArgumentException e) {
+				p.tryFail(e);
+			}
+		}));
+		request.resume();
+		return p.future();
+	}
+
+	/**
+	 * Completed once all the futures are, failed with the first one failing in
+	 * the list.
+	 */
+	private static Future<Void> all(List<Future<Void>> futures) {
+		Future<Void> all = Future.succeededFuture();
+		for (Future<Void> future : futures) {
+			all = all.compose(v -> future);
+		}
+		return all;
+	}
+
+	private void sendArtifact(RoutingContext context, FileRegion region, String etag) {
+		HttpServerResponse response = context.response();
+		if (ByteRanges.ifNoneMatchMatches(context.request().getHeader("If-None-Match"), etag)) {
+			ByteRanges.putValidators(response, etag, region.getLastModifiedTime());
+			response.setStatusCode(304).end();
+			return;
+		}
+		if (!region.isStream() && ByteRanges.sendRanges(vertx, context.request(), region, etag))
+			return;
+
+		ByteRanges.putValidators(response, etag, region.getLastModifiedTime());
+		response.putHeader("Content-Type", region.getContentType());
+		if (region.isInMemory()) {
+			response.end(region.getContent());
+		} else if (region.isStream()) {
+			sendStream(response, region);
+		} else {
+			response.sendFile(region.getPath(), region.getOffset(), region.getLength(), sent -> {
+				if (sent.failed())
+					log.warn("Data not sent : " + region.getKey(), sent.cause());
+			});
+		}
+	}
+
+	/**
+	 * Send an artifact being received, as fast as the client reads it. A client
+	 * leaving lets the artifact be stored.
+	 */
+	private void sendStream(HttpServerResponse response, FileRegion region) {
+		ReadStream<Buffer> stream = region.getStream();
+		if (region.getLength() >= 0)
+			response.putHeader("Content-Length", Long.toString(region.getLength()));
+		else
+			response.setChunked(true);
+		// the pipe may still pause the stream in the write that failed : it is
+		// dropped once that write has returned
+		response.closeHandler(v -> {
+			if (!response.ended())
+				vertx.runOnContext(v2 -> stream.handler(null).resume());
+		});
+		stream.pipeTo(response, sent -> {
+			if (sent.failed()) {
+				log.warn("Data not sent : " + region.getKey(), sent.cause());
+				vertx.runOnContext(v -> stream.handler(null).resume());
+				if (!response.closed())
+					response.close();
+			}
+		});
+	}
+
+	/**
+	 * The ETag of an artifact is its SHA-1 : it is always completed, with null
+	 * when the SHA-1 is not known, as for an artifact being received.
+	 */
+	private Promise<String> readEtag(FileRegion region) {
+		Promise<String> p = Promise.promise();
+		if (region.isStream() || ChecksumStore.isChecksumFile(region.getKey().getFileName())) {
+			p.complete(null);
+		} else {
+			checksumStore.getSha1(region).future().onComplete(res -> p.complete(res.succeeded() ? res.result() : null));
+		}
+		return p;
+	}
+
+	/**
+	 * Log an artifact for the peers, unless it has been sent by one of them. A
+	 * failure is logged and does not fail the publication.
+	 */
+	private Future<Void> replicate(RoutingContext context, ArtifactKey artifactKey) {
+		if (replicationLog == null || context.request().getHeader(ReplicationLog.REPLICA_HEADER) != null)
+			return Future.succeededFuture();
+		Promise<Void> p = Promise.promise();
+		replicationLog.append(artifactKey).future().onComplete(res -> p.complete());
+		return p.future();
+	}
+
+	/**
+	 * Log a version for the peers as a single record of its files, the
+	 * checksums being computed again by the peers.
+	 */
+	private void replicateVersion(RoutingContext context, List<ArtifactKey> artifactKeys) {
+		if (replicationLog == null || context.request().getHeader(ReplicationLog.REPLICA_HEADER) != null)
+			return;
+		List<String> fileNames = new ArrayList<>();
+		for (ArtifactKey artifactKey : artifactKeys) {
+			if (!ChecksumStore.isChecksumFile(artifactKey.getFileName()))
+				fileNames.add(artifactKey.getFileName());
+		}
+		replicationLog.appendVersion(artifactKeys.get(0), fileNames);
+	}
+
+	/**
+	 * The body of an uploaded checksum file, refused when it is longer than
+	 * any checksum file.
+	 */
+	private static Future<Buffer> readChecksum(HttpServerRequest request) {
+		Promise<Buffer> p = Promise.promise();
+		Buffer content = Buffer.buffer();
+		request.handler(buffer -> {
+			if (p.future().isComplete())
+				return;
+			content.appendBuffer(buffer);
+			if (content.length() > MAX_CHECKSUM_LENGTH)
+				p.tryFail(new DigestReadStream.DigestMismatchException("Checksum file longer than " + MAX_CHECKSUM_LENGTH + " bytes"));
+		});
+		request.exceptionHandler(p::tryFail);
+		request.endHandler(v -> p.tryComplete(content));
+		request.resume();
+		return p.future();
+	}
+
+	private static boolean isDigestMismatch(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof DigestReadStream.DigestMismatchException)
+				return true;
+		}
+		return false;
+	}
+
+	private Promise<FileRegion> readArtifact(RoutingContext context, Function<ArtifactKey, Promise<FileRegion>> locate) {
+		Promise<FileRegion> p = Promise.promise();
+		vertx.runOnContext((res) -> {
+			ArtifactKey artifactKey = getArtifactKey(context);
+			locate.apply(artifactKey).future()
+					.recover(error -> ChecksumStore.isChecksumFile(artifactKey.getFileName())
+							? checksumStore.restore(artifactKey).future()
+							: Future.failedFuture(error))
+					.onSuccess(p::complete)
+					.onFailure(error -> p.fail("No data found"));
 
 		});
 
@@ -110,17 +488,44 @@ public class ArtifactRepositoryHandler implements Handler<RoutingContext> {
 
 	private Promise<ArtifactKey> saveArtifact(RoutingContext routingContext) {
 		Promise<ArtifactKey> f = Promise.promise();
+		// the body is streamed to the container : hold it until the pipe is set
+		routingContext.request().pause();
 		vertx.runOnContext((res) -> {
 
 			try {
 				ArtifactKey artifactKey = getArtifactKey(routingContext);
-				String contentType = routingContext.request().getHeader("Content-Type");
-				byte[] bytes = routingContext.getBody().getBytes();
-				FileContent content = new FileContent(artifactKey, bytes, contentType);
 
-				fileContainerMap.put(artifactKey, content).future()
+				Future<Void> saved;
+				if (ChecksumStore.isChecksumFile(artifactKey.getFileName())) {
+					// checked against the checksum computed when the artifact was
+					// published, which stays its sidecar
+					saved = readChecksum(routingContext.request())
+							.compose(content -> checksumStore.verify(artifactKey, content).future());
+				} else {
+					// the checksums are computed while the artifact is stored, the one
+					// given by the client verified and the sidecars written before it
+					// is committed, so that it is never served without its ETag
+					DigestReadStream digests = new DigestReadStream(routingContext.request(), ChecksumStore.ALGORITHMS);
+					String expectedSha1 = routingContext.request().getHeader(CHECKSUM_SHA1_HEADER);
+					if (expectedSha1 != null)
+						digests.expect(DigestReadStream.SHA1, expectedSha1);
+					Promise<Void> sidecars = Promise.promise();
+					digests.beforeEnd(() -> {
+						checksumStore.store(artifactKey, digests).future().onComplete(sidecars);
+						return sidecars.future();
+					});
+					saved = fileContainerMap.put(artifactKey, digests).future()
+							.onFailure(error -> {
+								if (sidecars.future().succeeded())
+									checksumStore.refresh(artifactKey);
+							})
+							.compose(v -> replicate(routingContext, artifactKey));
+				}
+				saved
 						.onSuccess(v -> {
 							f.complete(artifactKey);
+							gzipVariants.create(artifactKey);
+							vertx.eventBus().publish(PUBLISHED_ADDRESS, artifactKey.toJson());
 							log.info("Artifact " + artifactKey + " saved");
 						})
 						.onFailure(error -> {
@@ -137,6 +542,11 @@ public class ArtifactRepositoryHandler implements Handler<RoutingContext> {
 		return f;
 	}
 
+	private static boolean isHidden(ArtifactKey artifactKey) {
+		return ArtifactCatalog.isHidden(artifactKey.getGroup()) || ArtifactCatalog.isHidden(artifactKey.getArtifactName())
+				|| ArtifactCatalog.isHidden(artifactKey.getVersion()) || ArtifactCatalog.isHidden(artifactKey.getFileName());
+	}
+
 	private ArtifactKey getArtifactKey(RoutingContext context) {
 		String group = context.pathParam("group");
 		String artifactName = context.pathParam("name");
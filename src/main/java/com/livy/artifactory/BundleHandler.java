@@ -0,0 +1,247 @@
+package com.livy.artifactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.livy.artifactory.ArchiveWriter.Format;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Bulk download of artifacts as one archive streamed as it is built, so a cold
+ * cache is filled in a single round trip :
+ * <ul>
+ * <li>GET
+ * /api/bundle?module=group/name/version&amp;file=group/name/version/fileName&amp;format=zip|tar&amp;checksums=true
+ * : the files of the modules, as known by the catalog, and the files listed,
+ * both parameters being repeatable</li>
+ * <li>POST /api/bundle with the same lists in a JSON body :
+ * {"modules":[...],"files":[...],"format":"tar","checksums":true}</li>
+ * </ul>
+ * The entries are named group/name/version/fileName. All the files are located
+ * before the archive is sent : a bundle missing a file is answered 404, with
+ * the missing ones, rather than sent incomplete.
+ */
+public class BundleHandler implements Handler<RoutingContext> {
+
+	private final static Logger log = LogManager.getLogger(BundleHandler.class);
+
+	private static final int MAX_ENTRIES = 10_000;
+
+	private final Vertx vertx;
+
+	private final FileContainerMapI fileContainer;
+
+	private final ArtifactCatalog catalog;
+
+	public BundleHandler(Vertx vertx, FileContainerMapI fileContainer, ArtifactCatalog catalog) {
+		this.vertx = vertx;
+		this.fileContainer = fileContainer;
+		this.catalog = catalog;
+	}
+
+	@Override
+	public void handle(RoutingContext context) {
+		if (context.request().method() != HttpMethod.POST) {
+			send(context, context.queryParam("module"), context.queryParam("file"),
+					context.request().getParam("format"), Boolean.parseBoolean(context.request().getParam("checksums")));
+			return;
+		}
+		context.request().bodyHandler(body -> {
+			JsonObject json;
+			try {
+				json = body.toJsonObject();
+			} catch (DecodeException | ClassCastException e) {
+				badRequest(context, "Invalid JSON body");
+				return;
+			}
+			send(context, strings(json.getJsonArray("modules")), strings(json.getJsonArray("files")),
+					json.getString("format"), json.getBoolean("checksums", false));
+		});
+	}
+
+	private static List<String> strings(JsonArray array) {
+		List<String> strings = new ArrayList<>();
+		if (array != null) {
+			for (Object value : array) {
+				strings.add(String.valueOf(value));
+			}
+		}
+		return strings;
+	}
+
+	private void send(RoutingContext context, List<String> modules, List<String> files, String formatName, boolean checksums) {
+		Format format = formatName == null ? Format.ZIP : Format.of(formatName);
+		if (format == null) {
+			badRequest(context, "Unknown format : " + formatName);
+			return;
+		}
+
+		// the required files, and the checksums sent when they exist
+		Set<ArtifactKey> required = new LinkedHashSet<>();
+		Set<ArtifactKey> optional = new LinkedHashSet<>();
+		List<String> missing = new ArrayList<>();
+		for (String module : modules) {
+			String[] parts = module.split("/", -1);
+			if (parts.length != 3 || !areNames(parts)) {
+				badRequest(context, "Invalid module : " + module);
+				return;
+			}
+			List<String> fileNames = catalog.getFiles(parts[0], parts[1], parts[2]);
+			if (fileNames == null) {
+				missing.add(module);
+				continue;
+			}
+			for (String fileName : fileNames) {
+				required.add(new ArtifactKey(parts[0], parts[1], parts[2], fileName));
+			}
+		}
+		for (String file : files) {
+			String[] parts = file.split("/", -1);
+			if (parts.length != 4 || !areNames(parts)) {
+				badRequest(context, "Invalid file : " + file);
+				return;
+			}
+			required.add(new ArtifactKey(parts[0], parts[1], parts[2], parts[3]));
+		}
+		if (checksums) {
+			for (ArtifactKey artifactKey : required) {
+				if (!ChecksumStore.isChecksumFile(artifactKey.getFileName())) {
+					for (String extension : ChecksumStore.EXTENSIONS) {
+						optional.add(artifactKey.withFileName(artifactKey.getFileName() + "." + extension));
+					}
+				}
+			}
+			optional.removeAll(required);
+		}
+		if (required.isEmpty() && missing.isEmpty()) {
+			badRequest(context, "No module or file requested");
+			return;
+		}
+		if (required.size() + optional.size() > MAX_ENTRIES) {
+			badRequest(context, "More than " + MAX_ENTRIES + " files requested");
+			return;
+		}
+
+		List<Future<FileRegion>> requiredRegions = new ArrayList<>();
+		required.forEach(artifactKey -> requiredRegions.add(locate(artifactKey)));
+		List<Future<FileRegion>> optionalRegions = new ArrayList<>();
+		optional.forEach(artifactKey -> optionalRegions.add(locate(artifactKey)));
+
+		settled(requiredRegions).compose(v -> settled(optionalRegions)).onComplete(located -> {
+			List<FileRegion> regions = new ArrayList<>();
+			int i = 0;
+			for (ArtifactKey artifactKey : required) {
+				Future<FileRegion> region = requiredRegions.get(i++);
+				if (region.succeeded())
+					regions.add(region.result());
+				else
+					missing.add(artifactKey.getGroup() + "/" + artifactKey.getArtifactName() + "/" + artifactKey.getVersion() + "/" + artifactKey.getFileName());
+			}
+			if (!missing.isEmpty()) {
+				context.response()
+						.setStatusCode(404)
+						.putHeader("Content-Type", "application/json")
+						.putHeader("Cache-Control", "no-cache")
+						.end(new JsonObject().put("missing", new JsonArray(missing)).toBuffer());
+				return;
+			}
+			for (Future<FileRegion> region : optionalRegions) {
+				if (region.succeeded())
+					regions.add(region.result());
+			}
+			stream(context, format, regions);
+		});
+	}
+
+	/**
+	 * The parts of a requested path must be plain names : neither empty nor
+	 * hidden, which also refuses "." and "..".
+	 */
+	private static boolean areNames(String[] parts) {
+		for (String part : parts) {
+			if (part.isEmpty() || ArtifactCatalog.isHidden(part) || part.indexOf('\\') != -1)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Completed once all the futures are, whether they succeeded or not.
+	 */
+	private static Future<Void> settled(List<Future<FileRegion>> futures) {
+		Future<Void> all = Future.succeededFuture();
+		for (Future<FileRegion> future : futures) {
+			all = all.compose(v -> {
+				Promise<Void> p = Promise.promise();
+				future.onComplete(res -> p.complete());
+				return p.future();
+			});
+		}
+		return all;
+	}
+
+	/**
+	 * The region of a file : a file still being fetched by the container is
+	 * dropped, and located again once it is stored.
+	 */
+	private Future<FileRegion> locate(ArtifactKey artifactKey) {
+		return fileContainer.getRegion(artifactKey).future().compose(region -> {
+			if (!region.isStream())
+				return Future.succeededFuture(region);
+			region.getStream().handler(null).resume();
+			return fileContainer.getRegion(artifactKey).future();
+		});
+	}
+
+	private void stream(RoutingContext context, Format format, List<FileRegion> regions) {
+		HttpServerResponse response = context.response();
+		response.setChunked(true)
+				.putHeader("Content-Type", format.getContentType())
+				.putHeader("Content-Disposition", "attachment; filename=\"bundle" + format.getExtension() + "\"")
+				.putHeader("Cache-Control", "no-cache");
+
+		ArchiveWriter writer = new ArchiveWriter(vertx, format, response);
+		Future<Void> written = Future.succeededFuture();
+		for (FileRegion region : regions) {
+			ArtifactKey artifactKey = region.getKey();
+			String name = artifactKey.getGroup() + "/" + artifactKey.getArtifactName() + "/" + artifactKey.getVersion() + "/" + artifactKey.getFileName();
+			written = written.compose(v -> response.closed()
+					? Future.failedFuture("Client gone before " + name)
+					: writer.write(name, region));
+		}
+		written.compose(v -> writer.finish()).onComplete(res -> {
+			if (res.succeeded()) {
+				response.end();
+				log.debug("Bundle of " + regions.size() + " files sent, " + writer.getOffset() + " bytes");
+			} else {
+				if (response.closed() || res.cause() instanceof IOException)
+					log.debug("Bundle of " + regions.size() + " files interrupted by the client after " + writer.getOffset() + " bytes");
+				else
+					log.warn("Bundle of " + regions.size() + " files failed after " + writer.getOffset() + " bytes", res.cause());
+				// the archive is incomplete : the client must not take it for a whole one
+				response.close();
+			}
+		});
+	}
+
+	private static void badRequest(RoutingContext context, String message) {
+		context.response().setStatusCode(400).end(message);
+	}
+
+}
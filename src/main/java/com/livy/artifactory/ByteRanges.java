@@ -0,0 +1,257 @@
+package com.livy.artifactory;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+
+/**
+ * HTTP Range support (RFC 7233) for the file regions sent by Livy : a single
+ * range is answered with an offset / length sendfile, several ranges with a
+ * multipart/byteranges body. The Range header is ignored when the If-Range
+ * validator does not match the current ETag or last modification date, so
+ * that a resumed download never mixes two versions of a file.
+ */
+public class ByteRanges {
+
+	private static final Logger log = Logger.getLogger(ByteRanges.class);
+
+	/**
+	 * Above this number of ranges the request is answered with the full content.
+	 */
+	private static final int MAX_RANGES = 32;
+
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+	static class Range {
+
+		final long start;
+		final long end;
+
+		Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		long length() {
+			return end - start + 1;
+		}
+
+		String contentRange(long totalLength) {
+			return "bytes " + start + "-" + end + "/" + totalLength;
+		}
+	}
+
+	private ByteRanges() {
+	}
+
+	public static String formatHttpDate(long time) {
+		return HTTP_DATE.format(Instant.ofEpochMilli(time));
+	}
+
+	/**
+	 * Put the headers announcing range support and the validators of the file.
+	 */
+	public static void putValidators(HttpServerResponse response, String etag, long lastModifiedTime) {
+		response.putHeader("Accept-Ranges", "bytes");
+		response.putHeader("Last-Modified", formatHttpDate(lastModifiedTime));
+		if (etag != null)
+			response.putHeader("ETag", etag);
+	}
+
+	/**
+	 * Answer the request with the ranges it asks for.
+	 *
+	 * @return false when the request has no usable Range header : the caller
+	 *         has then to send the full content.
+	 */
+	public static boolean sendRanges(Vertx vertx, HttpServerRequest request, FileRegion region, String etag) {
+		String rangeHeader = request.getHeader("Range");
+		if (rangeHeader == null || !ifRangeMatches(request.getHeader("If-Range"), etag, region.getLastModifiedTime()))
+			return false;
+
+		long length = region.getLength();
+		List<Range> ranges = parse(rangeHeader, length);
+		if (ranges == null)
+			return false;
+
+		HttpServerResponse response = request.response();
+		putValidators(response, etag, region.getLastModifiedTime());
+		if (ranges.isEmpty()) {
+			response.putHeader("Content-Range", "bytes */" + length).setStatusCode(416).end();
+		} else if (ranges.size() == 1) {
+			Range range = ranges.get(0);
+			if (region.getContentType() != null)
+				response.putHeader("Content-Type", region.getContentType());
+			response.setStatusCode(206).putHeader("Content-Range", range.contentRange(length));
+			if (region.isInMemory()) {
+				response.end(slice(region, range));
+			} else {
+				response.sendFile(region.getPath(), region.getOffset() + range.start, range.length(), res -> {
+					if (res.failed())
+						log.warn("Range not sent : " + region.getPath(), res.cause());
+				});
+			}
+		} else {
+			sendMultipart(vertx, request, region, ranges);
+		}
+		return true;
+	}
+
+	/**
+	 * Whether an If-None-Match header matches the ETag of the file.
+	 */
+	public static boolean ifNoneMatchMatches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null || etag == null)
+			return false;
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/"))
+				candidate = candidate.substring(2);
+			if ("*".equals(candidate) || unquote(candidate).equals(unquote(etag)))
+				return true;
+		}
+		return false;
+	}
+
+	static boolean ifRangeMatches(String ifRange, String etag, long lastModifiedTime) {
+		if (ifRange == null)
+			return true;
+		ifRange = ifRange.trim();
+		// a weak validator is never good enough to combine ranges
+		if (ifRange.startsWith("W/"))
+			return false;
+		if (ifRange.startsWith("\""))
+			return etag != null && unquote(ifRange).equals(unquote(etag));
+		try {
+			return ZonedDateTime.parse(ifRange, HTTP_DATE).toEpochSecond() == lastModifiedTime / 1000;
+		} catch (Exception e) {
+			// the ETag sent by Livy may be echoed back without quotes
+			return etag != null && ifRange.equals(unquote(etag));
+		}
+	}
+
+	private static String unquote(String etag) {
+		return etag.length() > 1 && etag.startsWith("\"") && etag.endsWith("\"") ? etag.substring(1, etag.length() - 1) : etag;
+	}
+
+	/**
+	 * Parse a "bytes=" Range header.
+	 *
+	 * @return null when the header has to be ignored, an empty list when no
+	 *         range can be satisfied.
+	 */
+	static List<Range> parse(String rangeHeader, long length) {
+		String header = rangeHeader.trim();
+		if (!header.startsWith("bytes="))
+			return null;
+
+		String[] specs = header.substring("bytes=".length()).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+
+		List<Range> ranges = new ArrayList<>();
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				int dash = spec.indexOf('-');
+				if (dash < 0)
+					return null;
+				String first = spec.substring(0, dash).trim();
+				String last = spec.substring(dash + 1).trim();
+				if (first.isEmpty()) {
+					// suffix range : the last N bytes
+					long suffix = Long.parseLong(last);
+					if (suffix > 0 && length > 0)
+						ranges.add(new Range(Math.max(0, length - suffix), length - 1));
+				} else {
+					long start = Long.parseLong(first);
+					long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+					if (last.length() > 0 && Long.parseLong(last) < start)
+						return null;
+					if (start < length)
+						ranges.add(new Range(start, end));
+				}
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return ranges;
+	}
+
+	private static Buffer slice(FileRegion region, Range range) {
+		return region.getContent().slice((int) range.start, (int) range.end + 1);
+	}
+
+	private static void sendMultipart(Vertx vertx, HttpServerRequest request, FileRegion region, List<Range> ranges) {
+		String boundary = UUID.randomUUID().toString().replace("-", "");
+		List<Buffer> partHeaders = new ArrayList<>();
+		long contentLength = 0;
+		for (Range range : ranges) {
+			Buffer partHeader = Buffer.buffer("\r\n--" + boundary + "\r\n"
+					+ (region.getContentType() != null ? "Content-Type: " + region.getContentType() + "\r\n" : "")
+					+ "Content-Range: " + range.contentRange(region.getLength()) + "\r\n\r\n");
+			partHeaders.add(partHeader);
+			contentLength += partHeader.length() + range.length();
+		}
+		Buffer closing = Buffer.buffer("\r\n--" + boundary + "--\r\n");
+		contentLength += closing.length();
+
+		HttpServerResponse response = request.response();
+		response.setStatusCode(206)
+				.putHeader("Content-Type", "multipart/byteranges; boundary=" + boundary)
+				.putHeader("Content-Length", Long.toString(contentLength));
+
+		if (region.isInMemory()) {
+			for (int i = 0; i < ranges.size(); i++) {
+				response.write(partHeaders.get(i));
+				response.write(slice(region, ranges.get(i)));
+			}
+			response.end(closing);
+		} else {
+			sendParts(vertx, request, region, ranges.iterator(), partHeaders.iterator(), closing);
+		}
+	}
+
+	/**
+	 * Write the parts one after the other, each range being read from its own
+	 * file handle and piped to the response with back pressure.
+	 */
+	private static void sendParts(Vertx vertx, HttpServerRequest request, FileRegion region, Iterator<Range> ranges, Iterator<Buffer> partHeaders, Buffer closing) {
+		HttpServerResponse response = request.response();
+		if (!ranges.hasNext()) {
+			response.end(closing);
+			return;
+		}
+		Range range = ranges.next();
+		response.write(partHeaders.next());
+		vertx.fileSystem().open(region.getPath(), new OpenOptions().setRead(true).setWrite(false), res -> {
+			if (res.failed()) {
+				log.warn("Unable to open " + region.getPath(), res.cause());
+				response.reset();
+				return;
+			}
+			res.result().setReadPos(region.getOffset() + range.start).setReadLength(range.length())
+					.pipe().endOnSuccess(false).to(response, sent -> {
+						res.result().close();
+						if (sent.succeeded())
+							sendParts(vertx, request, region, ranges, partHeaders, closing);
+						else
+							log.warn("Range not sent : " + region.getPath(), sent.cause());
+					});
+		});
+	}
+
+}
\ No newline at end of file
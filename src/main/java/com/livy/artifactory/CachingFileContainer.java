@@ -0,0 +1,374 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A FileContainerMapI keeping the most requested artifacts in memory in front
+ * of any other backend.
+ *
+ * The cache is bounded by a number of bytes. A new entry is admitted when the
+ * cache is full only if it has been requested more often than the least
+ * recently used entry it would evict, the request frequencies being tracked
+ * by a small count-min sketch (TinyLFU admission). This keeps the few hundred
+ * hot ivy.xml and jar files in memory while a scan of cold artifacts cannot
+ * flush them. The content can be kept in direct buffers so that a large cache
+ * does not weigh on the garbage collector.
+ *
+ * Entries are invalidated when the artifact is put through this container.
+ */
+public class CachingFileContainer implements FileContainerMapI {
+
+	private final static Logger log = LogManager.getLogger(CachingFileContainer.class);
+
+	private final FileContainerMapI fileContainer;
+
+	private final long maxEntryBytes;
+
+	private final boolean offHeap;
+
+	/**
+	 * The cache is split in stripes by key, each with its own lock, share of
+	 * the bytes and sketch : the event loops of the server verticles looking up
+	 * artifacts at once seldom wait for each other.
+	 */
+	private final List<Stripe> stripes = new ArrayList<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+
+	private static final int MAX_STRIPES = 16;
+
+	public CachingFileContainer(FileContainerMapI fileContainer, long maxBytes, long maxEntryBytes, boolean offHeap) {
+		this.fileContainer = fileContainer;
+		this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+		this.offHeap = offHeap;
+		// each stripe must hold the biggest entry
+		int stripeCount = Integer.highestOneBit((int) Math.max(1, Math.min(MAX_STRIPES, maxBytes / Math.max(1, this.maxEntryBytes))));
+		// an average artifact of 4 KB gives the expected number of entries
+		int expectedEntries = (int) Math.min(1 << 20, Math.max(1024, maxBytes / 4096));
+		for (int i = 0; i < stripeCount; i++) {
+			stripes.add(new Stripe(maxBytes / stripeCount, new FrequencySketch(Math.max(1024, expectedEntries / stripeCount))));
+		}
+
+		log.info("Artifact cache of " + maxBytes + " bytes " + (offHeap ? "off heap" : "on heap") + " in " + stripeCount + " stripes started.");
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, FileContent content) {
+		invalidate(artifactKey);
+		Promise<Void> p = Promise.promise();
+		fileContainer.put(artifactKey, content).future().onComplete(res -> {
+			invalidate(artifactKey);
+			p.handle(res);
+		});
+		return p;
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, ReadStream<Buffer> content) {
+		invalidate(artifactKey);
+		Promise<Void> p = Promise.promise();
+		fileContainer.put(artifactKey, content).future().onComplete(res -> {
+			invalidate(artifactKey);
+			p.handle(res);
+		});
+		return p;
+	}
+
+	@Override
+	public Promise<Void> putVersion(List<ArtifactKey> artifactKeys, File stagingDirectory) {
+		artifactKeys.forEach(this::invalidate);
+		Promise<Void> p = Promise.promise();
+		fileContainer.putVersion(artifactKeys, stagingDirectory).future().onComplete(res -> {
+			artifactKeys.forEach(this::invalidate);
+			p.handle(res);
+		});
+		return p;
+	}
+
+	@Override
+	public Promise<FileContent> get(ArtifactKey artifactKey) {
+		FileRegion region = lookup(artifactKey);
+		if (region == null)
+			return fileContainer.get(artifactKey);
+
+		Promise<FileContent> p = Promise.promise();
+		p.complete(new FileContent(artifactKey, region.getContent().getBytes(), region.getContentType()));
+		return p;
+	}
+
+	@Override
+	public Promise<FileRegion> getRegion(ArtifactKey artifactKey) {
+		FileRegion cached = lookup(artifactKey);
+		if (cached != null) {
+			Promise<FileRegion> p = Promise.promise();
+			p.complete(cached);
+			return p;
+		}
+
+		Promise<FileRegion> p = Promise.promise();
+		fileContainer.getRegion(artifactKey).future().onComplete(res -> {
+			p.handle(res);
+			if (res.succeeded() && !res.result().isInMemory())
+				load(res.result());
+		});
+		return p;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public long getRejectionCount() {
+		return rejections.get();
+	}
+
+	public long getUsedBytes() {
+		long usedBytes = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				usedBytes += stripe.usedBytes;
+			}
+		}
+		return usedBytes;
+	}
+
+	public int getEntryCount() {
+		int count = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				count += stripe.entries.size();
+			}
+		}
+		return count;
+	}
+
+	private Stripe stripe(ArtifactKey artifactKey) {
+		int h = artifactKey.hashCode();
+		return stripes.get((h ^ (h >>> 16)) & (stripes.size() - 1));
+	}
+
+	private FileRegion lookup(ArtifactKey artifactKey) {
+		Stripe stripe = stripe(artifactKey);
+		FileRegion region;
+		synchronized (stripe) {
+			stripe.sketch.increment(artifactKey);
+			region = stripe.entries.get(artifactKey);
+		}
+		if (region != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return region;
+	}
+
+	private void invalidate(ArtifactKey artifactKey) {
+		Stripe stripe = stripe(artifactKey);
+		synchronized (stripe) {
+			stripe.generation++;
+			FileRegion region = stripe.entries.remove(artifactKey);
+			if (region != null)
+				stripe.usedBytes -= region.getLength();
+		}
+	}
+
+	/**
+	 * Read the content of a region found in the backend, in the background of
+	 * the request which is served from the file.
+	 */
+	private void load(FileRegion region) {
+		ArtifactKey artifactKey = region.getKey();
+		Stripe stripe = stripe(artifactKey);
+		long loadGeneration;
+		synchronized (stripe) {
+			if (region.getLength() > maxEntryBytes || !stripe.canAdmit(artifactKey, region.getLength()) || !stripe.loading.add(artifactKey))
+				return;
+			loadGeneration = stripe.generation;
+		}
+
+		fileContainer.get(artifactKey).future().onComplete(res -> {
+			synchronized (stripe) {
+				stripe.loading.remove(artifactKey);
+				if (res.failed() || loadGeneration != stripe.generation) {
+					return;
+				}
+			}
+			// the copy is made out of the lock
+			byte[] bytes = res.result().getContent();
+			Buffer content;
+			if (offHeap) {
+				ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+				direct.put(bytes).flip();
+				content = Buffer.buffer(Unpooled.wrappedBuffer(direct));
+			} else {
+				content = Buffer.buffer(bytes);
+			}
+			synchronized (stripe) {
+				if (loadGeneration == stripe.generation)
+					stripe.admit(new FileRegion(artifactKey, content, region.getLastModifiedTime(), region.getContentType()));
+			}
+		});
+	}
+
+	/**
+	 * A stripe of the cache : its state is guarded by its own monitor.
+	 */
+	private class Stripe {
+
+		final LinkedHashMap<ArtifactKey, FileRegion> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+		final Set<ArtifactKey> loading = new HashSet<>();
+
+		final FrequencySketch sketch;
+
+		final long maxBytes;
+
+		long usedBytes;
+
+		/**
+		 * Incremented on each put : a load started before a put must not be cached.
+		 */
+		long generation;
+
+		Stripe(long maxBytes, FrequencySketch sketch) {
+			this.maxBytes = maxBytes;
+			this.sketch = sketch;
+		}
+
+		/**
+		 * TinyLFU admission : the candidate has to be more frequent than all the
+		 * entries it would evict.
+		 */
+		boolean canAdmit(ArtifactKey artifactKey, long length) {
+			long toFree = usedBytes + length - maxBytes;
+			if (toFree <= 0)
+				return true;
+			int candidateFrequency = sketch.frequency(artifactKey);
+			Iterator<ArtifactKey> eldest = entries.keySet().iterator();
+			while (toFree > 0 && eldest.hasNext()) {
+				ArtifactKey victim = eldest.next();
+				if (sketch.frequency(victim) >= candidateFrequency) {
+					rejections.incrementAndGet();
+					return false;
+				}
+				toFree -= entries.get(victim).getLength();
+			}
+			return true;
+		}
+
+		void admit(FileRegion region) {
+			if (!canAdmit(region.getKey(), region.getLength()))
+				return;
+			Iterator<Map.Entry<ArtifactKey, FileRegion>> eldest = entries.entrySet().iterator();
+			while (usedBytes + region.getLength() > maxBytes && eldest.hasNext()) {
+				usedBytes -= eldest.next().getValue().getLength();
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+			entries.put(region.getKey(), region);
+			usedBytes += region.getLength();
+		}
+
+	}
+
+	/**
+	 * A count-min sketch of 4 bits counters, 16 counters per long. The counters
+	 * are halved once enough increments have been recorded so that the
+	 * frequencies follow the recent popularity of the artifacts.
+	 */
+	static class FrequencySketch {
+
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+		private final long[] table;
+
+		private final int mask;
+
+		private final int sampleSize;
+
+		private int size;
+
+		FrequencySketch(int expectedEntries) {
+			int length = Integer.highestOneBit(Math.max(2, expectedEntries - 1)) << 1;
+			table = new long[length];
+			mask = length - 1;
+			sampleSize = 10 * expectedEntries;
+		}
+
+		int frequency(Object key) {
+			int hash = spread(key.hashCode());
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				frequency = Math.min(frequency, (int) ((table[index(hash, i)] >>> offset(hash, i)) & 0xfL));
+			}
+			return frequency;
+		}
+
+		void increment(Object key) {
+			int hash = spread(key.hashCode());
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int index = index(hash, i);
+				int offset = offset(hash, i);
+				if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+					table[index] += 1L << offset;
+					added = true;
+				}
+			}
+			if (added && ++size == sampleSize)
+				reset();
+		}
+
+		private void reset() {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+			}
+			size /= 2;
+		}
+
+		private int index(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return ((int) h) & mask;
+		}
+
+		private int offset(int hash, int i) {
+			// each row uses its own quarter of the 16 counters of a long
+			return ((((hash >>> (i << 3)) & 3) << 2) + i) << 2;
+		}
+
+		private static int spread(int x) {
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			return (x >>> 16) ^ x;
+		}
+	}
+
+}
\ No newline at end of file
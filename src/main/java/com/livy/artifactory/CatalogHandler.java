@@ -0,0 +1,128 @@
+package com.livy.artifactory;
+
+import java.util.List;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * JSON query API of the artifact catalog :
+ * <ul>
+ * <li>/api/catalog[/:group[/:name[/:version]]] : the groups, the names of a
+ * group, the sorted versions of a module or the files of a version</li>
+ * <li>/api/search?q=prefix[&amp;limit=n] : the modules whose group or name
+ * starts with the prefix</li>
+ * <li>/api/latest/:group/:name?revision=latest.integration : the latest
+ * version matching an ivy revision</li>
+ * </ul>
+ * The catalog is kept up to date with the published artifacts by the
+ * CatalogStore.
+ */
+public class CatalogHandler implements Handler<RoutingContext> {
+
+	private final static Logger log = LogManager.getLogger(CatalogHandler.class);
+
+	private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+	private final ArtifactCatalog catalog;
+
+	public CatalogHandler(ArtifactCatalog catalog) {
+		this.catalog = catalog;
+	}
+
+	/**
+	 * The catalog route.
+	 */
+	@Override
+	public void handle(RoutingContext context) {
+		String group = context.pathParam("group");
+		String name = context.pathParam("name");
+		String version = context.pathParam("version");
+
+		if (group == null) {
+			sendJson(context, new JsonObject().put("groups", new JsonArray(catalog.getGroups())));
+		} else if (name == null) {
+			List<String> names = catalog.getNames(group);
+			if (names == null) {
+				notFound(context);
+				return;
+			}
+			sendJson(context, new JsonObject().put("group", group).put("names", new JsonArray(names)));
+		} else if (version == null) {
+			List<String> versions = catalog.getVersions(group, name);
+			if (versions == null) {
+				notFound(context);
+				return;
+			}
+			sendJson(context, new JsonObject().put("group", group).put("name", name).put("versions", new JsonArray(versions)));
+		} else {
+			List<String> files = catalog.getFiles(group, name, version);
+			if (files == null) {
+				notFound(context);
+				return;
+			}
+			sendJson(context, new JsonObject().put("group", group).put("name", name).put("version", version).put("files", new JsonArray(files)));
+		}
+	}
+
+	/**
+	 * The search route.
+	 */
+	public void search(RoutingContext context) {
+		String prefix = context.request().getParam("q");
+		if (prefix == null) {
+			context.response().setStatusCode(400).end();
+			return;
+		}
+		int limit = DEFAULT_SEARCH_LIMIT;
+		try {
+			if (context.request().getParam("limit") != null)
+				limit = Math.max(1, Integer.parseInt(context.request().getParam("limit")));
+		} catch (NumberFormatException e) {
+			context.response().setStatusCode(400).end();
+			return;
+		}
+		sendJson(context, new JsonObject().put("q", prefix).put("modules", new JsonArray(catalog.search(prefix, limit))));
+	}
+
+	/**
+	 * The latest version route.
+	 */
+	public void latest(RoutingContext context) {
+		String group = context.pathParam("group");
+		String name = context.pathParam("name");
+		String revision = context.request().getParam("revision");
+		if (revision == null)
+			revision = "latest.integration";
+
+		String version = catalog.getLatest(group, name, revision);
+		if (version == null) {
+			log.debug("No version of " + group + "/" + name + " matching " + revision);
+			notFound(context);
+			return;
+		}
+		sendJson(context, new JsonObject()
+				.put("group", group)
+				.put("name", name)
+				.put("revision", revision)
+				.put("version", version)
+				.put("files", new JsonArray(catalog.getFiles(group, name, version))));
+	}
+
+	private static void notFound(RoutingContext context) {
+		context.response().setStatusCode(404).end();
+	}
+
+	private static void sendJson(RoutingContext context, JsonObject json) {
+		context.response()
+				.putHeader("Content-Type", "application/json")
+				.putHeader("Cache-Control", "no-cache")
+				.end(json.toBuffer());
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,442 @@
+package com.livy.artifactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.function.Supplier;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Persistence of the artifact catalog, so that the server does not walk the
+ * whole repository before knowing it :
+ * <ul>
+ * <li>a snapshot of the catalog, a compact binary tree of the group, name,
+ * version and file names, memory mapped when loaded</li>
+ * <li>an append only log of the artifacts published since the snapshot,
+ * replayed after it</li>
+ * </ul>
+ * Both are stored in the hidden .catalog directory of the artifact directory.
+ *
+ * The catalog is then reconciled with the file system in the background, by a
+ * parallel scan, which also catches the files added or removed while the
+ * server was down. A new snapshot is written after each scan and when the log
+ * grows too large. Any missing or corrupted file only costs a scan.
+ */
+public class CatalogStore {
+
+	private final static Logger log = LogManager.getLogger(CatalogStore.class);
+
+	public static final String CATALOG_DIRECTORY = ".catalog";
+
+	private static final String SNAPSHOT_FILE = "catalog.snapshot";
+
+	private static final String LOG_FILE = "catalog.log";
+
+	private static final int SNAPSHOT_MAGIC = 0x4c435431; // LCT1
+
+	private static final int MAX_LOG_RECORDS = 100_000;
+
+	private static final int MAX_SNAPSHOT_LENGTH = Integer.MAX_VALUE;
+
+	private final Vertx vertx;
+
+	private final ArtifactCatalog catalog;
+
+	/**
+	 * The directories scanned : the artifact directory, or its shards.
+	 */
+	private final List<File> scannedDirectories;
+
+	/**
+	 * The artifacts which are not files of the scanned directories, as the
+	 * packed ones, added to each scan.
+	 */
+	private final List<Supplier<Collection<ArtifactKey>>> keySources = new CopyOnWriteArrayList<>();
+
+	private final File directory;
+
+	private final int scanThreads;
+
+	private final long reconcileDelay;
+
+	/**
+	 * The catalog being loaded or scanned, which also receives the publications
+	 * until it replaces the served one. Guarded by this.
+	 */
+	private ArtifactCatalog next;
+
+	/**
+	 * The log, guarded by this, with the publications received before it is
+	 * opened.
+	 */
+	private FileChannel logChannel;
+
+	private final List<ArtifactKey> unlogged = new ArrayList<>();
+
+	private long logRecords;
+
+	private boolean snapshotting;
+
+	private final Object snapshotLock = new Object();
+
+	/**
+	 * @param reconcileDelay delay in ms before the scan of the repository when a
+	 *                       snapshot was loaded
+	 */
+	public CatalogStore(Vertx vertx, ArtifactCatalog catalog, File artifactDirectory, int scanThreads, long reconcileDelay) {
+		this(vertx, catalog, artifactDirectory, Collections.singletonList(artifactDirectory), scanThreads, reconcileDelay);
+	}
+
+	/**
+	 * A catalog of artifacts spread over several directories, stored in the
+	 * artifact directory.
+	 */
+	public CatalogStore(Vertx vertx, ArtifactCatalog catalog, File artifactDirectory, List<File> scannedDirectories, int scanThreads, long reconcileDelay) {
+		this.vertx = vertx;
+		this.catalog = catalog;
+		this.scannedDirectories = scannedDirectories;
+		this.directory = new File(artifactDirectory, CATALOG_DIRECTORY);
+		this.scanThreads = scanThreads;
+		this.reconcileDelay = reconcileDelay;
+	}
+
+	public CatalogStore addKeys(Supplier<Collection<ArtifactKey>> keys) {
+		keySources.add(keys);
+		return this;
+	}
+
+	/**
+	 * Load the snapshot and replay the log, then follow the publications. The
+	 * reconciliation with the file system is scheduled when done.
+	 */
+	public Promise<Void> open() {
+		Promise<Void> p = Promise.promise();
+		synchronized (this) {
+			next = new ArtifactCatalog();
+		}
+		vertx.eventBus().<JsonObject>consumer(ArtifactRepositoryHandler.PUBLISHED_ADDRESS, message -> {
+			ArtifactKey artifactKey = ArtifactKey.fromJson(message.body());
+			synchronized (this) {
+				catalog.add(artifactKey);
+				if (next != null)
+					next.add(artifactKey);
+			}
+			vertx.executeBlocking(future -> {
+				try {
+					append(artifactKey);
+					future.complete();
+				} catch (IOException e) {
+					future.fail(e);
+				}
+			}, true, res -> {
+				if (res.failed())
+					log.warn("Unable to log the publication of " + artifactKey, res.cause());
+			});
+		});
+
+		vertx.<Boolean>executeBlocking(future -> {
+			long start = System.currentTimeMillis();
+			boolean loaded = false;
+			long records = 0;
+			try {
+				directory.mkdirs();
+				ArtifactCatalog loading;
+				synchronized (this) {
+					loading = next;
+				}
+				loaded = readSnapshot(loading);
+				records = replayLog(loading);
+				synchronized (this) {
+					catalog.replaceWith(loading);
+				}
+				log.info("Catalog " + (loaded ? "snapshot" : "log") + " loaded : " + catalog.getModuleCount() + " modules, " + records
+						+ " logged publications in " + (System.currentTimeMillis() - start) + " ms");
+			} catch (IOException e) {
+				log.warn("Unable to load the catalog, the repository is scanned", e);
+				loaded = false;
+			}
+			synchronized (this) {
+				next = null;
+			}
+			try {
+				openLog(records);
+				future.complete(loaded);
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, res -> {
+			if (res.failed())
+				log.error("Unable to open the catalog log", res.cause());
+			boolean loaded = res.succeeded() && res.result();
+			vertx.setTimer(loaded ? Math.max(1, reconcileDelay) : 1, timer -> reconcile());
+			p.complete();
+		});
+		return p;
+	}
+
+	/**
+	 * Scan the repository into a new catalog which replaces the served one, then
+	 * write a snapshot.
+	 */
+	public void reconcile() {
+		vertx.executeBlocking(future -> {
+			ArtifactCatalog scanned = new ArtifactCatalog();
+			synchronized (this) {
+				next = scanned;
+			}
+			ForkJoinPool pool = new ForkJoinPool(scanThreads);
+			try {
+				for (File scannedDirectory : scannedDirectories) {
+					scanned.load(scannedDirectory, pool);
+				}
+				keySources.forEach(keys -> keys.get().forEach(scanned::add));
+			} finally {
+				pool.shutdown();
+			}
+			synchronized (this) {
+				catalog.replaceWith(scanned);
+				next = null;
+			}
+			try {
+				writeSnapshot();
+				future.complete();
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, res -> {
+			if (res.failed())
+				log.error("Unable to reconcile the catalog", res.cause());
+		});
+	}
+
+	private boolean readSnapshot(ArtifactCatalog loading) throws IOException {
+		File snapshot = new File(directory, SNAPSHOT_FILE);
+		if (!snapshot.isFile())
+			return false;
+		try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > MAX_SNAPSHOT_LENGTH)
+				throw new IOException("Catalog snapshot too large : " + channel.size());
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != SNAPSHOT_MAGIC)
+				throw new IOException("Not a catalog snapshot : " + snapshot);
+
+			// the same file names are found in most versions
+			Map<String, String> fileNames = new HashMap<>();
+			while (buffer.get() != 0) {
+				String group = readString(buffer);
+				while (buffer.get() != 0) {
+					String name = readString(buffer);
+					while (buffer.get() != 0) {
+						String version = readString(buffer);
+						NavigableSet<String> files = loading.files(group, name, version);
+						while (buffer.get() != 0) {
+							String fileName = readString(buffer);
+							files.add(fileNames.computeIfAbsent(fileName, f -> f));
+						}
+					}
+				}
+			}
+			return true;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated catalog snapshot : " + snapshot, e);
+		}
+	}
+
+	/**
+	 * Replay the log, truncated after its last complete record.
+	 *
+	 * @return the number of records
+	 */
+	private long replayLog(ArtifactCatalog loading) throws IOException {
+		File logFile = new File(directory, LOG_FILE);
+		if (!logFile.isFile())
+			return 0;
+		long records = 0;
+		try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int position = 0;
+			try {
+				while (buffer.hasRemaining()) {
+					loading.add(new ArtifactKey(readString(buffer), readString(buffer), readString(buffer), readString(buffer)));
+					position = buffer.position();
+					records++;
+				}
+			} catch (BufferUnderflowException e) {
+				log.warn("Catalog log truncated after " + records + " records");
+				channel.truncate(position);
+			}
+		}
+		return records;
+	}
+
+	private synchronized void openLog(long records) throws IOException {
+		logChannel = FileChannel.open(new File(directory, LOG_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		logRecords = records;
+		for (ArtifactKey artifactKey : unlogged) {
+			write(artifactKey);
+		}
+		unlogged.clear();
+	}
+
+	/**
+	 * Log a publication : blocking. The log is written without fsync, what is
+	 * lost in a crash is found again by the scan.
+	 */
+	private void append(ArtifactKey artifactKey) throws IOException {
+		synchronized (this) {
+			if (logChannel == null) {
+				// the scan finds them if the log cannot be opened
+				if (unlogged.size() < MAX_LOG_RECORDS)
+					unlogged.add(artifactKey);
+				return;
+			}
+			write(artifactKey);
+			if (logRecords < MAX_LOG_RECORDS || snapshotting)
+				return;
+			snapshotting = true;
+		}
+		try {
+			writeSnapshot();
+		} finally {
+			synchronized (this) {
+				snapshotting = false;
+			}
+		}
+	}
+
+	private void write(ArtifactKey artifactKey) throws IOException {
+		byte[][] names = {
+				artifactKey.getGroup().getBytes(StandardCharsets.UTF_8),
+				artifactKey.getArtifactName().getBytes(StandardCharsets.UTF_8),
+				artifactKey.getVersion().getBytes(StandardCharsets.UTF_8),
+				artifactKey.getFileName().getBytes(StandardCharsets.UTF_8) };
+		ByteBuffer record = ByteBuffer.allocate(4 * 2 + names[0].length + names[1].length + names[2].length + names[3].length);
+		for (byte[] name : names) {
+			record.putShort((short) name.length);
+			record.put(name);
+		}
+		record.flip();
+		while (record.hasRemaining()) {
+			logChannel.write(record);
+		}
+		logRecords++;
+	}
+
+	/**
+	 * Write a snapshot of the served catalog and drop the logged records it
+	 * contains : blocking.
+	 *
+	 * The publications are added to the catalog before being logged, so the
+	 * records logged before the snapshot starts are all in it. The later ones
+	 * are kept, even those which are in it too, as replaying them is harmless.
+	 */
+	private void writeSnapshot() throws IOException {
+		synchronized (snapshotLock) {
+			doWriteSnapshot();
+		}
+	}
+
+	private void doWriteSnapshot() throws IOException {
+		long start = System.currentTimeMillis();
+		long mark;
+		long markRecords;
+		synchronized (this) {
+			mark = logChannel != null ? logChannel.size() : 0;
+			markRecords = logRecords;
+		}
+
+		directory.mkdirs();
+		File temp = new File(directory, SNAPSHOT_FILE + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(temp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			for (Map.Entry<String, ConcurrentSkipListMap<String, ConcurrentSkipListMap<String, NavigableSet<String>>>> group : catalog.getGroupMap().entrySet()) {
+				out.writeByte(1);
+				writeString(out, group.getKey());
+				for (Map.Entry<String, ConcurrentSkipListMap<String, NavigableSet<String>>> name : group.getValue().entrySet()) {
+					out.writeByte(1);
+					writeString(out, name.getKey());
+					for (Map.Entry<String, NavigableSet<String>> version : name.getValue().entrySet()) {
+						out.writeByte(1);
+						writeString(out, version.getKey());
+						for (String fileName : version.getValue()) {
+							out.writeByte(1);
+							writeString(out, fileName);
+						}
+						out.writeByte(0);
+					}
+					out.writeByte(0);
+				}
+				out.writeByte(0);
+			}
+			out.writeByte(0);
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(temp.toPath(), new File(directory, SNAPSHOT_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		synchronized (this) {
+			if (logChannel == null)
+				return;
+			File logFile = new File(directory, LOG_FILE);
+			File tempLog = new File(directory, LOG_FILE + ".tmp");
+			try (FileChannel source = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+					FileChannel target = FileChannel.open(tempLog.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							StandardOpenOption.TRUNCATE_EXISTING)) {
+				long position = mark;
+				long size = source.size();
+				while (position < size) {
+					position += source.transferTo(position, size - position, target);
+				}
+				target.force(false);
+			}
+			logChannel.close();
+			Files.move(tempLog.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			openLog(logRecords - markRecords);
+		}
+		log.info("Catalog snapshot written in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * A name, as its UTF-8 length on 2 bytes and its UTF-8 bytes.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xffff];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,364 @@
+package com.livy.artifactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * The checksums of the artifacts, computed once while they are published and
+ * persisted as the sidecar files ivy asks for (artifact.jar.sha1, .md5 and
+ * .sha256) in the same FileContainerMapI.
+ *
+ * The SHA-1 is also the ETag of the artifact : it is read from its sidecar
+ * file, kept in a bounded map, and trusted as long as the sidecar is not
+ * older than the artifact. Artifacts published before the checksums existed
+ * get their sidecars computed in the background on their first download.
+ */
+public class ChecksumStore {
+
+	private final static Logger log = LogManager.getLogger(ChecksumStore.class);
+
+	static final String[] ALGORITHMS = { DigestReadStream.SHA1, DigestReadStream.MD5, DigestReadStream.SHA256 };
+
+	static final String[] EXTENSIONS = { "sha1", "md5", "sha256" };
+
+	private static final int MAX_ENTRIES = 100_000;
+
+	/**
+	 * The sidecars of an upload are written once its content is read, while its
+	 * last writes may still be flushed : a sidecar is only stale when it is older
+	 * than its artifact by more than this delay.
+	 */
+	private static final long SIDECAR_SLACK = 1000;
+
+	private final Vertx vertx;
+
+	private final FileContainerMapI fileContainer;
+
+	private final Map<ArtifactKey, ChecksumInfo> sha1Map = new LinkedHashMap<ArtifactKey, ChecksumInfo>(1024, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ArtifactKey, ChecksumInfo> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private final Set<ArtifactKey> computing = new HashSet<>();
+
+	public ChecksumStore(Vertx vertx, FileContainerMapI fileContainer) {
+		this.vertx = vertx;
+		this.fileContainer = fileContainer;
+	}
+
+	public static boolean isChecksumFile(String fileName) {
+		return algorithmOf(fileName) != null;
+	}
+
+	private static String algorithmOf(String fileName) {
+		for (int i = 0; i < EXTENSIONS.length; i++) {
+			if (fileName.endsWith("." + EXTENSIONS[i]))
+				return ALGORITHMS[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Whether a sidecar file is not older than its artifact.
+	 */
+	static boolean isCurrent(long sidecarLastModifiedTime, long artifactLastModifiedTime) {
+		return sidecarLastModifiedTime + SIDECAR_SLACK >= artifactLastModifiedTime;
+	}
+
+	private static ArtifactKey artifactOf(ArtifactKey checksumKey) {
+		String fileName = checksumKey.getFileName();
+		return checksumKey.withFileName(fileName.substring(0, fileName.lastIndexOf('.')));
+	}
+
+	/**
+	 * Persist the checksums computed by the stream which publishes the artifact,
+	 * once it has been read and before the artifact is committed.
+	 */
+	public Promise<Void> store(ArtifactKey artifactKey, DigestReadStream digests) {
+		String[] hexDigests = new String[ALGORITHMS.length];
+		for (int i = 0; i < ALGORITHMS.length; i++) {
+			hexDigests[i] = digests.getHexDigest(ALGORITHMS[i]);
+		}
+		return store(artifactKey, hexDigests);
+	}
+
+	private Promise<Void> store(ArtifactKey artifactKey, String[] hexDigests) {
+		Promise<Void> p = Promise.promise();
+		synchronized (this) {
+			sha1Map.remove(artifactKey);
+		}
+		// the sidecars are written at once, and waited for in turn
+		Future<Void> sidecars = Future.succeededFuture();
+		for (int i = 0; i < EXTENSIONS.length; i++) {
+			ArtifactKey sidecarKey = artifactKey.withFileName(artifactKey.getFileName() + "." + EXTENSIONS[i]);
+			Future<Void> sidecar = fileContainer.put(sidecarKey, new FileContent(sidecarKey, hexDigests[i].getBytes(StandardCharsets.US_ASCII), "text/plain")).future();
+			sidecars = sidecars.compose(v -> sidecar);
+		}
+		sidecars.onComplete(p);
+		return p;
+	}
+
+	/**
+	 * Check a checksum file uploaded by a client, whose first token is the hex
+	 * digest as in "hash  file.jar" : it must match the checksum of its
+	 * artifact, and the sidecar computed when the artifact was published is
+	 * kept. Only the digest is stored when the artifact is not published yet,
+	 * its publication then computes the sidecar again. Fails with a
+	 * DigestMismatchException when the digest is invalid or does not match.
+	 */
+	public Promise<Void> verify(ArtifactKey checksumKey, Buffer content) {
+		Promise<Void> p = Promise.promise();
+		String algorithm = algorithmOf(checksumKey.getFileName());
+		String hexDigest = firstToken(content.toString(StandardCharsets.US_ASCII)).toLowerCase();
+		if (algorithm == null || !isHexDigest(hexDigest, algorithm)) {
+			p.fail(new DigestReadStream.DigestMismatchException("Invalid " + algorithm + " checksum for " + checksumKey));
+			return p;
+		}
+		ArtifactKey artifactKey = artifactOf(checksumKey);
+		fileContainer.getRegion(artifactKey).future().onComplete(artifact -> {
+			if (artifact.failed()) {
+				fileContainer.put(checksumKey, new FileContent(checksumKey, hexDigest.getBytes(StandardCharsets.US_ASCII), "text/plain")).future().onComplete(p);
+				return;
+			}
+			readHexDigest(artifact.result(), algorithm)
+					.onSuccess(known -> {
+						if (known.equals(hexDigest))
+							p.complete();
+						else
+							p.fail(new DigestReadStream.DigestMismatchException(algorithm + " mismatch for " + artifactKey + " : uploaded " + hexDigest + ", computed " + known));
+					})
+					.onFailure(p::fail);
+		});
+		return p;
+	}
+
+	/**
+	 * A checksum of an artifact, from its sidecar when it is current, else
+	 * computed and persisted again.
+	 */
+	private Future<String> readHexDigest(FileRegion region, String algorithm) {
+		ArtifactKey sidecarKey = region.getKey().withFileName(region.getKey().getFileName() + "." + EXTENSIONS[indexOf(algorithm)]);
+		return fileContainer.getRegion(sidecarKey).future()
+				.compose(sidecar -> {
+					if (!isCurrent(sidecar.getLastModifiedTime(), region.getLastModifiedTime()))
+						return Future.failedFuture("Sidecar " + sidecarKey + " is older than the artifact");
+					return fileContainer.get(sidecarKey).future();
+				})
+				.map(sidecar -> firstToken(new String(sidecar.getContent(), StandardCharsets.US_ASCII)).toLowerCase())
+				.recover(error -> compute(region).map(hexDigests -> hexDigests[indexOf(algorithm)]));
+	}
+
+	private static String firstToken(String content) {
+		String trimmed = content.trim();
+		int end = 0;
+		while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+			end++;
+		}
+		return trimmed.substring(0, end);
+	}
+
+	private static boolean isHexDigest(String hexDigest, String algorithm) {
+		int length;
+		try {
+			length = MessageDigest.getInstance(algorithm).getDigestLength() * 2;
+		} catch (NoSuchAlgorithmException e) {
+			return false;
+		}
+		if (hexDigest.length() != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (Character.digit(hexDigest.charAt(i), 16) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The SHA-1 of the artifact to be used as ETag, or a failure when it is not
+	 * known yet.
+	 */
+	public Promise<String> getSha1(FileRegion region) {
+		Promise<String> p = Promise.promise();
+		ArtifactKey artifactKey = region.getKey();
+		ChecksumInfo info;
+		synchronized (this) {
+			info = sha1Map.get(artifactKey);
+		}
+		if (info != null && info.lastModifiedTime == region.getLastModifiedTime()) {
+			p.complete(info.sha1);
+			return p;
+		}
+
+		ArtifactKey sidecarKey = artifactKey.withFileName(artifactKey.getFileName() + "." + EXTENSIONS[0]);
+		fileContainer.getRegion(sidecarKey).future()
+				.compose(sidecar -> {
+					if (!isCurrent(sidecar.getLastModifiedTime(), region.getLastModifiedTime()))
+						return Future.failedFuture("Sidecar of " + artifactKey + " is older than the artifact");
+					return fileContainer.get(sidecarKey).future();
+				})
+				.onSuccess(content -> {
+					String sha1 = firstToken(new String(content.getContent(), StandardCharsets.US_ASCII));
+					synchronized (this) {
+						sha1Map.put(artifactKey, new ChecksumInfo(region.getLastModifiedTime(), sha1));
+					}
+					p.complete(sha1);
+				})
+				.onFailure(error -> {
+					p.fail(error);
+					computeInBackground(region);
+				});
+		return p;
+	}
+
+	/**
+	 * Build a missing checksum file from its artifact, for the artifacts
+	 * published before the checksums were computed at publish time.
+	 */
+	public Promise<FileRegion> restore(ArtifactKey checksumKey) {
+		Promise<FileRegion> p = Promise.promise();
+		String algorithm = algorithmOf(checksumKey.getFileName());
+		if (algorithm == null) {
+			p.fail("Not a checksum file : " + checksumKey);
+			return p;
+		}
+		fileContainer.getRegion(artifactOf(checksumKey)).future()
+				.compose(this::compute)
+				.onSuccess(hexDigests -> {
+					String hex = hexDigests[indexOf(algorithm)];
+					p.complete(new FileRegion(checksumKey, Buffer.buffer(hex), System.currentTimeMillis(), "text/plain"));
+				})
+				.onFailure(p::fail);
+		return p;
+	}
+
+	/**
+	 * Compute again the checksums of an artifact whose publication failed once
+	 * its sidecars were stored, so that they match the artifact kept.
+	 */
+	public void refresh(ArtifactKey artifactKey) {
+		fileContainer.getRegion(artifactKey).future().onSuccess(region -> {
+			synchronized (this) {
+				sha1Map.remove(artifactKey);
+			}
+			computeInBackground(region);
+		});
+	}
+
+	private void computeInBackground(FileRegion region) {
+		synchronized (this) {
+			if (!computing.add(region.getKey()))
+				return;
+		}
+		compute(region).onComplete(res -> {
+			synchronized (this) {
+				computing.remove(region.getKey());
+			}
+			if (res.failed())
+				log.warn("Unable to compute the checksums of " + region.getKey(), res.cause());
+		});
+	}
+
+	/**
+	 * Compute the checksums of an artifact already stored, and persist them.
+	 */
+	private Future<String[]> compute(FileRegion region) {
+		Promise<String[]> p = Promise.promise();
+		if (region.isStream()) {
+			// an artifact being received is hashed as it passes
+			DigestReadStream digests = new DigestReadStream(region.getStream(), ALGORITHMS);
+			digests.exceptionHandler(p::tryFail);
+			digests.endHandler(v -> {
+				String[] hexDigests = new String[ALGORITHMS.length];
+				for (int i = 0; i < ALGORITHMS.length; i++) {
+					hexDigests[i] = digests.getHexDigest(ALGORITHMS[i]);
+				}
+				log.info("Checksums of " + region.getKey() + " computed");
+				store(region.getKey(), hexDigests).future().onComplete(stored -> p.tryComplete(hexDigests));
+			});
+			digests.handler(buffer -> {
+			});
+			digests.resume();
+			return p.future();
+		}
+		vertx.<String[]>executeBlocking(future -> {
+			try {
+				MessageDigest[] digests = new MessageDigest[ALGORITHMS.length];
+				for (int i = 0; i < ALGORITHMS.length; i++) {
+					digests[i] = MessageDigest.getInstance(ALGORITHMS[i]);
+				}
+				if (region.isInMemory()) {
+					DigestReadStream.update(Arrays.asList(digests), region.getContent());
+				} else {
+					try (RandomAccessFile file = new RandomAccessFile(region.getPath(), "r")) {
+						file.seek(region.getOffset());
+						byte[] bytes = new byte[64 * 1024];
+						long remaining = region.getLength();
+						int r;
+						while (remaining > 0 && (r = file.read(bytes, 0, (int) Math.min(bytes.length, remaining))) > 0) {
+							for (MessageDigest md : digests) {
+								md.update(bytes, 0, r);
+							}
+							remaining -= r;
+						}
+					}
+				}
+				String[] hexDigests = new String[ALGORITHMS.length];
+				for (int i = 0; i < ALGORITHMS.length; i++) {
+					hexDigests[i] = DigestReadStream.toHex(digests[i].digest());
+				}
+				future.complete(hexDigests);
+			} catch (IOException | NoSuchAlgorithmException e) {
+				future.fail(e);
+			}
+		}, false, res -> {
+			if (res.failed()) {
+				p.fail(res.cause());
+				return;
+			}
+			log.info("Checksums of " + region.getKey() + " computed");
+			store(region.getKey(), res.result()).future().onComplete(stored -> p.complete(res.result()));
+		});
+		return p.future();
+	}
+
+	private static int indexOf(String algorithm) {
+		for (int i = 0; i < ALGORITHMS.length; i++) {
+			if (ALGORITHMS[i].equals(algorithm))
+				return i;
+		}
+		throw new IllegalArgumentException(algorithm);
+	}
+
+	private static class ChecksumInfo {
+
+		final long lastModifiedTime;
+		final String sha1;
+
+		ChecksumInfo(long lastModifiedTime, String sha1) {
+			this.lastModifiedTime = lastModifiedTime;
+			this.sha1 = sha1;
+		}
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,76 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.util.List;
+
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A file container sharing the reads in flight of another one : when a new
+ * release lands, the agents requesting the same file at once are served by a
+ * single read of the storage.
+ *
+ * A publication lets the next reads of its key go to the storage, so they
+ * never get the content it replaces.
+ */
+public class CoalescingFileContainer implements FileContainerMapI {
+
+	private final FileContainerMapI fileContainer;
+
+	private final SingleFlight<ArtifactKey, FileContent> gets = new SingleFlight<>();
+
+	private final SingleFlight<ArtifactKey, FileRegion> regions = new SingleFlight<>();
+
+	public CoalescingFileContainer(FileContainerMapI fileContainer) {
+		this.fileContainer = fileContainer;
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, FileContent content) {
+		forget(artifactKey);
+		Promise<Void> p = fileContainer.put(artifactKey, content);
+		p.future().onComplete(res -> forget(artifactKey));
+		return p;
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, ReadStream<Buffer> content) {
+		forget(artifactKey);
+		Promise<Void> p = fileContainer.put(artifactKey, content);
+		p.future().onComplete(res -> forget(artifactKey));
+		return p;
+	}
+
+	@Override
+	public Promise<Void> putVersion(List<ArtifactKey> artifactKeys, File stagingDirectory) {
+		artifactKeys.forEach(this::forget);
+		Promise<Void> p = fileContainer.putVersion(artifactKeys, stagingDirectory);
+		p.future().onComplete(res -> artifactKeys.forEach(this::forget));
+		return p;
+	}
+
+	@Override
+	public Promise<FileContent> get(ArtifactKey artifactKey) {
+		return gets.execute(artifactKey, () -> fileContainer.get(artifactKey));
+	}
+
+	@Override
+	public Promise<FileRegion> getRegion(ArtifactKey artifactKey) {
+		return regions.execute(artifactKey, () -> fileContainer.getRegion(artifactKey));
+	}
+
+	/**
+	 * The number of reads served by a read already in flight.
+	 */
+	public long getCoalescedCount() {
+		return gets.getCoalescedCount() + regions.getCoalescedCount();
+	}
+
+	private void forget(ArtifactKey artifactKey) {
+		gets.forget(artifactKey);
+		regions.forget(artifactKey);
+	}
+
+}
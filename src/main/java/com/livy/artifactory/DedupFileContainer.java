@@ -0,0 +1,393 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.CopyOptions;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A content addressable FileContainerMapI : each distinct content is stored
+ * once as a blob named by its SHA-256, and the artifact files of the usual
+ * group/name/version layout are hard links to these blobs. Re-publishing a
+ * byte identical jar under many modules or versions costs neither disk space
+ * nor page cache, and the layout can still be browsed and read as a flat one.
+ *
+ * The SHA-256 is computed while the upload is streamed to a temporary file, so
+ * an already known content is dropped without any further write. It is the
+ * one of the stream publishing the artifact when that stream computes it.
+ *
+ * A link takes the modification time of its publication : the blob and its
+ * other links share it, so a known content published again never makes the
+ * Last-Modified of its artifact go backwards, the other artifacts of the same
+ * content are only seen as modified.
+ */
+public class DedupFileContainer implements FileContainerMapI {
+
+	private final static Logger log = LogManager.getLogger(DedupFileContainer.class);
+
+	static final String BLOB_DIRECTORY = ".blobs";
+
+	/**
+	 * Blobs no longer linked by any artifact are only purged once they are
+	 * older than this delay, so that a blob being published is never removed.
+	 */
+	private static final long PURGE_DELAY = TimeUnit.HOURS.toMillis(1);
+
+	private final File artifactDirectory;
+
+	private final File blobDirectory;
+
+	private final File tempDirectory;
+
+	private final FileSystem fs;
+
+	private final FlatFileContainer files;
+
+	private final Vertx vertx;
+
+	private final GroupCommit groupCommit;
+
+	/**
+	 * The purge of the unreferenced blobs run at startup : a publication only
+	 * looks for a known blob once it is over, so that it never links a blob
+	 * being deleted.
+	 */
+	private final Future<Void> purged;
+
+	public DedupFileContainer(Vertx vertx, File artifactDirectory) {
+		this(vertx, artifactDirectory, null);
+	}
+
+	/**
+	 * A durable container : the blobs and the links to them are committed by
+	 * the given scheduler, null to leave them to the page cache.
+	 */
+	public DedupFileContainer(Vertx vertx, File artifactDirectory, GroupCommit groupCommit) {
+		this.vertx = vertx;
+		this.groupCommit = groupCommit;
+		this.fs = vertx.fileSystem();
+		this.files = new FlatFileContainer(vertx, artifactDirectory, groupCommit);
+		this.artifactDirectory = artifactDirectory;
+		this.blobDirectory = new File(artifactDirectory, BLOB_DIRECTORY);
+		this.tempDirectory = new File(blobDirectory, "tmp");
+		if (groupCommit != null) {
+			// the blob directory is forced with the first blob committed
+			try {
+				groupCommit.createDirectories(tempDirectory.toPath());
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to create " + tempDirectory.getAbsolutePath(), e);
+			}
+		} else if (!tempDirectory.exists() && !tempDirectory.mkdirs()) {
+			throw new RuntimeException("Unable to create " + tempDirectory.getAbsolutePath());
+		}
+
+		Promise<Void> purge = Promise.promise();
+		vertx.<Void>executeBlocking(p -> {
+			purgeUnreferencedBlobs();
+			p.complete();
+		}, false, purge);
+		purged = purge.future();
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, FileContent content) {
+		Promise<Void> p = Promise.promise();
+		try {
+			artifactKey.buildFilePath(artifactDirectory);
+			MessageDigest md = MessageDigest.getInstance(DigestReadStream.SHA256);
+			String sha256 = DigestReadStream.toHex(md.digest(content.content));
+			String tempPath = newTempPath();
+			Promise<Void> written = Promise.promise();
+			fs.writeFile(tempPath, Buffer.buffer(content.content), written);
+			written.future()
+					.compose(v -> storeBlob(tempPath, sha256))
+					.compose(blobPath -> linkBlob(artifactKey, blobPath, System.currentTimeMillis()))
+					.onComplete(p);
+		} catch (IllegalArgumentException e) {
+			p.fail(e);
+		} catch (NoSuchAlgorithmException e) {
+			p.fail(new Exception("Fatal, cannot create the new repository entry ", e));
+		}
+		return p;
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, ReadStream<Buffer> content) {
+		Promise<Void> p = Promise.promise();
+		content.pause();
+		try {
+			artifactKey.buildFilePath(artifactDirectory);
+		} catch (IllegalArgumentException e) {
+			p.fail(e);
+			return p;
+		}
+		// the stream of a publication already hashes its content
+		DigestReadStream digestStream = content instanceof DigestReadStream && ((DigestReadStream) content).computes(DigestReadStream.SHA256)
+				? (DigestReadStream) content
+				: new DigestReadStream(content, DigestReadStream.SHA256);
+		String tempPath = newTempPath();
+		fs.open(tempPath, new OpenOptions().setWrite(true).setCreateNew(true), res -> {
+			if (res.failed()) {
+				p.fail(new Exception("Unable to create file " + tempPath, res.cause()));
+				return;
+			}
+			digestStream.pipeTo(res.result(), res1 -> {
+				if (res1.failed()) {
+					fs.delete(tempPath, v -> p.fail(new Exception("Unable to write file ", res1.cause())));
+					return;
+				}
+				long lastModifiedTime = System.currentTimeMillis();
+				storeBlob(tempPath, digestStream.getHexDigest(DigestReadStream.SHA256))
+						.compose(blobPath -> linkBlob(artifactKey, blobPath, lastModifiedTime))
+						.onComplete(p);
+			});
+		});
+		return p;
+	}
+
+	/**
+	 * The staged files are linked to their blobs before the version is moved
+	 * into place.
+	 */
+	@Override
+	public Promise<Void> putVersion(List<ArtifactKey> artifactKeys, File stagingDirectory) {
+		Promise<Void> p = Promise.promise();
+		purged.onComplete(purge -> vertx.<Void>executeBlocking(future -> {
+			try {
+				for (ArtifactKey artifactKey : artifactKeys) {
+					linkStagedFile(new File(stagingDirectory, artifactKey.getFileName()).toPath());
+				}
+				future.complete();
+			} catch (IOException | NoSuchAlgorithmException e) {
+				future.fail(e);
+			}
+		}, false, res -> {
+			if (res.failed())
+				p.fail(res.cause());
+			else
+				files.putVersion(artifactKeys, stagingDirectory).future().onComplete(p);
+		}));
+		return p;
+	}
+
+	/**
+	 * Make a staged file a hard link to its blob, storing the blob when its
+	 * content is new.
+	 */
+	private void linkStagedFile(Path staged) throws IOException, NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance(DigestReadStream.SHA256);
+		try (InputStream is = Files.newInputStream(staged)) {
+			byte[] bytes = new byte[64 * 1024];
+			int r;
+			while ((r = is.read(bytes)) > 0) {
+				md.update(bytes, 0, r);
+			}
+		}
+		Path blob = blobFile(DigestReadStream.toHex(md.digest())).toPath();
+		if (!Files.exists(blob)) {
+			// the blob shares the inode of the staged file, forced with the version : its
+			// directories are left to the next commit
+			if (groupCommit != null)
+				groupCommit.createDirectories(blob.getParent());
+			else
+				Files.createDirectories(blob.getParent());
+			try {
+				Files.createLink(blob, staged);
+				return;
+			} catch (FileAlreadyExistsException e) {
+				// the same content has been stored concurrently
+			} catch (UnsupportedOperationException e) {
+				Files.copy(staged, blob);
+				return;
+			}
+		}
+		Path link = staged.resolveSibling(FlatFileContainer.TEMP_FILE_PREFIX + UUID.randomUUID());
+		try {
+			Files.createLink(link, blob);
+		} catch (UnsupportedOperationException e) {
+			return;
+		}
+		// the time the file was staged, its checksums written after it
+		Files.setLastModifiedTime(link, Files.getLastModifiedTime(staged));
+		Files.move(link, staged, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Override
+	public Promise<FileContent> get(ArtifactKey artifactKey) {
+		return files.get(artifactKey);
+	}
+
+	@Override
+	public Promise<FileRegion> getRegion(ArtifactKey artifactKey) {
+		return files.getRegion(artifactKey);
+	}
+
+	private String newTempPath() {
+		return new File(tempDirectory, UUID.randomUUID().toString()).getAbsolutePath();
+	}
+
+	File blobFile(String sha256) {
+		return new File(new File(new File(blobDirectory, sha256.substring(0, 2)), sha256.substring(2, 4)), sha256);
+	}
+
+	/**
+	 * Move the uploaded file to its blob, or drop it when the content is already
+	 * known.
+	 */
+	private Future<String> storeBlob(String tempPath, String sha256) {
+		Promise<String> p = Promise.promise();
+		File blob = blobFile(sha256);
+		String blobPath = blob.getAbsolutePath();
+		purged.onComplete(purge -> fs.exists(blobPath, exists -> {
+			if (exists.succeeded() && exists.result()) {
+				log.debug("Blob " + sha256 + " already stored");
+				fs.delete(tempPath, v -> p.complete(blobPath));
+				return;
+			}
+			files.mkdirs(blob.getParent()).onComplete(res -> {
+				move(tempPath, blobPath, true, res.succeeded() ? res.result() : Collections.emptyList(), res1 -> {
+					if (res1.succeeded()) {
+						p.complete(blobPath);
+					} else {
+						// the same content may have been stored concurrently
+						fs.delete(tempPath, v -> {
+							if (blob.exists())
+								p.complete(blobPath);
+							else
+								p.fail(new Exception("Unable to store blob " + sha256, res1.cause()));
+						});
+					}
+				});
+			});
+		}));
+		return p.future();
+	}
+
+	/**
+	 * Make the artifact file a hard link to the blob, modified at the given
+	 * time. The link is created with a temporary name and renamed, so that an
+	 * existing artifact is atomically replaced. The blob is copied when the
+	 * file system has no hard link.
+	 */
+	private Future<Void> linkBlob(ArtifactKey artifactKey, String blobPath, long lastModifiedTime) {
+		Promise<Void> p = Promise.promise();
+		String directoryPath = artifactKey.buildDirectoryPath(artifactDirectory);
+		String filePath = artifactKey.buildFilePath(artifactDirectory);
+		String linkPath = new File(directoryPath, FlatFileContainer.TEMP_FILE_PREFIX + UUID.randomUUID()).getAbsolutePath();
+
+		files.mkdirs(directoryPath).onComplete(res -> {
+			if (res.failed()) {
+				p.fail(new Exception("Unable to create the directories", res.cause()));
+				return;
+			}
+			Promise<Void> linked = Promise.promise();
+			fs.link(linkPath, blobPath, linked);
+			linked.future()
+					.recover(error -> {
+						log.warn("Unable to link " + blobPath + ", it is copied", error);
+						Promise<Void> copied = Promise.promise();
+						fs.copy(blobPath, linkPath, copied);
+						return copied.future();
+					})
+					.compose(v -> touch(linkPath, lastModifiedTime))
+					.onComplete(res1 -> {
+						if (res1.failed()) {
+							fs.delete(linkPath, v -> p.fail(new Exception("Unable to create file " + filePath, res1.cause())));
+							return;
+						}
+						// the link shares the inode of the blob, already on the disk
+						move(linkPath, filePath, false, res.result(), res2 -> {
+							if (res2.succeeded()) {
+								p.complete();
+							} else {
+								fs.delete(linkPath, v -> p.fail(new Exception("Unable to move file to " + filePath, res2.cause())));
+							}
+						});
+					});
+		});
+		return p.future();
+	}
+
+	private Future<Void> touch(String path, long lastModifiedTime) {
+		Promise<Void> p = Promise.promise();
+		vertx.<Void>executeBlocking(future -> {
+			try {
+				Files.setLastModifiedTime(Paths.get(path), FileTime.fromMillis(lastModifiedTime));
+				future.complete();
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, p);
+		return p.future();
+	}
+
+	/**
+	 * Atomic rename, replacing the target, committed in the durable mode with
+	 * the content of the source when it is new and with the directories
+	 * created for the target.
+	 */
+	private void move(String sourcePath, String targetPath, boolean newContent, List<Path> directories, Handler<AsyncResult<Void>> handler) {
+		if (groupCommit == null) {
+			fs.move(sourcePath, targetPath, new CopyOptions().setAtomicMove(true).setReplaceExisting(true), handler);
+			return;
+		}
+		Path source = Paths.get(sourcePath);
+		Path target = Paths.get(targetPath);
+		groupCommit.commit(newContent ? Collections.singletonList(source) : Collections.emptyList(), directories, () -> {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			return target.getParent();
+		}).future().onComplete(handler);
+	}
+
+	/**
+	 * Delete the blobs which are no more linked by any artifact file, and the
+	 * temporary files left by interrupted uploads.
+	 */
+	void purgeUnreferencedBlobs() {
+		long limit = System.currentTimeMillis() - PURGE_DELAY;
+		try (Stream<Path> paths = Files.walk(blobDirectory.toPath())) {
+			paths.filter(Files::isRegularFile).forEach(path -> {
+				try {
+					if (Files.getLastModifiedTime(path).toMillis() > limit)
+						return;
+					boolean temp = path.getParent().equals(tempDirectory.toPath());
+					if (temp || ((Number) Files.getAttribute(path, "unix:nlink")).intValue() <= 1) {
+						Files.delete(path);
+						log.debug("Unreferenced blob deleted : " + path);
+					}
+				} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+					log.warn("Unable to check blob " + path, e);
+				}
+			});
+		} catch (IOException e) {
+			log.error("Unable to purge the blobs of " + blobDirectory, e);
+		}
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,72 @@
+package com.livy.artifactory;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
+
+/**
+ * A Pump that also computes digests of the stream as it passes through, with
+ * a DigestReadStream. They can be fetched once all data has been pushed
+ * through with getHexDigest().
+ *
+ * It can be attached to any pair of streams : a file sent to a response, a
+ * request written to a file.
+ */
+public class DigestPump {
+
+	private final DigestReadStream readStream;
+
+	private final WriteStream<Buffer> writeStream;
+
+	private final Handler<Void> drainHandler;
+
+	private final Handler<Buffer> dataHandler;
+
+	public DigestPump(ReadStream<Buffer> readStream, WriteStream<Buffer> writeStream, String... algorithms) {
+		this.readStream = new DigestReadStream(readStream, algorithms);
+		this.writeStream = writeStream;
+		this.drainHandler = v -> this.readStream.resume();
+		this.dataHandler = this::write;
+	}
+
+	/**
+	 * Start the Pump. The Pump can be started and stopped multiple times.
+	 */
+	public DigestPump start() {
+		readStream.handler(dataHandler);
+		return this;
+	}
+
+	/**
+	 * Stop the Pump. The Pump can be started and stopped multiple times.
+	 */
+	public DigestPump stop() {
+		writeStream.drainHandler(null);
+		readStream.handler(null);
+		return this;
+	}
+
+	/**
+	 * Return the total number of bytes pumped by this pump.
+	 */
+	public long bytesPumped() {
+		return readStream.getLength();
+	}
+
+	/**
+	 * Return the hex string of a digest of the data that passed through.
+	 */
+	public String getHexDigest(String algorithm) {
+		return readStream.getHexDigest(algorithm);
+	}
+
+	private void write(Buffer buffer) {
+		writeStream.write(buffer);
+		if (writeStream.writeQueueFull()) {
+			readStream.pause();
+			writeStream.drainHandler(drainHandler);
+		}
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,232 @@
+package com.livy.artifactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A ReadStream computing digests of the data flowing through it, all in one
+ * pass and without copying the buffers. The digests can be fetched once the
+ * stream has ended with getHexDigest().
+ *
+ * An expected digest turns the end of a stream whose content does not match
+ * into a failure, so that a corrupted upload is never committed.
+ *
+ * An operation may also be run between the end of the content and the end of
+ * the stream, as storing the checksums before the upload is committed.
+ */
+public class DigestReadStream implements ReadStream<Buffer> {
+
+	public static final String SHA1 = "SHA-1";
+	public static final String MD5 = "MD5";
+	public static final String SHA256 = "SHA-256";
+
+	private final ReadStream<Buffer> readStream;
+
+	private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+
+	private final Map<String, String> hexDigests = new LinkedHashMap<>();
+
+	private long length;
+
+	private final Map<String, String> expectedHexDigests = new LinkedHashMap<>();
+
+	private Handler<Throwable> exceptionHandler;
+
+	private Supplier<Future<Void>> beforeEnd;
+
+	/**
+	 * The failure of a stream whose content does not match its expected digest.
+	 */
+	public static class DigestMismatchException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public DigestMismatchException(String message) {
+			super(message);
+		}
+
+	}
+
+	public DigestReadStream(ReadStream<Buffer> readStream, String... algorithms) {
+		this.readStream = readStream;
+		try {
+			for (String algorithm : algorithms) {
+				digests.put(algorithm, MessageDigest.getInstance(algorithm));
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Whether the digest of an algorithm is computed.
+	 */
+	public boolean computes(String algorithm) {
+		return digests.containsKey(algorithm);
+	}
+
+	/**
+	 * Fail the stream at its end when the digest of its content is not the
+	 * given one. The algorithm must be one of the computed digests.
+	 */
+	public DigestReadStream expect(String algorithm, String hexDigest) {
+		if (!digests.containsKey(algorithm))
+			throw new IllegalArgumentException("Digest " + algorithm + " not computed");
+		expectedHexDigests.put(algorithm, hexDigest.trim().toLowerCase());
+		return this;
+	}
+
+	/**
+	 * Run an operation once the whole content has been read and verified,
+	 * before the end of the stream is signaled : its failure fails the stream.
+	 * It must be set before the end handler.
+	 */
+	public DigestReadStream beforeEnd(Supplier<Future<Void>> operation) {
+		beforeEnd = operation;
+		return this;
+	}
+
+	@Override
+	public DigestReadStream exceptionHandler(Handler<Throwable> handler) {
+		exceptionHandler = handler;
+		readStream.exceptionHandler(handler);
+		return this;
+	}
+
+	@Override
+	public DigestReadStream handler(Handler<Buffer> handler) {
+		if (handler == null) {
+			readStream.handler(null);
+		} else {
+			readStream.handler(buffer -> {
+				update(buffer);
+				handler.handle(buffer);
+			});
+		}
+		return this;
+	}
+
+	@Override
+	public DigestReadStream pause() {
+		readStream.pause();
+		return this;
+	}
+
+	@Override
+	public DigestReadStream resume() {
+		readStream.resume();
+		return this;
+	}
+
+	@Override
+	public DigestReadStream fetch(long amount) {
+		readStream.fetch(amount);
+		return this;
+	}
+
+	@Override
+	public DigestReadStream endHandler(Handler<Void> endHandler) {
+		if (endHandler == null || (expectedHexDigests.isEmpty() && beforeEnd == null)) {
+			readStream.endHandler(endHandler);
+			return this;
+		}
+		readStream.endHandler(v -> {
+			for (Map.Entry<String, String> expected : expectedHexDigests.entrySet()) {
+				String hexDigest = getHexDigest(expected.getKey());
+				if (!hexDigest.equals(expected.getValue())) {
+					if (exceptionHandler != null)
+						exceptionHandler.handle(new DigestMismatchException(expected.getKey() + " mismatch : expected " + expected.getValue() + ", received " + hexDigest));
+					return;
+				}
+			}
+			if (beforeEnd == null) {
+				endHandler.handle(null);
+				return;
+			}
+			beforeEnd.get().onComplete(res -> {
+				if (res.succeeded())
+					endHandler.handle(null);
+				else if (exceptionHandler != null)
+					exceptionHandler.handle(res.cause());
+			});
+		});
+		return this;
+	}
+
+	/**
+	 * Return the total number of bytes read.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Return the hex string of the digest of all the data read : must only be
+	 * called once the stream has ended.
+	 */
+	public String getHexDigest(String algorithm) {
+		return hexDigests.computeIfAbsent(algorithm, a -> toHex(digests.get(a).digest()));
+	}
+
+	private void update(Buffer buffer) {
+		length += update(digests.values(), buffer);
+	}
+
+	/**
+	 * Update the digests with the content of a buffer, read in place from its
+	 * Netty buffer : the bytes of a heap buffer are read from its array, the
+	 * direct buffers of the sockets and files through their NIO view, without
+	 * copying the content to a new array.
+	 *
+	 * @return the number of bytes
+	 */
+	public static int update(Iterable<MessageDigest> digests, Buffer buffer) {
+		ByteBuf byteBuf = buffer.getByteBuf();
+		int readable = byteBuf.readableBytes();
+		if (byteBuf.hasArray()) {
+			byte[] array = byteBuf.array();
+			int offset = byteBuf.arrayOffset() + byteBuf.readerIndex();
+			for (MessageDigest md : digests) {
+				md.update(array, offset, readable);
+			}
+		} else if (byteBuf.nioBufferCount() == 1) {
+			update(digests, byteBuf.nioBuffer());
+		} else {
+			for (ByteBuffer nioBuffer : byteBuf.nioBuffers()) {
+				update(digests, nioBuffer);
+			}
+		}
+		return readable;
+	}
+
+	private static void update(Iterable<MessageDigest> digests, ByteBuffer nioBuffer) {
+		int position = nioBuffer.position();
+		for (MessageDigest md : digests) {
+			md.update(nioBuffer);
+			nioBuffer.position(position);
+		}
+	}
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	public static String toHex(byte[] data) {
+		char[] hex = new char[data.length * 2];
+		for (int i = 0; i < data.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(data[i] >> 4) & 0xF];
+			hex[2 * i + 1] = HEX_DIGITS[data[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,324 @@
+package com.livy.artifactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileProps;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.impl.MimeMapping;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Directory listings of the static route, as the baseIndex.html page or as
+ * JSON for the tools.
+ *
+ * The template is parsed once. The sorted entries of a directory are cached
+ * with the last modification time of the directory, which changes with any
+ * file added or removed, and are dropped on each artifact publication : the
+ * directory is only read again after a write. Each rendered page is cached
+ * with its entries, so browsing a group with thousands of versions costs a
+ * lookup. Large directories are paged, sorted by name or by version.
+ *
+ * Hidden entries (uploads in progress, blobs, ...) are not listed.
+ */
+public class DirectoryListing {
+
+	private static final Logger log = Logger.getLogger(DirectoryListing.class);
+
+	private static final int MAX_CACHED_DIRECTORIES = 10_000;
+
+	private static final int MAX_RENDERED_PAGES = 16;
+
+	static final int DEFAULT_PAGE_SIZE = 1000;
+
+	private static final Template TEMPLATE = Template.load("baseIndex.html");
+
+	private final Vertx vertx;
+
+	private final Map<String, Listing> cache = Collections.synchronizedMap(new LinkedHashMap<String, Listing>(1024, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+			return size() > MAX_CACHED_DIRECTORIES;
+		}
+	});
+
+	public DirectoryListing(Vertx vertx) {
+		this.vertx = vertx;
+	}
+
+	/**
+	 * Drop the cached listing of a directory.
+	 */
+	public void invalidate(String directoryPath) {
+		cache.remove(directoryPath);
+	}
+
+	/**
+	 * Send the listing of a directory.
+	 *
+	 * @param requestPath the decoded path of the request, displayed as title
+	 */
+	public void send(HttpServerRequest request, String directoryPath, String requestPath, long lastModifiedTime, Handler<Void> notFoundHandler) {
+		send(request, directoryPath, requestPath, lastModifiedTime, Collections.emptySet(), notFoundHandler);
+	}
+
+	/**
+	 * Send the listing of a directory with entries which are not files of it,
+	 * as the packed files of a version.
+	 */
+	public void send(HttpServerRequest request, String directoryPath, String requestPath, long lastModifiedTime, Collection<String> extraNames,
+			Handler<Void> notFoundHandler) {
+		Listing listing = cache.get(directoryPath);
+		if (listing != null && listing.lastModifiedTime == lastModifiedTime) {
+			send(request, listing, requestPath);
+			return;
+		}
+
+		vertx.fileSystem().readDir(directoryPath, fileList -> {
+			if (fileList.failed()) {
+				notFoundHandler.handle(null);
+				return;
+			}
+			List<String> names = Stream.concat(fileList.result().stream().map(f -> new File(f).getName()), extraNames.stream())
+					.filter(name -> !name.startsWith("."))
+					.distinct()
+					.sorted()
+					.collect(Collectors.toList());
+			Listing newListing = new Listing(lastModifiedTime, names);
+			cache.put(directoryPath, newListing);
+			log.debug("Listing of " + directoryPath + " : " + names.size() + " entries");
+			send(request, newListing, requestPath);
+		});
+	}
+
+	/**
+	 * Send the listing of a directory spread over several roots, merging their
+	 * entries. It is cached under the given key with the sum of the
+	 * modification times of the directories, which changes with any of them.
+	 */
+	@SuppressWarnings("rawtypes")
+	public void send(HttpServerRequest request, String cacheKey, List<String> directoryPaths, String requestPath, Handler<Void> notFoundHandler) {
+		List<Future> props = new ArrayList<>();
+		for (String directoryPath : directoryPaths) {
+			Promise<FileProps> p = Promise.promise();
+			vertx.fileSystem().props(directoryPath, p);
+			props.add(p.future());
+		}
+		CompositeFuture.join(props).onComplete(propsDone -> {
+			long lastModifiedTime = 0;
+			List<String> directories = new ArrayList<>();
+			for (int i = 0; i < directoryPaths.size(); i++) {
+				Future<?> directoryProps = props.get(i);
+				if (directoryProps.succeeded() && ((FileProps) directoryProps.result()).isDirectory()) {
+					lastModifiedTime += ((FileProps) directoryProps.result()).lastModifiedTime();
+					directories.add(directoryPaths.get(i));
+				}
+			}
+			if (directories.isEmpty()) {
+				notFoundHandler.handle(null);
+				return;
+			}
+			Listing listing = cache.get(cacheKey);
+			if (listing != null && listing.lastModifiedTime == lastModifiedTime) {
+				send(request, listing, requestPath);
+				return;
+			}
+			long validator = lastModifiedTime;
+			List<Future> fileLists = new ArrayList<>();
+			for (String directory : directories) {
+				Promise<List<String>> p = Promise.promise();
+				vertx.fileSystem().readDir(directory, p);
+				fileLists.add(p.future());
+			}
+			CompositeFuture.join(fileLists).onComplete(listsDone -> {
+				Set<String> names = new TreeSet<>();
+				for (Future<?> fileList : fileLists) {
+					if (fileList.failed())
+						continue;
+					for (Object file : (List<?>) fileList.result()) {
+						String name = new File((String) file).getName();
+						if (!name.startsWith("."))
+							names.add(name);
+					}
+				}
+				Listing newListing = new Listing(validator, new ArrayList<>(names));
+				cache.put(cacheKey, newListing);
+				log.debug("Listing of " + cacheKey + " merged from " + fileLists.size() + " directories : " + names.size() + " entries");
+				send(request, newListing, requestPath);
+			});
+		});
+	}
+
+	private void send(HttpServerRequest request, Listing listing, String requestPath) {
+		boolean json = "json".equals(request.getParam("format"))
+				|| request.getHeader("Accept") != null && request.getHeader("Accept").startsWith("application/json");
+		boolean byVersion = "version".equals(request.getParam("sort"));
+		boolean descending = "desc".equals(request.getParam("order"));
+		int size = parseInt(request.getParam("size"), DEFAULT_PAGE_SIZE);
+		int page = parseInt(request.getParam("page"), 1);
+		boolean gzip = GzipVariants.acceptsGzip(request);
+
+		String renderKey = json + "|" + byVersion + "|" + descending + "|" + size + "|" + page + "|" + gzip + "|" + requestPath;
+		Buffer content = listing.rendered.get(renderKey);
+		if (content == null) {
+			List<String> names = byVersion ? listing.byVersion() : listing.names;
+			int total = names.size();
+			int pages = Math.max(1, (total + size - 1) / size);
+			page = Math.min(page, pages);
+			List<String> pageNames = new ArrayList<>(names.subList(Math.min(total, (page - 1) * size), Math.min(total, page * size)));
+			if (descending)
+				Collections.reverse(pageNames);
+
+			JsonObject paging = new JsonObject()
+					.put("page", page)
+					.put("pages", pages)
+					.put("size", size)
+					.put("total", total)
+					.put("sort", byVersion ? "version" : "name")
+					.put("order", descending ? "desc" : "asc");
+			if (json) {
+				content = paging.put("directory", requestPath).put("entries", new JsonArray(pageNames)).toBuffer();
+			} else {
+				Map<String, String> arguments = new LinkedHashMap<>();
+				arguments.put("dirList", new JsonArray(pageNames).encode());
+				arguments.put("currentDir", Json.encode(requestPath));
+				arguments.put("paging", paging.encode());
+				content = TEMPLATE.render(arguments);
+			}
+			if (gzip)
+				content = GzipVariants.gzip(content);
+			listing.rendered.put(renderKey, content);
+		}
+
+		request.response().putHeader("Vary", "Accept-Encoding");
+		if (gzip)
+			GzipVariants.putVariantHeaders(request.response());
+		request.response()
+				.putHeader("Content-Length", Integer.toString(content.length()))
+				.putHeader("Content-Type", json ? "application/json" : MimeMapping.getMimeTypeForExtension("html"))
+				.end(content);
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		try {
+			return value == null ? defaultValue : Math.max(1, Integer.parseInt(value));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static class Listing {
+
+		final long lastModifiedTime;
+
+		final List<String> names;
+
+		private List<String> byVersion;
+
+		final Map<String, Buffer> rendered = Collections.synchronizedMap(new LinkedHashMap<String, Buffer>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Buffer> eldest) {
+				return size() > MAX_RENDERED_PAGES;
+			}
+		});
+
+		Listing(long lastModifiedTime, List<String> names) {
+			this.lastModifiedTime = lastModifiedTime;
+			this.names = names;
+		}
+
+		synchronized List<String> byVersion() {
+			if (byVersion == null) {
+				byVersion = new ArrayList<>(names);
+				byVersion.sort(VersionComparator.INSTANCE);
+			}
+			return byVersion;
+		}
+	}
+
+	/**
+	 * A template parsed once in literal parts and #{argument} placeholders, the
+	 * odd parts being the argument names.
+	 */
+	static class Template {
+
+		private final List<String> parts;
+
+		private Template(List<String> parts) {
+			this.parts = parts;
+		}
+
+		static Template load(String resource) {
+			try (InputStream is = DirectoryListing.class.getClassLoader().getResourceAsStream(resource)) {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				byte b[] = new byte[8192];
+				int r;
+				while ((r = is.read(b)) > 0) {
+					baos.write(b, 0, r);
+				}
+				return parse(new String(baos.toByteArray(), StandardCharsets.UTF_8));
+			} catch (IOException | NullPointerException e) {
+				throw new RuntimeException("Unable to load the template " + resource, e);
+			}
+		}
+
+		static Template parse(String content) {
+			List<String> parts = new ArrayList<>();
+			int from = 0;
+			int start;
+			while ((start = content.indexOf("#{", from)) >= 0) {
+				int end = content.indexOf('}', start);
+				if (end < 0)
+					break;
+				parts.add(content.substring(from, start));
+				parts.add(content.substring(start + 2, end));
+				from = end + 1;
+			}
+			parts.add(content.substring(from));
+			return new Template(parts);
+		}
+
+		Buffer render(Map<String, String> arguments) {
+			StringBuilder sb = new StringBuilder(8192);
+			for (int i = 0; i < parts.size(); i++) {
+				if (i % 2 == 0) {
+					sb.append(parts.get(i));
+				} else {
+					String value = arguments.get(parts.get(i));
+					sb.append(value != null ? value : "#{" + parts.get(i) + "}");
+				}
+			}
+			return Buffer.buffer(sb.toString(), "UTF-8");
+		}
+	}
+
+}
\ No newline at end of file
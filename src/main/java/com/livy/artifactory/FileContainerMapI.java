@@ -1,11 +1,46 @@
 package com.livy.artifactory;
 
+import java.io.File;
+import java.util.List;
+
 import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
 
 public interface FileContainerMapI {
 
 	Promise<Void> put(ArtifactKey artifactKey, FileContent content);
 
+	/**
+	 * Store the artifact by consuming the given stream. The stream is piped with
+	 * back pressure so the content is never fully held in memory, and the
+	 * artifact only becomes visible once the whole stream has been stored.
+	 */
+	Promise<Void> put(ArtifactKey artifactKey, ReadStream<Buffer> content);
+
+	/**
+	 * Publish the files of a whole version at once : the staging directory holds
+	 * them, named by the file names of the keys, and is moved into place so that
+	 * they all become visible together. It must be on the file system of the
+	 * repository. Fails with a FileAlreadyExistsException when the version
+	 * already exists.
+	 */
+	Promise<Void> putVersion(List<ArtifactKey> artifactKeys, File stagingDirectory);
+
 	Promise<FileContent> get(ArtifactKey artifactKey);
 
+	/**
+	 * Locate the artifact content without reading it, so that it can be sent
+	 * with sendfile and its metadata served from the file properties alone.
+	 */
+	Promise<FileRegion> getRegion(ArtifactKey artifactKey);
+
+	/**
+	 * Locate the artifact to answer a HEAD request : a container which would
+	 * have to fetch the content may give a region whose stream is empty.
+	 */
+	default Promise<FileRegion> getHeadRegion(ArtifactKey artifactKey) {
+		return getRegion(artifactKey);
+	}
+
 }
\ No newline at end of file
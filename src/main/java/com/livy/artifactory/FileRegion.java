@@ -0,0 +1,117 @@
+package com.livy.artifactory;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * Location of an artifact content inside a file : it lets the content be sent
+ * with a zero copy transfer and its metadata be read without loading it. A
+ * region may also hold the content itself when a backend keeps it in memory,
+ * or a stream of it when a backend is still receiving it.
+ */
+public class FileRegion {
+
+	private final ArtifactKey key;
+
+	private final String path;
+
+	private final long offset;
+
+	private final long length;
+
+	private final long lastModifiedTime;
+
+	private final String contentType;
+
+	private final Buffer content;
+
+	private final ReadStream<Buffer> stream;
+
+	public FileRegion(ArtifactKey key, String path, long offset, long length, long lastModifiedTime, String contentType) {
+		super();
+		this.key = key;
+		this.path = path;
+		this.offset = offset;
+		this.length = length;
+		this.lastModifiedTime = lastModifiedTime;
+		this.contentType = contentType;
+		this.content = null;
+		this.stream = null;
+	}
+
+	public FileRegion(ArtifactKey key, Buffer content, long lastModifiedTime, String contentType) {
+		super();
+		this.key = key;
+		this.path = null;
+		this.offset = 0;
+		this.length = content.length();
+		this.lastModifiedTime = lastModifiedTime;
+		this.contentType = contentType;
+		this.content = content;
+		this.stream = null;
+	}
+
+	/**
+	 * A region of a content being received, to be read once from the given
+	 * stream : its length is -1 when it is not known yet.
+	 */
+	public FileRegion(ArtifactKey key, ReadStream<Buffer> stream, long length, long lastModifiedTime, String contentType) {
+		super();
+		this.key = key;
+		this.path = null;
+		this.offset = 0;
+		this.length = length;
+		this.lastModifiedTime = lastModifiedTime;
+		this.contentType = contentType;
+		this.content = null;
+		this.stream = stream;
+	}
+
+	public ArtifactKey getKey() {
+		return key;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getLastModifiedTime() {
+		return lastModifiedTime;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public boolean isInMemory() {
+		return content != null;
+	}
+
+	/**
+	 * The content of an in memory region, null for a region of a file.
+	 */
+	public Buffer getContent() {
+		return content;
+	}
+
+	public boolean isStream() {
+		return stream != null;
+	}
+
+	/**
+	 * The content of a streamed region, which starts paused : it must be read,
+	 * or resumed without handler to drop it. Null for the other regions.
+	 */
+	public ReadStream<Buffer> getStream() {
+		return stream;
+	}
+
+}
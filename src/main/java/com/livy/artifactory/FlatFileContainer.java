@@ -1,20 +1,65 @@
 package com.livy.artifactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
 
+import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.CopyOptions;
+import io.vertx.core.file.FileProps;
 import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.streams.ReadStream;
 
 public class FlatFileContainer implements FileContainerMapI {
 
+	/**
+	 * Prefix of the files receiving an upload in progress. They are created in
+	 * the target directory so that the final rename stays on the same file
+	 * system and is atomic.
+	 */
+	static final String TEMP_FILE_PREFIX = ".livy-upload-";
+
+	static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
 	private final File artifactDirectory;
 	
 	private final FileSystem fs;
 
+	private final Vertx vertx;
+
+	/**
+	 * The commits of the durable mode, null when the files are left to the
+	 * page cache.
+	 */
+	private final GroupCommit groupCommit;
+
 	public FlatFileContainer(Vertx vertx, File artifactDirectory) {
+		this(vertx, artifactDirectory, null);
+	}
+
+	/**
+	 * A durable container : a publication is only acknowledged once its files
+	 * are on the disk, committed by the given scheduler.
+	 */
+	public FlatFileContainer(Vertx vertx, File artifactDirectory, GroupCommit groupCommit) {
 		
+		this.vertx = vertx;
+		this.groupCommit = groupCommit;
 		this.fs = vertx.fileSystem();
 		this.artifactDirectory = artifactDirectory;
 		if (!this.artifactDirectory.exists())
@@ -28,10 +73,19 @@ public class FlatFileContainer implements FileContainerMapI {
 		Promise<Void> p = Promise.promise();
 		try {
 			String directoryPath = artifactKey.buildDirectoryPath(artifactDirectory);
-			String filePath = new File(directoryPath, artifactKey.getFileName()).getAbsolutePath();
+			String filePath = artifactKey.buildFilePath(artifactDirectory);
 
-			fs.mkdirs(directoryPath, (res) -> {
-				if (res.succeeded()) {
+			mkdirs(directoryPath).onComplete(res -> {
+				if (res.succeeded() && groupCommit != null) {
+					String tempPath = new File(directoryPath, TEMP_FILE_PREFIX + UUID.randomUUID()).getAbsolutePath();
+					fs.writeFile(tempPath, Buffer.buffer(content.content), res1 -> {
+						if (res1.succeeded()) {
+							commit(tempPath, filePath, res.result()).onComplete(p);
+						} else {
+							fs.delete(tempPath, v -> p.fail(new Exception("Unable to write file ", res1.cause())));
+						}
+					});
+				} else if (res.succeeded()) {
 					fs.writeFile(filePath, Buffer.buffer(content.content), res1 -> {
 						if (res1.succeeded()) {
 							p.complete();
@@ -50,15 +104,143 @@ public class FlatFileContainer implements FileContainerMapI {
 
 	}
 
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, ReadStream<Buffer> content) {
+		Promise<Void> p = Promise.promise();
+		content.pause();
+		try {
+			String directoryPath = artifactKey.buildDirectoryPath(artifactDirectory);
+			String filePath = artifactKey.buildFilePath(artifactDirectory);
+			String tempPath = new File(directoryPath, TEMP_FILE_PREFIX + UUID.randomUUID()).getAbsolutePath();
+
+			mkdirs(directoryPath).onComplete(res -> {
+				if (res.failed()) {
+					p.fail(new Exception("Unable to create the directories", res.cause()));
+					return;
+				}
+				fs.open(tempPath, new OpenOptions().setWrite(true).setCreateNew(true), res1 -> {
+					if (res1.failed()) {
+						p.fail(new Exception("Unable to create file " + tempPath, res1.cause()));
+						return;
+					}
+					content.pipeTo(res1.result(), res2 -> {
+						if (res2.failed()) {
+							fs.delete(tempPath, v -> p.fail(new Exception("Unable to write file ", res2.cause())));
+							return;
+						}
+						if (groupCommit != null) {
+							commit(tempPath, filePath, res.result()).onComplete(p);
+							return;
+						}
+						fs.move(tempPath, filePath, new CopyOptions().setAtomicMove(true).setReplaceExisting(true), res3 -> {
+							if (res3.succeeded()) {
+								p.complete();
+							} else {
+								fs.delete(tempPath, v -> p.fail(new Exception("Unable to move file to " + filePath, res3.cause())));
+							}
+						});
+					});
+				});
+			});
+		} catch (Exception e) {
+			p.fail(new Exception("Fatal, cannot create the new repository entry ", e));
+		}
+		return p;
+	}
+
+	@Override
+	public Promise<Void> putVersion(List<ArtifactKey> artifactKeys, File stagingDirectory) {
+		Promise<Void> p = Promise.promise();
+		File versionDirectory;
+		try {
+			for (ArtifactKey artifactKey : artifactKeys) {
+				artifactKey.buildFilePath(artifactDirectory);
+			}
+			versionDirectory = new File(artifactKeys.get(0).buildDirectoryPath(artifactDirectory));
+		} catch (IllegalArgumentException e) {
+			p.fail(e);
+			return p;
+		}
+		if (groupCommit != null) {
+			// the staged files and the staging directory are forced before the move
+			List<Path> staged = new ArrayList<>();
+			for (ArtifactKey artifactKey : artifactKeys) {
+				staged.add(new File(stagingDirectory, artifactKey.getFileName()).toPath());
+			}
+			staged.add(stagingDirectory.toPath());
+			Path parent = versionDirectory.getParentFile().toPath();
+			groupCommit.createDirectories(vertx, parent).future()
+					.compose(created -> groupCommit.commit(staged, created, () -> {
+						moveVersion(stagingDirectory, versionDirectory);
+						return parent;
+					}).future())
+					.onComplete(p);
+			return p;
+		}
+		vertx.<Void>executeBlocking(future -> {
+			try {
+				moveVersion(stagingDirectory, versionDirectory);
+				future.complete();
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, p);
+		return p;
+	}
+
+	private static void moveVersion(File stagingDirectory, File versionDirectory) throws IOException {
+		try {
+			if (versionDirectory.exists())
+				throw new FileAlreadyExistsException(versionDirectory.getPath());
+			Files.createDirectories(versionDirectory.getParentFile().toPath());
+			// a rename never replaces a directory which is not empty
+			Files.move(stagingDirectory.toPath(), versionDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (DirectoryNotEmptyException e) {
+			throw new FileAlreadyExistsException(versionDirectory.getPath());
+		} catch (AtomicMoveNotSupportedException e) {
+			throw new IOException("The staging directory is not on the file system of the repository", e);
+		}
+	}
+
+	/**
+	 * Create the directories of a file : in the durable mode, completed with
+	 * the directories to force with its commit.
+	 */
+	Future<List<Path>> mkdirs(String directoryPath) {
+		if (groupCommit != null)
+			return groupCommit.createDirectories(vertx, Paths.get(directoryPath)).future();
+		Promise<Void> p = Promise.promise();
+		fs.mkdirs(directoryPath, p);
+		return p.future().map(Collections.emptyList());
+	}
+
+	/**
+	 * Commit a file written under a temporary name in the directory of its
+	 * final one, deleted when the commit fails.
+	 *
+	 * @param directories the directories created for the file, to force
+	 */
+	private Future<Void> commit(String tempPath, String filePath, List<Path> directories) {
+		Path temp = Paths.get(tempPath);
+		Path target = Paths.get(filePath);
+		return groupCommit.commit(Collections.singletonList(temp), directories, () -> {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			return target.getParent();
+		}).future().recover(error -> {
+			Promise<Void> deleted = Promise.promise();
+			fs.delete(tempPath, v -> deleted.fail(new Exception("Unable to commit file " + filePath, error)));
+			return deleted.future();
+		});
+	}
+
 	@Override
 	public Promise<FileContent> get(ArtifactKey artifactKey) {
 		Promise<FileContent> p = Promise.promise();
 		try {
-			String directoryPath = artifactKey.buildDirectoryPath(artifactDirectory);
-			String filePath = new File(directoryPath, artifactKey.getFileName()).getAbsolutePath();
+			String filePath = artifactKey.buildFilePath(artifactDirectory);
 			fs.readFile(filePath, res -> {
 				if (res.succeeded()) {
-					FileContent fileContent = new FileContent(artifactKey, res.result().getBytes(), "application/octet-stream");
+					FileContent fileContent = new FileContent(artifactKey, res.result().getBytes(), DEFAULT_CONTENT_TYPE);
 					p.complete(fileContent);
 				} else {
 					p.fail(new Exception("Unable to read file " + artifactKey , res.cause()));
@@ -70,4 +252,23 @@ public class FlatFileContainer implements FileContainerMapI {
 		return p;
 	}
 
+	@Override
+	public Promise<FileRegion> getRegion(ArtifactKey artifactKey) {
+		Promise<FileRegion> p = Promise.promise();
+		try {
+			String filePath = artifactKey.buildFilePath(artifactDirectory);
+			fs.props(filePath, res -> {
+				if (res.succeeded() && res.result().isRegularFile()) {
+					FileProps props = res.result();
+					p.complete(new FileRegion(artifactKey, filePath, 0, props.size(), props.lastModifiedTime(), DEFAULT_CONTENT_TYPE));
+				} else {
+					p.fail(new Exception("Unable to find file " + artifactKey, res.succeeded() ? new NoSuchFileException(filePath) : res.cause()));
+				}
+			});
+		} catch (Exception e) {
+			p.fail(new Exception("Fatal, cannot read the repository entry ", e));
+		}
+		return p;
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,346 @@
+package com.livy.artifactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.vertx.core.Context;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+/**
+ * The commit scheduler of the durable storage : a file is written under a
+ * temporary name, and its commit forces it to the disk, renames it and forces
+ * its directory, so that a publication acknowledged survives a power loss.
+ *
+ * The commits of the concurrent publications are grouped : a background
+ * thread waits at most maxBatchLatency after the first commit of a batch for
+ * the next ones, forces all their files, renames them, and forces each of
+ * their directories once before acknowledging them together.
+ *
+ * The directories created for a commit are only durable once their parents
+ * are forced too : they are created through createDirectories, which tells
+ * the parents to force with the commit.
+ *
+ * A batch failing unexpectedly fails its commits and leaves the committer
+ * running, and stop commits the pending ones before ending it.
+ */
+public class GroupCommit {
+
+	private final static Logger log = LogManager.getLogger(GroupCommit.class);
+
+	private static final int MAX_BATCH_SIZE = 1024;
+
+	/**
+	 * The rename of a commit, once its files are on the disk.
+	 */
+	public interface Rename {
+
+		/**
+		 * @return the directory of the renamed file, to be forced
+		 */
+		Path rename() throws IOException;
+
+	}
+
+	private final long maxBatchLatency;
+
+	private final LinkedBlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+
+	private final Thread committer;
+
+	private final AtomicLong commitCount = new AtomicLong();
+
+	private final AtomicLong batchCount = new AtomicLong();
+
+	private volatile boolean directorySyncSupported = true;
+
+	/**
+	 * The commit queued last by stop, guarded by the queue.
+	 */
+	private Commit stop;
+
+	/**
+	 * The directories created whose parent has not been forced since, with the
+	 * time they were created.
+	 */
+	private final Map<Path, Long> unforcedDirectories = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxBatchLatency how long a commit waits for the next ones, in
+	 *            milliseconds : 0 groups only the commits queued while the
+	 *            previous batch was written
+	 */
+	public GroupCommit(long maxBatchLatency) {
+		this.maxBatchLatency = TimeUnit.MILLISECONDS.toNanos(maxBatchLatency);
+		this.committer = new Thread(this::run, "livy-group-commit");
+		this.committer.setDaemon(true);
+	}
+
+	public GroupCommit start() {
+		committer.start();
+		log.info("Durable storage started, commits grouped for up to " + TimeUnit.NANOSECONDS.toMillis(maxBatchLatency) + " ms");
+		return this;
+	}
+
+	/**
+	 * Commit the pending files and end the committer : the later commits
+	 * fail.
+	 *
+	 * @return completed on the context of the caller once the pending commits
+	 *         are completed
+	 */
+	public Promise<Void> stop() {
+		synchronized (queue) {
+			if (stop == null) {
+				stop = new Commit(Collections.emptyList(), Collections.emptyList(), null, Promise.promise(), null);
+				queue.add(stop);
+			}
+		}
+		Promise<Void> p = Promise.promise();
+		Context context = Vertx.currentContext();
+		stop.promise.future().onComplete(res -> {
+			if (context == null)
+				p.handle(res);
+			else
+				context.runOnContext(v -> p.handle(res));
+		});
+		return p;
+	}
+
+	public long getCommitCount() {
+		return commitCount.get();
+	}
+
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/**
+	 * Commit files written under a temporary name, completed on the context of
+	 * the caller once they are durable.
+	 *
+	 * @param files the files, or directories, to force before the rename
+	 * @param rename the rename of the files to their final name
+	 */
+	public Promise<Void> commit(List<Path> files, Rename rename) {
+		return commit(files, Collections.emptyList(), rename);
+	}
+
+	/**
+	 * Commit files written under a temporary name in new directories.
+	 *
+	 * @param directories the directories to force with the one of the rename,
+	 *            as given by createDirectories
+	 */
+	public Promise<Void> commit(List<Path> files, List<Path> directories, Rename rename) {
+		Promise<Void> p = Promise.promise();
+		Commit commit = new Commit(files, directories, rename, p, Vertx.currentContext());
+		synchronized (queue) {
+			if (stop != null)
+				commit.complete(new IllegalStateException("The durable storage is stopped"));
+			else
+				queue.add(commit);
+		}
+		return p;
+	}
+
+	/**
+	 * Create a directory and its missing parents, blocking.
+	 *
+	 * @return the directories to force with the commit : the parents of the
+	 *         directories created, and of the ones created by other commits
+	 *         and not forced yet, up to the first durable one
+	 */
+	public List<Path> createDirectories(Path directory) throws IOException {
+		List<Path> parents = new ArrayList<>();
+		for (Path path = directory.toAbsolutePath(); path.getParent() != null; path = path.getParent()) {
+			if (Files.isDirectory(path) && !unforcedDirectories.containsKey(path))
+				break;
+			// known before it exists, so that a concurrent commit finding it forces its parent
+			unforcedDirectories.put(path, System.nanoTime());
+			parents.add(path.getParent());
+		}
+		if (!parents.isEmpty())
+			Files.createDirectories(directory);
+		return parents;
+	}
+
+	/**
+	 * Create the directories from a worker.
+	 *
+	 * @see #createDirectories(Path)
+	 */
+	public Promise<List<Path>> createDirectories(Vertx vertx, Path directory) {
+		Promise<List<Path>> p = Promise.promise();
+		vertx.<List<Path>>executeBlocking(future -> {
+			try {
+				future.complete(createDirectories(directory));
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, p);
+		return p;
+	}
+
+	private void run() {
+		List<Commit> batch = new ArrayList<>();
+		boolean stopped = false;
+		while (!stopped) {
+			try {
+				Commit first = queue.take();
+				batch.add(first);
+				long deadline = first.queued + maxBatchLatency;
+				queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+				long remaining;
+				while (batch.size() < MAX_BATCH_SIZE && (remaining = deadline - System.nanoTime()) > 0) {
+					Commit next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null)
+						break;
+					batch.add(next);
+					queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+				}
+				// nothing is queued after the stop
+				stopped = batch.get(batch.size() - 1).rename == null;
+				if (stopped)
+					batch.remove(batch.size() - 1);
+				commit(batch);
+			} catch (InterruptedException e) {
+				return;
+			} catch (Throwable e) {
+				// an error must not end the committer, the later commits would never complete
+				log.error("Unable to commit a batch of " + batch.size() + " files", e);
+				batch.forEach(commit -> commit.complete(e));
+			}
+			batch.clear();
+		}
+		log.info("Durable storage stopped after " + commitCount.get() + " commits");
+		stop.complete(null);
+	}
+
+	private void commit(List<Commit> batch) {
+		for (Commit commit : batch) {
+			try {
+				for (Path file : commit.files) {
+					force(file);
+				}
+			} catch (IOException e) {
+				commit.failure = e;
+			}
+		}
+
+		// the renames are forced with their directory, and the directories created with their parent
+		Map<Path, List<Commit>> directories = new LinkedHashMap<>();
+		for (Commit commit : batch) {
+			if (commit.failure != null)
+				continue;
+			try {
+				directories.computeIfAbsent(commit.rename.rename(), d -> new ArrayList<>()).add(commit);
+				for (Path directory : commit.directories) {
+					directories.computeIfAbsent(directory, d -> new ArrayList<>()).add(commit);
+				}
+			} catch (IOException e) {
+				commit.failure = e;
+			}
+		}
+		long forceTime = System.nanoTime();
+		Set<Path> forced = new HashSet<>();
+		for (Map.Entry<Path, List<Commit>> directory : directories.entrySet()) {
+			try {
+				forceDirectory(directory.getKey());
+				forced.add(directory.getKey());
+			} catch (IOException e) {
+				directory.getValue().forEach(commit -> commit.failure = e);
+			}
+		}
+		if (!unforcedDirectories.isEmpty())
+			unforcedDirectories.entrySet().removeIf(created -> created.getValue() - forceTime < 0 && forced.contains(created.getKey().getParent()));
+
+		commitCount.addAndGet(batch.size());
+		batchCount.incrementAndGet();
+		batch.forEach(commit -> commit.complete(commit.failure));
+	}
+
+	private void force(Path path) throws IOException {
+		if (Files.isDirectory(path)) {
+			forceDirectory(path);
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Some systems can not open a directory : its entries are then left to the
+	 * file system.
+	 */
+	private void forceDirectory(Path directory) throws IOException {
+		if (!directorySyncSupported)
+			return;
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (AccessDeniedException e) {
+			directorySyncSupported = false;
+			log.warn("The directories can not be forced on this system : " + e.getMessage());
+		}
+	}
+
+	private static class Commit {
+
+		final List<Path> files;
+
+		final List<Path> directories;
+
+		final Rename rename;
+
+		final Promise<Void> promise;
+
+		final Context context;
+
+		final long queued = System.nanoTime();
+
+		IOException failure;
+
+		Commit(List<Path> files, List<Path> directories, Rename rename, Promise<Void> promise, Context context) {
+			this.files = files;
+			this.directories = directories;
+			this.rename = rename;
+			this.promise = promise;
+			this.context = context;
+		}
+
+		void complete(Throwable error) {
+			if (context == null)
+				complete(promise, error);
+			else
+				context.runOnContext(v -> complete(promise, error));
+		}
+
+		private static void complete(Promise<Void> promise, Throwable error) {
+			if (error == null)
+				promise.tryComplete();
+			else
+				promise.tryFail(error);
+		}
+
+	}
+
+}
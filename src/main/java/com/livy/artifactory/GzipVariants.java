@@ -0,0 +1,263 @@
+package com.livy.artifactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+
+/**
+ * Precompressed variants of the text files (ivy.xml, poms, ...) : the gzip of
+ * a file is computed once, when it is published or first requested, and
+ * stored next to it under a hidden name. The variant is then sent as is to the
+ * clients accepting gzip, so that no request pays for the compression.
+ *
+ * The hidden name keeps the variants out of the namespace of the artifacts :
+ * they are neither listed nor cataloged, and a file published with a ".gz"
+ * suffix is an artifact of its own, never taken for a variant.
+ *
+ * Binary files (jars, zips, ...) are already compressed and never get a
+ * variant. A variant older than its file is ignored and computed again.
+ */
+public class GzipVariants {
+
+	private final static Logger log = LogManager.getLogger(GzipVariants.class);
+
+	/**
+	 * Prefix of the hidden name of the variant of a file.
+	 */
+	static final String VARIANT_PREFIX = ".livy-gzip-";
+
+	/**
+	 * Suffix of the ETag of a variant, which must differ from the one of the
+	 * original file.
+	 */
+	public static final String GZIP_ETAG_SUFFIX = "-gzip";
+
+	private static final Set<String> TEXT_EXTENSIONS = new HashSet<>(Arrays.asList(
+			"xml", "pom", "ivy", "module", "txt", "html", "htm", "json", "properties", "css", "js", "md", "csv"));
+
+	/**
+	 * Smaller files would not gain enough to be worth a second file.
+	 */
+	private static final long MIN_LENGTH = 512;
+
+	private static final long MAX_LENGTH = 64 * 1024 * 1024;
+
+	private final Vertx vertx;
+
+	private final FileContainerMapI fileContainer;
+
+	private final Set<Object> compressing = new HashSet<>();
+
+	public GzipVariants(Vertx vertx, FileContainerMapI fileContainer) {
+		this.vertx = vertx;
+		this.fileContainer = fileContainer;
+	}
+
+	/**
+	 * Variants of the files of the static route only.
+	 */
+	public GzipVariants(Vertx vertx) {
+		this(vertx, null);
+	}
+
+	public static boolean isCompressible(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		return dot >= 0 && TEXT_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	private static boolean isCompressible(String fileName, long length) {
+		return length >= MIN_LENGTH && length <= MAX_LENGTH && isCompressible(fileName);
+	}
+
+	/**
+	 * Whether the variant can be sent : the client accepts gzip and does not ask
+	 * for a range of the original file.
+	 */
+	public static boolean acceptsGzip(HttpServerRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null || request.getHeader("Range") != null)
+			return false;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if ("gzip".equalsIgnoreCase(parts[0].trim()) || "*".equals(parts[0].trim())) {
+				return parts.length < 2 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+
+	public static void putVariantHeaders(HttpServerResponse response) {
+		response.putHeader("Content-Encoding", "gzip");
+		response.putHeader("Vary", "Accept-Encoding");
+	}
+
+	/**
+	 * The region of the gzip variant of an artifact, sent with the content type
+	 * of the artifact. It fails when there is no up to date variant, which is
+	 * then computed in the background.
+	 */
+	public Promise<FileRegion> getVariant(FileRegion region) {
+		Promise<FileRegion> p = Promise.promise();
+		ArtifactKey artifactKey = region.getKey();
+		if (!isCompressible(artifactKey.getFileName(), region.getLength())) {
+			p.fail("No variant for " + artifactKey);
+			return p;
+		}
+		fileContainer.getRegion(variantKey(artifactKey)).future().onComplete(res -> {
+			if (res.succeeded() && res.result().getLastModifiedTime() >= region.getLastModifiedTime()) {
+				FileRegion variant = res.result();
+				p.complete(variant.isInMemory()
+						? new FileRegion(variant.getKey(), variant.getContent(), variant.getLastModifiedTime(), region.getContentType())
+						: new FileRegion(variant.getKey(), variant.getPath(), variant.getOffset(), variant.getLength(), variant.getLastModifiedTime(), region.getContentType()));
+			} else {
+				p.fail("No variant for " + artifactKey);
+				create(artifactKey);
+			}
+		});
+		return p;
+	}
+
+	/**
+	 * Compute and store the variant of a text artifact, in the background.
+	 */
+	public void create(ArtifactKey artifactKey) {
+		if (!isCompressible(artifactKey.getFileName()) || !start(artifactKey))
+			return;
+
+		fileContainer.getRegion(artifactKey).future().onComplete(res -> {
+			if (res.failed() || !isCompressible(artifactKey.getFileName(), res.result().getLength()) || res.result().isStream()) {
+				// an artifact being received is compressed by a later request, once stored
+				if (res.succeeded() && res.result().isStream())
+					res.result().getStream().handler(null).resume();
+				end(artifactKey);
+				return;
+			}
+			FileRegion region = res.result();
+			vertx.<byte[]>executeBlocking(future -> {
+				try {
+					ByteArrayOutputStream baos = new ByteArrayOutputStream((int) region.getLength() / 4);
+					gzip(region, baos);
+					future.complete(baos.toByteArray());
+				} catch (IOException e) {
+					future.fail(e);
+				}
+			}, false, compressed -> {
+				if (compressed.failed()) {
+					end(artifactKey);
+					log.warn("Unable to compress " + artifactKey, compressed.cause());
+					return;
+				}
+				ArtifactKey variantKey = variantKey(artifactKey);
+				fileContainer.put(variantKey, new FileContent(variantKey, compressed.result(), "application/gzip")).future()
+						.onComplete(stored -> {
+							end(artifactKey);
+							if (stored.succeeded())
+								log.debug("Gzip variant of " + artifactKey + " : " + region.getLength() + " -> " + compressed.result().length);
+							else
+								log.warn("Unable to store the gzip variant of " + artifactKey, stored.cause());
+						});
+			});
+		});
+	}
+
+	/**
+	 * Compute the variant of a file of the static route, written next to it
+	 * with an atomic rename.
+	 */
+	public void createFileVariant(String path, long length) {
+		if (!isCompressible(new File(path).getName(), length) || !start(path))
+			return;
+
+		vertx.executeBlocking(future -> {
+			File temp = new File(new File(path).getParentFile(), FlatFileContainer.TEMP_FILE_PREFIX + UUID.randomUUID());
+			try {
+				try (OutputStream os = new FileOutputStream(temp)) {
+					gzip(new FileRegion(null, path, 0, length, 0, null), os);
+				}
+				Files.move(temp.toPath(), new File(variantPath(path)).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				future.complete();
+			} catch (IOException e) {
+				temp.delete();
+				future.fail(e);
+			}
+		}, false, res -> {
+			end(path);
+			if (res.failed())
+				log.warn("Unable to compress " + path, res.cause());
+		});
+	}
+
+	private synchronized boolean start(Object key) {
+		return compressing.add(key);
+	}
+
+	private synchronized void end(Object key) {
+		compressing.remove(key);
+	}
+
+	static ArtifactKey variantKey(ArtifactKey artifactKey) {
+		return artifactKey.withFileName(VARIANT_PREFIX + artifactKey.getFileName());
+	}
+
+	/**
+	 * The path of the variant of a file of the static route.
+	 */
+	public static String variantPath(String path) {
+		File file = new File(path);
+		return new File(file.getParentFile(), VARIANT_PREFIX + file.getName()).getPath();
+	}
+
+	private static void gzip(FileRegion region, OutputStream os) throws IOException {
+		try (GZIPOutputStream gzip = new GZIPOutputStream(os, 8192)) {
+			if (region.isInMemory()) {
+				gzip.write(region.getContent().getBytes());
+				return;
+			}
+			try (InputStream is = new FileInputStream(region.getPath())) {
+				is.skip(region.getOffset());
+				byte[] bytes = new byte[8192];
+				long remaining = region.getLength();
+				int r;
+				while (remaining > 0 && (r = is.read(bytes, 0, (int) Math.min(bytes.length, remaining))) > 0) {
+					gzip.write(bytes, 0, r);
+					remaining -= r;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compress the small dynamic contents, the directory listings.
+	 */
+	public static Buffer gzip(Buffer content) {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(content.length() / 4 + 64);
+			gzip(new FileRegion(null, content, 0, null), baos);
+			return Buffer.buffer(baos.toByteArray());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
\ No newline at end of file
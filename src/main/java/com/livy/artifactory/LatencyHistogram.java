@@ -0,0 +1,102 @@
+package com.livy.artifactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with log-linear buckets, as the HDR histograms : each
+ * power of 2 of microseconds is split in 16 buckets, so any percentile is
+ * known within 6%, from 1 us to days, in a fixed array of counters. Recording
+ * is lock free.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Values below are counted exactly.
+	 */
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+	private static final int MAX_EXPONENT = 40;
+
+	private static final int BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sumMicros = new LongAdder();
+
+	public void record(long duration, TimeUnit unit) {
+		long micros = Math.max(0, unit.toMicros(duration));
+		counts.incrementAndGet(index(micros));
+		count.increment();
+		sumMicros.add(micros);
+	}
+
+	public void recordNanos(long nanos) {
+		record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	static int index(long micros) {
+		if (micros < LINEAR_LIMIT)
+			return (int) micros;
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * The middle of a bucket, in microseconds.
+	 */
+	static double value(int index) {
+		if (index < LINEAR_LIMIT)
+			return index;
+		int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+		int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (SUB_BUCKETS + subBucket) * width + width / 2.0;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getSumSeconds() {
+		return sumMicros.sum() / 1e6;
+	}
+
+	/**
+	 * The value of the quantiles in seconds, 0 without any value.
+	 */
+	public double[] getQuantileSeconds(double... quantiles) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		double[] values = new double[quantiles.length];
+		if (total == 0)
+			return values;
+		for (int q = 0; q < quantiles.length; q++) {
+			long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += snapshot[i];
+				if (seen >= rank) {
+					values[q] = value(i) / 1e6;
+					break;
+				}
+			}
+		}
+		return values;
+	}
+
+}
\ No newline at end of file
@@ -1,18 +1,27 @@
 package com.livy.artifactory;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Supplier;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Verticle;
 import io.vertx.core.Vertx;
 import io.vertx.core.VertxOptions;
-import io.vertx.core.http.HttpMethod;
-import io.vertx.core.http.HttpServer;
-import io.vertx.core.http.HttpServerOptions;
 import io.vertx.ext.web.Router;
-import io.vertx.ext.web.handler.BodyHandler;
-import io.vertx.ext.web.handler.StaticHandler;
 
 public class LivyServer {
 
@@ -42,7 +51,15 @@ public class LivyServer {
 	private final Config config;
 
 	private final Vertx vertx;
-	private final HttpServer server;
+	private final Metrics metrics;
+	private final AccessLog accessLog;
+	private final Supplier<Verticle> verticleFactory;
+	private final GroupCommit groupCommit;
+
+	/**
+	 * The packed containers, one per shard, when the storage is "packed".
+	 */
+	private final List<PackedFileContainer> packedContainers = new ArrayList<>();
 
 	public LivyServer(Config config) {
 		this.config = config;
@@ -63,52 +80,180 @@ public class LivyServer {
 		
 		vertx = Vertx.vertx(new VertxOptions()
 				.setWorkerPoolSize(40)
+				.setPreferNativeTransport(config.nativeTransport)
 				.setBlockedThreadCheckInterval(1000 * 60 * 10l));
 
-		/*
-		 * <code>NetServerOptions options = new NetServerOptions() .setSsl(true)
-		 * .setPemKeyCertOptions( new PemKeyCertOptions() .setKeyPath("./key.pem")
-		 * .setCertPath("./cert.pem") ); NetServer server =
-		 * vertx.createNetServer(options);</code>
-		 */
+		if (config.nativeTransport && !vertx.isNativeTransportEnabled())
+			log.warn("Native transport not available, NIO is used");
 
-		HttpServerOptions options = new HttpServerOptions();
+		metrics = new Metrics();
 
-		/*
-		 * log. info("Secure Transport Protocol [ SSL/TLS ] has been enabled !!! ");
-		 * options.setSsl(true).setPemKeyCertOptions(new PemKeyCertOptions()
-		 * .setKeyPath("./key.pem") .setCertPath("./cert.pem") );
-		 */
+		ShardRing shardRing = null;
+		if (!config.shards.isEmpty()) {
+			List<File> shardDirectories = new ArrayList<>();
+			config.shards.forEach(shard -> shardDirectories.add(new File(shard)));
+			shardRing = new ShardRing(shardDirectories, config.shardVirtualNodes);
+		}
+
+		groupCommit = config.durable ? new GroupCommit(config.durableMaxBatchLatency).start() : null;
+		if (groupCommit != null) {
+			metrics.gauge("livy_durable_commits", "Files committed to the disk by the durable storage", groupCommit::getCommitCount);
+			metrics.gauge("livy_durable_batches", "Batches of commits of the durable storage, each forcing the disk once per directory", groupCommit::getBatchCount);
+		}
+		FileContainerMapI storage;
+		if (shardRing == null) {
+			storage = storage(rootDir, groupCommit);
+		} else {
+			ShardedFileContainer sharded = new ShardedFileContainer(vertx, shardRing, shard -> storage(shard, groupCommit), config.shardMaxInFlight);
+			for (int i = 0; i < shardRing.getShards().size(); i++) {
+				int shard = i;
+				String directory = shardRing.getShards().get(i).getPath();
+				metrics.gauge("livy_shard_in_flight", "Operations running on the shard", () -> sharded.getInFlightCount(shard), "shard", directory);
+				metrics.gauge("livy_shard_queued", "Operations waiting for the shard", () -> sharded.getQueuedCount(shard), "shard", directory);
+			}
+			storage = sharded;
+		}
+		for (PackedFileContainer packed : packedContainers) {
+			String directory = packed.getArtifactDirectory().getPath();
+			metrics.gauge("livy_packed_files", "Small files packed into the segments", packed::getFileCount, "directory", directory);
+			metrics.gauge("livy_packed_segments", "Segment files of the packed storage", packed::getSegmentCount, "directory", directory);
+			metrics.gauge("livy_packed_live_bytes", "Bytes of the segments holding live files", packed::getLiveBytes, "directory", directory);
+			metrics.gauge("livy_packed_used_bytes", "Bytes written to the segments, live or not", packed::getUsedBytes, "directory", directory);
+			metrics.gauge("livy_packed_compactions", "Segments rewritten by the compaction", packed::getCompactionCount, "directory", directory);
+		}
+		StaticFileHandler fileHandler = new StaticFileHandler(vertx, rootDir.getAbsolutePath(), shardRing, packedContainers);
+		metrics.gauge("livy_etag_cache_hits", "Requests of the static route finding their sha1 in the cache", fileHandler::getEtagCacheHitCount);
+		metrics.gauge("livy_etag_cache_misses", "Requests of the static route not finding their sha1 in the cache", fileHandler::getEtagCacheMissCount);
+		metrics.gauge("livy_etag_cache_hit_ratio", "Hit ratio of the sha1 cache of the static route",
+				() -> ratio(fileHandler.getEtagCacheHitCount(), fileHandler.getEtagCacheMissCount()));
+		metrics.gauge("livy_etag_cache_coalesced", "Requests of the static route sharing the sha1 calculation of another one", fileHandler::getEtagCoalescedCount);
+		metrics.gauge("livy_etag_cache_entries", "Entries of the sha1 cache of the static route", fileHandler::getEtagCacheSize);
+
+
+		FileContainerMapI artifactContainer = new MeteredFileContainer(storage, metrics, config.storage);
+		if (config.cacheMaxBytes > 0) {
+			CachingFileContainer cache = new CachingFileContainer(artifactContainer, config.cacheMaxBytes, config.cacheMaxEntryBytes, config.cacheOffHeap);
+			metrics.gauge("livy_artifact_cache_hits", "Reads of the artifactory route served from memory", cache::getHitCount);
+			metrics.gauge("livy_artifact_cache_misses", "Reads of the artifactory route not in memory", cache::getMissCount);
+			metrics.gauge("livy_artifact_cache_hit_ratio", "Hit ratio of the artifact cache", () -> ratio(cache.getHitCount(), cache.getMissCount()));
+			metrics.gauge("livy_artifact_cache_evictions", "Evictions of the artifact cache", cache::getEvictionCount);
+			metrics.gauge("livy_artifact_cache_bytes", "Bytes of the artifact cache", cache::getUsedBytes);
+			artifactContainer = new MeteredFileContainer(cache, metrics, "cache");
+		}
+		CoalescingFileContainer coalescing = new CoalescingFileContainer(artifactContainer);
+		metrics.gauge("livy_artifact_reads_coalesced", "Reads of the artifactory route served by a read already in flight", coalescing::getCoalescedCount);
+		artifactContainer = coalescing;
+		FileContainerMapI localContainer = artifactContainer;
+		if (config.proxyUrl != null && !config.proxyUrl.isEmpty()) {
+			ProxyFileContainer proxy = new ProxyFileContainer(vertx, artifactContainer, config.proxyUrl, config.proxyPattern, config.proxyNegativeTtl * 1000, config.proxyTimeout);
+			metrics.gauge("livy_proxy_fetches", "Artifacts requested to the upstream repository", proxy::getFetchCount);
+			metrics.gauge("livy_proxy_missing_hits", "Requests of artifacts known to be missing upstream", proxy::getMissingHitCount);
+			artifactContainer = new MeteredFileContainer(proxy, metrics, "proxy");
+		}
 
-		server = vertx.createHttpServer(options);
-		String rootPath = rootDir.getAbsolutePath();
-		for (File root : File.listRoots()) {
-	        if (rootDir.getAbsolutePath().startsWith(root.getAbsolutePath())) {
-	        	rootPath = rootDir.getAbsolutePath().substring(root.getAbsolutePath().length());
-	        }
+		ReplicationLog replicationLog = null;
+		if (!config.replicationPeers.isEmpty()) {
+			replicationLog = new ReplicationLog(vertx, rootDir, localContainer, config.replicationPeers, config.replicationNodeId);
+			for (ReplicationPeer peer : replicationLog.getPeers()) {
+				metrics.gauge("livy_replication_lag_bytes", "Bytes of the replication log not yet sent to the peer", peer::getLag, "peer", peer.getUrl());
+				metrics.gauge("livy_replication_sent", "Artifacts sent to the peer", peer::getSentCount, "peer", peer.getUrl());
+				metrics.gauge("livy_replication_failures", "Artifacts the peer failed to store, sent again", peer::getFailureCount, "peer", peer.getUrl());
+				metrics.gauge("livy_replication_rejected", "Artifacts refused by the peer, logged to its dead letter file", peer::getRejectedCount, "peer", peer.getUrl());
+			}
+			replicationLog.open();
 		}
 
-		StaticFileHandler fileHandler = new StaticFileHandler(vertx,rootDir.getAbsolutePath());
+		ArtifactRepositoryHandler artifactHandler = new ArtifactRepositoryHandler(vertx, "artifactory", artifactContainer,
+				new File(rootDir, ArtifactRepositoryHandler.STAGING_DIRECTORY), replicationLog);
 
-		Router router = Router.router(vertx);
+		ArtifactCatalog catalog = new ArtifactCatalog();
+		CatalogHandler catalogHandler = new CatalogHandler(catalog);
+		CatalogStore catalogStore = new CatalogStore(vertx, catalog, rootDir, shardRing != null ? shardRing.getShards() : Collections.singletonList(rootDir), config.catalogScanThreads, config.catalogReconcileDelay * 1000);
+		packedContainers.forEach(packed -> catalogStore.addKeys(packed::getKeys));
+		catalogStore.open();
 
-		router.route("/artifactory/:group/:name/:version/:fileName").handler(BodyHandler.create());
-		router.route("/artifactory/:group/:name/:version/:fileName").handler(new ArtifactRepositoryHandler(vertx, "artifactory", rootDir));
+		metrics.gauge("livy_catalog_modules", "Modules of the artifact catalog", catalog::getModuleCount);
 
-		router.route().method(HttpMethod.GET).handler(rCtx -> {
-			log.debug("Host : " + rCtx.request().getHeader("host"));
-			fileHandler.handle(rCtx.request());
+		BundleHandler bundleHandler = new BundleHandler(vertx, artifactContainer, catalog);
+
+		probeWorkerPool();
+
+		if (config.accessLogFile != null && !config.accessLogFile.isEmpty()) {
+			accessLog = new AccessLog(new File(config.accessLogFile), config.accessLogBufferSize, config.accessLogMaxBytes,
+					config.accessLogMaxFiles, config.accessLogNotFoundSampleRate).start();
+			metrics.gauge("livy_access_log_written", "Requests written to the access log", accessLog::getWrittenCount);
+			metrics.gauge("livy_access_log_dropped", "Requests not logged, the access log buffer being full", accessLog::getDroppedCount);
+			metrics.gauge("livy_access_log_sampled_out", "Requests answered 404 left out of the access log by sampling", accessLog::getSampledOutCount);
+		} else {
+			accessLog = null;
+		}
+
+		verticleFactory = () -> new LivyVerticle(config, artifactHandler, fileHandler, catalogHandler, bundleHandler, metrics, accessLog);
+	}
+
+	/**
+	 * The storage of the artifacts of a directory, by its configured kind.
+	 */
+	private FileContainerMapI storage(File directory, GroupCommit groupCommit) {
+		if ("packed".equals(config.storage)) {
+			PackedFileContainer packed = new PackedFileContainer(vertx, directory, new FlatFileContainer(vertx, directory, groupCommit), groupCommit,
+					config.packedSegmentBytes);
+			packedContainers.add(packed);
+			return packed;
+		}
+		return "dedup".equals(config.storage)
+				? new DedupFileContainer(vertx, directory, groupCommit)
+				: new FlatFileContainer(vertx, directory, groupCommit);
+	}
+
+	private static double ratio(long hits, long misses) {
+		return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+	}
+
+	/**
+	 * A task submitted each second to the worker pool measuring how long it
+	 * waits for a worker thread, through the public API only : the pool itself
+	 * is internal to Vert.x.
+	 */
+	private void probeWorkerPool() {
+		LatencyHistogram lag = metrics.histogram("livy_worker_pool_lag_seconds", "Delay of the blocking tasks before they run");
+		vertx.setPeriodic(1000, id -> {
+			long submitted = System.nanoTime();
+			vertx.executeBlocking(future -> {
+				lag.recordNanos(System.nanoTime() - submitted);
+				future.complete();
+			}, false, null);
 		});
+	}
 
-		server.requestHandler(req -> router.accept(req));
+	/**
+	 * The admin server, on its own port : /metrics in the Prometheus format.
+	 */
+	private void startAdminServer() {
+		if (config.adminPort <= 0)
+			return;
+		Router router = Router.router(vertx);
+		router.get("/metrics").handler(context -> context.response()
+				.putHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+				.end(metrics.scrape()));
+		vertx.createHttpServer().requestHandler(router).listen(config.adminPort, res -> {
+			if (res.succeeded())
+				log.info("Livy admin server started on port " + config.adminPort);
+			else
+				log.error("Error: Livy admin server not started : " + res.cause(), res.cause());
+		});
 	}
 
-	public void start() {
+	public Promise<Void> start() {
+		Promise<Void> p = Promise.promise();
+
+		startAdminServer();
 
-		server.listen(config.port,
+		vertx.deployVerticle(verticleFactory, new DeploymentOptions().setInstances(config.instances),
 				res -> {
 					if (res.succeeded()) {
-						log.info("Livy server started on port " + config.port);
+						log.info("Livy server started on port " + config.port + " with " + config.instances + " event loops");
+						p.complete();
 					} else {
 						log.error("Error: Livy server not started : " + res.cause(), res.cause());
 
@@ -116,6 +261,22 @@ public class LivyServer {
 					}
 				});
 
+		return p;
+	}
+
+	/**
+	 * The pending durable commits are completed before the event loops are
+	 * closed, so that their publications are answered.
+	 */
+	public Promise<Void> stop() {
+		Promise<Void> p = Promise.promise();
+		Future<Void> committed = groupCommit == null ? Future.succeededFuture() : groupCommit.stop().future();
+		committed.onComplete(commits -> vertx.close(res -> {
+			if (accessLog != null)
+				accessLog.stop();
+			p.handle(res);
+		}));
+		return p;
 	}
 
 	static class Config {
@@ -123,13 +284,200 @@ public class LivyServer {
 		int port;
 		String defaultPath;
 
+		/**
+		 * Number of HTTP server verticles, each one running on its own event loop.
+		 */
+		int instances;
+
+		/**
+		 * Use the native epoll transport when it is available.
+		 */
+		boolean nativeTransport;
+
+		/**
+		 * TLS is enabled when both PEM files are given, with HTTP/2 negotiated by
+		 * ALPN when http2 is set. Cleartext HTTP/2 (h2c) is always accepted.
+		 */
+		String sslKeyPath;
+		String sslCertPath;
+		boolean http2;
+		long http2MaxConcurrentStreams;
+		int http2ConnectionWindowSize;
+
+		/**
+		 * Transport tuning, -1 keeps the system default of the buffer sizes.
+		 */
+		int idleTimeout;
+		boolean tcpNoDelay;
+		boolean tcpFastOpen;
+		boolean tcpQuickAck;
+		boolean tcpKeepAlive;
+		int acceptBacklog;
+		int sendBufferSize;
+		int receiveBufferSize;
+
+		/**
+		 * Storage of the artifactory repository : "flat", "dedup" or "packed".
+		 */
+		String storage;
+
+		/**
+		 * Length of the segment files of the packed storage, holding the files
+		 * of up to 4 KB.
+		 */
+		int packedSegmentBytes;
+
+		/**
+		 * Root directories the artifacts are spread over, one per disk, comma
+		 * separated : none keeps them in the root directory. Each one owns
+		 * shardVirtualNodes points of the hash ring, and runs at most
+		 * shardMaxInFlight operations at once.
+		 */
+		List<String> shards;
+		int shardVirtualNodes;
+		int shardMaxInFlight;
+
+		/**
+		 * Durable storage : a publication is acknowledged once its files are on
+		 * the disk, the commits of the concurrent ones being grouped for up to
+		 * durableMaxBatchLatency milliseconds.
+		 */
+		boolean durable;
+		long durableMaxBatchLatency;
+
+		/**
+		 * Size of the in memory cache of the artifactory repository, 0 to disable it.
+		 */
+		long cacheMaxBytes;
+		long cacheMaxEntryBytes;
+		boolean cacheOffHeap;
+
+		/**
+		 * Threads of the parallel scan of the repository, and delay in seconds
+		 * before this scan when the catalog snapshot has been loaded.
+		 */
+		int catalogScanThreads;
+		long catalogReconcileDelay;
+
+		/**
+		 * Port of the admin server exposing the metrics, 0 to disable it.
+		 */
+		int adminPort;
+
+		/**
+		 * Upstream repository of the pull-through proxy, none to disable it, with
+		 * the path pattern of its artifacts. The artifacts missing upstream are
+		 * not requested again for proxyNegativeTtl seconds.
+		 */
+		String proxyUrl;
+		String proxyPattern;
+		long proxyNegativeTtl;
+		int proxyTimeout;
+
+		/**
+		 * Base URLs of the peer nodes the published artifacts are replicated to,
+		 * comma separated, and the id of this node sent to them.
+		 */
+		List<String> replicationPeers;
+		String replicationNodeId;
+
+		/**
+		 * Access log of the requests, none to disable it : rotated when it
+		 * reaches accessLogMaxBytes, one 404 out of accessLogNotFoundSampleRate
+		 * being logged.
+		 */
+		String accessLogFile;
+		int accessLogBufferSize;
+		long accessLogMaxBytes;
+		int accessLogMaxFiles;
+		int accessLogNotFoundSampleRate;
+
 		public Config() {
-			port = 12020;
-			defaultPath = "./artifactory";
+			this(new Properties());
 		}
 
 		public Config(String fileNameAndPath) {
+			this(loadProperties(fileNameAndPath));
+		}
+
+		Config(Properties properties) {
+			port = Integer.parseInt(properties.getProperty("livy.port", "12020"));
+			defaultPath = properties.getProperty("livy.rootArtifactDirectory", "./artifactory");
+			instances = Integer.parseInt(properties.getProperty("livy.instances", "" + Runtime.getRuntime().availableProcessors()));
+
+			nativeTransport = Boolean.parseBoolean(properties.getProperty("livy.nativeTransport", "false"));
+
+			sslKeyPath = properties.getProperty("livy.http.ssl.keyPath");
+			sslCertPath = properties.getProperty("livy.http.ssl.certPath");
+			http2 = Boolean.parseBoolean(properties.getProperty("livy.http.http2", "true"));
+			http2MaxConcurrentStreams = Long.parseLong(properties.getProperty("livy.http.http2.maxConcurrentStreams", "256"));
+			http2ConnectionWindowSize = Integer.parseInt(properties.getProperty("livy.http.http2.connectionWindowSize", "1048576"));
+
+			idleTimeout = Integer.parseInt(properties.getProperty("livy.http.idleTimeout", "120"));
+			tcpNoDelay = Boolean.parseBoolean(properties.getProperty("livy.http.tcpNoDelay", "true"));
+			tcpFastOpen = Boolean.parseBoolean(properties.getProperty("livy.http.tcpFastOpen", "false"));
+			tcpQuickAck = Boolean.parseBoolean(properties.getProperty("livy.http.tcpQuickAck", "false"));
+			tcpKeepAlive = Boolean.parseBoolean(properties.getProperty("livy.http.tcpKeepAlive", "true"));
+			acceptBacklog = Integer.parseInt(properties.getProperty("livy.http.acceptBacklog", "1024"));
+			sendBufferSize = Integer.parseInt(properties.getProperty("livy.http.sendBufferSize", "-1"));
+			receiveBufferSize = Integer.parseInt(properties.getProperty("livy.http.receiveBufferSize", "-1"));
+
+			storage = properties.getProperty("livy.artifactory.storage", "flat");
+			packedSegmentBytes = Integer.parseInt(properties.getProperty("livy.artifactory.packed.segmentBytes", "67108864"));
+			shards = list(properties.getProperty("livy.shards", ""));
+			shardVirtualNodes = Integer.parseInt(properties.getProperty("livy.shards.virtualNodes", "160"));
+			shardMaxInFlight = Integer.parseInt(properties.getProperty("livy.shards.maxInFlight", "32"));
+			durable = Boolean.parseBoolean(properties.getProperty("livy.artifactory.durable", "false"));
+			durableMaxBatchLatency = Long.parseLong(properties.getProperty("livy.artifactory.durable.maxBatchLatency", "2"));
+			cacheMaxBytes = Long.parseLong(properties.getProperty("livy.artifactory.cache.maxBytes", "0"));
+			cacheMaxEntryBytes = Long.parseLong(properties.getProperty("livy.artifactory.cache.maxEntryBytes", "1048576"));
+			cacheOffHeap = Boolean.parseBoolean(properties.getProperty("livy.artifactory.cache.offHeap", "false"));
+
+			catalogScanThreads = Integer.parseInt(properties.getProperty("livy.catalog.scanThreads", "" + Math.max(4, 2 * Runtime.getRuntime().availableProcessors())));
+			catalogReconcileDelay = Long.parseLong(properties.getProperty("livy.catalog.reconcileDelay", "60"));
+
+			adminPort = Integer.parseInt(properties.getProperty("livy.admin.port", "12021"));
+
+			proxyUrl = properties.getProperty("livy.proxy.url");
+			proxyPattern = properties.getProperty("livy.proxy.pattern", "[organisation]/[module]/[revision]/[file]");
+			proxyNegativeTtl = Long.parseLong(properties.getProperty("livy.proxy.negativeTtl", "300"));
+			proxyTimeout = Integer.parseInt(properties.getProperty("livy.proxy.timeout", "30000"));
+
+			replicationPeers = list(properties.getProperty("livy.replication.peers", ""));
+			replicationNodeId = properties.getProperty("livy.replication.nodeId", hostName() + ":" + port);
+
+			accessLogFile = properties.getProperty("livy.accessLog.file", "./logs/access.log");
+			accessLogBufferSize = Integer.parseInt(properties.getProperty("livy.accessLog.bufferSize", "65536"));
+			accessLogMaxBytes = Long.parseLong(properties.getProperty("livy.accessLog.maxBytes", "104857600"));
+			accessLogMaxFiles = Integer.parseInt(properties.getProperty("livy.accessLog.maxFiles", "5"));
+			accessLogNotFoundSampleRate = Integer.parseInt(properties.getProperty("livy.accessLog.notFoundSampleRate", "10"));
+		}
+
+		private static List<String> list(String values) {
+			List<String> list = new ArrayList<>();
+			for (String value : values.split(",")) {
+				if (!value.trim().isEmpty())
+					list.add(value.trim());
+			}
+			return list;
+		}
+
+		private static String hostName() {
+			try {
+				return InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException e) {
+				return "localhost";
+			}
+		}
 
+		private static Properties loadProperties(String fileNameAndPath) {
+			Properties properties = new Properties();
+			try (InputStream is = new FileInputStream(fileNameAndPath)) {
+				properties.loadFromXML(is);
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to read the configuration file " + fileNameAndPath, e);
+			}
+			return properties;
 		}
 
 	}
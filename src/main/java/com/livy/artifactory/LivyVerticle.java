@@ -0,0 +1,135 @@
+package com.livy.artifactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.livy.artifactory.LivyServer.Config;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.net.PemKeyCertOptions;
+import io.vertx.ext.web.Router;
+
+/**
+ * The HTTP server of Livy. The verticle is deployed in several instances, each
+ * one running its router on its own event loop while they all share the
+ * listen port : the requests are spread over the cores.
+ *
+ * The handlers are shared by all the instances, their state is thread safe.
+ */
+public class LivyVerticle extends AbstractVerticle {
+
+	private final static Logger log = LogManager.getLogger(LivyVerticle.class);
+
+	private static final long EVENT_LOOP_PROBE_INTERVAL = 100;
+
+	private final Config config;
+
+	private final ArtifactRepositoryHandler artifactHandler;
+
+	private final StaticFileHandler fileHandler;
+
+	private final CatalogHandler catalogHandler;
+
+	private final BundleHandler bundleHandler;
+
+	private final Metrics metrics;
+
+	private final AccessLog accessLog;
+
+	private HttpServer server;
+
+	public LivyVerticle(Config config, ArtifactRepositoryHandler artifactHandler, StaticFileHandler fileHandler,
+			CatalogHandler catalogHandler, BundleHandler bundleHandler, Metrics metrics, AccessLog accessLog) {
+		this.config = config;
+		this.artifactHandler = artifactHandler;
+		this.fileHandler = fileHandler;
+		this.catalogHandler = catalogHandler;
+		this.bundleHandler = bundleHandler;
+		this.metrics = metrics;
+		this.accessLog = accessLog;
+	}
+
+	@Override
+	public void start(Promise<Void> startPromise) {
+
+		HttpServerOptions options = new HttpServerOptions()
+				.setIdleTimeout(config.idleTimeout)
+				.setTcpNoDelay(config.tcpNoDelay)
+				.setTcpFastOpen(config.tcpFastOpen)
+				.setTcpQuickAck(config.tcpQuickAck)
+				.setTcpKeepAlive(config.tcpKeepAlive)
+				.setAcceptBacklog(config.acceptBacklog)
+				.setInitialSettings(new Http2Settings().setMaxConcurrentStreams(config.http2MaxConcurrentStreams))
+				.setHttp2ConnectionWindowSize(config.http2ConnectionWindowSize);
+		if (config.sendBufferSize > 0)
+			options.setSendBufferSize(config.sendBufferSize);
+		if (config.receiveBufferSize > 0)
+			options.setReceiveBufferSize(config.receiveBufferSize);
+
+		if (config.sslKeyPath != null && config.sslCertPath != null) {
+			log.info("Secure Transport Protocol [ SSL/TLS ] has been enabled " + (config.http2 ? "with HTTP/2" : ""));
+			options.setSsl(true)
+					.setPemKeyCertOptions(new PemKeyCertOptions().setKeyPath(config.sslKeyPath).setCertPath(config.sslCertPath))
+					.setUseAlpn(config.http2)
+					.setAlpnVersions(config.http2 ? Arrays.asList(HttpVersion.HTTP_2, HttpVersion.HTTP_1_1) : Arrays.asList(HttpVersion.HTTP_1_1));
+		}
+
+		server = vertx.createHttpServer(options);
+
+		Router router = Router.router(vertx);
+
+		router.route().handler(new MetricsHandler(metrics));
+		if (accessLog != null)
+			router.route().handler(new AccessLogHandler(accessLog));
+
+		router.route("/artifactory/:group/:name/:version/:fileName").handler(artifactHandler);
+		router.post("/artifactory/:group/:name/:version").handler(artifactHandler::publishVersion);
+
+		router.get("/api/catalog").handler(catalogHandler);
+		router.get("/api/catalog/:group").handler(catalogHandler);
+		router.get("/api/catalog/:group/:name").handler(catalogHandler);
+		router.get("/api/catalog/:group/:name/:version").handler(catalogHandler);
+		router.get("/api/search").handler(catalogHandler::search);
+		router.get("/api/latest/:group/:name").handler(catalogHandler::latest);
+		router.get("/api/bundle").handler(bundleHandler);
+		router.post("/api/bundle").handler(bundleHandler);
+
+		router.route().method(HttpMethod.GET).handler(rCtx -> fileHandler.handle(rCtx.request()));
+
+		probeEventLoopLag();
+
+		server.requestHandler(router);
+		server.listen(config.port, res -> {
+			if (res.succeeded()) {
+				log.debug("Livy verticle listening on port " + config.port);
+				startPromise.complete();
+			} else {
+				startPromise.fail(res.cause());
+			}
+		});
+	}
+
+	/**
+	 * A timer of the event loop of the verticle measures how late it fires : the
+	 * time a task waits for the loop.
+	 */
+	private void probeEventLoopLag() {
+		LatencyHistogram lag = metrics.histogram("livy_event_loop_lag_seconds", "Delay of the tasks of the event loops");
+		long[] last = { System.nanoTime() };
+		vertx.setPeriodic(EVENT_LOOP_PROBE_INTERVAL, id -> {
+			long now = System.nanoTime();
+			lag.recordNanos(Math.max(0, now - last[0] - TimeUnit.MILLISECONDS.toNanos(EVENT_LOOP_PROBE_INTERVAL)));
+			last[0] = now;
+		});
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,76 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A file container measuring the latency of the operations of another one, by
+ * operation and outcome.
+ */
+public class MeteredFileContainer implements FileContainerMapI {
+
+	private static final String METRIC = "livy_container_operation_duration_seconds";
+
+	private static final String HELP = "Duration of the operations of the artifact container";
+
+	private final FileContainerMapI fileContainer;
+
+	private final Metrics metrics;
+
+	private final String name;
+
+	/**
+	 * @param name the label of the container, as its kind of storage
+	 */
+	public MeteredFileContainer(FileContainerMapI fileContainer, Metrics metrics, String name) {
+		this.fileContainer = fileContainer;
+		this.metrics = metrics;
+		this.name = name;
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, FileContent content) {
+		return measure("put", () -> fileContainer.put(artifactKey, content));
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, ReadStream<Buffer> content) {
+		return measure("put_stream", () -> fileContainer.put(artifactKey, content));
+	}
+
+	@Override
+	public Promise<Void> putVersion(List<ArtifactKey> artifactKeys, File stagingDirectory) {
+		return measure("put_version", () -> fileContainer.putVersion(artifactKeys, stagingDirectory));
+	}
+
+	@Override
+	public Promise<FileContent> get(ArtifactKey artifactKey) {
+		return measure("get", () -> fileContainer.get(artifactKey));
+	}
+
+	@Override
+	public Promise<FileRegion> getRegion(ArtifactKey artifactKey) {
+		return measure("get_region", () -> fileContainer.getRegion(artifactKey));
+	}
+
+	@Override
+	public Promise<FileRegion> getHeadRegion(ArtifactKey artifactKey) {
+		return measure("get_head_region", () -> fileContainer.getHeadRegion(artifactKey));
+	}
+
+	private <T> Promise<T> measure(String operation, Supplier<Promise<T>> operationCall) {
+		long start = System.nanoTime();
+		Promise<T> promise = operationCall.get();
+		promise.future().onComplete(res -> metrics
+				.histogram(METRIC, HELP, "container", name, "operation", operation, "outcome", res.succeeded() ? "success" : "failure")
+				.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+		return promise;
+	}
+
+}
\ No newline at end of file
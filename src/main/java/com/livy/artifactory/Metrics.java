@@ -0,0 +1,125 @@
+package com.livy.artifactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * The metrics of the server, exposed in the Prometheus text format : counters,
+ * gauges read when scraped, and latency histograms exposed as summaries with
+ * their percentiles.
+ *
+ * A metric is a family name and its labels, given as name, value pairs. The
+ * metrics are created on first use and are thread safe.
+ */
+public class Metrics {
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+	public LongAdder counter(String name, String help, String... labels) {
+		return (LongAdder) family(name, help, "counter").metrics.computeIfAbsent(labels(labels), l -> new LongAdder());
+	}
+
+	public LatencyHistogram histogram(String name, String help, String... labels) {
+		return (LatencyHistogram) family(name, help, "summary").metrics.computeIfAbsent(labels(labels), l -> new LatencyHistogram());
+	}
+
+	public void gauge(String name, String help, Supplier<Number> value, String... labels) {
+		family(name, help, "gauge").metrics.put(labels(labels), value);
+	}
+
+	private Family family(String name, String help, String type) {
+		Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+		if (!family.type.equals(type))
+			throw new IllegalArgumentException("The metric " + name + " is a " + family.type);
+		return family;
+	}
+
+	private static String labels(String[] labels) {
+		if (labels.length == 0)
+			return "";
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i + 1 < labels.length; i += 2) {
+			sb.append(sb.length() == 0 ? "" : ",").append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for (int c = 0; c < value.length(); c++) {
+				char ch = value.charAt(c);
+				if (ch == '\\' || ch == '"')
+					sb.append('\\').append(ch);
+				else if (ch == '\n')
+					sb.append("\\n");
+				else
+					sb.append(ch);
+			}
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * All the metrics, in the Prometheus text exposition format.
+	 */
+	public Buffer scrape() {
+		StringBuilder sb = new StringBuilder(16384);
+		for (Map.Entry<String, Family> entry : families.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Object> metric : new ConcurrentSkipListMap<>(family.metrics).entrySet()) {
+				String labels = metric.getKey();
+				Object value = metric.getValue();
+				if (value instanceof LatencyHistogram) {
+					LatencyHistogram histogram = (LatencyHistogram) value;
+					double[] quantiles = histogram.getQuantileSeconds(QUANTILES);
+					for (int q = 0; q < QUANTILES.length; q++) {
+						sample(sb, name, labels + (labels.isEmpty() ? "" : ",") + "quantile=\"" + QUANTILES[q] + "\"", quantiles[q]);
+					}
+					sample(sb, name + "_sum", labels, histogram.getSumSeconds());
+					sample(sb, name + "_count", labels, histogram.getCount());
+				} else if (value instanceof LongAdder) {
+					sample(sb, name, labels, ((LongAdder) value).sum());
+				} else {
+					@SuppressWarnings("unchecked")
+					Number number = ((Supplier<Number>) value).get();
+					if (number != null)
+						sample(sb, name, labels, number);
+				}
+			}
+		}
+		return Buffer.buffer(sb.toString());
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels, Number value) {
+		sb.append(name);
+		if (!labels.isEmpty())
+			sb.append('{').append(labels).append('}');
+		sb.append(' ');
+		if (value instanceof Double || value instanceof Float)
+			sb.append(value.doubleValue());
+		else
+			sb.append(value.longValue());
+		sb.append('\n');
+	}
+
+	private static class Family {
+
+		final String help;
+
+		final String type;
+
+		final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+		Family(String help, String type) {
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+}
\ No newline at end of file
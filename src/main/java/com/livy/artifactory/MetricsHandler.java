@@ -0,0 +1,65 @@
+package com.livy.artifactory;
+
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * First handler of the router : measures each request, by route, method and
+ * status, when its response is sent, with the bytes received and sent.
+ */
+public class MetricsHandler implements Handler<RoutingContext> {
+
+	private final Metrics metrics;
+
+	public MetricsHandler(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void handle(RoutingContext context) {
+		long start = System.nanoTime();
+		context.addBodyEndHandler(v -> {
+			HttpServerRequest request = context.request();
+			String route = route(request.path());
+			// the raw method is sent by the client : the unknown ones are OTHER
+			String method = request.method().name();
+			String status = Integer.toString(context.response().getStatusCode());
+			metrics.histogram("livy_http_request_duration_seconds", "Duration of the HTTP requests",
+					"route", route, "method", method, "status", status)
+					.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			metrics.counter("livy_http_received_bytes_total", "Bytes received in the HTTP requests", "route", route, "method", method)
+					.add(request.bytesRead());
+			metrics.counter("livy_http_sent_bytes_total", "Bytes sent in the HTTP responses", "route", route, "method", method)
+					.add(context.response().bytesWritten());
+		});
+		context.next();
+	}
+
+	/**
+	 * The route of a request : a bounded set of values, never the path itself.
+	 */
+	static String route(String path) {
+		if (path == null)
+			return "static";
+		if (path.startsWith("/artifactory/"))
+			return "artifactory";
+		if (path.startsWith("/api/")) {
+			int end = path.indexOf('/', 5);
+			String api = end < 0 ? path.substring(5) : path.substring(5, end);
+			switch (api) {
+			case "catalog":
+			case "search":
+			case "latest":
+			case "bundle":
+				return "api/" + api;
+			default:
+				return "api";
+			}
+		}
+		return "static";
+	}
+
+}
\ No newline at end of file
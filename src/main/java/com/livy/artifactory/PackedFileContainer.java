@@ -0,0 +1,923 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A file container packing the small files, the ivy files and the checksums
+ * which make most of a repository by count, into append only segment files :
+ * a small file costs no inode, and is served from the memory mapping of its
+ * segment through an in memory index, without open nor read. The larger files
+ * are stored as files by another container, in the same directory.
+ *
+ * A record holds the key, the modification time, the content and its CRC, or
+ * marks the key as removed when it is replaced by a large file. The index is
+ * rebuilt at startup by reading the segments in order, a torn record ending
+ * the last one. The segments whose records are mostly replaced are compacted
+ * in the background : their live records are appended again, the segment is
+ * deleted, then unmapped by the next pass. The appends and the compactions
+ * hold the lock of the container, the index updates made on the event loop a
+ * lock of their own. As those complete out of order, an entry only replaces
+ * an older record of its key, as the startup would : a key with records
+ * appended and not yet indexed is not moved by the compaction.
+ *
+ * The small files of a version published at once are appended first, as a
+ * batch, and only count once the version directory holding the marker of the
+ * batch has been moved into place, so the version stays atomic.
+ *
+ * The segments are in the hidden .packed directory of the artifact directory.
+ */
+public class PackedFileContainer implements FileContainerMapI {
+
+	private final static Logger log = LogManager.getLogger(PackedFileContainer.class);
+
+	public static final String PACKED_DIRECTORY = ".packed";
+
+	/**
+	 * The files up to this length are packed.
+	 */
+	public static final int MAX_PACKED_LENGTH = 4096;
+
+	/**
+	 * Marker of a batch, in the directory of its version.
+	 */
+	private static final String BATCH_MARKER_PREFIX = ".livy-packed-";
+
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	private static final String SEGMENT_EXTENSION = ".dat";
+
+	private static final int MAGIC = 0x4c504b31; // LPK1
+
+	private static final byte CONTENT = 0;
+
+	private static final byte REMOVED = 1;
+
+	/**
+	 * magic, type, batch, modification time, content length : before the keys
+	 * and the content, followed by the CRC.
+	 */
+	private static final int HEADER_LENGTH = 4 + 1 + 8 + 8 + 4;
+
+	private static final long COMPACTION_PERIOD = 60_000;
+
+	/**
+	 * A segment is compacted when less than this part of it is live.
+	 */
+	private static final double COMPACTION_LIVE_RATIO = 0.5;
+
+	private final Vertx vertx;
+
+	private final File artifactDirectory;
+
+	private final File segmentDirectory;
+
+	private final FileContainerMapI files;
+
+	private final GroupCommit groupCommit;
+
+	private final int segmentLength;
+
+	/**
+	 * Read without lock, updated under the index lock.
+	 */
+	private final Map<ArtifactKey, Entry> index = new ConcurrentHashMap<>();
+
+	/**
+	 * The lock of the index updates, taken on the event loop : never held
+	 * around a write, unlike the lock of the appends.
+	 */
+	private final Object indexLock = new Object();
+
+	/**
+	 * The packed file names of each version, as group/name/version.
+	 */
+	private final Map<String, Set<String>> versions = new ConcurrentHashMap<>();
+
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+	/**
+	 * The segment appended to, guarded by this as the appends and the
+	 * compactions.
+	 */
+	private Segment active;
+
+	private final AtomicBoolean compacting = new AtomicBoolean();
+
+	/**
+	 * The compacted segments, unmapped by the next compaction pass : a single
+	 * pass runs at a time.
+	 */
+	private final List<Segment> retired = new ArrayList<>();
+
+	private final AtomicLong compactionCount = new AtomicLong();
+
+	/**
+	 * The count of records appended and not yet indexed, by key.
+	 */
+	private final Map<ArtifactKey, Integer> pendingAppends = new ConcurrentHashMap<>();
+
+	/**
+	 * The removals of the keys having pending records, which the older of
+	 * them must not undo : under the index lock.
+	 */
+	private final Map<ArtifactKey, Entry> pendingRemovals = new HashMap<>();
+
+	/**
+	 * @param files the container of the large files
+	 * @param groupCommit the commits of the durable mode, or null
+	 * @param segmentLength the length of a segment file
+	 */
+	public PackedFileContainer(Vertx vertx, File artifactDirectory, FileContainerMapI files, GroupCommit groupCommit, int segmentLength) {
+		this.vertx = vertx;
+		this.artifactDirectory = artifactDirectory;
+		this.segmentDirectory = new File(artifactDirectory, PACKED_DIRECTORY);
+		this.files = files;
+		this.groupCommit = groupCommit;
+		this.segmentLength = Math.max(1024 * 1024, segmentLength);
+		try {
+			load();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to load the packed files of " + segmentDirectory, e);
+		}
+		vertx.setPeriodic(COMPACTION_PERIOD, id -> compact());
+	}
+
+	public File getArtifactDirectory() {
+		return artifactDirectory;
+	}
+
+	public int getFileCount() {
+		return index.size();
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	public long getLiveBytes() {
+		long live = 0;
+		for (Segment segment : segments.values()) {
+			live += segment.live.get();
+		}
+		return live;
+	}
+
+	public long getUsedBytes() {
+		long used = 0;
+		for (Segment segment : segments.values()) {
+			used += segment.length;
+		}
+		return used;
+	}
+
+	public long getCompactionCount() {
+		return compactionCount.get();
+	}
+
+	/**
+	 * The keys of the packed files, for the catalog scan.
+	 */
+	public Collection<ArtifactKey> getKeys() {
+		return new ArrayList<>(index.keySet());
+	}
+
+	/**
+	 * The packed file names of a version, for the directory listings.
+	 */
+	public Set<String> getFileNames(String group, String name, String version) {
+		Set<String> names = versions.get(group + "/" + name + "/" + version);
+		return names != null ? names : Collections.emptySet();
+	}
+
+	/**
+	 * The region of a packed file, in memory, or null when it is not packed.
+	 */
+	public FileRegion getPackedRegion(ArtifactKey artifactKey) {
+		Entry entry = index.get(artifactKey);
+		return entry != null ? new FileRegion(artifactKey, entry.content(), entry.lastModifiedTime, FlatFileContainer.DEFAULT_CONTENT_TYPE) : null;
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, FileContent content) {
+		if (content.getContent().length <= MAX_PACKED_LENGTH)
+			return putPacked(artifactKey, content.getContent());
+		return putLarge(artifactKey, files.put(artifactKey, content));
+	}
+
+	/**
+	 * The beginning of the stream is kept until it is known whether the file is
+	 * small : it is then packed, else it is stored as a file, from its
+	 * beginning.
+	 */
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, ReadStream<Buffer> content) {
+		Promise<Void> p = Promise.promise();
+		Buffer prefix = Buffer.buffer();
+		boolean[] large = { false };
+		content.exceptionHandler(p::tryFail);
+		content.handler(buffer -> {
+			prefix.appendBuffer(buffer);
+			if (!large[0] && prefix.length() > MAX_PACKED_LENGTH) {
+				large[0] = true;
+				content.pause();
+				putLarge(artifactKey, files.put(artifactKey, new PrefixedReadStream(prefix, content))).future().onComplete(p);
+			}
+		});
+		content.endHandler(v -> {
+			if (!large[0])
+				putPacked(artifactKey, prefix.getBytes()).future().onComplete(p);
+		});
+		content.resume();
+		return p;
+	}
+
+	@Override
+	public Promise<Void> putVersion(List<ArtifactKey> artifactKeys, File stagingDirectory) {
+		Promise<Void> p = Promise.promise();
+		ArtifactKey first = artifactKeys.get(0);
+		if (!getFileNames(first.getGroup(), first.getArtifactName(), first.getVersion()).isEmpty()) {
+			p.fail(new FileAlreadyExistsException(first.buildDirectoryPath(artifactDirectory)));
+			return p;
+		}
+		long batch = ThreadLocalRandom.current().nextLong() | 1;
+		ArtifactKey marker = first.withFileName(BATCH_MARKER_PREFIX + Long.toHexString(batch));
+		List<ArtifactKey> largeKeys = new ArrayList<>();
+		Map<ArtifactKey, Entry> batchEntries = new HashMap<>();
+		vertx.<Void>executeBlocking(future -> {
+			try {
+				for (ArtifactKey artifactKey : artifactKeys) {
+					File staged = new File(stagingDirectory, artifactKey.getFileName());
+					if (staged.length() > MAX_PACKED_LENGTH) {
+						largeKeys.add(artifactKey);
+						continue;
+					}
+					byte[] content = Files.readAllBytes(staged.toPath());
+					synchronized (this) {
+						Entry entry = append(artifactKey, CONTENT, batch, content, staged.lastModified());
+						pin(artifactKey, entry);
+						batchEntries.put(artifactKey, entry);
+					}
+				}
+				for (ArtifactKey artifactKey : batchEntries.keySet()) {
+					Files.delete(new File(stagingDirectory, artifactKey.getFileName()).toPath());
+				}
+				Files.createFile(new File(stagingDirectory, marker.getFileName()).toPath());
+				largeKeys.add(marker);
+				future.complete();
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, appended -> {
+			if (appended.failed()) {
+				batchEntries.forEach(this::release);
+				p.fail(appended.cause());
+				return;
+			}
+			// the batch is on the disk before the version which makes it count
+			Promise<Void> forced = Promise.promise();
+			if (groupCommit != null && !batchEntries.isEmpty())
+				forced = commit(batchEntries.values());
+			else
+				forced.complete();
+			forced.future()
+					.compose(v -> files.putVersion(largeKeys, stagingDirectory).future())
+					.onComplete(res -> {
+						if (res.succeeded()) {
+							synchronized (indexLock) {
+								batchEntries.forEach(this::index);
+							}
+						}
+						batchEntries.forEach(this::release);
+						p.handle(res);
+					});
+		});
+		return p;
+	}
+
+	@Override
+	public Promise<FileContent> get(ArtifactKey artifactKey) {
+		Entry entry = index.get(artifactKey);
+		if (entry == null)
+			return files.get(artifactKey);
+		Promise<FileContent> p = Promise.promise();
+		p.complete(new FileContent(artifactKey, entry.bytes(), FlatFileContainer.DEFAULT_CONTENT_TYPE));
+		return p;
+	}
+
+	@Override
+	public Promise<FileRegion> getRegion(ArtifactKey artifactKey) {
+		FileRegion region = getPackedRegion(artifactKey);
+		if (region == null)
+			return files.getRegion(artifactKey);
+		Promise<FileRegion> p = Promise.promise();
+		p.complete(region);
+		return p;
+	}
+
+	/**
+	 * Append a small file, in the directory of its version created so that it
+	 * is listed, and drop the large file it replaces.
+	 */
+	private Promise<Void> putPacked(ArtifactKey artifactKey, byte[] content) {
+		Promise<Void> p = Promise.promise();
+		File versionDirectory;
+		try {
+			versionDirectory = new File(artifactKey.buildFilePath(artifactDirectory)).getParentFile();
+		} catch (IllegalArgumentException e) {
+			p.fail(e);
+			return p;
+		}
+		vertx.<Entry>executeBlocking(future -> {
+			try {
+				Files.createDirectories(versionDirectory.toPath());
+				synchronized (this) {
+					Entry entry = append(artifactKey, CONTENT, 0, content, System.currentTimeMillis());
+					pin(artifactKey, entry);
+					future.complete(entry);
+				}
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, appended -> {
+			if (appended.failed()) {
+				p.fail(new Exception("Unable to pack " + artifactKey, appended.cause()));
+				return;
+			}
+			Entry entry = appended.result();
+			Promise<Void> committed = groupCommit != null ? commit(Collections.singletonList(entry)) : Promise.promise();
+			if (groupCommit == null)
+				committed.complete();
+			committed.future().onComplete(res -> {
+				if (res.failed()) {
+					release(artifactKey, entry);
+					p.fail(new Exception("Unable to commit " + artifactKey, res.cause()));
+					return;
+				}
+				boolean indexed;
+				synchronized (indexLock) {
+					indexed = index(artifactKey, entry);
+				}
+				release(artifactKey, entry);
+				if (indexed)
+					vertx.fileSystem().delete(new File(versionDirectory, artifactKey.getFileName()).getPath(), deleted -> p.complete());
+				else
+					// replaced meanwhile, by a later record or a large file
+					p.complete();
+			});
+		});
+		return p;
+	}
+
+	/**
+	 * Once a large file is stored, the small one it replaces is removed, as
+	 * the ones still being appended.
+	 */
+	private Promise<Void> putLarge(ArtifactKey artifactKey, Promise<Void> stored) {
+		Promise<Void> p = Promise.promise();
+		stored.future().onComplete(res -> {
+			if (res.failed() || !isPacked(artifactKey)) {
+				p.handle(res);
+				return;
+			}
+			vertx.<Void>executeBlocking(future -> {
+				try {
+					synchronized (this) {
+						if (isPacked(artifactKey)) {
+							Entry removal = append(artifactKey, REMOVED, 0, null, System.currentTimeMillis());
+							if (groupCommit != null)
+								removal.segment.channel.force(false);
+							synchronized (indexLock) {
+								unindex(artifactKey);
+								if (pendingAppends.containsKey(artifactKey))
+									pendingRemovals.put(artifactKey, removal);
+							}
+						}
+					}
+					future.complete();
+				} catch (IOException e) {
+					future.fail(e);
+				}
+			}, false, p);
+		});
+		return p;
+	}
+
+	private boolean isPacked(ArtifactKey artifactKey) {
+		return index.containsKey(artifactKey) || pendingAppends.containsKey(artifactKey);
+	}
+
+	/**
+	 * Force the segments of the entries to the disk.
+	 */
+	private Promise<Void> commit(Collection<Entry> entries) {
+		Set<Path> segmentFiles = new LinkedHashSet<>();
+		entries.forEach(entry -> segmentFiles.add(entry.segment.file.toPath()));
+		return groupCommit.commit(new ArrayList<>(segmentFiles), segmentDirectory::toPath);
+	}
+
+	/**
+	 * Keep an entry appended from the compaction until it is indexed : under
+	 * the lock of the appends.
+	 */
+	private void pin(ArtifactKey artifactKey, Entry entry) {
+		entry.segment.pins.incrementAndGet();
+		pendingAppends.merge(artifactKey, 1, Integer::sum);
+	}
+
+	private void release(ArtifactKey artifactKey, Entry entry) {
+		entry.segment.pins.decrementAndGet();
+		synchronized (indexLock) {
+			if (pendingAppends.computeIfPresent(artifactKey, (key, count) -> count == 1 ? null : count - 1) == null)
+				pendingRemovals.remove(artifactKey);
+		}
+	}
+
+	/**
+	 * Make an entry the content of its key, unless a later record of the key
+	 * is already indexed or removed it : under the index lock.
+	 *
+	 * @return whether the entry was indexed
+	 */
+	private boolean index(ArtifactKey artifactKey, Entry entry) {
+		Entry current = index.get(artifactKey);
+		if (current != null && !current.isBefore(entry))
+			return false;
+		Entry removal = pendingRemovals.get(artifactKey);
+		if (removal != null && !removal.isBefore(entry))
+			return false;
+		entry.segment.live.addAndGet(entry.recordLength);
+		index.put(artifactKey, entry);
+		if (current != null)
+			current.segment.live.addAndGet(-current.recordLength);
+		versions.computeIfAbsent(versionOf(artifactKey), v -> ConcurrentHashMap.newKeySet()).add(artifactKey.getFileName());
+		return true;
+	}
+
+	private void unindex(ArtifactKey artifactKey) {
+		Entry removed = index.remove(artifactKey);
+		if (removed != null)
+			removed.segment.live.addAndGet(-removed.recordLength);
+		Set<String> names = versions.get(versionOf(artifactKey));
+		if (names != null)
+			names.remove(artifactKey.getFileName());
+	}
+
+	private static String versionOf(ArtifactKey artifactKey) {
+		return artifactKey.getGroup() + "/" + artifactKey.getArtifactName() + "/" + artifactKey.getVersion();
+	}
+
+	/**
+	 * Append a record to the active segment : under the lock, blocking.
+	 */
+	private Entry append(ArtifactKey artifactKey, byte type, long batch, byte[] content, long lastModifiedTime) throws IOException {
+		byte[][] names = { bytes(artifactKey.getGroup()), bytes(artifactKey.getArtifactName()), bytes(artifactKey.getVersion()),
+				bytes(artifactKey.getFileName()) };
+		int contentLength = content != null ? content.length : 0;
+		int keysLength = 4 * 2 + names[0].length + names[1].length + names[2].length + names[3].length;
+		int recordLength = HEADER_LENGTH + keysLength + contentLength + 4;
+		ByteBuffer record = ByteBuffer.allocate(recordLength);
+		record.putInt(MAGIC).put(type).putLong(batch).putLong(lastModifiedTime).putInt(contentLength);
+		for (byte[] name : names) {
+			record.putShort((short) name.length).put(name);
+		}
+		int contentOffset = record.position();
+		if (content != null)
+			record.put(content);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 4, record.position() - 4);
+		record.putInt((int) crc.getValue());
+		record.flip();
+
+		if (active == null || active.length + recordLength > active.capacity)
+			roll();
+		int position = active.length;
+		while (record.hasRemaining()) {
+			active.channel.write(record, position + record.position());
+		}
+		active.length = position + recordLength;
+		return new Entry(active, position + contentOffset, contentLength, lastModifiedTime, recordLength);
+	}
+
+	/**
+	 * Start a new segment, preallocated as a sparse file so that its mapping
+	 * covers all the records it will hold.
+	 */
+	private void roll() throws IOException {
+		long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		File file = new File(segmentDirectory, String.format("%s%012d%s", SEGMENT_PREFIX, id, SEGMENT_EXTENSION));
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		channel.write(ByteBuffer.allocate(1), segmentLength - 1);
+		Segment segment = new Segment(id, file, channel, segmentLength);
+		segments.put(id, segment);
+		active = segment;
+	}
+
+	/**
+	 * Rebuild the index from the segments : blocking.
+	 */
+	private void load() throws IOException {
+		Files.createDirectories(segmentDirectory.toPath());
+		File[] segmentFiles = segmentDirectory.listFiles(f -> f.getName().startsWith(SEGMENT_PREFIX) && f.getName().endsWith(SEGMENT_EXTENSION));
+		List<Segment> loaded = new ArrayList<>();
+		if (segmentFiles != null) {
+			for (File file : segmentFiles) {
+				long id = Long.parseLong(file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_EXTENSION.length()));
+				FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				loaded.add(new Segment(id, file, channel, (int) Math.min(Integer.MAX_VALUE, channel.size())));
+			}
+		}
+		loaded.sort((a, b) -> Long.compare(a.id, b.id));
+
+		long start = System.currentTimeMillis();
+		Map<Long, Boolean> committedBatches = new HashMap<>();
+		synchronized (this) {
+			synchronized (indexLock) {
+				for (Segment segment : loaded) {
+					segments.put(segment.id, segment);
+					segment.length = readRecords(segment, (artifactKey, type, batch, entry) -> {
+						if (type == REMOVED) {
+							unindex(artifactKey);
+						} else if (batch == 0 || committedBatches.computeIfAbsent(batch, b -> new File(artifactKey.buildDirectoryPath(artifactDirectory),
+								BATCH_MARKER_PREFIX + Long.toHexString(b)).exists())) {
+							index(artifactKey, entry);
+						}
+					});
+					active = segment;
+				}
+			}
+		}
+		if (active != null && active.length + 4 <= active.capacity && active.map.getInt(active.length) != 0) {
+			// a torn record, erased so that it is not taken for the end of the next ones
+			log.warn("Packed segment " + active.file + " truncated after " + active.length + " bytes");
+			ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+			for (long position = active.length; position < active.capacity; position += zeros.capacity()) {
+				zeros.clear().limit((int) Math.min(zeros.capacity(), active.capacity - position));
+				active.channel.write(zeros, position);
+			}
+		}
+		log.info("Packed files loaded : " + index.size() + " files in " + segments.size() + " segments in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private interface RecordHandler {
+
+		void handle(ArtifactKey artifactKey, byte type, long batch, Entry entry);
+
+	}
+
+	/**
+	 * Read the records of a segment up to the first invalid one.
+	 *
+	 * @return the length of the valid records
+	 */
+	private static int readRecords(Segment segment, RecordHandler handler) {
+		ByteBuffer map = segment.map.duplicate();
+		int position = 0;
+		CRC32 crc = new CRC32();
+		while (position + HEADER_LENGTH + 8 + 4 <= segment.capacity) {
+			map.limit(segment.capacity).position(position);
+			if (map.getInt() != MAGIC)
+				break;
+			byte type = map.get();
+			long batch = map.getLong();
+			long lastModifiedTime = map.getLong();
+			int contentLength = map.getInt();
+			String[] names = new String[4];
+			try {
+				for (int i = 0; i < 4; i++) {
+					int length = map.getShort() & 0xffff;
+					byte[] name = new byte[length];
+					map.get(name);
+					names[i] = new String(name, StandardCharsets.UTF_8);
+				}
+			} catch (RuntimeException e) {
+				break;
+			}
+			int contentOffset = map.position();
+			if (contentLength < 0 || contentLength > MAX_PACKED_LENGTH || contentOffset + contentLength + 4 > segment.capacity)
+				break;
+			map.position(contentOffset + contentLength);
+			int recordCrc = map.getInt();
+			ByteBuffer checked = segment.map.duplicate();
+			checked.position(position + 4).limit(contentOffset + contentLength);
+			crc.reset();
+			crc.update(checked);
+			if ((int) crc.getValue() != recordCrc)
+				break;
+			int recordLength = contentOffset + contentLength + 4 - position;
+			handler.handle(new ArtifactKey(names[0], names[1], names[2], names[3]), type, batch,
+					new Entry(segment, contentOffset, contentLength, lastModifiedTime, recordLength));
+			position += recordLength;
+		}
+		return position;
+	}
+
+	/**
+	 * Compact the sealed segments mostly replaced, one pass at a time.
+	 */
+	private void compact() {
+		if (!compacting.compareAndSet(false, true))
+			return;
+		vertx.<Integer>executeBlocking(future -> {
+			int compacted = 0;
+			try {
+				// no read still uses the segments compacted a period ago
+				retired.forEach(segment -> unmap(segment.map));
+				retired.clear();
+				for (Segment segment : new ArrayList<>(segments.values())) {
+					synchronized (this) {
+						if (segment == active)
+							continue;
+					}
+					if (segment.pins.get() > 0 || segment.live.get() >= COMPACTION_LIVE_RATIO * segment.length)
+						continue;
+					if (compact(segment))
+						compacted++;
+				}
+				future.complete(compacted);
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, res -> {
+			compacting.set(false);
+			if (res.failed())
+				log.error("Unable to compact the packed files", res.cause());
+			else if (res.result() > 0)
+				log.info("Packed files compacted : " + res.result() + " segments, " + segments.size() + " left");
+		});
+	}
+
+	/**
+	 * Append the live records of a segment again, then delete it : blocking. A
+	 * removal is kept while an older segment may hold the removed file.
+	 *
+	 * @return false when a key of the segment has records appended and not
+	 *         yet indexed : a copy would come after them, the segment is
+	 *         compacted by a later pass
+	 */
+	private boolean compact(Segment segment) throws IOException {
+		boolean older = segments.firstKey() < segment.id;
+		Set<Segment> appended = new LinkedHashSet<>();
+		IOException[] failure = { null };
+		boolean[] interrupted = { false };
+		readRecords(segment, (artifactKey, type, batch, entry) -> {
+			if (failure[0] != null || interrupted[0])
+				return;
+			try {
+				synchronized (this) {
+					if (pendingAppends.containsKey(artifactKey)) {
+						interrupted[0] = true;
+						return;
+					}
+					Entry current = index.get(artifactKey);
+					if (type == CONTENT && current != null && current.segment == segment && current.offset == entry.offset) {
+						Entry copy = append(artifactKey, CONTENT, 0, current.bytes(), current.lastModifiedTime);
+						synchronized (indexLock) {
+							// unless it was replaced during the append
+							if (index.get(artifactKey) == current)
+								index(artifactKey, copy);
+						}
+						appended.add(copy.segment);
+					} else if (type == REMOVED && current == null && older) {
+						appended.add(append(artifactKey, REMOVED, 0, null, entry.lastModifiedTime).segment);
+					}
+				}
+			} catch (IOException e) {
+				failure[0] = e;
+			}
+		});
+		if (failure[0] != null)
+			throw failure[0];
+		for (Segment target : appended) {
+			target.channel.force(false);
+		}
+		if (interrupted[0])
+			return false;
+		segments.remove(segment.id);
+		segment.channel.close();
+		// the mapping stays valid for the reads which found an entry of the segment before its records moved
+		Files.delete(segment.file.toPath());
+		retired.add(segment);
+		compactionCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Release the mapping of a segment now rather than when its buffer is
+	 * collected : through Unsafe.invokeCleaner from Java 9, through the
+	 * cleaner of the direct buffer on Java 8. The collector is left to do it
+	 * when neither is accessible.
+	 */
+	private static void unmap(MappedByteBuffer map) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner;
+			try {
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (NoSuchMethodException e) {
+				Method cleanerMethod = map.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(map);
+				if (cleaner != null)
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				return;
+			}
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), map);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			log.debug("Unable to unmap a packed segment, left to the garbage collector", e);
+		}
+	}
+
+	private static byte[] bytes(String name) {
+		return name.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static class Segment {
+
+		final long id;
+
+		final File file;
+
+		final FileChannel channel;
+
+		final MappedByteBuffer map;
+
+		final int capacity;
+
+		/**
+		 * The length of the records, guarded by the append lock of the
+		 * container.
+		 */
+		volatile int length;
+
+		/**
+		 * The length of the records still indexed.
+		 */
+		final AtomicLong live = new AtomicLong();
+
+		/**
+		 * The records appended and not yet indexed, which keep the segment from
+		 * compaction.
+		 */
+		final AtomicInteger pins = new AtomicInteger();
+
+		Segment(long id, File file, FileChannel channel, int capacity) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = channel;
+			this.capacity = capacity;
+			this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+		}
+
+	}
+
+	private static class Entry {
+
+		final Segment segment;
+
+		final int offset;
+
+		final int length;
+
+		final long lastModifiedTime;
+
+		final int recordLength;
+
+		Entry(Segment segment, int offset, int length, long lastModifiedTime, int recordLength) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.lastModifiedTime = lastModifiedTime;
+			this.recordLength = recordLength;
+		}
+
+		/**
+		 * @return whether the record of the entry was appended before the one
+		 *         of the other
+		 */
+		boolean isBefore(Entry other) {
+			return segment.id < other.segment.id || segment.id == other.segment.id && offset < other.offset;
+		}
+
+		/**
+		 * The content, copied from the mapping : no buffer handed out refers to
+		 * a segment, so that it can be unmapped once compacted.
+		 */
+		Buffer content() {
+			return Buffer.buffer(bytes());
+		}
+
+		byte[] bytes() {
+			ByteBuffer content = segment.map.duplicate();
+			content.position(offset).limit(offset + length);
+			byte[] bytes = new byte[length];
+			content.get(bytes);
+			return bytes;
+		}
+
+	}
+
+	/**
+	 * A stream whose first buffers have already been read : they are sent again
+	 * before the rest of the stream.
+	 */
+	private static class PrefixedReadStream implements ReadStream<Buffer> {
+
+		private final ReadStream<Buffer> stream;
+
+		private Buffer prefix;
+
+		private Handler<Buffer> handler;
+
+		private boolean paused = true;
+
+		PrefixedReadStream(Buffer prefix, ReadStream<Buffer> stream) {
+			this.prefix = prefix;
+			this.stream = stream;
+		}
+
+		@Override
+		public ReadStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+			stream.exceptionHandler(handler);
+			return this;
+		}
+
+		@Override
+		public ReadStream<Buffer> handler(Handler<Buffer> handler) {
+			this.handler = handler;
+			stream.handler(handler);
+			return this;
+		}
+
+		@Override
+		public ReadStream<Buffer> pause() {
+			paused = true;
+			stream.pause();
+			return this;
+		}
+
+		@Override
+		public ReadStream<Buffer> resume() {
+			paused = false;
+			if (prefix != null && handler != null) {
+				Buffer first = prefix;
+				prefix = null;
+				handler.handle(first);
+			}
+			if (!paused)
+				stream.resume();
+			return this;
+		}
+
+		@Override
+		public ReadStream<Buffer> fetch(long amount) {
+			if (amount > 0)
+				resume();
+			return this;
+		}
+
+		@Override
+		public ReadStream<Buffer> endHandler(Handler<Void> endHandler) {
+			stream.endHandler(endHandler);
+			return this;
+		}
+
+	}
+
+}
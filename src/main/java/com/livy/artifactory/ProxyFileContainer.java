@@ -0,0 +1,385 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A pull-through proxy of an upstream ivy repository served over HTTP : the
+ * artifacts missing from the local container are fetched from the upstream
+ * one, streamed to the client while they are stored with their checksums, and
+ * then served locally. The concurrent requests of an artifact being fetched
+ * stream it from the upstream repository too, without storing it, and a HEAD
+ * request of a missing artifact is answered by the upstream one.
+ *
+ * The artifacts missing upstream are remembered for a while, so the agents
+ * probing several repositories do not hit the upstream one for each request.
+ */
+public class ProxyFileContainer implements FileContainerMapI {
+
+	private final static Logger log = LogManager.getLogger(ProxyFileContainer.class);
+
+	private static final int MAX_MISSING_ENTRIES = 100_000;
+
+	private final Vertx vertx;
+
+	private final FileContainerMapI fileContainer;
+
+	private final ChecksumStore checksumStore;
+
+	private final HttpClient client;
+
+	private final SocketAddress upstream;
+
+	private final boolean ssl;
+
+	private final String pattern;
+
+	private final long negativeTtl;
+
+	private final int timeout;
+
+	/**
+	 * Expiry time of the artifacts missing upstream, bounded to the most recently
+	 * requested ones.
+	 */
+	private final Map<ArtifactKey, Long> missing = Collections.synchronizedMap(new LinkedHashMap<ArtifactKey, Long>(1024, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ArtifactKey, Long> eldest) {
+			return size() > MAX_MISSING_ENTRIES;
+		}
+	});
+
+	/**
+	 * The artifacts being fetched and stored, completed once they are stored.
+	 */
+	private final Map<ArtifactKey, Promise<Void>> fetching = new ConcurrentHashMap<>();
+
+	private final AtomicLong fetchCount = new AtomicLong();
+
+	private final AtomicLong missingHits = new AtomicLong();
+
+	/**
+	 * @param upstreamUrl the base URL of the upstream repository
+	 * @param pattern the path of an artifact under the base URL, made of the
+	 *            [organisation], [orgPath], [module], [revision] and [file] tokens
+	 * @param negativeTtl how long an artifact missing upstream is not requested
+	 *            again, in milliseconds
+	 * @param timeout the timeout of the upstream requests, in milliseconds
+	 */
+	public ProxyFileContainer(Vertx vertx, FileContainerMapI fileContainer, String upstreamUrl, String pattern, long negativeTtl, int timeout) {
+		this.vertx = vertx;
+		this.fileContainer = fileContainer;
+		this.checksumStore = new ChecksumStore(vertx, fileContainer);
+		this.negativeTtl = negativeTtl;
+		this.timeout = timeout;
+
+		URL url;
+		try {
+			url = new URL(upstreamUrl);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Invalid upstream repository URL : " + upstreamUrl, e);
+		}
+		this.ssl = "https".equals(url.getProtocol());
+		this.upstream = SocketAddress.inetSocketAddress(url.getPort() != -1 ? url.getPort() : url.getDefaultPort(), url.getHost());
+		String basePath = url.getPath().endsWith("/") ? url.getPath() : url.getPath() + "/";
+		this.pattern = basePath + (pattern.startsWith("/") ? pattern.substring(1) : pattern);
+		this.client = vertx.createHttpClient(new HttpClientOptions()
+				.setKeepAlive(true)
+				.setConnectTimeout(timeout));
+
+		log.info("Proxy of " + upstreamUrl + " started.");
+	}
+
+	public long getFetchCount() {
+		return fetchCount.get();
+	}
+
+	public long getMissingHitCount() {
+		return missingHits.get();
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, FileContent content) {
+		missing.remove(artifactKey);
+		return fileContainer.put(artifactKey, content);
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, ReadStream<Buffer> content) {
+		missing.remove(artifactKey);
+		return fileContainer.put(artifactKey, content);
+	}
+
+	@Override
+	public Promise<Void> putVersion(List<ArtifactKey> artifactKeys, File stagingDirectory) {
+		artifactKeys.forEach(missing::remove);
+		return fileContainer.putVersion(artifactKeys, stagingDirectory);
+	}
+
+	@Override
+	public Promise<FileContent> get(ArtifactKey artifactKey) {
+		Promise<FileContent> p = Promise.promise();
+		getRegion(artifactKey).future().onComplete(res -> {
+			if (res.failed()) {
+				p.fail(res.cause());
+			} else if (!res.result().isStream()) {
+				fileContainer.get(artifactKey).future().onComplete(p);
+			} else {
+				readFully(res.result().getStream()).future()
+						.map(content -> new FileContent(artifactKey, content.getBytes(), res.result().getContentType()))
+						.onComplete(p);
+			}
+		});
+		return p;
+	}
+
+	/**
+	 * The local region of the artifact, or a streamed region of the artifact
+	 * fetched from the upstream repository. Only the first request of an
+	 * artifact stores it : the ones made meanwhile are streamed from the
+	 * upstream repository rather than waiting for the whole artifact.
+	 */
+	@Override
+	public Promise<FileRegion> getRegion(ArtifactKey artifactKey) {
+		Promise<FileRegion> p = Promise.promise();
+		fileContainer.getRegion(artifactKey).future().onComplete(local -> {
+			if (local.succeeded() || !isProxied(artifactKey)) {
+				p.handle(local);
+				return;
+			}
+			if (isKnownMissing(artifactKey)) {
+				p.fail("Artifact " + artifactKey + " not found upstream");
+				return;
+			}
+			Promise<Void> stored = Promise.promise();
+			if (fetching.putIfAbsent(artifactKey, stored) != null) {
+				fetch(artifactKey, null, p);
+				return;
+			}
+			stored.future().onComplete(res -> fetching.remove(artifactKey, stored));
+			fetch(artifactKey, stored, p);
+		});
+		return p;
+	}
+
+	/**
+	 * The local region of the artifact, or the one announced by the upstream
+	 * repository, whose stream is the empty body of its answer.
+	 */
+	@Override
+	public Promise<FileRegion> getHeadRegion(ArtifactKey artifactKey) {
+		Promise<FileRegion> p = Promise.promise();
+		fileContainer.getRegion(artifactKey).future().onComplete(local -> {
+			if (local.succeeded() || !isProxied(artifactKey)) {
+				p.handle(local);
+				return;
+			}
+			if (isKnownMissing(artifactKey)) {
+				p.fail("Artifact " + artifactKey + " not found upstream");
+				return;
+			}
+			request(HttpMethod.HEAD, artifactKey, p, (response, length) -> {
+				response.pause();
+				p.complete(new FileRegion(artifactKey, response, length, System.currentTimeMillis(), contentType(response)));
+			});
+		});
+		return p;
+	}
+
+	private boolean isKnownMissing(ArtifactKey artifactKey) {
+		Long expiry = missing.get(artifactKey);
+		if (expiry == null || expiry <= System.currentTimeMillis())
+			return false;
+		missingHits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Fetch an artifact, stored unless stored is null.
+	 */
+	private void fetch(ArtifactKey artifactKey, Promise<Void> stored, Promise<FileRegion> p) {
+		fetchCount.incrementAndGet();
+		Promise<Void> failure = Promise.promise();
+		failure.future().onFailure(error -> {
+			if (stored != null)
+				stored.tryFail(error);
+			p.tryFail(error);
+		});
+		request(HttpMethod.GET, artifactKey, failure, (response, length) -> {
+			ReadStream<Buffer> toClient;
+			if (stored != null) {
+				TeeReadStream tee = new TeeReadStream(response);
+				toClient = tee.branch();
+				store(artifactKey, tee.branch(), stored);
+				tee.start();
+			} else {
+				// held until the client reads it
+				response.pause();
+				toClient = response;
+			}
+			String contentType = contentType(response);
+			long lastModifiedTime = System.currentTimeMillis();
+			if (ChecksumStore.isChecksumFile(artifactKey.getFileName())) {
+				// the checksums are small and read whole by the checksum store
+				readFully(toClient).future()
+						.map(content -> new FileRegion(artifactKey, content, lastModifiedTime, contentType))
+						.onComplete(p);
+			} else {
+				p.complete(new FileRegion(artifactKey, toClient, length, lastModifiedTime, contentType));
+			}
+		});
+	}
+
+	/**
+	 * Store an artifact fetched, with the sidecars of its checksums written
+	 * before it is committed, so that it is served with its ETag from the
+	 * first request.
+	 */
+	private void store(ArtifactKey artifactKey, ReadStream<Buffer> toStorage, Promise<Void> stored) {
+		Promise<Void> sidecars = Promise.promise();
+		ReadStream<Buffer> content = toStorage;
+		if (!ChecksumStore.isChecksumFile(artifactKey.getFileName())) {
+			DigestReadStream digests = new DigestReadStream(toStorage, ChecksumStore.ALGORITHMS);
+			digests.beforeEnd(() -> {
+				checksumStore.store(artifactKey, digests).future().onComplete(sidecars);
+				return sidecars.future();
+			});
+			content = digests;
+		}
+		fileContainer.put(artifactKey, content).future().onComplete(res -> {
+			if (res.succeeded()) {
+				missing.remove(artifactKey);
+				vertx.eventBus().publish(ArtifactRepositoryHandler.PUBLISHED_ADDRESS, artifactKey.toJson());
+				log.info("Artifact " + artifactKey + " stored from upstream");
+			} else {
+				log.warn("Unable to store artifact " + artifactKey + " from upstream", res.cause());
+				if (sidecars.future().succeeded())
+					checksumStore.refresh(artifactKey);
+			}
+			stored.handle(res);
+		});
+	}
+
+	private interface ResponseHandler {
+
+		void handle(HttpClientResponse response, long length);
+
+	}
+
+	/**
+	 * Request an artifact to the upstream repository : the handler gets the
+	 * successful answer with its length, -1 when it is not known, the other
+	 * answers and the errors fail the given promise.
+	 */
+	private void request(HttpMethod method, ArtifactKey artifactKey, Promise<?> failure, ResponseHandler handler) {
+		String uri = upstreamUri(artifactKey);
+		RequestOptions options = new RequestOptions()
+				.setHost(upstream.host())
+				.setPort(upstream.port())
+				.setSsl(ssl)
+				.setURI(uri);
+		HttpClientRequest request = client.request(method, upstream, options, response -> {
+			if (response.statusCode() == 404 || response.statusCode() == 410) {
+				missing.put(artifactKey, System.currentTimeMillis() + negativeTtl);
+				failure.fail("Artifact " + artifactKey + " not found upstream");
+				return;
+			}
+			if (response.statusCode() != 200) {
+				log.warn("Upstream repository answered " + response.statusCode() + " for " + uri);
+				failure.fail("Upstream status " + response.statusCode() + " for " + artifactKey);
+				return;
+			}
+
+			String contentLength = response.getHeader("Content-Length");
+			long length;
+			try {
+				length = contentLength != null ? Long.parseLong(contentLength) : -1;
+			} catch (NumberFormatException e) {
+				log.warn("Upstream repository answered an invalid Content-Length " + contentLength + " for " + uri);
+				response.request().reset();
+				failure.fail("Invalid upstream Content-Length " + contentLength + " for " + artifactKey);
+				return;
+			}
+			handler.handle(response, length);
+		});
+		request.setTimeout(timeout);
+		request.exceptionHandler(error -> {
+			log.warn("Unable to request " + uri + " from upstream", error);
+			failure.tryFail(error);
+		});
+		request.end();
+	}
+
+	private static String contentType(HttpClientResponse response) {
+		return response.getHeader("Content-Type") != null ? response.getHeader("Content-Type") : FlatFileContainer.DEFAULT_CONTENT_TYPE;
+	}
+
+	private static Promise<Buffer> readFully(ReadStream<Buffer> stream) {
+		Promise<Buffer> p = Promise.promise();
+		Buffer content = Buffer.buffer();
+		stream.exceptionHandler(p::tryFail);
+		stream.endHandler(v -> p.tryComplete(content));
+		stream.handler(content::appendBuffer);
+		stream.resume();
+		return p;
+	}
+
+	/**
+	 * The hidden files, as the gzip variants, are computed locally : they are
+	 * never requested upstream.
+	 */
+	private static boolean isProxied(ArtifactKey artifactKey) {
+		return !ArtifactCatalog.isHidden(artifactKey.getFileName());
+	}
+
+	private String upstreamUri(ArtifactKey artifactKey) {
+		StringBuilder orgPath = new StringBuilder();
+		for (String part : artifactKey.getGroup().split("\\.")) {
+			if (orgPath.length() > 0)
+				orgPath.append('/');
+			orgPath.append(encode(part));
+		}
+		return pattern
+				.replace("[organisation]", encode(artifactKey.getGroup()))
+				.replace("[orgPath]", orgPath)
+				.replace("[module]", encode(artifactKey.getArtifactName()))
+				.replace("[revision]", encode(artifactKey.getVersion()))
+				.replace("[file]", encode(artifactKey.getFileName()));
+	}
+
+	private static String encode(String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
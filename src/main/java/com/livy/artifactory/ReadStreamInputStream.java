@@ -0,0 +1,148 @@
+package com.livy.artifactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A blocking InputStream over a ReadStream, to feed the stream to the JDK
+ * parsers from a worker thread. At most a few buffers are held : the stream
+ * is paused while the reader is behind, and resumed on its context once the
+ * reader has caught up.
+ */
+public class ReadStreamInputStream extends InputStream {
+
+	private static final int MAX_QUEUED_BUFFERS = 16;
+
+	private final ReadStream<Buffer> stream;
+
+	private final Context context;
+
+	private final ArrayDeque<Buffer> queue = new ArrayDeque<>();
+
+	private Buffer current;
+
+	private int position;
+
+	private boolean paused;
+
+	private boolean ended;
+
+	private boolean closed;
+
+	private Throwable failure;
+
+	/**
+	 * Read the stream, to be called on its context.
+	 */
+	public ReadStreamInputStream(ReadStream<Buffer> stream, Context context) {
+		this.stream = stream;
+		this.context = context;
+		stream.exceptionHandler(this::handleFailure);
+		stream.endHandler(v -> handleEnd());
+		stream.handler(this::handleData);
+		stream.resume();
+	}
+
+	private synchronized void handleData(Buffer buffer) {
+		if (closed)
+			return;
+		queue.add(buffer);
+		if (queue.size() >= MAX_QUEUED_BUFFERS) {
+			paused = true;
+			stream.pause();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * The stream may have been paused again since the resume was requested.
+	 */
+	private synchronized void resume() {
+		if (!paused && !closed)
+			stream.resume();
+	}
+
+	private synchronized void handleEnd() {
+		ended = true;
+		notifyAll();
+	}
+
+	private synchronized void handleFailure(Throwable error) {
+		failure = error;
+		notifyAll();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!fill())
+			return -1;
+		int n = Math.min(len, current.length() - position);
+		current.getBytes(position, position + n, b, off);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public synchronized int available() {
+		return current != null ? current.length() - position : 0;
+	}
+
+	/**
+	 * Stop reading : the rest of the stream is dropped.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		queue.clear();
+		current = null;
+		context.runOnContext(v -> stream.handler(null).resume());
+	}
+
+	/**
+	 * Wait for data when the current buffer is consumed.
+	 *
+	 * @return false at the end of the stream
+	 */
+	private synchronized boolean fill() throws IOException {
+		while (current == null || position == current.length()) {
+			if (closed)
+				throw new IOException("Stream closed");
+			current = queue.poll();
+			position = 0;
+			if (current != null)
+				continue;
+			if (failure != null)
+				throw new IOException(failure);
+			if (ended)
+				return false;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		if (paused && queue.size() <= MAX_QUEUED_BUFFERS / 2) {
+			paused = false;
+			context.runOnContext(v -> resume());
+		}
+		return true;
+	}
+
+}
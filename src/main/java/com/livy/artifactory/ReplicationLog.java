@@ -0,0 +1,388 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.vertx.core.Context;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+/**
+ * Asynchronous replication of the published artifacts to the peer Livy nodes,
+ * one per data center : each artifact accepted by the artifactory route is
+ * appended to a log, and each peer is sent the artifacts of the log from its
+ * own offset, persisted, so a peer which was down catches up once it is back.
+ *
+ * The artifacts are sent with the replica header, so that the peer does not
+ * replicate them again, and with their SHA-1 which the peer verifies before
+ * storing them. A version published at once is logged as a single record of
+ * its files, and sent as a single archive, published at once by the peer too.
+ * The log is stored in the hidden .replication directory of the artifact
+ * directory, and restarted once all the peers have read it.
+ */
+public class ReplicationLog {
+
+	private final static Logger log = LogManager.getLogger(ReplicationLog.class);
+
+	public static final String REPLICATION_DIRECTORY = ".replication";
+
+	/**
+	 * Header of the artifacts sent by a peer, holding the node id of the origin.
+	 */
+	public static final String REPLICA_HEADER = "X-Livy-Replica";
+
+	private static final String LOG_FILE = "replication.log";
+
+	private static final int READ_LENGTH = 64 * 1024;
+
+	/**
+	 * The largest record read, as the one of a version of many files.
+	 */
+	private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * The log is only restarted when it is larger than this length.
+	 */
+	private static final long MAX_LOG_LENGTH = 16 * 1024 * 1024;
+
+	private final Vertx vertx;
+
+	private final File directory;
+
+	private final String nodeId;
+
+	/**
+	 * The context of the peers, where their offsets change.
+	 */
+	private final Context context;
+
+	private final List<ReplicationPeer> peers = new ArrayList<>();
+
+	/**
+	 * The log, guarded by this.
+	 */
+	private FileChannel channel;
+
+	private volatile long length;
+
+	private boolean restarting;
+
+	/**
+	 * One record of the log : an artifact, or the files of a version whose key
+	 * has an empty file name, and the offset of the next record.
+	 */
+	public static class Record {
+
+		final ArtifactKey artifactKey;
+
+		/**
+		 * The files of the version, null for an artifact.
+		 */
+		final List<String> fileNames;
+
+		final long nextOffset;
+
+		Record(ArtifactKey artifactKey, List<String> fileNames, long nextOffset) {
+			this.artifactKey = artifactKey;
+			this.fileNames = fileNames;
+			this.nextOffset = nextOffset;
+		}
+
+		boolean isVersion() {
+			return fileNames != null;
+		}
+
+	}
+
+	/**
+	 * @param fileContainer where the artifacts sent to the peers are read
+	 * @param peerUrls the base URLs of the peers
+	 * @param nodeId the id of this node, sent to the peers
+	 */
+	public ReplicationLog(Vertx vertx, File artifactDirectory, FileContainerMapI fileContainer, List<String> peerUrls, String nodeId) {
+		this.vertx = vertx;
+		this.directory = new File(artifactDirectory, REPLICATION_DIRECTORY);
+		this.nodeId = nodeId;
+		this.context = vertx.getOrCreateContext();
+		ChecksumStore checksumStore = new ChecksumStore(vertx, fileContainer);
+		for (String peerUrl : peerUrls) {
+			peers.add(new ReplicationPeer(vertx, this, fileContainer, checksumStore, peerUrl));
+		}
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	List<ReplicationPeer> getPeers() {
+		return peers;
+	}
+
+	long getLength() {
+		return length;
+	}
+
+	boolean isRestarting() {
+		return restarting;
+	}
+
+	/**
+	 * Open the log, truncated after its last complete record, and start sending
+	 * it to the peers.
+	 */
+	public Promise<Void> open() {
+		Promise<Void> p = Promise.promise();
+		vertx.<Void>executeBlocking(future -> {
+			try {
+				Files.createDirectories(directory.toPath());
+				synchronized (this) {
+					channel = FileChannel.open(new File(directory, LOG_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+							StandardOpenOption.WRITE);
+					length = completeLength();
+					channel.truncate(length);
+					channel.position(length);
+				}
+				for (ReplicationPeer peer : peers) {
+					peer.loadOffset(length);
+				}
+				future.complete();
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, res -> {
+			if (res.failed()) {
+				log.error("Unable to open the replication log", res.cause());
+				p.fail(res.cause());
+				return;
+			}
+			log.info("Replication of " + nodeId + " to " + peers.size() + " peers started, log of " + length + " bytes");
+			context.runOnContext(v -> peers.forEach(ReplicationPeer::wake));
+			p.complete();
+		});
+		return p;
+	}
+
+	/**
+	 * Append an artifact to the log, completed once it is written. The peers are
+	 * then woken up.
+	 */
+	public Promise<Void> append(ArtifactKey artifactKey) {
+		return append(artifactKey, null);
+	}
+
+	/**
+	 * Append a version published at once to the log, as a single record.
+	 *
+	 * @param fileNames the files of the version, without their checksums
+	 */
+	public Promise<Void> appendVersion(ArtifactKey versionKey, List<String> fileNames) {
+		return append(versionKey.withFileName(""), fileNames);
+	}
+
+	private Promise<Void> append(ArtifactKey artifactKey, List<String> fileNames) {
+		Promise<Void> p = Promise.promise();
+		vertx.<Void>executeBlocking(future -> {
+			try {
+				write(artifactKey, fileNames);
+				future.complete();
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, res -> {
+			if (res.failed())
+				log.error("Unable to log the replication of " + artifactKey, res.cause());
+			context.runOnContext(v -> peers.forEach(ReplicationPeer::wake));
+			p.handle(res);
+		});
+		return p;
+	}
+
+	/**
+	 * The complete records from an offset, blocking.
+	 */
+	List<Record> read(long offset) throws IOException {
+		for (int readLength = READ_LENGTH;; readLength *= 4) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(readLength, Math.max(0, length - offset)));
+			synchronized (this) {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position()) < 0)
+						break;
+				}
+			}
+			buffer.flip();
+			List<Record> records = new ArrayList<>();
+			try {
+				while (buffer.hasRemaining()) {
+					ArtifactKey artifactKey = new ArtifactKey(readString(buffer), readString(buffer), readString(buffer), readString(buffer));
+					List<String> fileNames = readFileNames(artifactKey, buffer);
+					records.add(new Record(artifactKey, fileNames, offset + buffer.position()));
+				}
+			} catch (BufferUnderflowException e) {
+				// a record larger than the read is read again whole
+				if (records.isEmpty() && length - offset > readLength) {
+					if (readLength >= MAX_RECORD_LENGTH)
+						throw new IOException("Replication log record too large at " + offset);
+					continue;
+				}
+			}
+			return records;
+		}
+	}
+
+	/**
+	 * Restart the log once all the peers have read it, called on the context of
+	 * the peers after each artifact sent.
+	 */
+	void restartWhenRead() {
+		if (restarting || length < MAX_LOG_LENGTH)
+			return;
+		for (ReplicationPeer peer : peers) {
+			if (peer.getOffset() < length)
+				return;
+		}
+		restarting = true;
+		vertx.<Boolean>executeBlocking(future -> {
+			try {
+				synchronized (this) {
+					// an artifact may have been appended meanwhile
+					for (ReplicationPeer peer : peers) {
+						if (peer.getOffset() < length) {
+							future.complete(false);
+							return;
+						}
+					}
+					channel.truncate(0);
+					channel.position(0);
+					length = 0;
+				}
+				for (ReplicationPeer peer : peers) {
+					peer.saveOffset(0);
+				}
+				future.complete(true);
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, res -> context.runOnContext(v -> {
+			restarting = false;
+			if (res.succeeded() && res.result()) {
+				peers.forEach(peer -> peer.restart());
+				log.info("Replication log read by all the peers, restarted");
+			} else if (res.failed()) {
+				log.error("Unable to restart the replication log", res.cause());
+			}
+			peers.forEach(ReplicationPeer::wake);
+		}));
+	}
+
+	/**
+	 * A record is the four names of the key, and for a version the count of its
+	 * files followed by their names.
+	 */
+	private synchronized void write(ArtifactKey artifactKey, List<String> fileNames) throws IOException {
+		List<byte[]> names = new ArrayList<>();
+		names.add(bytes(artifactKey.getGroup()));
+		names.add(bytes(artifactKey.getArtifactName()));
+		names.add(bytes(artifactKey.getVersion()));
+		names.add(bytes(artifactKey.getFileName()));
+		if (fileNames != null) {
+			fileNames.forEach(fileName -> names.add(bytes(fileName)));
+		}
+		int recordLength = fileNames != null ? 4 : 0;
+		for (byte[] name : names) {
+			recordLength += 2 + name.length;
+		}
+		if (recordLength > MAX_RECORD_LENGTH)
+			throw new IOException("Replication log record of " + recordLength + " bytes too large");
+		ByteBuffer record = ByteBuffer.allocate(recordLength);
+		for (int i = 0; i < names.size(); i++) {
+			if (i == 4)
+				record.putInt(fileNames.size());
+			record.putShort((short) names.get(i).length);
+			record.put(names.get(i));
+		}
+		record.flip();
+		while (record.hasRemaining()) {
+			channel.write(record);
+		}
+		length = channel.position();
+	}
+
+	/**
+	 * The length of the complete records of the log.
+	 */
+	private long completeLength() throws IOException {
+		long offset = 0;
+		ByteBuffer buffer = ByteBuffer.allocate(READ_LENGTH);
+		while (true) {
+			buffer.clear();
+			channel.read(buffer, offset);
+			buffer.flip();
+			int complete = 0;
+			try {
+				while (buffer.hasRemaining()) {
+					ArtifactKey artifactKey = new ArtifactKey(readString(buffer), readString(buffer), readString(buffer), readString(buffer));
+					readFileNames(artifactKey, buffer);
+					complete = buffer.position();
+				}
+			} catch (BufferUnderflowException e) {
+				// the next read starts with this record
+			}
+			if (complete == 0) {
+				if (offset + buffer.capacity() < channel.size() && buffer.capacity() < MAX_RECORD_LENGTH) {
+					// a record larger than the read
+					buffer = ByteBuffer.allocate(buffer.capacity() * 4);
+					continue;
+				}
+				if (offset < channel.size())
+					log.warn("Replication log truncated after " + offset + " bytes");
+				return offset;
+			}
+			offset += complete;
+		}
+	}
+
+	/**
+	 * The files following the key of a version, null for an artifact.
+	 */
+	private static List<String> readFileNames(ArtifactKey artifactKey, ByteBuffer buffer) {
+		if (!artifactKey.getFileName().isEmpty())
+			return null;
+		int count = buffer.getInt();
+		if (count < 0)
+			throw new BufferUnderflowException();
+		List<String> fileNames = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			fileNames.add(readString(buffer));
+		}
+		return fileNames;
+	}
+
+	private static byte[] bytes(String name) {
+		return name.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xffff;
+		if (buffer.remaining() < length)
+			throw new BufferUnderflowException();
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,509 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.net.SocketAddress;
+
+/**
+ * A peer node of the replication, sent the artifacts of the log one after the
+ * other from its offset : a version published at once is sent as a tar
+ * archive of its files, which the peer publishes at once too. A failed
+ * artifact is sent again after a delay growing up to MAX_RETRY_DELAY, and the
+ * offset only moves once the peer has stored it.
+ * An artifact the peer refuses for good, with a client error other than 408
+ * and 429, is logged to the dead letter file of the peer and skipped.
+ *
+ * Its state is only changed on the context of the replication log.
+ */
+public class ReplicationPeer {
+
+	private final static Logger log = LogManager.getLogger(ReplicationPeer.class);
+
+	private static final long MIN_RETRY_DELAY = 500;
+
+	private static final long MAX_RETRY_DELAY = 60_000;
+
+	private static final int TIMEOUT = 60_000;
+
+	private final Vertx vertx;
+
+	private final ReplicationLog replicationLog;
+
+	private final FileContainerMapI fileContainer;
+
+	private final ChecksumStore checksumStore;
+
+	private final String url;
+
+	private final String basePath;
+
+	private final HttpClient client;
+
+	private final SocketAddress peerAddress;
+
+	private final boolean ssl;
+
+	private final File offsetFile;
+
+	private final File deadLetterFile;
+
+	private volatile long offset;
+
+	private boolean sending;
+
+	private long retryDelay = MIN_RETRY_DELAY;
+
+	private long retryTimer = -1;
+
+	private volatile long sentCount;
+
+	private volatile long failureCount;
+
+	private volatile long rejectedCount;
+
+	public ReplicationPeer(Vertx vertx, ReplicationLog replicationLog, FileContainerMapI fileContainer, ChecksumStore checksumStore, String url) {
+		this.vertx = vertx;
+		this.replicationLog = replicationLog;
+		this.fileContainer = fileContainer;
+		this.checksumStore = checksumStore;
+		this.url = url;
+
+		URL peerUrl;
+		try {
+			peerUrl = new URL(url);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Invalid replication peer URL : " + url, e);
+		}
+		this.basePath = peerUrl.getPath().endsWith("/") ? peerUrl.getPath().substring(0, peerUrl.getPath().length() - 1) : peerUrl.getPath();
+		this.peerAddress = SocketAddress.inetSocketAddress(peerUrl.getPort() != -1 ? peerUrl.getPort() : peerUrl.getDefaultPort(), peerUrl.getHost());
+		this.ssl = "https".equals(peerUrl.getProtocol());
+		this.client = vertx.createHttpClient(new HttpClientOptions()
+				.setKeepAlive(true)
+				.setConnectTimeout(TIMEOUT));
+		String fileName = url.replaceAll("[^A-Za-z0-9.-]", "_");
+		this.offsetFile = new File(replicationLog.getDirectory(), fileName + ".offset");
+		this.deadLetterFile = new File(replicationLog.getDirectory(), fileName + ".dead-letter");
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * The bytes of the log not yet sent to the peer.
+	 */
+	public long getLag() {
+		return Math.max(0, replicationLog.getLength() - offset);
+	}
+
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	public long getFailureCount() {
+		return failureCount;
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * Load the persisted offset, blocking : a peer never seen starts at the end
+	 * of the log, an offset beyond it at its start.
+	 */
+	void loadOffset(long length) throws IOException {
+		if (!offsetFile.isFile()) {
+			offset = length;
+			saveOffset(length);
+			return;
+		}
+		try {
+			offset = Long.parseLong(new String(Files.readAllBytes(offsetFile.toPath()), StandardCharsets.US_ASCII).trim());
+		} catch (NumberFormatException e) {
+			log.warn("Invalid replication offset of " + url + ", the log is sent again");
+			offset = 0;
+		}
+		if (offset > length)
+			offset = 0;
+	}
+
+	/**
+	 * Persist an offset, blocking.
+	 */
+	void saveOffset(long offset) throws IOException {
+		File temp = new File(offsetFile.getPath() + ".tmp");
+		Files.write(temp.toPath(), Long.toString(offset).getBytes(StandardCharsets.US_ASCII));
+		Files.move(temp.toPath(), offsetFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * The log has been restarted.
+	 */
+	void restart() {
+		offset = 0;
+	}
+
+	/**
+	 * Send the records of the log not sent yet, unless they are being sent or
+	 * a retry is pending.
+	 */
+	void wake() {
+		if (sending || retryTimer != -1 || replicationLog.isRestarting() || offset >= replicationLog.getLength())
+			return;
+		sending = true;
+		long from = offset;
+		vertx.<List<ReplicationLog.Record>>executeBlocking(future -> {
+			try {
+				future.complete(replicationLog.read(from));
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, res -> {
+			if (res.failed()) {
+				log.error("Unable to read the replication log at " + from, res.cause());
+				retry();
+				return;
+			}
+			sendRecords(res.result(), 0);
+		});
+	}
+
+	private void sendRecords(List<ReplicationLog.Record> records, int index) {
+		if (index == records.size()) {
+			persist().onComplete(v -> {
+				sending = false;
+				replicationLog.restartWhenRead();
+				wake();
+			});
+			return;
+		}
+		ReplicationLog.Record record = records.get(index);
+		(record.isVersion() ? sendVersion(record.artifactKey, record.fileNames) : send(record.artifactKey)).onComplete(res -> {
+			if (res.failed() && res.cause() instanceof RejectedException) {
+				rejectedCount++;
+				log.error("Artifact " + record.artifactKey + " rejected by " + url + ", it is not replicated : " + res.cause().getMessage());
+				deadLetter(record.artifactKey, (RejectedException) res.cause()).onComplete(v -> {
+					retryDelay = MIN_RETRY_DELAY;
+					offset = record.nextOffset;
+					sendRecords(records, index + 1);
+				});
+				return;
+			}
+			if (res.failed()) {
+				failureCount++;
+				log.warn("Unable to replicate " + record.artifactKey + " to " + url + ", retried in " + retryDelay + " ms : " + res.cause().getMessage());
+				persist().onComplete(v -> retry());
+				return;
+			}
+			sentCount++;
+			retryDelay = MIN_RETRY_DELAY;
+			offset = record.nextOffset;
+			sendRecords(records, index + 1);
+		});
+	}
+
+	private Future<Void> persist() {
+		long current = offset;
+		Promise<Void> p = Promise.promise();
+		vertx.<Void>executeBlocking(future -> {
+			try {
+				saveOffset(current);
+				future.complete();
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, res -> {
+			if (res.failed())
+				log.warn("Unable to save the replication offset of " + url, res.cause());
+			p.complete();
+		});
+		return p.future();
+	}
+
+	/**
+	 * Append an artifact rejected by the peer to its dead letter file, as a
+	 * JSON line.
+	 */
+	private Future<Void> deadLetter(ArtifactKey artifactKey, RejectedException rejection) {
+		String line = artifactKey.toJson()
+				.put("time", System.currentTimeMillis())
+				.put("status", rejection.statusCode)
+				.put("message", rejection.getMessage())
+				.encode() + "\n";
+		Promise<Void> p = Promise.promise();
+		vertx.<Void>executeBlocking(future -> {
+			try {
+				Files.write(deadLetterFile.toPath(), line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				future.complete();
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, res -> {
+			if (res.failed())
+				log.error("Unable to write the dead letter file of " + url + " : " + line.trim(), res.cause());
+			p.complete();
+		});
+		return p.future();
+	}
+
+	private void retry() {
+		sending = false;
+		retryTimer = vertx.setTimer(retryDelay, id -> {
+			retryTimer = -1;
+			wake();
+		});
+		retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+	}
+
+	/**
+	 * Send an artifact with its SHA-1. An artifact no more in the repository is
+	 * skipped, any other error reading it is retried.
+	 */
+	private Future<Void> send(ArtifactKey artifactKey) {
+		return fileContainer.getRegion(artifactKey).future()
+				.compose(region -> {
+					if (region.isStream()) {
+						region.getStream().handler(null).resume();
+						return fileContainer.getRegion(artifactKey).future();
+					}
+					return Future.succeededFuture(region);
+				})
+				.compose(region -> {
+					Promise<String> sha1 = Promise.promise();
+					checksumStore.getSha1(region).future().onComplete(res -> sha1.complete(res.succeeded() ? res.result() : null));
+					return sha1.future().compose(hex -> put(region, hex));
+				}, error -> {
+					if (!isMissing(error))
+						return Future.failedFuture(error);
+					log.debug("Artifact " + artifactKey + " no more in the repository, not replicated");
+					return Future.succeededFuture();
+				});
+	}
+
+	/**
+	 * Send the files of a version as an archive, skipped when one of them is
+	 * no more in the repository.
+	 */
+	private Future<Void> sendVersion(ArtifactKey versionKey, List<String> fileNames) {
+		Promise<List<FileRegion>> located = Promise.promise();
+		locate(versionKey, fileNames, new ArrayList<>(), located);
+		return located.future().compose(regions -> post(versionKey, regions), error -> {
+			if (!isMissing(error))
+				return Future.failedFuture(error);
+			log.debug("Version " + versionKey + " no more whole in the repository, not replicated");
+			return Future.succeededFuture();
+		});
+	}
+
+	/**
+	 * Locate the files of a version one after the other, each from the event
+	 * loop : a version may have thousands of files, most of them found at once
+	 * in memory.
+	 */
+	private void locate(ArtifactKey versionKey, List<String> fileNames, List<FileRegion> regions, Promise<List<FileRegion>> p) {
+		if (regions.size() == fileNames.size()) {
+			p.complete(regions);
+			return;
+		}
+		ArtifactKey artifactKey = versionKey.withFileName(fileNames.get(regions.size()));
+		fileContainer.getRegion(artifactKey).future()
+				.compose(region -> {
+					if (region.isStream()) {
+						region.getStream().handler(null).resume();
+						return fileContainer.getRegion(artifactKey).future();
+					}
+					return Future.succeededFuture(region);
+				})
+				.onComplete(res -> {
+					if (res.failed()) {
+						p.fail(res.cause());
+						return;
+					}
+					regions.add(res.result());
+					vertx.runOnContext(v -> locate(versionKey, fileNames, regions, p));
+				});
+	}
+
+	private static boolean isMissing(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof NoSuchFileException || cause instanceof FileNotFoundException)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The client errors of the peer, which would be the same if the artifact was
+	 * sent again.
+	 */
+	private static boolean isRejection(int statusCode) {
+		return statusCode >= 400 && statusCode < 500 && statusCode != 408 && statusCode != 429;
+	}
+
+	private Future<Void> put(FileRegion region, String sha1) {
+		Promise<Void> p = Promise.promise();
+		ArtifactKey artifactKey = region.getKey();
+		HttpClientRequest request = request(HttpMethod.PUT, versionUri(artifactKey) + "/" + encode(artifactKey.getFileName()), p);
+		if (sha1 != null)
+			request.putHeader(ArtifactRepositoryHandler.CHECKSUM_SHA1_HEADER, sha1);
+		request.putHeader("Content-Length", Long.toString(region.getLength()));
+		if (region.isInMemory()) {
+			request.end(region.getContent());
+			return p.future();
+		}
+		vertx.fileSystem().open(region.getPath(), new OpenOptions().setRead(true), open -> {
+			if (open.failed()) {
+				request.reset();
+				p.tryFail(open.cause());
+				return;
+			}
+			AsyncFile file = open.result();
+			file.setReadPos(region.getOffset()).setReadLength(region.getLength());
+			file.pipeTo(request, res -> {
+				file.close();
+				if (res.failed()) {
+					request.reset();
+					p.tryFail(res.cause());
+				}
+			});
+		});
+		return p.future();
+	}
+
+	/**
+	 * Post the files of a version as a tar archive to the version route of the
+	 * peer. A version the peer already has, as when it is sent again after a
+	 * restart, counts as sent.
+	 */
+	private Future<Void> post(ArtifactKey versionKey, List<FileRegion> regions) {
+		Promise<Void> p = Promise.promise();
+		Promise<Void> sent = Promise.promise();
+		sent.future().onComplete(res -> {
+			if (res.failed() && res.cause() instanceof RejectedException && ((RejectedException) res.cause()).statusCode == 409) {
+				log.debug("Version " + versionKey + " already on " + url);
+				p.complete();
+			} else {
+				p.handle(res);
+			}
+		});
+		HttpClientRequest request = request(HttpMethod.POST, versionUri(versionKey), sent);
+		request.putHeader("Content-Type", ArchiveWriter.Format.TAR.getContentType());
+		request.setChunked(true);
+		Promise<Void> written = Promise.promise();
+		write(new ArchiveWriter(vertx, ArchiveWriter.Format.TAR, request), regions, 0, written);
+		written.future().onComplete(res -> {
+			if (res.succeeded()) {
+				request.end();
+			} else {
+				request.reset();
+				sent.tryFail(res.cause());
+			}
+		});
+		return p.future();
+	}
+
+	/**
+	 * Write the entries of an archive one after the other, each from the event
+	 * loop, then its end.
+	 */
+	private void write(ArchiveWriter archive, List<FileRegion> regions, int index, Promise<Void> p) {
+		if (index == regions.size()) {
+			archive.finish().onComplete(p);
+			return;
+		}
+		FileRegion region = regions.get(index);
+		archive.write(region.getKey().getFileName(), region).onComplete(res -> {
+			if (res.failed())
+				p.fail(res.cause());
+			else
+				vertx.runOnContext(v -> write(archive, regions, index + 1, p));
+		});
+	}
+
+	/**
+	 * A request to the peer, completing the given promise with its answer.
+	 */
+	private HttpClientRequest request(HttpMethod method, String uri, Promise<Void> p) {
+		RequestOptions options = new RequestOptions()
+				.setHost(peerAddress.host())
+				.setPort(peerAddress.port())
+				.setSsl(ssl)
+				.setURI(uri);
+		HttpClientRequest request = client.request(method, peerAddress, options, response -> {
+			response.exceptionHandler(p::tryFail);
+			response.bodyHandler(body -> {
+				if (response.statusCode() == 200)
+					p.tryComplete();
+				else if (isRejection(response.statusCode()))
+					p.tryFail(new RejectedException(response.statusCode(), body.toString(StandardCharsets.UTF_8)));
+				else
+					p.tryFail("Peer answered " + response.statusCode());
+			});
+		});
+		request.setTimeout(TIMEOUT);
+		request.exceptionHandler(p::tryFail);
+		request.putHeader(ReplicationLog.REPLICA_HEADER, replicationLog.getNodeId());
+		return request;
+	}
+
+	private String versionUri(ArtifactKey artifactKey) {
+		return basePath + "/artifactory/" + encode(artifactKey.getGroup()) + "/" + encode(artifactKey.getArtifactName()) + "/"
+				+ encode(artifactKey.getVersion());
+	}
+
+	/**
+	 * A client error of the peer.
+	 */
+	private static class RejectedException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		final int statusCode;
+
+		RejectedException(int statusCode, String body) {
+			super("Peer answered " + statusCode + (body.isEmpty() ? "" : " : " + body));
+			this.statusCode = statusCode;
+		}
+
+	}
+
+	private static String encode(String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,225 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Move the versions to the shard owning them by the ring of the
+ * configuration, after a shard has been added or removed, or when sharding a
+ * repository kept in the root directory :
+ *
+ * <pre>
+ * java -cp livy.jar com.livy.artifactory.ShardRebalancer livy.config.properties.xml [--dry-run] [--from directory]...
+ * </pre>
+ *
+ * The shards, the root directory and the directories given with --from, as a
+ * removed shard, are scanned. It runs while the server is stopped.
+ *
+ * A version is moved whole : renamed on the same file system, else copied to
+ * the staging directory of its shard and renamed there, so that it is never
+ * seen partially, then deleted from its old shard. A version found on both
+ * shards, left by an interrupted run, is completed with the files missing from
+ * its new shard. The files of a dedup shard are copied as plain files, their
+ * blobs staying on the old shard.
+ *
+ * A packed storage is not rebalanced, its small files living in the segments
+ * of their shard.
+ */
+public class ShardRebalancer {
+
+	private final static Logger log = LogManager.getLogger(ShardRebalancer.class);
+
+	private final ShardRing ring;
+
+	private final boolean dryRun;
+
+	private long movedVersions;
+
+	private long movedBytes;
+
+	private long errors;
+
+	public ShardRebalancer(ShardRing ring, boolean dryRun) {
+		this.ring = ring;
+		this.dryRun = dryRun;
+	}
+
+	public static void main(String args[]) throws IOException {
+		if (args.length < 1) {
+			System.out.println("usage : ShardRebalancer <xml config file> [--dry-run] [--from directory]...");
+			System.exit(2);
+		}
+		LivyServer.Config config = new LivyServer.Config(args[0]);
+		if (config.shards.isEmpty()) {
+			System.out.println("No shard configured by livy.shards");
+			System.exit(2);
+		}
+		if ("packed".equals(config.storage)) {
+			System.out.println("The packed storage can not be rebalanced, its small files being in the segments of their shard");
+			System.exit(2);
+		}
+		List<File> shards = new ArrayList<>();
+		config.shards.forEach(shard -> shards.add(new File(shard)));
+		ShardRing ring = new ShardRing(shards, config.shardVirtualNodes);
+
+		boolean dryRun = false;
+		Set<File> sources = new LinkedHashSet<>(ring.getShards());
+		sources.add(new File(config.defaultPath).getAbsoluteFile().toPath().normalize().toFile());
+		for (int i = 1; i < args.length; i++) {
+			if ("--dry-run".equals(args[i]))
+				dryRun = true;
+			else if ("--from".equals(args[i]) && i + 1 < args.length)
+				sources.add(new File(args[++i]).getAbsoluteFile().toPath().normalize().toFile());
+			else {
+				System.out.println("Unknown argument : " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		ShardRebalancer rebalancer = new ShardRebalancer(ring, dryRun);
+		for (File source : sources) {
+			rebalancer.rebalance(source);
+		}
+		log.info((dryRun ? "Would move " : "Moved ") + rebalancer.movedVersions + " versions, " + rebalancer.movedBytes + " bytes, "
+				+ rebalancer.errors + " errors");
+		System.exit(rebalancer.errors == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Move the versions of a directory which belong to another shard.
+	 */
+	public void rebalance(File source) {
+		if (!source.isDirectory())
+			return;
+		log.info("Scanning " + source);
+		for (File group : directories(source)) {
+			for (File name : directories(group)) {
+				for (File version : directories(name)) {
+					File shard = ring.getShard(group.getName(), name.getName(), version.getName());
+					if (shard.equals(source))
+						continue;
+					try {
+						move(version, new File(shard, group.getName() + File.separator + name.getName() + File.separator + version.getName()), shard);
+					} catch (IOException e) {
+						errors++;
+						log.error("Unable to move " + version + " to " + shard, e);
+					}
+				}
+				if (!dryRun)
+					deleteIfEmpty(name);
+			}
+			if (!dryRun)
+				deleteIfEmpty(group);
+		}
+	}
+
+	private void move(File version, File target, File shard) throws IOException {
+		long bytes = size(version);
+		movedVersions++;
+		movedBytes += bytes;
+		if (dryRun) {
+			log.info("Would move " + version + " to " + target + ", " + bytes + " bytes");
+			return;
+		}
+
+		Files.createDirectories(target.getParentFile().toPath());
+		if (target.exists()) {
+			complete(version, target);
+		} else {
+			try {
+				Files.move(version.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				log.info("Moved " + version + " to " + target);
+				return;
+			} catch (AtomicMoveNotSupportedException e) {
+				// another disk : copied then renamed
+			}
+			File staging = new File(new File(shard, ArtifactRepositoryHandler.STAGING_DIRECTORY), "rebalance-" + UUID.randomUUID());
+			Files.createDirectories(staging.toPath());
+			try {
+				for (File file : files(version)) {
+					Files.copy(file.toPath(), new File(staging, file.getName()).toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+				}
+				Files.move(staging.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				if (staging.exists())
+					delete(staging);
+			}
+		}
+		delete(version);
+		log.info("Moved " + version + " to " + target);
+	}
+
+	/**
+	 * Copy the files of a version missing from its new shard, each one renamed
+	 * into place.
+	 */
+	private void complete(File version, File target) throws IOException {
+		for (File file : files(version)) {
+			File targetFile = new File(target, file.getName());
+			if (targetFile.exists()) {
+				if (targetFile.length() != file.length())
+					log.warn("Kept " + targetFile + " rather than " + file + " of another length");
+				continue;
+			}
+			Path temp = new File(target, FlatFileContainer.TEMP_FILE_PREFIX + UUID.randomUUID()).toPath();
+			Files.copy(file.toPath(), temp, StandardCopyOption.COPY_ATTRIBUTES);
+			Files.move(temp, targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	private static long size(File version) {
+		long size = 0;
+		for (File file : files(version)) {
+			size += file.length();
+		}
+		return size;
+	}
+
+	/**
+	 * The files of a version, without the uploads in progress.
+	 */
+	private static List<File> files(File version) {
+		List<File> files = new ArrayList<>();
+		File[] list = version.listFiles(f -> f.isFile() && !f.getName().startsWith(FlatFileContainer.TEMP_FILE_PREFIX));
+		if (list != null) {
+			for (File file : list) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private static File[] directories(File directory) {
+		File[] directories = directory.listFiles(f -> f.isDirectory() && !f.getName().startsWith("."));
+		return directories != null ? directories : new File[0];
+	}
+
+	private static void deleteIfEmpty(File directory) {
+		String[] entries = directory.list();
+		if (entries != null && entries.length == 0)
+			directory.delete();
+	}
+
+	private static void delete(File directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory.toPath())) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The consistent hash ring of the shards : each root directory owns
+ * virtualNodes points of the ring, and a version belongs to the shard of the
+ * first point following its hash. Adding a shard only moves the versions
+ * falling before its points, about 1/n of them.
+ *
+ * The whole version is hashed, as group/name/version, so that its files stay
+ * together : a version is published by moving one directory. The points of a
+ * shard are placed from its absolute path, so the order of the shards in the
+ * configuration does not matter.
+ */
+public class ShardRing {
+
+	private final List<File> shards;
+
+	private final long[] points;
+
+	private final int[] owners;
+
+	public ShardRing(List<File> shards, int virtualNodes) {
+		if (shards.isEmpty())
+			throw new IllegalArgumentException("No shard");
+		List<File> roots = new ArrayList<>();
+		for (File shard : shards) {
+			roots.add(shard.getAbsoluteFile().toPath().normalize().toFile());
+		}
+		this.shards = Collections.unmodifiableList(roots);
+
+		int count = roots.size() * Math.max(1, virtualNodes);
+		long[][] ring = new long[count][];
+		int n = 0;
+		for (int shard = 0; shard < roots.size(); shard++) {
+			for (int i = 0; i < Math.max(1, virtualNodes); i++) {
+				ring[n++] = new long[] { hash(roots.get(shard).getPath() + "#" + i), shard };
+			}
+		}
+		Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+		points = new long[count];
+		owners = new int[count];
+		for (int i = 0; i < count; i++) {
+			points[i] = ring[i][0];
+			owners[i] = (int) ring[i][1];
+		}
+	}
+
+	public List<File> getShards() {
+		return shards;
+	}
+
+	public File getShard(ArtifactKey artifactKey) {
+		return getShard(artifactKey.getGroup(), artifactKey.getArtifactName(), artifactKey.getVersion());
+	}
+
+	public File getShard(String group, String name, String version) {
+		return shards.get(getShardIndex(group, name, version));
+	}
+
+	public int getShardIndex(String group, String name, String version) {
+		int i = Arrays.binarySearch(points, hash(group + "/" + name + "/" + version));
+		if (i < 0)
+			i = -i - 1;
+		return owners[i == points.length ? 0 : i];
+	}
+
+	/**
+	 * FNV-1a of the UTF-8 bytes, spread by the finalizer of MurmurHash3 : stable
+	 * across JVMs, unlike String.hashCode, and cheap.
+	 */
+	static long hash(String value) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93fe1a85ec9L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
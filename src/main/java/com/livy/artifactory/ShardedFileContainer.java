@@ -0,0 +1,256 @@
+package com.livy.artifactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import io.vertx.core.Context;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A file container spreading the versions over several root directories,
+ * one per disk, by the consistent hash ring of the shards : each shard is a
+ * container of its own, flat or dedup.
+ *
+ * Each shard has its own I/O queue : at most maxInFlight operations run on a
+ * shard, the next ones wait for them, so a slow or saturated disk does not
+ * hold all the worker threads nor delay the other shards. An upload is not
+ * queued, its duration being the one of the client.
+ *
+ * A version staged out of the file system of its shard is copied to the
+ * hidden .staging directory of the shard before it is published.
+ */
+public class ShardedFileContainer implements FileContainerMapI {
+
+	private final static Logger log = LogManager.getLogger(ShardedFileContainer.class);
+
+	private final Vertx vertx;
+
+	private final ShardRing ring;
+
+	private final int maxInFlight;
+
+	private final List<Shard> shards = new ArrayList<>();
+
+	/**
+	 * Whether a staging directory parent and a shard are on the same file
+	 * system, by "staging parent|shard".
+	 */
+	private final Map<String, Boolean> sameFileSystem = new ConcurrentHashMap<>();
+
+	/**
+	 * @param shardContainer the container of a shard, from its root directory
+	 * @param maxInFlight the operations running at once on a shard
+	 */
+	public ShardedFileContainer(Vertx vertx, ShardRing ring, Function<File, FileContainerMapI> shardContainer, int maxInFlight) {
+		this.vertx = vertx;
+		this.ring = ring;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		for (File root : ring.getShards()) {
+			shards.add(new Shard(root, shardContainer.apply(root)));
+			// versions left staged by a stop during their publication
+			vertx.fileSystem().deleteRecursive(new File(root, ArtifactRepositoryHandler.STAGING_DIRECTORY).getPath(), true, v -> {
+			});
+		}
+		log.info("Artifacts sharded over " + shards.size() + " directories : " + ring.getShards());
+	}
+
+	public List<File> getShardDirectories() {
+		return ring.getShards();
+	}
+
+	public int getInFlightCount(int shard) {
+		return shards.get(shard).inFlight.get();
+	}
+
+	public int getQueuedCount(int shard) {
+		return shards.get(shard).queued.get();
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, FileContent content) {
+		Shard shard = shard(artifactKey);
+		return submit(shard, () -> shard.container.put(artifactKey, content));
+	}
+
+	@Override
+	public Promise<Void> put(ArtifactKey artifactKey, ReadStream<Buffer> content) {
+		return shard(artifactKey).container.put(artifactKey, content);
+	}
+
+	@Override
+	public Promise<Void> putVersion(List<ArtifactKey> artifactKeys, File stagingDirectory) {
+		Shard shard = shard(artifactKeys.get(0));
+		return submit(shard, () -> {
+			Promise<Void> p = Promise.promise();
+			vertx.<File>executeBlocking(future -> {
+				try {
+					future.complete(stageOnShard(shard.root, stagingDirectory));
+				} catch (IOException e) {
+					future.fail(e);
+				}
+			}, false, staged -> {
+				if (staged.failed()) {
+					p.fail(staged.cause());
+					return;
+				}
+				shard.container.putVersion(artifactKeys, staged.result()).future().onComplete(res -> {
+					if (staged.result().equals(stagingDirectory)) {
+						p.handle(res);
+						return;
+					}
+					vertx.fileSystem().deleteRecursive(staged.result().getPath(), true, v -> p.handle(res));
+				});
+			});
+			return p;
+		});
+	}
+
+	@Override
+	public Promise<FileContent> get(ArtifactKey artifactKey) {
+		Shard shard = shard(artifactKey);
+		return submit(shard, () -> shard.container.get(artifactKey));
+	}
+
+	@Override
+	public Promise<FileRegion> getRegion(ArtifactKey artifactKey) {
+		Shard shard = shard(artifactKey);
+		return submit(shard, () -> shard.container.getRegion(artifactKey));
+	}
+
+	private Shard shard(ArtifactKey artifactKey) {
+		return shards.get(ring.getShardIndex(artifactKey.getGroup(), artifactKey.getArtifactName(), artifactKey.getVersion()));
+	}
+
+	/**
+	 * The staging directory itself when it is on the file system of the shard,
+	 * else its copy in the staging directory of the shard : blocking.
+	 */
+	private File stageOnShard(File root, File stagingDirectory) throws IOException {
+		File parent = stagingDirectory.getAbsoluteFile().getParentFile();
+		Boolean same = sameFileSystem.get(parent + "|" + root);
+		if (same == null) {
+			same = Files.getFileStore(parent.toPath()).equals(Files.getFileStore(root.toPath()));
+			sameFileSystem.put(parent + "|" + root, same);
+		}
+		if (same)
+			return stagingDirectory;
+
+		File copy = new File(new File(root, ArtifactRepositoryHandler.STAGING_DIRECTORY), stagingDirectory.getName());
+		Files.createDirectories(copy.toPath());
+		File[] files = stagingDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				Path target = new File(copy, file.getName()).toPath();
+				Files.copy(file.toPath(), target);
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Run an operation on a shard, at once when less than maxInFlight are
+	 * running on it, else once one of them completes. A queued operation runs
+	 * on the context of its caller.
+	 */
+	private <T> Promise<T> submit(Shard shard, Supplier<Promise<T>> operation) {
+		Promise<T> p = Promise.promise();
+		Runnable run = () -> {
+			Promise<T> result;
+			try {
+				result = operation.get();
+			} catch (RuntimeException e) {
+				result = Promise.promise();
+				result.fail(e);
+			}
+			result.future().onComplete(res -> {
+				release(shard);
+				p.handle(res);
+			});
+		};
+		if (shard.tryAcquire(maxInFlight)) {
+			run.run();
+			return p;
+		}
+		Context context = vertx.getOrCreateContext();
+		shard.queued.incrementAndGet();
+		shard.waiting.add(() -> context.runOnContext(v -> run.run()));
+		drain(shard);
+		return p;
+	}
+
+	private void release(Shard shard) {
+		shard.inFlight.decrementAndGet();
+		drain(shard);
+	}
+
+	/**
+	 * Start the waiting operations while the shard has room : called after each
+	 * queuing and each completion, so none is left waiting.
+	 */
+	private void drain(Shard shard) {
+		while (!shard.waiting.isEmpty()) {
+			int running = shard.inFlight.get();
+			if (running >= maxInFlight)
+				return;
+			if (!shard.inFlight.compareAndSet(running, running + 1))
+				continue;
+			Runnable next = shard.waiting.poll();
+			if (next == null) {
+				shard.inFlight.decrementAndGet();
+				continue;
+			}
+			shard.queued.decrementAndGet();
+			next.run();
+		}
+	}
+
+	private static class Shard {
+
+		final File root;
+
+		final FileContainerMapI container;
+
+		final AtomicInteger inFlight = new AtomicInteger();
+
+		final AtomicInteger queued = new AtomicInteger();
+
+		final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+		Shard(File root, FileContainerMapI container) {
+			this.root = root;
+			this.container = container;
+		}
+
+		/**
+		 * Take a place when there is one and no operation is waiting for it.
+		 */
+		boolean tryAcquire(int maxInFlight) {
+			while (true) {
+				int running = inFlight.get();
+				if (running >= maxInFlight || !waiting.isEmpty())
+					return false;
+				if (inFlight.compareAndSet(running, running + 1))
+					return true;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.livy.artifactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import io.vertx.core.Context;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+/**
+ * Coalescing of the concurrent calls of a same operation on a same key : the
+ * first caller runs the operation, the callers arriving while it is in flight
+ * share its result. Nothing is kept once it completes.
+ *
+ * The callers may run on different event loops : the result is handed to each
+ * of them on its own context.
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, Promise<V>> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Run the operation for the key, or join the one already in flight.
+	 */
+	public Promise<V> execute(K key, Supplier<Promise<V>> operation) {
+		Promise<V> leader = Promise.promise();
+		Promise<V> running = inFlight.putIfAbsent(key, leader);
+		if (running != null) {
+			coalesced.incrementAndGet();
+			return follow(running);
+		}
+		Promise<V> result;
+		try {
+			result = operation.get();
+		} catch (RuntimeException e) {
+			inFlight.remove(key, leader);
+			leader.fail(e);
+			return leader;
+		}
+		result.future().onComplete(res -> {
+			inFlight.remove(key, leader);
+			leader.handle(res);
+		});
+		return leader;
+	}
+
+	/**
+	 * Whether an operation is in flight for the key.
+	 */
+	public boolean isRunning(K key) {
+		return inFlight.containsKey(key);
+	}
+
+	/**
+	 * Let the next callers start a new operation for the key, as when the value
+	 * in flight is known to be outdated. The current callers still get it.
+	 */
+	public void forget(K key) {
+		inFlight.remove(key);
+	}
+
+	/**
+	 * The number of calls served by an operation already in flight.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * A promise completed with the result of another one, on the context of the
+	 * caller.
+	 */
+	static <V> Promise<V> follow(Promise<V> running) {
+		Promise<V> p = Promise.promise();
+		Context context = Vertx.currentContext();
+		running.future().onComplete(res -> {
+			if (context == null || context == Vertx.currentContext())
+				p.handle(res);
+			else
+				context.runOnContext(v -> p.handle(res));
+		});
+		return p;
+	}
+
+}
@@ -1,27 +1,25 @@
 package com.livy.artifactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.CompletableFuture;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.file.AsyncFile;
@@ -29,9 +27,9 @@ import io.vertx.core.file.FileProps;
 import io.vertx.core.file.FileSystem;
 import io.vertx.core.file.OpenOptions;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.http.impl.MimeMapping;
-import io.vertx.core.streams.ReadStream;
-import io.vertx.core.streams.WriteStream;
+import io.vertx.core.json.JsonObject;
 
 /**
  * 
@@ -42,9 +40,14 @@ import io.vertx.core.streams.WriteStream;
  * dates based on server deployment times, etc. By using the sha1 we ensure that
  * files with the same ETAG will be cached across all servers.
  * 
- * Calculating the SHA1 is expensive, so we do it in-line with transmitting the
- * file, and we cache the result and only re-check it when the file modification
- * date we have cached changes.
+ * Calculating the SHA1 is expensive, so we cache the result and only re-check
+ * it when the file modification date we have cached changes. The concurrent
+ * requests of a file missing from the cache share a single calculation, done
+ * before sending small files and in-line with transmitting big ones.
+ * 
+ * When the artifacts are sharded, the handler presents the unified view of the
+ * roots : a version is served from its shard, a group or a module from the
+ * first root holding it, with the listing merging all of them.
  * 
  */
 public class StaticFileHandler {
@@ -53,17 +56,109 @@ public class StaticFileHandler {
 
 	private static final String DEFAULT_FILE = "index.html";
 
+	private static final String SHA1_SIDECAR_EXTENSION = ".sha1";
+
 	final Path staticPath;
 	final String staticPathStr;
 	final Vertx vertx;
 
-	private static final Map<String, FileCacheInfo> cacheMap = new ConcurrentHashMap<>();
+	private final GzipVariants gzipVariants;
+
+	private final DirectoryListing directoryListing;
+
+	/**
+	 * The ring of the shards, null when the artifacts are not sharded, and the
+	 * static path followed by the shards.
+	 */
+	private final ShardRing shardRing;
+
+	private final List<Path> roots = new ArrayList<>();
+
+	/**
+	 * The containers packing the small files of the roots, whose files are
+	 * served and listed with the ones of the file system.
+	 */
+	private final List<PackedFileContainer> packedContainers;
+
+	private static final int MAX_CACHED_FILES = 100_000;
+
+	/**
+	 * The handler is shared by the server verticles running on several event
+	 * loops : the cache is striped, and bounded to the most recently requested
+	 * files.
+	 */
+	private final StripedLruMap<String, FileCacheInfo> cacheMap = new StripedLruMap<>(MAX_CACHED_FILES);
+
+	/**
+	 * Files up to this size are hashed before they are sent, so even the first
+	 * requests get the ETag ; bigger ones are hashed while they are sent.
+	 */
+	private static final long MAX_HASHED_LENGTH = 16 * 1024 * 1024;
+
+	private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+	private final SingleFlight<String, String> sha1Flights = new SingleFlight<>();
+
+	/**
+	 * The big files being sent and hashed by a request, by path and last
+	 * modified time.
+	 */
+	private final Set<String> hashing = ConcurrentHashMap.newKeySet();
+
+	private final AtomicLong etagCacheHits = new AtomicLong();
+	private final AtomicLong etagCacheMisses = new AtomicLong();
 
 	public StaticFileHandler(Vertx vertx, String staticPathStr) {
+		this(vertx, staticPathStr, null);
+	}
+
+	public StaticFileHandler(Vertx vertx, String staticPathStr, ShardRing shardRing) {
+		this(vertx, staticPathStr, shardRing, Collections.emptyList());
+	}
+
+	public StaticFileHandler(Vertx vertx, String staticPathStr, ShardRing shardRing, List<PackedFileContainer> packedContainers) {
 		this.vertx = vertx;
 		this.staticPathStr = staticPathStr;
+		this.shardRing = shardRing;
+		this.packedContainers = packedContainers;
+		this.gzipVariants = new GzipVariants(vertx);
+		this.directoryListing = new DirectoryListing(vertx);
 
 		staticPath = FileSystems.getDefault().getPath(staticPathStr).normalize();
+		roots.add(staticPath);
+		if (shardRing != null) {
+			for (File shard : shardRing.getShards()) {
+				if (!roots.contains(shard.toPath()))
+					roots.add(shard.toPath());
+			}
+		}
+
+		// a publication changes the listings of the version directory and of its parents
+		vertx.eventBus().<JsonObject>consumer(ArtifactRepositoryHandler.PUBLISHED_ADDRESS, message -> {
+			ArtifactKey artifactKey = ArtifactKey.fromJson(message.body());
+			File directory = new File(artifactKey.buildDirectoryPath(staticPath.toFile()));
+			for (int i = 0; i < 4 && directory != null; i++, directory = directory.getParentFile()) {
+				directoryListing.invalidate(directory.getPath());
+			}
+			if (shardRing != null)
+				directoryListing.invalidate(artifactKey.buildDirectoryPath(shardRing.getShard(artifactKey)));
+		});
+	}
+
+	public long getEtagCacheHitCount() {
+		return etagCacheHits.get();
+	}
+
+	public long getEtagCacheMissCount() {
+		return etagCacheMisses.get();
+	}
+
+	public long getEtagCoalescedCount() {
+		return sha1Flights.getCoalescedCount();
+	}
+
+	public int getEtagCacheSize() {
+		return cacheMap.size();
 	}
 
 	public void handle(final HttpServerRequest request) {
@@ -75,8 +170,6 @@ public class StaticFileHandler {
 			return;
 		}
 
-		log.info("[" + request.remoteAddress().host() + "] " + request.absoluteURI().toString() + " || " + request.method().name() + " " + pathDecoded);
-
 		if (!"GET".equals(request.method().name())) {
 			sendNotFound(request);
 			return;
@@ -86,15 +179,70 @@ public class StaticFileHandler {
 
 		// Ensure path request is inside statics path
 		if (!requestPath.startsWith(staticPath)) {
-			log.info("Attempt to access outside of path");
+			log.debug("Attempt to access outside of path : " + pathDecoded);
+			sendNotFound(request);
+			return;
+		}
+
+		// the hidden directories of the repository, as the blobs or the staged
+		// versions, are not served
+		if (isHiddenPath(staticPath.relativize(requestPath))) {
+			log.debug("Attempt to access a hidden path : " + pathDecoded);
 			sendNotFound(request);
 			return;
 		}
 
+		if (shardRing != null) {
+			handleShardedPath(request, staticPath.relativize(requestPath));
+			return;
+		}
+
 		handleRequestString(request, requestPath.toString());
 
 	}
 
+	private void handleShardedPath(HttpServerRequest request, Path relativePath) {
+		if (isVersionPath(relativePath)) {
+			File shard = shardRing.getShard(relativePath.getName(0).toString(), relativePath.getName(1).toString(), relativePath.getName(2).toString());
+			handleRequestString(request, shard.toPath().resolve(relativePath).toString());
+			return;
+		}
+		locate(request, relativePath, 0);
+	}
+
+	/**
+	 * Serve the path from the first root holding it.
+	 */
+	private void locate(HttpServerRequest request, Path relativePath, int root) {
+		if (root == roots.size()) {
+			sendNotFound(request);
+			return;
+		}
+		String path = roots.get(root).resolve(relativePath).toString();
+		vertx.fileSystem().props(path, props -> {
+			if (props.failed())
+				locate(request, relativePath, root + 1);
+			else
+				testFileAndSend(request, path, props.result());
+		});
+	}
+
+	/**
+	 * A path in a version, which belongs to a single shard : the hidden
+	 * directories of the static path are not sharded.
+	 */
+	private static boolean isVersionPath(Path relativePath) {
+		return relativePath.getNameCount() >= 3 && !relativePath.getName(0).toString().startsWith(".");
+	}
+
+	private static boolean isHiddenPath(Path relativePath) {
+		for (Path name : relativePath) {
+			if (ArtifactCatalog.isHidden(name.toString()))
+				return true;
+		}
+		return false;
+	}
+
 	private void handleRequestString(final HttpServerRequest request, final String requestStr) {
 		final FileSystem fileSystem = vertx.fileSystem();
 		fileSystem.exists(requestStr, new Handler<AsyncResult<Boolean>>() {
@@ -102,7 +250,8 @@ public class StaticFileHandler {
 			@Override
 			public void handle(AsyncResult<Boolean> exists) {
 				if (!exists.result()) {
-					sendNotFound(request);
+					if (!sendPackedFile(request, requestStr))
+						sendNotFound(request);
 					return;
 				}
 
@@ -124,15 +273,18 @@ public class StaticFileHandler {
 
 				@Override
 				public void handle(AsyncResult<Boolean> exists) {
+					// the query (listing paging, format) is kept apart from the path
 					String absUri = request.absoluteURI();
+					String query = request.query() != null ? "?" + request.query() : "";
+					absUri = absUri.substring(0, absUri.length() - query.length());
 					absUri += absUri.endsWith("/") ? "" : "/";
 					absUri += exists.result() ? DEFAULT_FILE : "";
 
 					log.debug("Redirect : " + absUri);
-					if (!exists.result() && absUri.endsWith("/")) {
-						sendFileListing(request, requestStr);
+					if (!exists.result() && request.path().endsWith("/")) {
+						sendFileListing(request, requestStr, props);
 					} else {
-						sendRedirect(request, absUri);
+						sendRedirect(request, absUri + query);
 					}
 
 				}
@@ -156,75 +308,179 @@ public class StaticFileHandler {
 		if (cacheInfo != null && cacheInfo.lastModifiedTime == props.lastModifiedTime()) {
 			// Last modified time has not changed for this file, we don't need
 			// to recalculate the sha1 of the contents
-			if (etag != null && etag.equals(cacheInfo.etagsha1)) {
-				sendNotChanged(request);
-			} else {
-				sendFile(request, requestStr, cacheInfo);
-			}
-		} else {
-			// Last modified time has changed - we need to send the file and
-			// also calculate sha1 of the contents
-			sendFileAndCache(request, requestStr, props);
+			etagCacheHits.incrementAndGet();
+			sendCachedFile(request, requestStr, cacheInfo, props, etag);
+			return;
 		}
-	}
 
-	protected void sendFileListing(HttpServerRequest request, String requestStr) {
+		etagCacheMisses.incrementAndGet();
+
+		// The concurrent misses of a file, as when a new release lands, share
+		// one read of its sidecar or one computation of its sha1
+		String flightKey = requestStr + '@' + props.lastModifiedTime();
+		sha1Flights.execute(flightKey, () -> resolveSha1(requestStr, props)).future().onComplete(res -> {
+			String sha1 = res.succeeded() ? res.result() : null;
+			if (sha1 != null) {
+				sendCachedFile(request, requestStr, new FileCacheInfo(props.lastModifiedTime(), sha1), props, etag);
+			} else if (!ByteRanges.sendRanges(vertx, request, fileRegion(requestStr, props), null)) {
+				// A big file is sent while its sha1 is calculated, by a single
+				// request at a time. A range request has no sha1 computed as
+				// only a part of the file is read.
+				if (hashing.add(flightKey))
+					sendFileAndCache(request, requestStr, props, flightKey);
+				else
+					sendUnhashedFile(request, requestStr, props);
+			}
+		});
+	}
 
-		vertx.fileSystem().readDir(requestStr, new Handler<AsyncResult<List<String>>>() {
+	/**
+	 * The sha1 of a file missing from the cache : the one computed when the
+	 * artifact was published, read from its sidecar file, or the one of its
+	 * content when it is small enough to be hashed before it is sent. Null when
+	 * it is not known before the file is sent.
+	 */
+	private Promise<String> resolveSha1(String requestStr, FileProps props) {
+		Promise<String> p = Promise.promise();
+		readSha1Sidecar(requestStr, props, sidecarSha1 -> {
+			if (sidecarSha1 == null && props.size() > MAX_HASHED_LENGTH) {
+				p.complete(null);
+				return;
+			}
+			Promise<String> sha1 = sidecarSha1 != null ? Promise.promise() : hashFile(requestStr);
+			if (sidecarSha1 != null)
+				sha1.complete(sidecarSha1);
+			sha1.future().onComplete(res -> {
+				if (res.succeeded())
+					cacheMap.put(requestStr, new FileCacheInfo(props.lastModifiedTime(), res.result()));
+				p.complete(res.succeeded() ? res.result() : null);
+			});
+		});
+		return p;
+	}
 
-			@Override
-			public void handle(AsyncResult<List<String>> fileList) {
-
-				if (fileList.succeeded()) {
-					fileList.result();
-					log.info(Arrays.toString(fileList.result().toArray()));
-					try {
-						request.response().putHeader("Content-Location", request.absoluteURI() + "/");
-						sendModel(request, new IndexModel(URLDecoder.decode(request.path(), "UTF-8"), fileList.result()));
-					} catch (UnsupportedEncodingException e) {
-						sendNotFound(request);
-					}
-				} else {
-					sendNotFound(request);
-				}
+	private Promise<String> hashFile(String requestStr) {
+		Promise<String> p = Promise.promise();
+		vertx.fileSystem().open(requestStr, new OpenOptions().setRead(true).setWrite(false).setCreate(false), event -> {
+			if (event.failed()) {
+				p.fail(event.cause());
+				return;
 			}
+			AsyncFile asyncFile = event.result().setReadBufferSize(HASH_BUFFER_SIZE);
+			DigestReadStream digestStream = new DigestReadStream(asyncFile, DigestReadStream.SHA1);
+			digestStream.exceptionHandler(error -> {
+				asyncFile.close();
+				p.tryFail(error);
+			});
+			digestStream.endHandler(v -> {
+				asyncFile.close();
+				p.tryComplete(digestStream.getHexDigest(DigestReadStream.SHA1));
+			});
+			digestStream.handler(buffer -> {
+			});
 		});
+		return p;
 	}
 
-	protected void sendModel(HttpServerRequest request, Model model) {
-		model.processHttpRequest(request);
+	private void sendCachedFile(HttpServerRequest request, String requestStr, FileCacheInfo cacheInfo, FileProps props, String etag) {
+		if (ByteRanges.ifNoneMatchMatches(etag, cacheInfo.etagsha1) || ByteRanges.ifNoneMatchMatches(etag, cacheInfo.etagsha1 + GzipVariants.GZIP_ETAG_SUFFIX)) {
+			sendNotChanged(request);
+		} else {
+			sendFile(request, requestStr, cacheInfo, props);
+		}
+	}
+
+	/**
+	 * Read the sha1 sidecar file written when the file was published : the
+	 * handler gets null when there is none, or when it is older than the file.
+	 */
+	private void readSha1Sidecar(String requestStr, FileProps props, Handler<String> handler) {
+		// the sidecar of a large file is small, packed when the file is not
+		ArtifactKey artifactKey = packedKey(requestStr);
+		String packedSha1 = artifactKey != null ? packedSha1(artifactKey, props.lastModifiedTime()) : null;
+		if (packedSha1 != null) {
+			handler.handle(packedSha1);
+			return;
+		}
+		String sidecarPath = requestStr + SHA1_SIDECAR_EXTENSION;
+		vertx.fileSystem().props(sidecarPath, sidecarProps -> {
+			if (sidecarProps.failed() || !sidecarProps.result().isRegularFile() || sidecarProps.result().size() > 128
+					|| !ChecksumStore.isCurrent(sidecarProps.result().lastModifiedTime(), props.lastModifiedTime())) {
+				handler.handle(null);
+				return;
+			}
+			vertx.fileSystem().readFile(sidecarPath, content -> {
+				String sha1 = content.succeeded() ? content.result().toString().trim() : null;
+				handler.handle(sha1 != null && sha1.length() == 40 ? sha1 : null);
+			});
+		});
 	}
 
-	private void sendFileAndCache(final HttpServerRequest request, final String requestStr, final FileProps props) {
-		request.response().putHeader("Content-Length", Long.toString(props.size()));
-		int li = requestStr.lastIndexOf('.');
-		if (li != -1 && li != requestStr.length() - 1) {
-			String ext = requestStr.substring(li + 1, requestStr.length());
-			String contentType = MimeMapping.getMimeTypeForExtension(ext);
-			if (contentType != null) {
-				request.response().putHeader("Content-Type", contentType);
+	protected void sendFileListing(HttpServerRequest request, String requestStr, FileProps props) {
+		try {
+			String requestPath = URLDecoder.decode(request.path(), "UTF-8");
+			request.response().putHeader("Content-Location", request.absoluteURI());
+			if (shardRing != null) {
+				Path relativePath = staticPath.relativize(FileSystems.getDefault().getPath(staticPathStr, requestPath).normalize());
+				if (!isVersionPath(relativePath)) {
+					List<String> directories = new ArrayList<>();
+					roots.forEach(root -> directories.add(root.resolve(relativePath).toString()));
+					directoryListing.send(request, staticPath.resolve(relativePath).toString(), directories, requestPath, v -> sendNotFound(request));
+					return;
+				}
 			}
+			directoryListing.send(request, requestStr, requestPath, props.lastModifiedTime(), packedFileNames(requestStr), v -> sendNotFound(request));
+		} catch (UnsupportedEncodingException e) {
+			sendNotFound(request);
 		}
-		OpenOptions oo = new OpenOptions();
-		// null, true, false, false,
-		oo.setPerms(null).setCreate(true).setCreateNew(false).setSync(false);
+	}
+
+	private void sendFileAndCache(final HttpServerRequest request, final String requestStr, final FileProps props, final String hashingKey) {
+		OpenOptions oo = new OpenOptions().setRead(true).setWrite(false).setCreate(false);
 		vertx.fileSystem().open(requestStr, oo, new Handler<AsyncResult<AsyncFile>>() {
 
 			@Override
 			public void handle(AsyncResult<AsyncFile> event) {
 				final AsyncFile asyncFile = event.result();
 				if (asyncFile == null) {
-					request.response().end();
+					hashing.remove(hashingKey);
+					sendNotFound(request);
 					return;
 				}
+				ByteRanges.putValidators(request.response(), null, props.lastModifiedTime());
+				request.response().putHeader("Content-Length", Long.toString(props.size()));
+				int li = requestStr.lastIndexOf('.');
+				if (li != -1 && li != requestStr.length() - 1) {
+					String ext = requestStr.substring(li + 1, requestStr.length());
+					String contentType = MimeMapping.getMimeTypeForExtension(ext);
+					if (contentType != null) {
+						request.response().putHeader("Content-Type", contentType);
+					}
+				}
+				// a client leaving before the end lets the next request hash the file
+				request.response().closeHandler(v -> {
+					if (!request.response().ended()) {
+						hashing.remove(hashingKey);
+						asyncFile.close();
+					}
+				});
+				// so does a read error, the response being cut short
+				asyncFile.exceptionHandler(error -> {
+					log.warn("Unable to read " + requestStr, error);
+					request.response().closeHandler(null);
+					hashing.remove(hashingKey);
+					asyncFile.close();
+					request.response().close();
+				});
 
-				final Sha1PumpToHttp pump = new Sha1PumpToHttp(asyncFile, request.response());
+				final DigestPump pump = new DigestPump(asyncFile, request.response(), DigestReadStream.SHA1);
 				asyncFile.endHandler(new Handler<Void>() {
 
 					@Override
 					public void handle(Void event) {
-						FileCacheInfo fileCacheInfo = new FileCacheInfo(props.lastModifiedTime(), pump.getSHA1Hash());
+						FileCacheInfo fileCacheInfo = new FileCacheInfo(props.lastModifiedTime(), pump.getHexDigest(DigestReadStream.SHA1));
 						cacheMap.put(requestStr, fileCacheInfo);
+						hashing.remove(hashingKey);
 						asyncFile.close();
 
 						// Unfortunately we can't send the new ETAG to this
@@ -239,237 +495,178 @@ public class StaticFileHandler {
 		});
 	}
 
-	private void sendFile(HttpServerRequest request, String requestStr, FileCacheInfo cacheInfo) {
-		request.response().putHeader("ETag", cacheInfo.etagsha1);
+	/**
+	 * Send a file whose sha1 is being calculated by another request, without
+	 * ETag.
+	 */
+	private void sendUnhashedFile(HttpServerRequest request, String requestStr, FileProps props) {
+		ByteRanges.putValidators(request.response(), null, props.lastModifiedTime());
 		request.response().sendFile(requestStr);
 	}
 
-	private void sendNotFound(HttpServerRequest request) {
-		log.warn("not found : " + request.absoluteURI());
-		request.response().setStatusCode(404).end("Not found");
-	}
-
-	private void sendNotChanged(HttpServerRequest request) {
-		request.response().setStatusCode(304).end();
-	}
-
-	private void sendRedirect(HttpServerRequest request, String redirectAddress) {
-
-		request.response().putHeader("Location", redirectAddress);
-		request.response().setStatusCode(301).end("Moved Permanently");
-	}
-
-	private static class FileCacheInfo {
-
-		final long lastModifiedTime;
-		final String etagsha1;
-
-		public FileCacheInfo(long lastModifiedTime, String etagsha1) {
-			this.lastModifiedTime = lastModifiedTime;
-			this.etagsha1 = etagsha1;
+	private void sendFile(HttpServerRequest request, String requestStr, FileCacheInfo cacheInfo, FileProps props) {
+		if (GzipVariants.isCompressible(requestStr)) {
+			request.response().putHeader("Vary", "Accept-Encoding");
+			if (GzipVariants.acceptsGzip(request)) {
+				sendGzipVariant(request, requestStr, cacheInfo, props);
+				return;
+			}
 		}
+		if (ByteRanges.sendRanges(vertx, request, fileRegion(requestStr, props), cacheInfo.etagsha1))
+			return;
 
+		ByteRanges.putValidators(request.response(), cacheInfo.etagsha1, props.lastModifiedTime());
+		request.response().sendFile(requestStr);
 	}
 
 	/**
-	 * A copy of Pump that also creates an SHA1 hash of the stream as it passes
-	 * through. Can be fetched once all data has been pushed through with
-	 * getSHA1Hash()
+	 * Send the precompressed variant of a text file, or the file itself while
+	 * its up to date variant is computed.
 	 */
-	public class Sha1PumpToHttp {
-
-		private final ReadStream<Buffer> readStream;
-		private final WriteStream<Buffer> writeStream;
-		private int pumped;
-		private MessageDigest md;
-
-		/**
-		 * Start the Pump. The Pump can be started and stopped multiple times.
-		 */
-		public Sha1PumpToHttp start() {
-			readStream.handler(dataHandler);
-			return this;
-		}
-
-		/**
-		 * Stop the Pump. The Pump can be started and stopped multiple times.
-		 */
-		public Sha1PumpToHttp stop() {
-			writeStream.drainHandler(null);
-			readStream.handler(null);
-			return this;
-		}
-
-		/**
-		 * Return the total number of bytes pumped by this pump.
-		 */
-		public int bytesPumped() {
-			return pumped;
-		}
-
-		/**
-		 * Return a hex string of the sha1 hash of the data that passed through
-		 */
-		public String getSHA1Hash() {
-			return convertToHex(md.digest());
-		}
-
-		private String convertToHex(byte[] data) {
-			// Create Hex String
-			StringBuffer hexString = new StringBuffer();
-			for (int i = 0; i < data.length; i++) {
-				String h = Integer.toHexString(0xFF & data[i]);
-				while (h.length() < 2)
-					h = "0" + h;
-				hexString.append(h);
-			}
-			return hexString.toString();
-		}
-
-		private final Handler<Void> drainHandler = new Handler<Void>() {
-			@Override
-			public void handle(Void v) {
-				readStream.resume();
-			}
-		};
-
-		private final Handler<Buffer> dataHandler = new Handler<Buffer>() {
-			@Override
-			public void handle(Buffer buffer) {
-				md.update(buffer.getBytes());
-				writeStream.write(buffer);
-				pumped += buffer.length();
-				if (writeStream.writeQueueFull()) {
-					readStream.pause();
-					writeStream.drainHandler(drainHandler);
-				}
-			}
-		};
-
-		public Sha1PumpToHttp(ReadStream<Buffer> rs, WriteStream<Buffer> ws) {
-			readStream = rs;
-			writeStream = ws;
-			try {
-				md = MessageDigest.getInstance("SHA-1");
-			} catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException(e);
+	private void sendGzipVariant(HttpServerRequest request, String requestStr, FileCacheInfo cacheInfo, FileProps props) {
+		String variantPath = GzipVariants.variantPath(requestStr);
+		vertx.fileSystem().props(variantPath, variantProps -> {
+			HttpServerResponse response = request.response();
+			if (variantProps.succeeded() && variantProps.result().lastModifiedTime() >= props.lastModifiedTime()) {
+				GzipVariants.putVariantHeaders(response);
+				ByteRanges.putValidators(response, cacheInfo.etagsha1 + GzipVariants.GZIP_ETAG_SUFFIX, props.lastModifiedTime());
+				response.putHeader("Content-Type", MimeMapping.getMimeTypeForFilename(requestStr));
+				response.sendFile(variantPath);
+			} else {
+				gzipVariants.createFileVariant(requestStr, props.size());
+				ByteRanges.putValidators(response, cacheInfo.etagsha1, props.lastModifiedTime());
+				response.sendFile(requestStr);
 			}
-		}
-
+		});
 	}
 
-	public class Model {
-
-		private final Map<String, String> arguments;
-
-		private final CompletableFuture<String> templateContent;
-
-		public Model(String templateFile) {
-
-			arguments = new HashMap<String, String>();
-			templateContent = new CompletableFuture<>();
-			vertx.fileSystem().readFile(templateFile, result -> {
-				if (result.succeeded())
-					templateContent.complete(result.result().toString());
-				else
-					templateContent.completeExceptionally(result.cause());
-			});
-		}
-
-		public Model(int marker, String resource) {
-
-			arguments = new HashMap<String, String>();
-			templateContent = new CompletableFuture<>();
-			InputStream is = getClass().getClassLoader().getResourceAsStream(resource);
-			byte b[] = new byte[1024];
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			int r = 0;
-			try {
-				while ((r = is.read(b)) > 0) {
-					baos.write(b, 0, r);
-				}
-				templateContent.complete(baos.toString());
-				is.close();
-			} catch (Exception e) {
-				templateContent.completeExceptionally(e);
-			}
+	/**
+	 * Send a file of a version packed by a container, with the sha1 of its
+	 * packed sidecar, or of its content, as ETag : false when there is none.
+	 */
+	private boolean sendPackedFile(HttpServerRequest request, String requestStr) {
+		ArtifactKey artifactKey = packedKey(requestStr);
+		FileRegion packed = artifactKey != null ? getPackedRegion(artifactKey) : null;
+		if (packed == null)
+			return false;
+		String sha1 = packedSha1(artifactKey, packed.getLastModifiedTime());
+		if (sha1 == null)
+			sha1 = sha1(packed.getContent());
+		if (ByteRanges.ifNoneMatchMatches(request.headers().get("If-None-Match"), sha1)) {
+			sendNotChanged(request);
+			return true;
 		}
-
-		public long fileSize() {
-			return 0;
+		String contentType = MimeMapping.getMimeTypeForFilename(requestStr);
+		FileRegion region = new FileRegion(artifactKey, packed.getContent(), packed.getLastModifiedTime(),
+				contentType != null ? contentType : FlatFileContainer.DEFAULT_CONTENT_TYPE);
+		if (!ByteRanges.sendRanges(vertx, request, region, sha1)) {
+			ByteRanges.putValidators(request.response(), sha1, region.getLastModifiedTime());
+			request.response().putHeader("Content-Type", region.getContentType()).end(region.getContent());
 		}
+		return true;
+	}
 
-		public void processHttpRequest(HttpServerRequest request) {
-			vertx.executeBlocking(future -> {
-				try {
-					String content = templateContent.get();
-					for (Entry<String, String> arg : arguments.entrySet()) {
-						content = content.replace("#{" + arg.getKey() + "}", arg.getValue());
-					}
-					future.complete(content);
-
-				} catch (Exception e) {
-					log.error("Unable to process model ", e);
-
-					future.fail(e);
-				}
-
-			}, (Handler<AsyncResult<String>>) res -> {
-				if (res.succeeded()) {
-					request.response()
-							.putHeader("Content-Length", Long.toString(res.result().length()))
-							.putHeader("Content-Type", MimeMapping.getMimeTypeForExtension("html"))
-
-							.write(res.result()).end();
-				} else {
-					sendNotFound(request);
-				}
-			});
+	/**
+	 * The key of a file in a version, null for another path or when no
+	 * container packs files.
+	 */
+	private ArtifactKey packedKey(String pathStr) {
+		Path relativePath = versionRelativePath(pathStr);
+		if (packedContainers.isEmpty() || relativePath == null || relativePath.getNameCount() != 4)
+			return null;
+		return new ArtifactKey(relativePath.getName(0).toString(), relativePath.getName(1).toString(),
+				relativePath.getName(2).toString(), relativePath.getName(3).toString());
+	}
 
+	private FileRegion getPackedRegion(ArtifactKey artifactKey) {
+		for (PackedFileContainer packedContainer : packedContainers) {
+			FileRegion packed = packedContainer.getPackedRegion(artifactKey);
+			if (packed != null)
+				return packed;
 		}
+		return null;
+	}
 
-		public String getContentType() {
-			// TODO Auto-generated method stub
+	/**
+	 * The sha1 of the packed sidecar of a file : null when there is none, or
+	 * when it is older than the file.
+	 */
+	private String packedSha1(ArtifactKey artifactKey, long lastModifiedTime) {
+		FileRegion sidecar = getPackedRegion(artifactKey.withFileName(artifactKey.getFileName() + SHA1_SIDECAR_EXTENSION));
+		if (sidecar == null || !ChecksumStore.isCurrent(sidecar.getLastModifiedTime(), lastModifiedTime))
 			return null;
-		}
+		String sha1 = sidecar.getContent().toString().trim();
+		return sha1.length() == 40 ? sha1 : null;
+	}
 
-		public long getFileSize() {
-			// TODO Auto-generated method stub
-			return 0;
+	private static String sha1(Buffer content) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance(DigestReadStream.SHA1);
+			return DigestReadStream.toHex(digest.digest(content.getBytes()));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
 		}
+	}
 
-		protected void setArgument(String argumentName, String argumentValue) {
-			this.arguments.put(argumentName, argumentValue);
-
+	/**
+	 * The packed files of a version directory.
+	 */
+	private Set<String> packedFileNames(String directoryStr) {
+		Path relativePath = versionRelativePath(directoryStr);
+		if (packedContainers.isEmpty() || relativePath == null || relativePath.getNameCount() != 3)
+			return Collections.emptySet();
+		Set<String> names = new TreeSet<>();
+		for (PackedFileContainer packedContainer : packedContainers) {
+			names.addAll(packedContainer.getFileNames(relativePath.getName(0).toString(), relativePath.getName(1).toString(),
+					relativePath.getName(2).toString()));
 		}
+		return names;
+	}
 
-		protected String escapeString(String s) {
-			return s.replace("\\", "\\\\");
+	/**
+	 * The path relative to its root of a path in a version, null for another
+	 * path.
+	 */
+	private Path versionRelativePath(String pathStr) {
+		Path path = FileSystems.getDefault().getPath(pathStr);
+		Path root = null;
+		for (Path candidate : roots) {
+			if (path.startsWith(candidate) && (root == null || candidate.getNameCount() > root.getNameCount()))
+				root = candidate;
 		}
+		if (root == null)
+			return null;
+		Path relativePath = root.relativize(path);
+		return isVersionPath(relativePath) ? relativePath : null;
+	}
 
+	private FileRegion fileRegion(String requestStr, FileProps props) {
+		return new FileRegion(null, requestStr, 0, props.size(), props.lastModifiedTime(), MimeMapping.getMimeTypeForFilename(requestStr));
+	}
+
+	private void sendNotFound(HttpServerRequest request) {
+		request.response().setStatusCode(404).end("Not found");
 	}
 
-	public class IndexModel extends Model {
+	private void sendNotChanged(HttpServerRequest request) {
+		request.response().setStatusCode(304).end();
+	}
 
-		public IndexModel(String requestStr, List<String> fileList) {
-			super(1, "baseIndex.html");
-			StringBuffer fileListBuff = new StringBuffer("[ ");
-			List<File> files = fileList.stream().map(File::new).collect(Collectors.toList());
+	private void sendRedirect(HttpServerRequest request, String redirectAddress) {
 
-			// fileList.forEach(f -> fileListBuff.append("\"" +
-			// escapeString(s.substring(s.lastIndexOf("\\")+1)) + "\","));
-			// files.stream().map(f -> f.getName() + );
+		request.response().putHeader("Location", redirectAddress);
+		request.response().setStatusCode(301).end("Moved Permanently");
+	}
 
-			files.forEach(f -> fileListBuff.append("\"" + f.getName() + "\","));
-			setArgument("dirList", fileListBuff.substring(0, fileListBuff.length() - 1) + " ]");
-			setArgument("currentDir", "\"" + escapeString(requestStr) + "\"");
+	private static class FileCacheInfo {
 
-		}
+		final long lastModifiedTime;
+		final String etagsha1;
 
-		public long fileSize() {
-			// TODO Auto-generated method stub
-			return 0;
+		public FileCacheInfo(long lastModifiedTime, String etagsha1) {
+			this.lastModifiedTime = lastModifiedTime;
+			this.etagsha1 = etagsha1;
 		}
 
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,71 @@
+package com.livy.artifactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A map bounded to its most recently used entries, split in stripes each
+ * locked on its own : the event loops of the server verticles using it at
+ * once seldom wait for each other. The recency is tracked per stripe, so the
+ * eviction approximates the one of a single LRU map.
+ */
+public class StripedLruMap<K, V> {
+
+	private static final int STRIPES = 16;
+
+	private final List<Map<K, V>> stripes = new ArrayList<>();
+
+	public StripedLruMap(int maxEntries) {
+		int maxStripeEntries = Math.max(1, maxEntries / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes.add(new LinkedHashMap<K, V>(64, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+					return size() > maxStripeEntries;
+				}
+			});
+		}
+	}
+
+	public V get(K key) {
+		Map<K, V> stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.get(key);
+		}
+	}
+
+	public void put(K key, V value) {
+		Map<K, V> stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.put(key, value);
+		}
+	}
+
+	public V remove(K key) {
+		Map<K, V> stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.remove(key);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Map<K, V> stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	private Map<K, V> stripe(K key) {
+		int h = key.hashCode();
+		return stripes.get((h ^ (h >>> 16)) & (STRIPES - 1));
+	}
+
+}
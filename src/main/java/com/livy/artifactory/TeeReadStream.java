@@ -0,0 +1,181 @@
+package com.livy.artifactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A stream read by several consumers at once, as an artifact of the upstream
+ * repository sent to a client while it is stored.
+ *
+ * The source only flows as fast as the slowest branch : it is paused as soon
+ * as one of them is paused. The branches start paused ; a branch resumed
+ * without handler drops its data, so a consumer leaving does not hold the
+ * others.
+ */
+public class TeeReadStream {
+
+	private final ReadStream<Buffer> source;
+
+	private final List<Branch> branches = new ArrayList<>();
+
+	private boolean started;
+
+	private boolean sourcePaused = true;
+
+	private boolean ended;
+
+	public TeeReadStream(ReadStream<Buffer> source) {
+		this.source = source;
+		source.pause();
+	}
+
+	/**
+	 * A new branch of the stream, to be created before it is started.
+	 */
+	public ReadStream<Buffer> branch() {
+		if (started)
+			throw new IllegalStateException("The stream is already started");
+		Branch branch = new Branch();
+		branches.add(branch);
+		return branch;
+	}
+
+	/**
+	 * Read the source, as soon as all the branches are resumed.
+	 */
+	public void start() {
+		started = true;
+		source.handler(this::handleData);
+		source.endHandler(v -> handleEnd());
+		source.exceptionHandler(this::handleFailure);
+		flow();
+	}
+
+	private void handleData(Buffer buffer) {
+		for (Branch branch : branches) {
+			branch.push(buffer);
+		}
+		flow();
+	}
+
+	private void handleEnd() {
+		ended = true;
+		for (Branch branch : branches) {
+			branch.drain();
+		}
+	}
+
+	private void handleFailure(Throwable error) {
+		ended = true;
+		for (Branch branch : branches) {
+			branch.fail(error);
+		}
+	}
+
+	private void flow() {
+		if (!started || ended)
+			return;
+		boolean ready = true;
+		for (Branch branch : branches) {
+			ready &= branch.isReady();
+		}
+		if (ready && sourcePaused) {
+			sourcePaused = false;
+			source.resume();
+		} else if (!ready && !sourcePaused) {
+			sourcePaused = true;
+			source.pause();
+		}
+	}
+
+	private class Branch implements ReadStream<Buffer> {
+
+		private final ArrayDeque<Buffer> pending = new ArrayDeque<>();
+
+		private long demand;
+
+		private boolean endDelivered;
+
+		private Handler<Buffer> handler;
+
+		private Handler<Void> endHandler;
+
+		private Handler<Throwable> exceptionHandler;
+
+		boolean isReady() {
+			return demand > 0 && pending.isEmpty();
+		}
+
+		void push(Buffer buffer) {
+			pending.add(buffer);
+			drain();
+		}
+
+		void drain() {
+			while (demand > 0 && !pending.isEmpty()) {
+				if (demand != Long.MAX_VALUE)
+					demand--;
+				Buffer buffer = pending.poll();
+				Handler<Buffer> dataHandler = handler;
+				if (dataHandler != null)
+					dataHandler.handle(buffer);
+			}
+			if (ended && pending.isEmpty() && !endDelivered) {
+				endDelivered = true;
+				if (endHandler != null)
+					endHandler.handle(null);
+			}
+		}
+
+		void fail(Throwable error) {
+			pending.clear();
+			endDelivered = true;
+			if (exceptionHandler != null)
+				exceptionHandler.handle(error);
+		}
+
+		@Override
+		public Branch exceptionHandler(Handler<Throwable> handler) {
+			exceptionHandler = handler;
+			return this;
+		}
+
+		@Override
+		public Branch handler(Handler<Buffer> handler) {
+			this.handler = handler;
+			return this;
+		}
+
+		@Override
+		public Branch pause() {
+			demand = 0;
+			return this;
+		}
+
+		@Override
+		public Branch resume() {
+			return fetch(Long.MAX_VALUE);
+		}
+
+		@Override
+		public Branch fetch(long amount) {
+			demand = amount == Long.MAX_VALUE || demand + amount < 0 ? Long.MAX_VALUE : demand + amount;
+			drain();
+			flow();
+			return this;
+		}
+
+		@Override
+		public Branch endHandler(Handler<Void> endHandler) {
+			this.endHandler = endHandler;
+			return this;
+		}
+
+	}
+
+}
@@ -0,0 +1,333 @@
+package com.livy.artifactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The files of a whole version received as a zip or tar archive, unpacked in
+ * a staging directory as the archive is read, with their checksums computed
+ * on the way.
+ *
+ * The archive is flat : the entries are stored by their base name, the
+ * directories are ignored, and the checksum files are replaced by the ones
+ * computed.
+ */
+public class VersionArchive {
+
+	private static final int TAR_BLOCK = 512;
+
+	private static final int MAX_ENTRIES = 10_000;
+
+	/**
+	 * Maximum size of the GNU long name and pax headers, read in memory.
+	 */
+	private static final int MAX_NAME_HEADER_SIZE = 64 * 1024;
+
+	private final File stagingDirectory;
+
+	private final Set<String> fileNames = new LinkedHashSet<>();
+
+	public VersionArchive(File stagingDirectory) {
+		this.stagingDirectory = stagingDirectory;
+	}
+
+	/**
+	 * Whether the content type is a zip or tar archive, possibly gzipped.
+	 */
+	public static boolean isArchive(String contentType) {
+		return isZip(contentType) || isTar(contentType) || isGzip(contentType);
+	}
+
+	private static boolean isZip(String contentType) {
+		return contentType.startsWith("application/zip") || contentType.startsWith("application/x-zip-compressed");
+	}
+
+	private static boolean isTar(String contentType) {
+		return contentType.startsWith("application/x-tar");
+	}
+
+	private static boolean isGzip(String contentType) {
+		return contentType.startsWith("application/gzip") || contentType.startsWith("application/x-gzip")
+				|| contentType.startsWith("application/x-gtar") || contentType.startsWith("application/x-compressed-tar");
+	}
+
+	/**
+	 * Unpack an archive, blocking until it is fully read.
+	 *
+	 * @return the names of the files unpacked, checksums included
+	 * @throws IllegalArgumentException when the archive holds no file, an
+	 *             invalid name or the same name twice
+	 */
+	public List<String> unpack(InputStream is, String contentType) throws IOException {
+		if (isZip(contentType)) {
+			try (ZipInputStream zip = new ZipInputStream(is)) {
+				ZipEntry entry;
+				while ((entry = zip.getNextEntry()) != null) {
+					if (!entry.isDirectory())
+						addFile(entry.getName(), zip);
+				}
+			}
+		} else {
+			try (InputStream tar = isGzip(contentType) ? new GZIPInputStream(is, 64 * 1024) : is) {
+				unpackTar(tar);
+			}
+		}
+		return getFileNames();
+	}
+
+	/**
+	 * The file name of an entry, null for the checksum files which are skipped.
+	 * A file received by other means, as a part of a multipart body, is checked
+	 * before it is written in the staging directory, with its checksums.
+	 */
+	public String checkFileName(String name) {
+		String fileName = name.substring(name.lastIndexOf('/') + 1);
+		if (fileName.isEmpty() || fileName.startsWith(".") || fileName.indexOf('\\') != -1)
+			throw new IllegalArgumentException("Invalid file name : " + name);
+		if (ChecksumStore.isChecksumFile(fileName))
+			return null;
+		if (!fileNames.add(fileName))
+			throw new IllegalArgumentException("Duplicate file : " + fileName);
+		if (fileNames.size() > MAX_ENTRIES)
+			throw new IllegalArgumentException("More than " + MAX_ENTRIES + " files");
+		return fileName;
+	}
+
+	public List<String> getFileNames() {
+		if (fileNames.isEmpty())
+			throw new IllegalArgumentException("No file to publish");
+		List<String> names = new ArrayList<>();
+		for (String fileName : fileNames) {
+			names.add(fileName);
+			for (String extension : ChecksumStore.EXTENSIONS) {
+				names.add(fileName + "." + extension);
+			}
+		}
+		return names;
+	}
+
+	private void addFile(String name, InputStream content) throws IOException {
+		String fileName = checkFileName(name);
+		if (fileName == null)
+			return;
+		MessageDigest[] digests = newDigests();
+		byte[] bytes = new byte[64 * 1024];
+		try (OutputStream os = new FileOutputStream(new File(stagingDirectory, fileName))) {
+			int r;
+			while ((r = content.read(bytes)) > 0) {
+				for (MessageDigest md : digests) {
+					md.update(bytes, 0, r);
+				}
+				os.write(bytes, 0, r);
+			}
+		}
+		String[] hexDigests = new String[digests.length];
+		for (int i = 0; i < digests.length; i++) {
+			hexDigests[i] = DigestReadStream.toHex(digests[i].digest());
+		}
+		writeChecksums(fileName, hexDigests);
+	}
+
+	public void writeChecksums(String fileName, String[] hexDigests) throws IOException {
+		for (int i = 0; i < ChecksumStore.EXTENSIONS.length; i++) {
+			Files.write(new File(stagingDirectory, fileName + "." + ChecksumStore.EXTENSIONS[i]).toPath(), hexDigests[i].getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+
+	private static MessageDigest[] newDigests() {
+		MessageDigest[] digests = new MessageDigest[ChecksumStore.ALGORITHMS.length];
+		try {
+			for (int i = 0; i < digests.length; i++) {
+				digests[i] = MessageDigest.getInstance(ChecksumStore.ALGORITHMS[i]);
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		return digests;
+	}
+
+	/**
+	 * Read a ustar archive, with the GNU and pax long names.
+	 */
+	private void unpackTar(InputStream is) throws IOException {
+		byte[] header = new byte[TAR_BLOCK];
+		String longName = null;
+		while (readBlock(is, header)) {
+			if (isZeroBlock(header))
+				break;
+			String name = longName != null ? longName : headerName(header);
+			longName = null;
+			long size = headerSize(header);
+			char type = (char) header[156];
+			if ((type == 'L' || type == 'x') && size > MAX_NAME_HEADER_SIZE)
+				throw new IllegalArgumentException("Tar header of " + size + " bytes, more than " + MAX_NAME_HEADER_SIZE);
+			BoundedInputStream content = new BoundedInputStream(is, size);
+			if (type == 'L') {
+				longName = trimNul(new String(readAll(content), StandardCharsets.UTF_8));
+			} else if (type == 'x') {
+				longName = paxPath(new String(readAll(content), StandardCharsets.UTF_8));
+			} else if (type == '0' || type == '\0' || type == '7') {
+				addFile(name, content);
+			}
+			content.skipRemaining();
+			skipFully(is, (TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK);
+		}
+	}
+
+	private static String headerName(byte[] header) {
+		String name = field(header, 0, 100);
+		if ("ustar".equals(field(header, 257, 6).trim())) {
+			String prefix = field(header, 345, 155);
+			if (!prefix.isEmpty())
+				name = prefix + "/" + name;
+		}
+		return name;
+	}
+
+	private static long headerSize(byte[] header) throws IOException {
+		if ((header[124] & 0x80) != 0) {
+			// base-256 encoding of the big sizes
+			long size = 0;
+			for (int i = 125; i < 136; i++) {
+				size = (size << 8) | (header[i] & 0xff);
+			}
+			return size;
+		}
+		String octal = field(header, 124, 12).trim();
+		try {
+			return octal.isEmpty() ? 0 : Long.parseLong(octal, 8);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid tar header");
+		}
+	}
+
+	/**
+	 * The path of the next entry in pax extended headers, as "len path=value\n"
+	 * records.
+	 */
+	private static String paxPath(String records) {
+		for (String record : records.split("\n")) {
+			int start = record.indexOf(" path=");
+			if (start != -1)
+				return record.substring(start + 6);
+		}
+		return null;
+	}
+
+	private static String field(byte[] header, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && header[end] != 0) {
+			end++;
+		}
+		return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	private static String trimNul(String s) {
+		int nul = s.indexOf('\0');
+		return nul == -1 ? s : s.substring(0, nul);
+	}
+
+	private static boolean isZeroBlock(byte[] block) {
+		for (byte b : block) {
+			if (b != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return false at the end of the stream, before the block
+	 */
+	private static boolean readBlock(InputStream is, byte[] block) throws IOException {
+		int n = 0;
+		while (n < block.length) {
+			int r = is.read(block, n, block.length - n);
+			if (r == -1) {
+				if (n == 0)
+					return false;
+				throw new IOException("Truncated tar archive");
+			}
+			n += r;
+		}
+		return true;
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] bytes = new byte[8192];
+		int r;
+		while ((r = is.read(bytes)) > 0) {
+			baos.write(bytes, 0, r);
+		}
+		return baos.toByteArray();
+	}
+
+	private static void skipFully(InputStream is, long n) throws IOException {
+		byte[] bytes = new byte[TAR_BLOCK];
+		while (n > 0) {
+			int r = is.read(bytes, 0, (int) Math.min(bytes.length, n));
+			if (r == -1)
+				throw new IOException("Truncated tar archive");
+			n -= r;
+		}
+	}
+
+	/**
+	 * The content of a tar entry.
+	 */
+	private static class BoundedInputStream extends InputStream {
+
+		private final InputStream is;
+
+		private long remaining;
+
+		BoundedInputStream(InputStream is, long length) {
+			this.is = is;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0)
+				return -1;
+			int r = is.read(b, off, (int) Math.min(len, remaining));
+			if (r == -1)
+				throw new IOException("Truncated tar archive");
+			remaining -= r;
+			return r;
+		}
+
+		void skipRemaining() throws IOException {
+			skipFully(is, remaining);
+			remaining = 0;
+		}
+
+		@Override
+		public void close() {
+			// the archive stream stays open
+		}
+
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.livy.artifactory;
+
+import java.math.BigInteger;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compare revisions the way ivy's latest-revision strategy does : the
+ * revisions are split on '.', '-', '_' and '+' and between letters and
+ * digits, numeric parts are compared as numbers and rank above text parts,
+ * and "dev" &lt; "rc" &lt; "final" have their special meaning. So 1.0-dev1
+ * &lt; 1.0-rc1 &lt; 1.0 &lt; 1.0.1 &lt; 1.10.
+ */
+public class VersionComparator implements Comparator<String> {
+
+	public static final VersionComparator INSTANCE = new VersionComparator();
+
+	private static final Pattern LETTER_DIGIT = Pattern.compile("([a-zA-Z])(\\d)");
+
+	private static final Pattern DIGIT_LETTER = Pattern.compile("(\\d)([a-zA-Z])");
+
+	private static final Pattern SEPARATORS = Pattern.compile("[\\._\\-\\+]");
+
+	private static final Map<String, Integer> SPECIAL_MEANINGS = new HashMap<>();
+
+	static {
+		SPECIAL_MEANINGS.put("dev", -1);
+		SPECIAL_MEANINGS.put("rc", 1);
+		SPECIAL_MEANINGS.put("final", 2);
+	}
+
+	@Override
+	public int compare(String revision1, String revision2) {
+		String[] parts1 = split(revision1);
+		String[] parts2 = split(revision2);
+
+		int i = 0;
+		for (; i < parts1.length && i < parts2.length; i++) {
+			if (parts1[i].equals(parts2[i]))
+				continue;
+
+			boolean isNumber1 = isNumber(parts1[i]);
+			boolean isNumber2 = isNumber(parts2[i]);
+			if (isNumber1 && !isNumber2)
+				return 1;
+			if (isNumber2 && !isNumber1)
+				return -1;
+			if (isNumber1 && isNumber2) {
+				int c = new BigInteger(parts1[i]).compareTo(new BigInteger(parts2[i]));
+				if (c != 0)
+					return c;
+				continue;
+			}
+
+			Integer special1 = SPECIAL_MEANINGS.get(parts1[i].toLowerCase(Locale.ROOT));
+			Integer special2 = SPECIAL_MEANINGS.get(parts2[i].toLowerCase(Locale.ROOT));
+			if (special1 != null || special2 != null) {
+				int c = Integer.compare(special1 == null ? 0 : special1, special2 == null ? 0 : special2);
+				if (c != 0)
+					return c;
+			}
+			// "RC" and "rc" only differ by their case, which still orders them :
+			// distinct revisions are never equal
+			return parts1[i].compareTo(parts2[i]);
+		}
+		if (i < parts1.length)
+			return isNumber(parts1[i]) ? 1 : -1;
+		if (i < parts2.length)
+			return isNumber(parts2[i]) ? -1 : 1;
+		return revision1.compareTo(revision2);
+	}
+
+	private static String[] split(String revision) {
+		String separated = DIGIT_LETTER.matcher(LETTER_DIGIT.matcher(revision).replaceAll("$1.$2")).replaceAll("$1.$2");
+		return SEPARATORS.split(separated);
+	}
+
+	private static boolean isNumber(String part) {
+		if (part.isEmpty())
+			return false;
+		for (int i = 0; i < part.length(); i++) {
+			if (!Character.isDigit(part.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+}
\ No newline at end of file
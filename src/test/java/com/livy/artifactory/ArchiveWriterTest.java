@@ -0,0 +1,258 @@
+package com.livy.artifactory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.livy.artifactory.ArchiveWriter.Format;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+
+/**
+ * Archives written to a file, read back by the zip classes of the JDK and by
+ * the tar parser of the version publication.
+ */
+public class ArchiveWriterTest {
+
+	private static final long TIME = 1_600_000_000_000L;
+
+	@TempDir
+	Path directory;
+
+	private Vertx vertx;
+
+	@BeforeEach
+	void start() {
+		vertx = Vertx.vertx();
+	}
+
+	@AfterEach
+	void stop() throws Exception {
+		await(Future.<Void>future(p -> vertx.close(p)));
+	}
+
+	@Test
+	void zipRoundTrip() throws Exception {
+		byte[] jar = random(200_000);
+		byte[] ivy = repeat("<dependency org=\"org.example\" name=\"lib\" rev=\"1.0\"/>\n", 100).getBytes(StandardCharsets.UTF_8);
+		Path jarFile = directory.resolve("stored.jar");
+		Files.write(jarFile, concat(random(100), jar));
+
+		List<FileRegion> regions = new ArrayList<>();
+		regions.add(new FileRegion(key("lib-1.0.jar"), jarFile.toString(), 100, jar.length, TIME, FlatFileContainer.DEFAULT_CONTENT_TYPE));
+		regions.add(new FileRegion(key("ivy-1.0.xml"), Buffer.buffer(ivy), TIME, FlatFileContainer.DEFAULT_CONTENT_TYPE));
+		regions.add(new FileRegion(key("empty.txt"), Buffer.buffer(), TIME, FlatFileContainer.DEFAULT_CONTENT_TYPE));
+		Path archive = write(Format.ZIP, regions);
+
+		try (ZipFile zip = new ZipFile(archive.toFile())) {
+			assertEquals(3, zip.size());
+			ZipEntry jarEntry = zip.getEntry("org.example/lib/1.0/lib-1.0.jar");
+			assertEquals(ZipEntry.STORED, jarEntry.getMethod());
+			assertArrayEquals(jar, readAll(zip.getInputStream(jarEntry)));
+			ZipEntry ivyEntry = zip.getEntry("org.example/lib/1.0/ivy-1.0.xml");
+			assertEquals(ZipEntry.DEFLATED, ivyEntry.getMethod());
+			assertTrue(ivyEntry.getCompressedSize() < ivy.length);
+			assertArrayEquals(ivy, readAll(zip.getInputStream(ivyEntry)));
+			assertArrayEquals(new byte[0], readAll(zip.getInputStream(zip.getEntry("org.example/lib/1.0/empty.txt"))));
+		}
+
+		// the streaming readers only see the local headers
+		try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(archive))) {
+			assertEquals("org.example/lib/1.0/lib-1.0.jar", zip.getNextEntry().getName());
+			assertArrayEquals(jar, readAll(zip));
+			assertEquals("org.example/lib/1.0/ivy-1.0.xml", zip.getNextEntry().getName());
+			assertArrayEquals(ivy, readAll(zip));
+			assertEquals("org.example/lib/1.0/empty.txt", zip.getNextEntry().getName());
+			assertNull(zip.getNextEntry());
+		}
+	}
+
+	@Test
+	void crcOfAModifiedFileIsComputedAgain() throws Exception {
+		Path jarFile = directory.resolve("stored.jar");
+		Files.write(jarFile, random(50_000));
+		FileRegion first = new FileRegion(key("lib-1.0.jar"), jarFile.toString(), 0, 50_000, TIME, FlatFileContainer.DEFAULT_CONTENT_TYPE);
+		write(Format.ZIP, Arrays.asList(first));
+		Files.delete(directory.resolve("archive.zip"));
+
+		byte[] modified = random(50_000);
+		modified[0]++;
+		Files.write(jarFile, modified);
+		FileRegion second = new FileRegion(key("lib-1.0.jar"), jarFile.toString(), 0, 50_000, TIME + 1000, FlatFileContainer.DEFAULT_CONTENT_TYPE);
+		Path archive = write(Format.ZIP, Arrays.asList(second));
+
+		// the streaming reader checks the CRC of the stored entry
+		try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(archive))) {
+			assertEquals("org.example/lib/1.0/lib-1.0.jar", zip.getNextEntry().getName());
+			assertArrayEquals(modified, readAll(zip));
+		}
+	}
+
+	@Test
+	void zip64RecordsAreWrittenForManyEntries() throws Exception {
+		int count = 70_000;
+		List<FileRegion> regions = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			regions.add(new FileRegion(key("file-" + i + ".bin"), Buffer.buffer("content " + i), TIME, FlatFileContainer.DEFAULT_CONTENT_TYPE));
+		}
+		Path archive = write(Format.ZIP, regions);
+
+		byte[] bytes = Files.readAllBytes(archive);
+		assertNotEquals(-1, indexOf(bytes, new byte[] { 0x50, 0x4b, 0x06, 0x06 }), "zip64 end of central directory");
+		assertNotEquals(-1, indexOf(bytes, new byte[] { 0x50, 0x4b, 0x06, 0x07 }), "zip64 end of central directory locator");
+
+		try (ZipFile zip = new ZipFile(archive.toFile())) {
+			assertEquals(count, zip.size());
+			for (int i : new int[] { 0, 65_534, 65_535, count - 1 }) {
+				ZipEntry entry = zip.getEntry("org.example/lib/1.0/file-" + i + ".bin");
+				assertEquals("content " + i, new String(readAll(zip.getInputStream(entry)), StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	@Test
+	void smallZipHasNoZip64Records() throws Exception {
+		List<FileRegion> regions = new ArrayList<>();
+		regions.add(new FileRegion(key("lib-1.0.jar"), Buffer.buffer(random(1000)), TIME, FlatFileContainer.DEFAULT_CONTENT_TYPE));
+		byte[] bytes = Files.readAllBytes(write(Format.ZIP, regions));
+
+		assertEquals(-1, indexOf(bytes, new byte[] { 0x50, 0x4b, 0x06, 0x06 }));
+	}
+
+	@Test
+	void tarRoundTrip() throws Exception {
+		byte[] jar = random(70_000);
+		byte[] ivy = "<ivy-module/>".getBytes(StandardCharsets.UTF_8);
+		String prefixed = repeat("a-long-directory-name/", 5) + "prefixed.jar";
+		String gnu = repeat("x", 120) + ".jar";
+
+		List<FileRegion> regions = new ArrayList<>();
+		regions.add(new FileRegion(key("lib-1.0.jar"), Buffer.buffer(jar), TIME, FlatFileContainer.DEFAULT_CONTENT_TYPE));
+		regions.add(new FileRegion(key("ivy-1.0.xml"), Buffer.buffer(ivy), TIME, FlatFileContainer.DEFAULT_CONTENT_TYPE));
+		regions.add(new FileRegion(new ArtifactKey("org.example", "lib", "1.0", prefixed), Buffer.buffer(ivy), TIME, FlatFileContainer.DEFAULT_CONTENT_TYPE));
+		regions.add(new FileRegion(key(gnu), Buffer.buffer(jar), TIME, FlatFileContainer.DEFAULT_CONTENT_TYPE));
+		Path archive = write(Format.TAR, regions);
+		assertEquals(0, Files.size(archive) % 512);
+
+		Path staging = Files.createDirectory(directory.resolve("staging"));
+		try (InputStream is = Files.newInputStream(archive)) {
+			new VersionArchive(staging.toFile()).unpack(is, "application/x-tar");
+		}
+		assertArrayEquals(jar, Files.readAllBytes(staging.resolve("lib-1.0.jar")));
+		assertArrayEquals(ivy, Files.readAllBytes(staging.resolve("ivy-1.0.xml")));
+		assertArrayEquals(ivy, Files.readAllBytes(staging.resolve("prefixed.jar")));
+		assertArrayEquals(jar, Files.readAllBytes(staging.resolve(gnu)));
+	}
+
+	/**
+	 * Write the regions named group/name/version/fileName, as the bundles do.
+	 */
+	private Path write(Format format, List<FileRegion> regions) throws Exception {
+		Path archive = directory.resolve("archive" + format.getExtension());
+		Promise<Void> done = Promise.promise();
+		vertx.fileSystem().open(archive.toString(), new OpenOptions().setWrite(true).setCreateNew(true), open -> {
+			if (open.failed()) {
+				done.fail(open.cause());
+				return;
+			}
+			AsyncFile file = open.result();
+			ArchiveWriter writer = new ArchiveWriter(vertx, format, file);
+			Future<Void> written = Future.succeededFuture();
+			for (FileRegion region : regions) {
+				ArtifactKey artifactKey = region.getKey();
+				String name = artifactKey.getGroup() + "/" + artifactKey.getArtifactName() + "/" + artifactKey.getVersion() + "/" + artifactKey.getFileName();
+				written = written.compose(v -> writer.write(name, region));
+			}
+			written.compose(v -> writer.finish())
+					.compose(v -> Future.<Void>future(file::close))
+					.onComplete(done);
+		});
+		await(done.future());
+		return archive;
+	}
+
+	private static ArtifactKey key(String fileName) {
+		return new ArtifactKey("org.example", "lib", "1.0", fileName);
+	}
+
+	private static byte[] random(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static String repeat(String s, int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] bytes = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, bytes, a.length, b.length);
+		return bytes;
+	}
+
+	private static int indexOf(byte[] bytes, byte[] pattern) {
+		search: for (int i = bytes.length - pattern.length; i >= 0; i--) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (bytes[i + j] != pattern[j])
+					continue search;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] bytes = new byte[8192];
+		int r;
+		while ((r = is.read(bytes)) > 0) {
+			baos.write(bytes, 0, r);
+		}
+		return baos.toByteArray();
+	}
+
+	private static <T> T await(Future<T> future) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		future.onComplete(res -> {
+			if (res.succeeded())
+				result.complete(res.result());
+			else
+				result.completeExceptionally(res.cause());
+		});
+		return result.get(60, TimeUnit.SECONDS);
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.livy.artifactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * The checksum files uploaded by the clients, checked against the computed
+ * ones.
+ */
+public class ChecksumStoreTest {
+
+	private static final ArtifactKey KEY = new ArtifactKey("org.example", "lib", "1.0", "lib-1.0.jar");
+
+	private static final ArtifactKey SHA1_KEY = KEY.withFileName("lib-1.0.jar.sha1");
+
+	@TempDir
+	Path root;
+
+	private Vertx vertx;
+
+	private FlatFileContainer files;
+
+	private ChecksumStore checksumStore;
+
+	@BeforeEach
+	void start() {
+		vertx = Vertx.vertx();
+		files = new FlatFileContainer(vertx, root.toFile());
+		checksumStore = new ChecksumStore(vertx, files);
+	}
+
+	@AfterEach
+	void stop() throws Exception {
+		await(Future.<Void>future(p -> vertx.close(p)));
+	}
+
+	@Test
+	void matchingChecksumKeepsTheComputedSidecar() throws Exception {
+		byte[] jar = random(1000);
+		await(files.put(KEY, new FileContent(KEY, jar, FlatFileContainer.DEFAULT_CONTENT_TYPE)).future());
+		String sha1 = sha1(jar);
+
+		await(checksumStore.verify(SHA1_KEY, Buffer.buffer(sha1.toUpperCase() + "  lib-1.0.jar\n")).future());
+
+		assertEquals(sha1, new String(await(files.get(SHA1_KEY).future()).getContent(), StandardCharsets.US_ASCII));
+		assertEquals(sha1, await(checksumStore.getSha1(await(files.getRegion(KEY).future())).future()));
+	}
+
+	@Test
+	void mismatchingOrInvalidChecksumIsRefused() throws Exception {
+		byte[] jar = random(1000);
+		await(files.put(KEY, new FileContent(KEY, jar, FlatFileContainer.DEFAULT_CONTENT_TYPE)).future());
+
+		assertMismatch(checksumStore.verify(SHA1_KEY, Buffer.buffer("0000000000000000000000000000000000000000")).future());
+		assertMismatch(checksumStore.verify(SHA1_KEY, Buffer.buffer("not a checksum")).future());
+		assertMismatch(checksumStore.verify(KEY.withFileName("lib-1.0.jar.md5"), Buffer.buffer(sha1(jar))).future());
+	}
+
+	@Test
+	void checksumOfAMissingArtifactIsStoredAlone() throws Exception {
+		String sha1 = sha1(random(10));
+
+		await(checksumStore.verify(SHA1_KEY, Buffer.buffer(sha1 + " *lib-1.0.jar")).future());
+
+		assertEquals(sha1, new String(await(files.get(SHA1_KEY).future()).getContent(), StandardCharsets.US_ASCII));
+	}
+
+	private static void assertMismatch(Future<Void> verified) {
+		ExecutionException e = assertThrows(ExecutionException.class, () -> await(verified));
+		assertTrue(e.getCause() instanceof DigestReadStream.DigestMismatchException, e.getCause().toString());
+	}
+
+	private static String sha1(byte[] content) throws Exception {
+		return DigestReadStream.toHex(MessageDigest.getInstance(DigestReadStream.SHA1).digest(content));
+	}
+
+	private static byte[] random(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static <T> T await(Future<T> future) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		future.onComplete(res -> {
+			if (res.succeeded())
+				result.complete(res.result());
+			else
+				result.completeExceptionally(res.cause());
+		});
+		return result.get(10, TimeUnit.SECONDS);
+	}
+
+}
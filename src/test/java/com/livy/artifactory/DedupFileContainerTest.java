@@ -0,0 +1,139 @@
+package com.livy.artifactory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+
+/**
+ * Artifacts linked to their blobs.
+ */
+public class DedupFileContainerTest {
+
+	private static final ArtifactKey KEY = new ArtifactKey("org.example", "lib", "1.0", "lib-1.0.jar");
+
+	@TempDir
+	Path root;
+
+	private Vertx vertx;
+
+	private DedupFileContainer dedup;
+
+	@BeforeEach
+	void start() {
+		vertx = Vertx.vertx();
+		dedup = new DedupFileContainer(vertx, root.toFile());
+	}
+
+	@AfterEach
+	void stop() throws Exception {
+		await(Future.<Void>future(p -> vertx.close(p)));
+	}
+
+	@Test
+	void digestOfThePublicationIsReused() throws Exception {
+		byte[] jar = random(100_000);
+		List<String> asked = new CopyOnWriteArrayList<>();
+		await(open(jar).compose(file -> {
+			DigestReadStream digests = new DigestReadStream(file, ChecksumStore.ALGORITHMS) {
+
+				@Override
+				public String getHexDigest(String algorithm) {
+					asked.add(algorithm);
+					return super.getHexDigest(algorithm);
+				}
+			};
+			return dedup.put(KEY, digests).future();
+		}));
+
+		assertTrue(asked.contains(DigestReadStream.SHA256));
+		Path blob = dedup.blobFile(sha256(jar)).toPath();
+		assertTrue(Files.isSameFile(blob, artifact(KEY)));
+		assertArrayEquals(jar, Files.readAllBytes(artifact(KEY)));
+	}
+
+	@Test
+	void knownContentIsLinkedAtItsPublicationTime() throws Exception {
+		byte[] jar = random(10_000);
+		await(dedup.put(KEY, new FileContent(KEY, jar, FlatFileContainer.DEFAULT_CONTENT_TYPE)).future());
+		Path blob = dedup.blobFile(sha256(jar)).toPath();
+		Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+
+		long published = System.currentTimeMillis() - 1000;
+		ArtifactKey copy = KEY.withFileName("copy-1.0.jar");
+		await(open(jar).compose(file -> dedup.put(copy, file).future()));
+
+		assertTrue(Files.isSameFile(blob, artifact(copy)));
+		assertTrue(Files.getLastModifiedTime(artifact(copy)).toMillis() >= published);
+		// the links share it
+		assertEquals(Files.getLastModifiedTime(artifact(copy)), Files.getLastModifiedTime(artifact(KEY)));
+	}
+
+	@Test
+	void stagedFileKeepsItsTime() throws Exception {
+		byte[] jar = random(10_000);
+		await(dedup.put(KEY, new FileContent(KEY, jar, FlatFileContainer.DEFAULT_CONTENT_TYPE)).future());
+		Path blob = dedup.blobFile(sha256(jar)).toPath();
+		Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+
+		Path staging = Files.createDirectories(root.resolve(".staging/version"));
+		FileTime staged = Files.getLastModifiedTime(Files.write(staging.resolve("lib-2.0.jar"), jar));
+		ArtifactKey version = new ArtifactKey("org.example", "lib", "2.0", "lib-2.0.jar");
+		await(dedup.putVersion(Collections.singletonList(version), staging.toFile()).future());
+
+		assertTrue(Files.isSameFile(blob, artifact(version)));
+		assertEquals(staged, Files.getLastModifiedTime(artifact(version)));
+	}
+
+	private Future<AsyncFile> open(byte[] content) throws Exception {
+		Path source = Files.write(Files.createTempFile(Files.createDirectories(root.resolve("sources")), "source", ".jar"), content);
+		return Future.<AsyncFile>future(p -> vertx.fileSystem().open(source.toString(), new OpenOptions().setRead(true).setWrite(false), p));
+	}
+
+	private Path artifact(ArtifactKey artifactKey) {
+		return Paths.get(artifactKey.buildFilePath(root.toFile()));
+	}
+
+	private static String sha256(byte[] content) throws Exception {
+		return DigestReadStream.toHex(MessageDigest.getInstance(DigestReadStream.SHA256).digest(content));
+	}
+
+	private static byte[] random(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static <T> T await(Future<T> future) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		future.onComplete(res -> {
+			if (res.succeeded())
+				result.complete(res.result());
+			else
+				result.completeExceptionally(res.cause());
+		});
+		return result.get(10, TimeUnit.SECONDS);
+	}
+
+}
@@ -0,0 +1,105 @@
+package com.livy.artifactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.vertx.core.Future;
+
+/**
+ * The directories forced with the commits of files in new directories.
+ */
+public class GroupCommitTest {
+
+	@TempDir
+	Path root;
+
+	@Test
+	void parentsOfCreatedDirectoriesAreForcedUpToTheRoot() throws Exception {
+		GroupCommit groupCommit = new GroupCommit(0).start();
+		Path version = root.resolve("org.example/lib/1.0");
+
+		assertEquals(Arrays.asList(root.resolve("org.example/lib"), root.resolve("org.example"), root), groupCommit.createDirectories(version));
+		assertTrue(Files.isDirectory(version));
+
+		// created by a commit still in flight : a commit finding them forces their parents too
+		assertEquals(Arrays.asList(version, root.resolve("org.example/lib"), root.resolve("org.example"), root),
+				groupCommit.createDirectories(version.resolve("sub")));
+
+		Path file = Files.write(version.resolve("sub/.livy-upload-1"), new byte[] { 1 });
+		Path target = version.resolve("sub/lib-1.0.jar");
+		await(groupCommit.commit(Collections.singletonList(file), groupCommit.createDirectories(version.resolve("sub")), () -> {
+			Files.move(file, target);
+			return target.getParent();
+		}).future());
+
+		assertTrue(Files.exists(target));
+		assertEquals(Collections.emptyList(), groupCommit.createDirectories(version.resolve("sub")));
+		assertEquals(Collections.singletonList(version), groupCommit.createDirectories(version.resolve("other")));
+	}
+
+	@Test
+	void errorFailsTheBatchAndTheCommitterGoesOn() throws Exception {
+		GroupCommit groupCommit = new GroupCommit(0).start();
+		Future<Void> failed = groupCommit.commit(Collections.emptyList(), () -> {
+			throw new StackOverflowError();
+		}).future();
+
+		ExecutionException e = assertThrows(ExecutionException.class, () -> await(failed));
+		assertTrue(e.getCause() instanceof StackOverflowError, e.getCause().toString());
+		await(groupCommit.commit(Collections.emptyList(), () -> root).future());
+	}
+
+	@Test
+	void stopCommitsThePendingFilesAndRefusesTheLaterOnes() throws Exception {
+		GroupCommit groupCommit = new GroupCommit(0).start();
+		CountDownLatch renaming = new CountDownLatch(1);
+		CountDownLatch stopping = new CountDownLatch(1);
+		Future<Void> first = groupCommit.commit(Collections.emptyList(), () -> {
+			renaming.countDown();
+			try {
+				stopping.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			return root;
+		}).future();
+		renaming.await();
+		Future<Void> pending = groupCommit.commit(Collections.emptyList(), () -> root).future();
+
+		Future<Void> stopped = groupCommit.stop().future();
+		stopping.countDown();
+		await(stopped);
+
+		assertTrue(first.succeeded());
+		assertTrue(pending.succeeded());
+		assertEquals(2, groupCommit.getCommitCount());
+		ExecutionException e = assertThrows(ExecutionException.class, () -> await(groupCommit.commit(Collections.emptyList(), () -> root).future()));
+		assertTrue(e.getCause() instanceof IllegalStateException, e.getCause().toString());
+	}
+
+	private static <T> T await(Future<T> future) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		future.onComplete(res -> {
+			if (res.succeeded())
+				result.complete(res.result());
+			else
+				result.completeExceptionally(res.cause());
+		});
+		return result.get(10, TimeUnit.SECONDS);
+	}
+
+}
@@ -0,0 +1,236 @@
+package com.livy.artifactory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+
+/**
+ * The small files packed into the segments, and the index rebuilt from them.
+ */
+public class PackedFileContainerTest {
+
+	private static final int SEGMENT_LENGTH = 1024 * 1024;
+
+	private static final ArtifactKey KEY = new ArtifactKey("org.example", "lib", "1.0", "ivy-1.0.xml");
+
+	@TempDir
+	Path root;
+
+	private Vertx vertx;
+
+	private PackedFileContainer packed;
+
+	@BeforeEach
+	void start() {
+		vertx = Vertx.vertx();
+		packed = reload();
+	}
+
+	@AfterEach
+	void stop() throws Exception {
+		await(Future.<Void>future(p -> vertx.close(p)));
+	}
+
+	@Test
+	void tornRecordEndsTheSegment() throws Exception {
+		byte[] first = random(100);
+		byte[] torn = random(4000);
+		put(KEY, first);
+		ArtifactKey tornKey = KEY.withFileName("torn.xml");
+		put(tornKey, torn);
+
+		// the end of the last record never reached the disk
+		Path segment = segmentFiles().get(0);
+		int tornOffset = indexOf(Files.readAllBytes(segment), torn);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(100), tornOffset + torn.length - 100);
+		}
+
+		packed = reload();
+		assertArrayEquals(first, get(KEY));
+		assertFalse(packed.getFileNames("org.example", "lib", "1.0").contains("torn.xml"));
+		assertThrows(ExecutionException.class, () -> get(tornKey));
+
+		// appended over the torn record, whose rest is erased
+		byte[] next = random(10);
+		ArtifactKey nextKey = KEY.withFileName("next.xml");
+		put(nextKey, next);
+		packed = reload();
+		assertArrayEquals(first, get(KEY));
+		assertArrayEquals(next, get(nextKey));
+		assertEquals(2, packed.getFileCount());
+	}
+
+	@Test
+	void smallFileReplacedByALargeOneAndBack() throws Exception {
+		byte[] small = random(100);
+		byte[] large = random(PackedFileContainer.MAX_PACKED_LENGTH + 1000);
+		put(KEY, small);
+		assertNotNull(packed.getPackedRegion(KEY));
+
+		put(KEY, large);
+		assertNull(packed.getPackedRegion(KEY));
+		assertArrayEquals(large, get(KEY));
+		packed = reload();
+		assertNull(packed.getPackedRegion(KEY));
+		assertArrayEquals(large, get(KEY));
+
+		byte[] smallAgain = random(200);
+		put(KEY, smallAgain);
+		assertNotNull(packed.getPackedRegion(KEY));
+		assertFalse(new File(KEY.buildFilePath(root.toFile())).exists());
+		packed = reload();
+		assertArrayEquals(smallAgain, get(KEY));
+		assertEquals(1, packed.getFileCount());
+	}
+
+	@Test
+	void versionCountsOnceItsMarkerIsInPlace() throws Exception {
+		ArtifactKey jar = KEY.withFileName("lib-1.0.jar");
+		byte[] ivy = random(300);
+		byte[] content = random(PackedFileContainer.MAX_PACKED_LENGTH * 2);
+		Path staging = Files.createDirectories(root.resolve(".staging/version"));
+		Files.write(staging.resolve(KEY.getFileName()), ivy);
+		Files.write(staging.resolve(jar.getFileName()), content);
+
+		await(packed.putVersion(Arrays.asList(KEY, jar), staging.toFile()).future());
+		assertArrayEquals(ivy, get(KEY));
+		assertArrayEquals(content, get(jar));
+		packed = reload();
+		assertArrayEquals(ivy, get(KEY));
+
+		// as if the version had not been moved into place
+		File[] markers = new File(KEY.buildDirectoryPath(root.toFile())).listFiles(file -> file.getName().startsWith(".livy-packed-"));
+		assertEquals(1, markers.length);
+		Files.delete(markers[0].toPath());
+		packed = reload();
+		assertEquals(0, packed.getFileCount());
+		assertThrows(ExecutionException.class, () -> get(KEY));
+	}
+
+	@Test
+	void compactionKeepsTheLiveRecordsAndTheRemovals() throws Exception {
+		// a first segment mostly live, holding a small file replaced later
+		ArtifactKey replaced = KEY.withFileName("replaced.xml");
+		put(replaced, random(100));
+		List<ArtifactKey> liveKeys = new ArrayList<>();
+		for (int i = 0; packed.getSegmentCount() < 2; i++) {
+			ArtifactKey liveKey = KEY.withFileName("live-" + i + ".xml");
+			put(liveKey, content(i));
+			liveKeys.add(liveKey);
+		}
+
+		// a second one mostly overwritten, holding the removal of the replaced file
+		byte[] large = random(PackedFileContainer.MAX_PACKED_LENGTH + 1);
+		put(replaced, large);
+		byte[] kept = random(1000);
+		ArtifactKey keptKey = KEY.withFileName("kept.xml");
+		put(keptKey, kept);
+		byte[] last = null;
+		for (int i = 0; packed.getSegmentCount() < 3; i++) {
+			last = content(-i);
+			put(KEY, last);
+		}
+
+		Method compact = PackedFileContainer.class.getDeclaredMethod("compact");
+		compact.setAccessible(true);
+		compact.invoke(packed);
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (packed.getCompactionCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(1, packed.getCompactionCount());
+		assertEquals(2, segmentFiles().size());
+		assertArrayEquals(kept, get(keptKey));
+
+		packed = reload();
+		assertArrayEquals(kept, get(keptKey));
+		assertArrayEquals(last, get(KEY));
+		assertNull(packed.getPackedRegion(replaced));
+		assertArrayEquals(large, get(replaced));
+		for (int i = 0; i < liveKeys.size(); i++) {
+			assertArrayEquals(content(i), get(liveKeys.get(i)));
+		}
+		assertEquals(liveKeys.size() + 2, packed.getFileCount());
+	}
+
+	private PackedFileContainer reload() {
+		return new PackedFileContainer(vertx, root.toFile(), new FlatFileContainer(vertx, root.toFile()), null, SEGMENT_LENGTH);
+	}
+
+	private void put(ArtifactKey artifactKey, byte[] content) throws Exception {
+		await(packed.put(artifactKey, new FileContent(artifactKey, content, FlatFileContainer.DEFAULT_CONTENT_TYPE)).future());
+	}
+
+	private byte[] get(ArtifactKey artifactKey) throws Exception {
+		return await(packed.get(artifactKey).future()).getContent();
+	}
+
+	private List<Path> segmentFiles() throws Exception {
+		try (Stream<Path> files = Files.list(root.resolve(PackedFileContainer.PACKED_DIRECTORY))) {
+			List<Path> segments = new ArrayList<>();
+			files.sorted().forEach(segments::add);
+			assertFalse(segments.isEmpty());
+			return segments;
+		}
+	}
+
+	private static int indexOf(byte[] bytes, byte[] content) {
+		for (int i = 0; i + content.length <= bytes.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + content.length), content))
+				return i;
+		}
+		throw new AssertionError("Content not found");
+	}
+
+	private static byte[] content(int seed) {
+		byte[] bytes = new byte[4000];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] random(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static <T> T await(Future<T> future) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		future.onComplete(res -> {
+			if (res.succeeded())
+				result.complete(res.result());
+			else
+				result.completeExceptionally(res.cause());
+		});
+		return result.get(10, TimeUnit.SECONDS);
+	}
+
+}
@@ -0,0 +1,243 @@
+package com.livy.artifactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+
+/**
+ * The proxy in front of an upstream repository served by a local HTTP server.
+ */
+public class ProxyFileContainerTest {
+
+	private static final long NEGATIVE_TTL = 500;
+
+	private static final ArtifactKey KEY = new ArtifactKey("org.example", "lib", "1.0", "lib-1.0.jar");
+
+	@TempDir
+	Path root;
+
+	private Vertx vertx;
+
+	private HttpServer upstream;
+
+	private volatile Handler<HttpServerRequest> upstreamHandler;
+
+	private volatile String upstreamUri;
+
+	private volatile HttpMethod upstreamMethod;
+
+	private final AtomicInteger upstreamRequests = new AtomicInteger();
+
+	private ProxyFileContainer proxy;
+
+	@BeforeEach
+	void start() throws Exception {
+		vertx = Vertx.vertx();
+		upstream = await(Future.<HttpServer>future(p -> vertx.createHttpServer()
+				.requestHandler(request -> {
+					upstreamRequests.incrementAndGet();
+					upstreamUri = request.uri();
+					upstreamMethod = request.method();
+					upstreamHandler.handle(request);
+				})
+				.listen(0, p)));
+		proxy = new ProxyFileContainer(vertx, new FlatFileContainer(vertx, root.toFile()),
+				"http://localhost:" + upstream.actualPort() + "/repo", "[organisation]/[module]/[revision]/[file]", NEGATIVE_TTL, 5_000);
+	}
+
+	@AfterEach
+	void stop() throws Exception {
+		await(Future.<Void>future(p -> vertx.close(p)));
+	}
+
+	@Test
+	void missIsFetchedAndPersisted() throws Exception {
+		upstreamHandler = request -> request.response().end("jar content");
+		Future<Void> published = published();
+
+		assertEquals("jar content", await(proxy.getRegion(KEY).future().compose(this::readFully)).toString());
+		await(published);
+
+		assertEquals("/repo/org.example/lib/1.0/lib-1.0.jar", upstreamUri);
+		assertEquals("jar content", new String(Files.readAllBytes(root.resolve("org.example/lib/1.0/lib-1.0.jar")), "UTF-8"));
+		// stored with its checksums, so that it has its ETag
+		assertEquals(DigestReadStream.toHex(MessageDigest.getInstance(DigestReadStream.SHA1).digest("jar content".getBytes(StandardCharsets.UTF_8))),
+				new String(Files.readAllBytes(root.resolve("org.example/lib/1.0/lib-1.0.jar.sha1")), StandardCharsets.US_ASCII));
+		assertFalse(await(proxy.getRegion(KEY).future()).isStream());
+		assertEquals(1, upstreamRequests.get());
+		assertEquals(1, proxy.getFetchCount());
+	}
+
+	@Test
+	void concurrentMissesAreStreamedWithoutWaitingForTheStore() throws Exception {
+		List<HttpServerRequest> held = new CopyOnWriteArrayList<>();
+		upstreamHandler = request -> {
+			request.response().setChunked(true).write("jar ");
+			held.add(request);
+		};
+		Future<Void> published = published();
+
+		FileRegion first = await(proxy.getRegion(KEY).future());
+		FileRegion second = await(proxy.getRegion(KEY).future());
+		Promise<Void> started = Promise.promise();
+		Future<Buffer> secondContent = readFully(second, buffer -> started.tryComplete());
+		// the second request gets the content while the first one is still stored
+		await(started.future());
+		Future<Buffer> firstContent = readFully(first);
+		held.forEach(request -> request.response().end("content"));
+
+		assertEquals("jar content", await(firstContent).toString());
+		assertEquals("jar content", await(secondContent).toString());
+		await(published);
+		assertEquals("jar content", new String(Files.readAllBytes(root.resolve("org.example/lib/1.0/lib-1.0.jar")), "UTF-8"));
+		assertEquals(2, upstreamRequests.get());
+		assertEquals(2, proxy.getFetchCount());
+	}
+
+	@Test
+	void headOfAMissIsAskedUpstream() throws Exception {
+		upstreamHandler = request -> request.response().putHeader("Content-Length", "11").end();
+
+		FileRegion region = await(proxy.getHeadRegion(KEY).future());
+		assertEquals(11, region.getLength());
+		assertEquals(0, await(readFully(region)).length());
+		assertEquals(HttpMethod.HEAD, upstreamMethod);
+		assertEquals(0, proxy.getFetchCount());
+		assertEquals(new ArrayList<>(), files());
+
+		upstreamHandler = request -> request.response().setStatusCode(404).end();
+		ArtifactKey missingKey = KEY.withFileName("missing.jar");
+		assertThrows(ExecutionException.class, () -> await(proxy.getHeadRegion(missingKey).future()));
+		assertThrows(ExecutionException.class, () -> await(proxy.getRegion(missingKey).future()));
+		assertEquals(2, upstreamRequests.get());
+	}
+
+	@Test
+	void missingArtifactIsRememberedForTheNegativeTtl() throws Exception {
+		upstreamHandler = request -> request.response().setStatusCode(404).end();
+
+		assertThrows(ExecutionException.class, () -> await(proxy.getRegion(KEY).future()));
+		assertThrows(ExecutionException.class, () -> await(proxy.getRegion(KEY).future()));
+		assertEquals(1, upstreamRequests.get());
+		assertEquals(1, proxy.getMissingHitCount());
+
+		Thread.sleep(NEGATIVE_TTL + 100);
+		assertThrows(ExecutionException.class, () -> await(proxy.getRegion(KEY).future()));
+		assertEquals(2, upstreamRequests.get());
+	}
+
+	@Test
+	void upstreamFailureLeavesNoPartialFile() throws Exception {
+		upstreamHandler = request -> {
+			request.response().putHeader("Content-Length", "100000");
+			request.response().write(Buffer.buffer(new byte[1000]));
+			vertx.setTimer(100, t -> request.connection().close());
+		};
+
+		assertThrows(ExecutionException.class, () -> await(proxy.getRegion(KEY).future().compose(this::readFully)));
+
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (!files().isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(new ArrayList<>(), files());
+	}
+
+	@Test
+	void invalidContentLengthFailsTheFetch() throws Exception {
+		upstreamHandler = request -> {
+			request.response().putHeader("Content-Length", "nope");
+			request.response().end("jar content");
+		};
+
+		assertThrows(ExecutionException.class, () -> await(proxy.getRegion(KEY).future()));
+		assertEquals(new ArrayList<>(), files());
+
+		// the failed fetch is not followed by the next requests
+		upstreamHandler = request -> request.response().end("jar content");
+		assertEquals("jar content", await(proxy.getRegion(KEY).future().compose(this::readFully)).toString());
+		assertEquals(2, upstreamRequests.get());
+	}
+
+	@Test
+	void keyPartsAreEncoded() throws Exception {
+		upstreamHandler = request -> request.response().end("jar content");
+
+		ArtifactKey key = new ArtifactKey("org.example", "lib", "1.0", "lib 1.0#a.jar");
+		assertEquals("jar content", await(proxy.getRegion(key).future().compose(this::readFully)).toString());
+		assertEquals("/repo/org.example/lib/1.0/lib%201.0%23a.jar", upstreamUri);
+	}
+
+	private Future<Void> published() {
+		Promise<Void> p = Promise.promise();
+		vertx.eventBus().consumer(ArtifactRepositoryHandler.PUBLISHED_ADDRESS, message -> p.tryComplete());
+		return p.future();
+	}
+
+	private List<Path> files() throws IOException {
+		try (Stream<Path> walk = Files.walk(root)) {
+			return walk.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+	}
+
+	private Future<Buffer> readFully(FileRegion region) {
+		return readFully(region, buffer -> {
+		});
+	}
+
+	private Future<Buffer> readFully(FileRegion region, Handler<Buffer> received) {
+		if (!region.isStream())
+			return Future.future(p -> vertx.fileSystem().readFile(region.getPath(), p));
+		Promise<Buffer> p = Promise.promise();
+		Buffer content = Buffer.buffer();
+		region.getStream().exceptionHandler(p::tryFail);
+		region.getStream().endHandler(v -> p.tryComplete(content));
+		region.getStream().handler(buffer -> {
+			content.appendBuffer(buffer);
+			received.handle(buffer);
+		});
+		region.getStream().resume();
+		return p.future();
+	}
+
+	private static <T> T await(Future<T> future) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		future.onComplete(res -> {
+			if (res.succeeded())
+				result.complete(res.result());
+			else
+				result.completeExceptionally(res.cause());
+		});
+		return result.get(10, TimeUnit.SECONDS);
+	}
+
+}
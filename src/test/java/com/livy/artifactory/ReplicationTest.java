@@ -0,0 +1,343 @@
+package com.livy.artifactory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Servers replicating to each other on ephemeral ports.
+ */
+public class ReplicationTest {
+
+	private static final long TIMEOUT = 15_000;
+
+	@TempDir
+	Path directory;
+
+	private final List<Node> nodes = new ArrayList<>();
+
+	private Vertx vertx;
+
+	@AfterEach
+	void stop() throws Exception {
+		for (Node node : nodes) {
+			node.stop();
+		}
+		if (vertx != null)
+			await(Future.<Void>future(p -> vertx.close(p)));
+	}
+
+	@Test
+	void publicationIsReplicated() throws Exception {
+		int portA = freePort();
+		int portB = freePort();
+		Node a = node("a", portA, portB).start();
+		Node b = node("b", portB, portA).start();
+		byte[] jar = random(100_000);
+
+		assertEquals(200, put(a.url("org.example/lib/1.0/lib-1.0.jar"), jar, null));
+
+		awaitStatus(b.url("org.example/lib/1.0/lib-1.0.jar"), 200);
+		assertArrayEquals(jar, get(b.url("org.example/lib/1.0/lib-1.0.jar")));
+
+		// both ways
+		byte[] ivy = "<ivy-module/>".getBytes(StandardCharsets.UTF_8);
+		assertEquals(200, put(b.url("org.example/lib/1.0/ivy-1.0.xml"), ivy, null));
+		awaitStatus(a.url("org.example/lib/1.0/ivy-1.0.xml"), 200);
+		assertArrayEquals(ivy, get(a.url("org.example/lib/1.0/ivy-1.0.xml")));
+	}
+
+	@Test
+	void versionIsReplicated() throws Exception {
+		int portA = freePort();
+		int portB = freePort();
+		Node a = node("a", portA, portB).start();
+		Node b = node("b", portB, portA).start();
+		Map<String, byte[]> files = new LinkedHashMap<>();
+		files.put("lib-2.0.jar", random(100_000));
+		files.put("ivy-2.0.xml", "<ivy-module/>".getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(200, postVersion(a.url("org.example/lib/2.0"), files));
+
+		awaitStatus(b.url("org.example/lib/2.0/lib-2.0.jar"), 200);
+		for (Map.Entry<String, byte[]> file : files.entrySet()) {
+			assertArrayEquals(file.getValue(), get(b.url("org.example/lib/2.0/" + file.getKey())));
+		}
+		assertEquals(200, status(b.url("org.example/lib/2.0/lib-2.0.jar.sha1")));
+	}
+
+	@Test
+	void versionIsSentAsOneArchive() throws Exception {
+		vertx = Vertx.vertx();
+		List<String> received = new CopyOnWriteArrayList<>();
+		Path unpacked = Files.createDirectories(directory.resolve("unpacked"));
+		List<String> fileNames = new CopyOnWriteArrayList<>();
+		HttpServer peer = await(Future.<HttpServer>future(p -> vertx.createHttpServer()
+				.requestHandler(request -> request.bodyHandler(body -> {
+					received.add(request.method() + " " + request.path() + " " + request.getHeader("Content-Type"));
+					try {
+						fileNames.addAll(new VersionArchive(unpacked.toFile()).unpack(new ByteArrayInputStream(body.getBytes()), request.getHeader("Content-Type")));
+						request.response().end();
+					} catch (IOException | RuntimeException e) {
+						request.response().setStatusCode(400).end(String.valueOf(e));
+					}
+				}))
+				.listen(0, p)));
+		Node a = node("a", freePort(), peer.actualPort()).start();
+		Map<String, byte[]> files = new LinkedHashMap<>();
+		files.put("lib-2.0.jar", random(10_000));
+		files.put("lib-2.0-sources.jar", random(20_000));
+		files.put("ivy-2.0.xml", "<ivy-module/>".getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(200, postVersion(a.url("org.example/lib/2.0"), files));
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (received.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		Thread.sleep(500);
+		assertEquals(Collections.singletonList("POST /artifactory/org.example/lib/2.0 " + ArchiveWriter.Format.TAR.getContentType()), received);
+		for (Map.Entry<String, byte[]> file : files.entrySet()) {
+			assertTrue(fileNames.contains(file.getKey()), file.getKey());
+			assertArrayEquals(file.getValue(), Files.readAllBytes(unpacked.resolve(file.getKey())));
+		}
+	}
+
+	@Test
+	void restartedPeerCatchesUp() throws Exception {
+		int portA = freePort();
+		int portB = freePort();
+		Node a = node("a", portA, portB).start();
+		Node b = node("b", portB).start();
+		byte[] first = random(1000);
+		assertEquals(200, put(a.url("org.example/lib/1.0/first.jar"), first, null));
+		awaitStatus(b.url("org.example/lib/1.0/first.jar"), 200);
+
+		b.stop();
+		byte[] second = random(2000);
+		assertEquals(200, put(a.url("org.example/lib/1.0/second.jar"), second, null));
+		Thread.sleep(1000);
+		b.start();
+
+		awaitStatus(b.url("org.example/lib/1.0/second.jar"), 200);
+		assertArrayEquals(second, get(b.url("org.example/lib/1.0/second.jar")));
+	}
+
+	@Test
+	void mismatchedChecksumIsRejected() throws Exception {
+		int portB = freePort();
+		Node b = node("b", portB).start();
+
+		assertEquals(400, put(b.url("org.example/lib/1.0/lib-1.0.jar"), random(1000), "0000000000000000000000000000000000000000"));
+		assertEquals(404, status(b.url("org.example/lib/1.0/lib-1.0.jar")));
+	}
+
+	@Test
+	void rejectedArtifactIsDeadLetteredAndSkipped() throws Exception {
+		vertx = Vertx.vertx();
+		List<String> received = new CopyOnWriteArrayList<>();
+		HttpServer peer = await(Future.<HttpServer>future(p -> vertx.createHttpServer()
+				.requestHandler(request -> request.bodyHandler(body -> {
+					received.add(request.path());
+					if (request.path().endsWith("rejected.jar"))
+						request.response().setStatusCode(400).end("Checksum mismatch");
+					else
+						request.response().end();
+				}))
+				.listen(0, p)));
+		Node a = node("a", freePort(), peer.actualPort()).start();
+
+		assertEquals(200, put(a.url("org.example/lib/1.0/rejected.jar"), random(1000), null));
+		assertEquals(200, put(a.url("org.example/lib/1.0/accepted.jar"), random(1000), null));
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (received.size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(2, received.size());
+		assertTrue(received.get(1).endsWith("accepted.jar"));
+
+		Path deadLetter;
+		try (Stream<Path> files = Files.list(a.root.resolve(ReplicationLog.REPLICATION_DIRECTORY))) {
+			deadLetter = files.filter(file -> file.toString().endsWith(".dead-letter")).findFirst().get();
+		}
+		List<String> lines = Files.readAllLines(deadLetter);
+		assertEquals(1, lines.size());
+		JsonObject rejection = new JsonObject(lines.get(0));
+		assertEquals("rejected.jar", rejection.getString("fileName"));
+		assertEquals(400, rejection.getInteger("status"));
+	}
+
+	private Node node(String name, int port, int... peers) throws IOException {
+		Node node = new Node(Files.createDirectories(directory.resolve(name)), port, peers);
+		nodes.add(node);
+		return node;
+	}
+
+	private static class Node {
+
+		final Path root;
+
+		final int port;
+
+		final Properties properties = new Properties();
+
+		LivyServer server;
+
+		Node(Path root, int port, int... peers) {
+			this.root = root;
+			this.port = port;
+			StringBuilder peerUrls = new StringBuilder();
+			for (int peer : peers) {
+				peerUrls.append(peerUrls.length() > 0 ? "," : "").append("http://localhost:").append(peer);
+			}
+			properties.setProperty("livy.port", Integer.toString(port));
+			properties.setProperty("livy.rootArtifactDirectory", root.toString());
+			properties.setProperty("livy.instances", "1");
+			properties.setProperty("livy.admin.port", "0");
+			properties.setProperty("livy.accessLog.file", "");
+			properties.setProperty("livy.replication.peers", peerUrls.toString());
+			properties.setProperty("livy.replication.nodeId", "node-" + port);
+		}
+
+		Node start() throws Exception {
+			server = new LivyServer(new LivyServer.Config(properties));
+			await(server.start().future());
+			return this;
+		}
+
+		void stop() throws Exception {
+			if (server != null)
+				await(server.stop().future());
+			server = null;
+		}
+
+		String url(String path) {
+			return "http://localhost:" + port + "/artifactory/" + path;
+		}
+
+	}
+
+	private static int put(String url, byte[] content, String sha1) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("PUT");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(content.length);
+		if (sha1 != null)
+			connection.setRequestProperty(ArtifactRepositoryHandler.CHECKSUM_SHA1_HEADER, sha1);
+		try (OutputStream os = connection.getOutputStream()) {
+			os.write(content);
+		}
+		int status = connection.getResponseCode();
+		connection.disconnect();
+		return status;
+	}
+
+	private static int postVersion(String url, Map<String, byte[]> files) throws IOException {
+		String boundary = "livy-" + System.nanoTime();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for (Map.Entry<String, byte[]> file : files.entrySet()) {
+			body.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"" + file.getKey()
+					+ "\"\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+			body.write(file.getValue());
+			body.write("\r\n".getBytes(StandardCharsets.UTF_8));
+		}
+		body.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.size());
+		connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+		try (OutputStream os = connection.getOutputStream()) {
+			body.writeTo(os);
+		}
+		int status = connection.getResponseCode();
+		connection.disconnect();
+		return status;
+	}
+
+	private static int status(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		int status = connection.getResponseCode();
+		connection.disconnect();
+		return status;
+	}
+
+	private static byte[] get(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		try (InputStream is = connection.getInputStream()) {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] bytes = new byte[8192];
+			int r;
+			while ((r = is.read(bytes)) > 0) {
+				content.write(bytes, 0, r);
+			}
+			return content.toByteArray();
+		}
+	}
+
+	private static void awaitStatus(String url, int expected) throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		int status;
+		while ((status = status(url)) != expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		assertEquals(expected, status, url);
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static byte[] random(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static <T> T await(Future<T> future) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		future.onComplete(res -> {
+			if (res.succeeded())
+				result.complete(res.result());
+			else
+				result.completeExceptionally(res.cause());
+		});
+		return result.get(TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+}
@@ -0,0 +1,214 @@
+package com.livy.artifactory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Archives built in memory, unpacked in a staging directory.
+ */
+public class VersionArchiveTest {
+
+	private static final String LONG_DIRECTORY = "a-directory-name-long-enough/to-overflow-the-hundred-bytes/of-the-name-field/of-a-ustar-header/";
+
+	@TempDir
+	Path staging;
+
+	@Test
+	void ustarArchiveIsUnpacked() throws Exception {
+		byte[] jar = random(70_000);
+		byte[] ivy = "<ivy-module/>".getBytes(StandardCharsets.UTF_8);
+		Tar tar = new Tar()
+				.entry("lib/", new byte[0], '5')
+				.entry("lib/lib-1.0.jar", jar, '0')
+				.entry("ivy-1.0.xml", ivy, '0')
+				.entry("ivy-1.0.xml.sha1", "not the checksum".getBytes(StandardCharsets.US_ASCII), '0');
+
+		VersionArchive archive = new VersionArchive(staging.toFile());
+		assertEquals(Arrays.asList("lib-1.0.jar", "lib-1.0.jar.sha1", "lib-1.0.jar.md5", "lib-1.0.jar.sha256",
+				"ivy-1.0.xml", "ivy-1.0.xml.sha1", "ivy-1.0.xml.md5", "ivy-1.0.xml.sha256"),
+				archive.unpack(new ByteArrayInputStream(tar.toBytes()), "application/x-tar"));
+
+		assertArrayEquals(jar, Files.readAllBytes(staging.resolve("lib-1.0.jar")));
+		assertArrayEquals(ivy, Files.readAllBytes(staging.resolve("ivy-1.0.xml")));
+		assertEquals(sha1(ivy), new String(Files.readAllBytes(staging.resolve("ivy-1.0.xml.sha1")), StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	void gnuLongNameIsUnpacked() throws Exception {
+		byte[] jar = random(1000);
+		String name = LONG_DIRECTORY + "lib-1.0.jar";
+		Tar tar = new Tar()
+				.entry("././@LongLink", (name + "\0").getBytes(StandardCharsets.UTF_8), 'L')
+				.entry(name.substring(0, 100), jar, '0');
+
+		VersionArchive archive = new VersionArchive(staging.toFile());
+		archive.unpack(new ByteArrayInputStream(tar.toBytes()), "application/x-tar");
+
+		assertArrayEquals(jar, Files.readAllBytes(staging.resolve("lib-1.0.jar")));
+	}
+
+	@Test
+	void paxPathIsUnpacked() throws Exception {
+		byte[] jar = random(1000);
+		String record = " path=" + LONG_DIRECTORY + "lib-1.0.jar\n";
+		int length = record.length() + 3;
+		Tar tar = new Tar()
+				.entry("PaxHeaders/lib-1.0.jar", (length + record).getBytes(StandardCharsets.UTF_8), 'x')
+				.entry("truncated-name", jar, '0');
+
+		VersionArchive archive = new VersionArchive(staging.toFile());
+		archive.unpack(new ByteArrayInputStream(tar.toBytes()), "application/x-tar");
+
+		assertArrayEquals(jar, Files.readAllBytes(staging.resolve("lib-1.0.jar")));
+	}
+
+	@Test
+	void gzippedTarIsUnpacked() throws Exception {
+		byte[] jar = random(200_000);
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+			gzip.write(new Tar().entry("lib-1.0.jar", jar, '0').toBytes());
+		}
+
+		VersionArchive archive = new VersionArchive(staging.toFile());
+		archive.unpack(new ByteArrayInputStream(gzipped.toByteArray()), "application/gzip");
+
+		assertArrayEquals(jar, Files.readAllBytes(staging.resolve("lib-1.0.jar")));
+	}
+
+	@Test
+	void zipArchiveIsUnpacked() throws Exception {
+		byte[] jar = random(70_000);
+		ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(zipped)) {
+			zip.putNextEntry(new ZipEntry("lib/"));
+			zip.putNextEntry(new ZipEntry("lib/lib-1.0.jar"));
+			zip.write(jar);
+		}
+
+		VersionArchive archive = new VersionArchive(staging.toFile());
+		archive.unpack(new ByteArrayInputStream(zipped.toByteArray()), "application/zip");
+
+		assertArrayEquals(jar, Files.readAllBytes(staging.resolve("lib-1.0.jar")));
+		assertEquals(sha1(jar), new String(Files.readAllBytes(staging.resolve("lib-1.0.jar.sha1")), StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	void oversizedLongNameIsRejected() throws Exception {
+		Tar tar = new Tar()
+				.entry("././@LongLink", new byte[64 * 1024 + 1], 'L')
+				.entry("lib-1.0.jar", random(10), '0');
+
+		VersionArchive archive = new VersionArchive(staging.toFile());
+		assertThrows(IllegalArgumentException.class, () -> archive.unpack(new ByteArrayInputStream(tar.toBytes()), "application/x-tar"));
+	}
+
+	@Test
+	void oversizedPaxHeaderIsRejected() throws Exception {
+		Tar tar = new Tar()
+				.entry("PaxHeaders/lib-1.0.jar", new byte[64 * 1024 + 1], 'x')
+				.entry("lib-1.0.jar", random(10), '0');
+
+		VersionArchive archive = new VersionArchive(staging.toFile());
+		assertThrows(IllegalArgumentException.class, () -> archive.unpack(new ByteArrayInputStream(tar.toBytes()), "application/x-tar"));
+	}
+
+	@Test
+	void invalidNamesAreRejected() throws Exception {
+		Tar duplicate = new Tar()
+				.entry("a/lib-1.0.jar", random(10), '0')
+				.entry("b/lib-1.0.jar", random(10), '0');
+		assertThrows(IllegalArgumentException.class,
+				() -> new VersionArchive(staging.toFile()).unpack(new ByteArrayInputStream(duplicate.toBytes()), "application/x-tar"));
+
+		Tar hidden = new Tar().entry(".livy-gzip-ivy.xml", random(10), '0');
+		assertThrows(IllegalArgumentException.class,
+				() -> new VersionArchive(staging.toFile()).unpack(new ByteArrayInputStream(hidden.toBytes()), "application/x-tar"));
+
+		Tar empty = new Tar().entry("lib/", new byte[0], '5');
+		assertThrows(IllegalArgumentException.class,
+				() -> new VersionArchive(staging.toFile()).unpack(new ByteArrayInputStream(empty.toBytes()), "application/x-tar"));
+	}
+
+	@Test
+	void truncatedTarIsRejected() throws Exception {
+		byte[] tar = new Tar().entry("lib-1.0.jar", random(5000), '0').toBytes();
+
+		VersionArchive archive = new VersionArchive(staging.toFile());
+		assertThrows(IOException.class, () -> archive.unpack(new ByteArrayInputStream(Arrays.copyOf(tar, 2048)), "application/x-tar"));
+	}
+
+	private static byte[] random(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static String sha1(byte[] content) throws Exception {
+		return DigestReadStream.toHex(MessageDigest.getInstance("SHA-1").digest(content));
+	}
+
+	/**
+	 * A ustar archive written in memory.
+	 */
+	private static class Tar {
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		Tar entry(String name, byte[] content, char type) {
+			byte[] header = new byte[512];
+			put(header, 0, name);
+			put(header, 100, "0000644");
+			put(header, 108, "0000000");
+			put(header, 116, "0000000");
+			put(header, 124, String.format("%011o", content.length));
+			put(header, 136, String.format("%011o", System.currentTimeMillis() / 1000));
+			Arrays.fill(header, 148, 156, (byte) ' ');
+			header[156] = (byte) type;
+			put(header, 257, "ustar");
+			put(header, 263, "00");
+			int checksum = 0;
+			for (byte b : header) {
+				checksum += b & 0xff;
+			}
+			put(header, 148, String.format("%06o", checksum));
+			header[154] = 0;
+			out.write(header, 0, header.length);
+			out.write(content, 0, content.length);
+			int padding = (512 - content.length % 512) % 512;
+			out.write(new byte[padding], 0, padding);
+			return this;
+		}
+
+		byte[] toBytes() {
+			byte[] end = new byte[1024];
+			ByteArrayOutputStream archive = new ByteArrayOutputStream();
+			archive.write(out.toByteArray(), 0, out.size());
+			archive.write(end, 0, end.length);
+			return archive.toByteArray();
+		}
+
+		private static void put(byte[] header, int offset, String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			System.arraycopy(bytes, 0, header, offset, bytes.length);
+		}
+	}
+
+}